@@ -0,0 +1,103 @@
+package eu.nebulous.resource.discovery.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Compares a JMH JSON result file with a baseline, and exits with status 1 if any benchmark regressed by more than
+ * the threshold (in percent, default 10) in score or, if measured, in allocated bytes per operation.
+ * A change is only a regression if the 99.9% confidence intervals of the two results do not overlap either, so
+ * run-to-run noise is not reported. Changes over the threshold within the noise are reported as NOISY.
+ * Both results should be recorded with the 'baseline' preset (3 forks, 5 iterations), for usable intervals.
+ * <pre>
+ * java -cp target/benchmarks.jar eu.nebulous.resource.discovery.benchmarks.BaselineComparison \
+ *     baselines/baseline-gc.json target/jmh-baseline-gc.json [threshold]
+ * </pre>
+ */
+public class BaselineComparison {
+    private final static String ALLOCATION_METRIC = "gc.alloc.rate.norm";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineComparison <baseline.json> <results.json> [threshold-percent]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+        Map<String, JsonNode> baseline = read(new File(args[0]));
+        Map<String, JsonNode> results = read(new File(args[1]));
+
+        int regressions = 0;
+        for (Map.Entry<String, JsonNode> entry : results.entrySet()) {
+            JsonNode base = baseline.get(entry.getKey());
+            if (base == null) {
+                System.out.printf("NEW        %s%n", entry.getKey());
+                continue;
+            }
+            JsonNode current = entry.getValue();
+            boolean lowerIsBetter = !"thrpt".equals(current.path("mode").asText());
+            if (compare(entry.getKey(), current.path("primaryMetric"), base.path("primaryMetric"), lowerIsBetter, threshold))
+                regressions++;
+            JsonNode alloc = current.path("secondaryMetrics").path(ALLOCATION_METRIC);
+            JsonNode baseAlloc = base.path("secondaryMetrics").path(ALLOCATION_METRIC);
+            if (!alloc.isMissingNode() && !baseAlloc.isMissingNode()
+                    && compare(entry.getKey() + " [" + ALLOCATION_METRIC + "]", alloc, baseAlloc, true, threshold))
+                regressions++;
+        }
+        baseline.keySet().stream().filter(key -> !results.containsKey(key))
+                .forEach(key -> System.out.printf("MISSING    %s%n", key));
+
+        System.out.printf("%d regression(s) over %.1f%%%n", regressions, threshold);
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /** Prints the change of the metric, and returns true if it is a regression */
+    private static boolean compare(String name, JsonNode current, JsonNode base, boolean lowerIsBetter, double threshold) {
+        double score = current.path("score").asDouble();
+        double baseScore = base.path("score").asDouble();
+        double change = baseScore != 0 ? (score - baseScore) / baseScore * 100 : 0;
+        boolean overThreshold = (lowerIsBetter ? change : -change) > threshold;
+        // Worse, beyond the noise of both results: the intervals are disjoint
+        boolean significant = lowerIsBetter
+                ? lower(current) > upper(base)
+                : upper(current) < lower(base);
+        boolean regression = overThreshold && significant;
+        System.out.printf("%-10s %s: %.3f +/- %.3f -> %.3f +/- %.3f %s (%+.1f%%)%n",
+                regression ? "REGRESSION" : overThreshold ? "NOISY" : "OK",
+                name, baseScore, error(base), score, error(current), current.path("scoreUnit").asText(), change);
+        return regression;
+    }
+
+    private static double error(JsonNode metric) {
+        double error = metric.path("scoreError").asDouble(Double.NaN);
+        return Double.isFinite(error) ? error : 0;
+    }
+
+    private static double lower(JsonNode metric) {
+        return metric.path("score").asDouble() - error(metric);
+    }
+
+    private static double upper(JsonNode metric) {
+        return metric.path("score").asDouble() + error(metric);
+    }
+
+    /** Reads the results, keyed by benchmark and parameters */
+    private static Map<String, JsonNode> read(File file) throws IOException {
+        Map<String, JsonNode> results = new TreeMap<>();
+        for (JsonNode result : new ObjectMapper().readTree(file)) {
+            StringBuilder key = new StringBuilder(result.path("benchmark").asText());
+            JsonNode params = result.path("params");
+            if (params.isObject()) {
+                List<String> names = new ArrayList<>();
+                params.fieldNames().forEachRemaining(names::add);
+                Collections.sort(names);
+                names.forEach(param -> key.append(' ').append(param).append('=').append(params.path(param).asText()));
+            }
+            results.put(key.toString(), result);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,70 @@
+package eu.nebulous.resource.discovery.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.profile.JavaFlightRecorderProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.*;
+
+/**
+ * Runs the benchmarks with optional presets, given as a comma-separated first argument:
+ * <ul>
+ *     <li>quick: one fork, 2 warmup and 3 measurement iterations of 1s (unless set on the command line)</li>
+ *     <li>baseline: 3 forks, 3 warmup and 5 measurement iterations of 1s, for results to compare (e.g. baselines)</li>
+ *     <li>gc: GC profiler (allocation rate per operation, GC counts), with a fixed 1GB heap</li>
+ *     <li>alloc: GC profiler and a JFR recording (allocation profile) per benchmark, in target/jfr</li>
+ * </ul>
+ * The remaining arguments are regular JMH options (e.g. a benchmark regexp). Results are written as JSON to
+ * target/jmh-[presets].json, for comparison with a baseline (see BaselineComparison).
+ * <pre>
+ * java -jar target/benchmarks.jar quick,gc BrokerIngestion
+ * java -jar target/benchmarks.jar baseline,gc
+ * </pre>
+ */
+public class BenchmarkRunner {
+    private final static Set<String> PRESETS = Set.of("quick", "baseline", "gc", "alloc");
+
+    public static void main(String[] args) throws Exception {
+        List<String> jmhArgs = new ArrayList<>(Arrays.asList(args));
+        List<String> presets = new ArrayList<>();
+        if (!jmhArgs.isEmpty() && PRESETS.containsAll(Arrays.asList(jmhArgs.getFirst().split(","))))
+            presets.addAll(Arrays.asList(jmhArgs.removeFirst().split(",")));
+
+        CommandLineOptions commandLine = new CommandLineOptions(jmhArgs.toArray(String[]::new));
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+
+        if (presets.contains("quick")) {
+            if (!commandLine.getForkCount().hasValue()) options.forks(1);
+            if (!commandLine.getWarmupIterations().hasValue()) options.warmupIterations(2);
+            if (!commandLine.getWarmupTime().hasValue()) options.warmupTime(TimeValue.seconds(1));
+            if (!commandLine.getMeasurementIterations().hasValue()) options.measurementIterations(3);
+            if (!commandLine.getMeasurementTime().hasValue()) options.measurementTime(TimeValue.seconds(1));
+        }
+        if (presets.contains("baseline")) {
+            if (!commandLine.getForkCount().hasValue()) options.forks(3);
+            if (!commandLine.getWarmupIterations().hasValue()) options.warmupIterations(3);
+            if (!commandLine.getWarmupTime().hasValue()) options.warmupTime(TimeValue.seconds(1));
+            if (!commandLine.getMeasurementIterations().hasValue()) options.measurementIterations(5);
+            if (!commandLine.getMeasurementTime().hasValue()) options.measurementTime(TimeValue.seconds(1));
+        }
+        if (presets.contains("gc")) {
+            options.addProfiler(GCProfiler.class);
+            options.jvmArgsAppend("-Xms1g", "-Xmx1g");
+        }
+        if (presets.contains("alloc")) {
+            options.addProfiler(GCProfiler.class);
+            options.addProfiler(JavaFlightRecorderProfiler.class, "dir=target/jfr;configName=profile");
+        }
+        if (!commandLine.getResult().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+            options.result("target/jmh-" + (presets.isEmpty() ? "default" : String.join("-", presets)) + ".json");
+        }
+
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,105 @@
+package eu.nebulous.resource.discovery.benchmarks;
+
+import eu.nebulous.resource.discovery.common.JsonPrefilter;
+import eu.nebulous.resource.discovery.common.MessageCodec;
+import eu.nebulous.resource.discovery.common.MessageCodecRegistry;
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * BrokerUtil.onMessage: pre-filtering, (decryption, decompression,) decoding and dispatching of EMS status and
+ * metrics reports to the monitor services, which update the device telemetry. Messages rotate over all devices.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BrokerIngestionBenchmark {
+    @Param({"1000"})
+    private int deviceCount;
+
+    @Param({"json", "json-encrypted", "smile", "cbor-gzip"})
+    private String format;
+
+    private Fixtures fixtures;
+    private ActiveMQMessage[] statusMessages;
+    private ActiveMQMessage[] metricsMessages;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        fixtures = new Fixtures(deviceCount, true);
+        fixtures.properties.setBrokerCompressionThreshold(1);
+        String statusTopic = fixtures.properties.getDeviceStatusMonitorTopic();
+        String metricsTopic = fixtures.properties.getDeviceMetricsMonitorTopic();
+        fixtures.brokerUtil.subscribe(statusTopic, fixtures.statusMonitorService);
+        fixtures.brokerUtil.subscribe(metricsTopic, fixtures.metricsMonitorService);
+
+        statusMessages = createMessages(statusTopic,
+                i -> Fixtures.statusMessage(i, Fixtures.BASE_TIME.plusSeconds(1)));
+        metricsMessages = createMessages(metricsTopic,
+                i -> Fixtures.metricsMessage(i, Fixtures.BASE_TIME.plusSeconds(1), 20, 5));
+    }
+
+    private ActiveMQMessage[] createMessages(String topic, IntFunction<Map<String, Object>> payloads) throws Exception {
+        ActiveMQMessage[] messages = new ActiveMQMessage[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            Map<String, Object> payload = payloads.apply(i);
+            ActiveMQMessage message = switch (format) {
+                case "json" -> textMessage(fixtures.objectMapper.writeValueAsString(payload));
+                case "json-encrypted" -> textMessage(fixtures.objectMapper.writeValueAsString(
+                        Map.of(JsonPrefilter.ENCRYPTED_MESSAGE_FIELD, fixtures.encryptionUtil.encryptMap(payload))));
+                case "smile" -> bytesMessage(fixtures.messageCodecRegistry.forContentType("application/x-jackson-smile"), payload, false);
+                case "cbor-gzip" -> bytesMessage(fixtures.messageCodecRegistry.forContentType("application/cbor"), payload, true);
+                default -> throw new IllegalArgumentException("Unknown format: " + format);
+            };
+            message.setDestination(new ActiveMQTopic(topic));
+            messages[i] = message;
+        }
+        return messages;
+    }
+
+    private static ActiveMQMessage textMessage(String text) throws Exception {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setText(text);
+        return message;
+    }
+
+    private ActiveMQMessage bytesMessage(MessageCodec codec, Map<String, Object> payload, boolean compress) throws Exception {
+        byte[] body = codec.encode(payload);
+        ActiveMQBytesMessage message = new ActiveMQBytesMessage();
+        message.writeBytes(compress ? fixtures.messageCodecRegistry.compress(body) : body);
+        message.setStringProperty(MessageCodec.CONTENT_TYPE_PROPERTY, codec.getContentType());
+        if (compress)
+            message.setStringProperty(MessageCodec.CONTENT_ENCODING_PROPERTY, MessageCodecRegistry.GZIP_ENCODING);
+        message.reset();
+        return message;
+    }
+
+    private ActiveMQMessage nextMessage(ActiveMQMessage[] messages) throws Exception {
+        ActiveMQMessage message = messages[next++ % messages.length];
+        // Bytes messages are re-read from the start
+        if (message instanceof ActiveMQBytesMessage bytesMessage)
+            bytesMessage.reset();
+        return message;
+    }
+
+    @Benchmark
+    public void statusReport() throws Exception {
+        fixtures.brokerUtil.onMessage(nextMessage(statusMessages));
+    }
+
+    @Benchmark
+    public void metricsReport() throws Exception {
+        fixtures.brokerUtil.onMessage(nextMessage(metricsMessages));
+    }
+}
@@ -0,0 +1,51 @@
+package eu.nebulous.resource.discovery.benchmarks;
+
+import eu.nebulous.resource.discovery.broker_communication.SALCommunicator;
+import eu.nebulous.resource.discovery.monitor.model.ArchivedDevice;
+import eu.nebulous.resource.discovery.monitor.model.Device;
+import eu.nebulous.resource.discovery.monitor.service.DeviceConversionService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DeviceConversionService (device archiving and restoring) and SALCommunicator.get_device_registration_json
+ * (the body of SAL device registrations).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+    private DeviceConversionService deviceConversionService;
+    private Device device;
+    private ArchivedDevice archivedDevice;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        deviceConversionService = new DeviceConversionService(Jackson2ObjectMapperBuilder.json().build());
+        device = Fixtures.device(1);
+        archivedDevice = deviceConversionService.toArchivedDevice(device);
+    }
+
+    @Benchmark
+    public ArchivedDevice toArchivedDevice() {
+        return deviceConversionService.toArchivedDevice(device);
+    }
+
+    @Benchmark
+    public Device toDevice() {
+        return deviceConversionService.toDevice(archivedDevice);
+    }
+
+    @Benchmark
+    public String deviceRegistrationJson() {
+        return SALCommunicator.get_device_registration_json(device.getIpAddress(), device.getIpAddress(), device.getPort(),
+                "UBUNTU", "AMD", "https://example.org/nebulous/ems-client.jar", 22, 4, 0, 8L, 120L, 0,
+                device.getName(), 0.0, device.getProvider(), "Athens", "GR", device.getUsername(),
+                new String(device.getPassword()), "", 23.72, 37.98);
+    }
+}
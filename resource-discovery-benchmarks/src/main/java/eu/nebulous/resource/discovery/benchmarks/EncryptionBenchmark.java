@@ -0,0 +1,56 @@
+package eu.nebulous.resource.discovery.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.common.EncryptionUtil;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EncryptionUtil.encryptMap and decryptMap, for a status report (small) and a metrics report (large),
+ * in both encryption modes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncryptionBenchmark {
+    @Param({"LEGACY", "AES_GCM"})
+    private String mode;
+
+    @Param({"small", "large"})
+    private String payload;
+
+    private EncryptionUtil encryptionUtil;
+    private Map<String, Object> message;
+    private String encryptedMessage;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        ResourceDiscoveryProperties properties = Fixtures.defaultProperties(true);
+        properties.setEncryptionMode(ResourceDiscoveryProperties.ENCRYPTION_MODE.valueOf(mode));
+        ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        encryptionUtil = new EncryptionUtil(properties, objectMapper);
+        encryptionUtil.afterPropertiesSet();
+
+        message = "small".equals(payload)
+                ? Fixtures.statusMessage(1, Fixtures.BASE_TIME)
+                : Fixtures.metricsMessage(1, Fixtures.BASE_TIME, 50, 20);
+        encryptedMessage = encryptionUtil.encryptMap(message);
+    }
+
+    @Benchmark
+    public String encryptMap() {
+        return encryptionUtil.encryptMap(message);
+    }
+
+    @Benchmark
+    public Map<?, ?> decryptMap() {
+        return encryptionUtil.decryptMap(encryptedMessage);
+    }
+}
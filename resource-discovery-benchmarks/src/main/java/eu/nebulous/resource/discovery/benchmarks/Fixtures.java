@@ -0,0 +1,280 @@
+package eu.nebulous.resource.discovery.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.common.BrokerUtil;
+import eu.nebulous.resource.discovery.common.EncryptionUtil;
+import eu.nebulous.resource.discovery.common.MessageCodecRegistry;
+import eu.nebulous.resource.discovery.common.MessageDecoderRegistry;
+import eu.nebulous.resource.discovery.monitor.DeviceFailureDetector;
+import eu.nebulous.resource.discovery.monitor.model.ArchivedDevice;
+import eu.nebulous.resource.discovery.monitor.model.Device;
+import eu.nebulous.resource.discovery.monitor.model.DeviceStatus;
+import eu.nebulous.resource.discovery.monitor.model.DeviceStatusUpdate;
+import eu.nebulous.resource.discovery.monitor.repository.ArchivedDeviceRepository;
+import eu.nebulous.resource.discovery.monitor.repository.DeviceRepository;
+import eu.nebulous.resource.discovery.monitor.service.DeviceConversionService;
+import eu.nebulous.resource.discovery.monitor.service.DeviceIndex;
+import eu.nebulous.resource.discovery.monitor.service.DeviceManagementService;
+import eu.nebulous.resource.discovery.monitor.service.DeviceMetricsMonitorService;
+import eu.nebulous.resource.discovery.monitor.service.DeviceMetricsStore;
+import eu.nebulous.resource.discovery.monitor.service.DeviceStatusMonitorService;
+import eu.nebulous.resource.discovery.monitor.service.DeviceTelemetryBuffer;
+import eu.nebulous.resource.discovery.registration.RegistrationRequestProcessor;
+import eu.nebulous.resource.discovery.registration.model.ArchivedRegistrationRequest;
+import eu.nebulous.resource.discovery.registration.model.RegistrationRequest;
+import eu.nebulous.resource.discovery.registration.model.RegistrationRequestStatus;
+import eu.nebulous.resource.discovery.registration.repository.ArchivedRegistrationRequestRepository;
+import eu.nebulous.resource.discovery.registration.repository.RegistrationRequestRepository;
+import eu.nebulous.resource.discovery.registration.service.RegistrationRequestConversionService;
+import eu.nebulous.resource.discovery.registration.service.RegistrationRequestService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.ConcurrentTaskScheduler;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+
+/**
+ * Wires the services under benchmark by hand, with in-memory repositories instead of MongoDB and no broker connection.
+ * Scheduled tasks (flushes, index re-syncs, failure detection) are not started, so only the measured calls do work.
+ */
+public class Fixtures {
+    public final static Instant BASE_TIME = Instant.parse("2026-01-01T00:00:00Z");
+
+    public final int deviceCount;
+    public final ResourceDiscoveryProperties properties;
+    public final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+    public final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    public final TaskScheduler taskScheduler = new ConcurrentTaskScheduler(
+            Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().factory()));
+    public final ApplicationEventPublisher eventPublisher = event -> { };
+
+    public final DeviceRepository deviceRepository;
+    public final RegistrationRequestRepository registrationRequestRepository;
+    public final DeviceConversionService deviceConversionService;
+    public final DeviceIndex deviceIndex;
+    public final DeviceManagementService deviceManagementService;
+    public final DeviceTelemetryBuffer telemetryBuffer;
+    public final DeviceMetricsStore metricsStore;
+    public final DeviceFailureDetector failureDetector;
+    public final MessageDecoderRegistry messageDecoderRegistry;
+    public final MessageCodecRegistry messageCodecRegistry;
+    public final EncryptionUtil encryptionUtil;
+    public final BrokerUtil brokerUtil;
+    public final DeviceStatusMonitorService statusMonitorService;
+    public final DeviceMetricsMonitorService metricsMonitorService;
+    public final RegistrationRequestService registrationRequestService;
+    public final RegistrationRequestProcessor registrationRequestProcessor;
+
+    public Fixtures(int deviceCount, boolean deviceIndexEnabled) {
+        this(deviceCount, defaultProperties(deviceIndexEnabled));
+    }
+
+    public Fixtures(int deviceCount, ResourceDiscoveryProperties properties) {
+        this.deviceCount = deviceCount;
+        this.properties = properties;
+
+        deviceRepository = InMemoryRepository.<Device, DeviceRepository>create(DeviceRepository.class, Device::getId, Map.of(
+                "findByIpAddress", (devices, args) -> devices.stream()
+                        .filter(d -> args[0].equals(d.getIpAddress())).findFirst(),
+                "findFirstByStatusUpdateClientId", (devices, args) -> devices.stream()
+                        .filter(d -> d.getStatusUpdate() != null && ((String) args[0]).equalsIgnoreCase(d.getStatusUpdate().getClientId()))
+                        .findFirst(),
+                "findByOwner", (devices, args) -> devices.stream()
+                        .filter(d -> args[0].equals(d.getOwner())).toList(),
+                "findByLastUpdateDateGreaterThanEqual", (devices, args) -> devices.stream()
+                        .filter(d -> d.getLastUpdateDate() != null && !d.getLastUpdateDate().isBefore((Instant) args[0])).toList()));
+        ArchivedDeviceRepository archivedDeviceRepository = InMemoryRepository.<ArchivedDevice, ArchivedDeviceRepository>create(
+                ArchivedDeviceRepository.class, ArchivedDevice::getId, Map.of());
+        registrationRequestRepository = InMemoryRepository.<RegistrationRequest, RegistrationRequestRepository>create(
+                RegistrationRequestRepository.class, RegistrationRequest::getId, Map.of(
+                        "findByDeviceIpAddress", (requests, args) -> requests.stream()
+                                .filter(r -> args[0].equals(r.getDevice().getIpAddress())).toList()));
+        ArchivedRegistrationRequestRepository archivedRegistrationRequestRepository =
+                InMemoryRepository.<ArchivedRegistrationRequest, ArchivedRegistrationRequestRepository>create(
+                        ArchivedRegistrationRequestRepository.class, ArchivedRegistrationRequest::getId, Map.of());
+
+        deviceConversionService = new DeviceConversionService(objectMapper);
+        deviceIndex = new DeviceIndex(properties, deviceRepository, taskScheduler, meterRegistry);
+        deviceManagementService = new DeviceManagementService(properties, deviceRepository, archivedDeviceRepository,
+                deviceConversionService, deviceIndex, null, eventPublisher);
+        telemetryBuffer = new DeviceTelemetryBuffer(properties, deviceManagementService, taskScheduler);
+        metricsStore = new DeviceMetricsStore(properties, null, taskScheduler, meterRegistry);
+        failureDetector = new DeviceFailureDetector(properties, deviceManagementService, null, taskScheduler, new SyncTaskExecutor(), meterRegistry);
+
+        messageDecoderRegistry = new MessageDecoderRegistry(objectMapper);
+        messageCodecRegistry = new MessageCodecRegistry(properties, objectMapper, meterRegistry);
+        encryptionUtil = new EncryptionUtil(properties, objectMapper);
+        try {
+            encryptionUtil.afterPropertiesSet();
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not initialize the encryption key", e);
+        }
+        brokerUtil = new BrokerUtil(properties, encryptionUtil, taskScheduler, objectMapper,
+                messageDecoderRegistry, messageCodecRegistry, meterRegistry);
+
+        statusMonitorService = new DeviceStatusMonitorService(properties, taskScheduler, objectMapper,
+                deviceManagementService, brokerUtil, messageDecoderRegistry, telemetryBuffer, failureDetector);
+        metricsMonitorService = new DeviceMetricsMonitorService(properties, taskScheduler, objectMapper,
+                deviceManagementService, brokerUtil, messageDecoderRegistry, telemetryBuffer, failureDetector, metricsStore);
+
+        registrationRequestService = new RegistrationRequestService(properties, registrationRequestRepository,
+                archivedRegistrationRequestRepository, new RegistrationRequestConversionService(objectMapper),
+                deviceManagementService, eventPublisher, null);
+        registrationRequestProcessor = new RegistrationRequestProcessor(properties, registrationRequestService,
+                deviceManagementService, Optional.empty(), taskScheduler, objectMapper, brokerUtil, meterRegistry);
+
+        for (int i = 0; i < deviceCount; i++)
+            deviceRepository.save(device(i));
+        deviceIndex.reload();
+    }
+
+    /** Production defaults, except for settings that would need a database, a broker or background tasks */
+    public static ResourceDiscoveryProperties defaultProperties(boolean deviceIndexEnabled) {
+        ResourceDiscoveryProperties properties = new ResourceDiscoveryProperties();
+        properties.setDeviceIndexEnabled(deviceIndexEnabled);
+        properties.setTelemetryWriteBehindEnabled(true);
+        properties.setTelemetryFlushThreshold(Integer.MAX_VALUE);
+        properties.setMetricsPersistenceEnabled(false);
+        properties.setAutomaticFailedDetection(false);
+        properties.setSalRegistrationEnabled(false);
+        properties.setImmediatelyArchiveSuccessRequests(false);
+        properties.setEnableEncryption(true);
+        properties.setUsePasswordGeneratedKey(true);
+        properties.setSymmetricKeyPassword("benchmark-password".toCharArray());
+        properties.setSalt("benchmark-salt".getBytes(StandardCharsets.UTF_8));
+        return properties;
+    }
+
+    // ------------------------------------------------------------------------
+
+    public static String ipAddress(int i) {
+        return "10." + (i >> 16 & 255) + "." + (i >> 8 & 255) + "." + (i & 255);
+    }
+
+    public static Device device(int i) {
+        DeviceStatusUpdate statusUpdate = new DeviceStatusUpdate();
+        statusUpdate.setIpAddress(ipAddress(i));
+        statusUpdate.setClientId("client-" + i);
+        statusUpdate.setState("READY");
+        statusUpdate.setStateLastUpdate(BASE_TIME);
+        statusUpdate.setReference("node-ref-" + i);
+        return Device.builder()
+                .id("device-" + i)
+                .ref("app|device-" + i)
+                .name("device-" + i)
+                .os("LINUX")
+                .owner("owner-" + (i % 10))
+                .provider("provider-" + (i % 4))
+                .ipAddress(ipAddress(i))
+                .port(22)
+                .username("ubuntu")
+                .password("password".toCharArray())
+                .deviceInfo(deviceInfo(i))
+                .requestId("request-" + i)
+                .creationDate(BASE_TIME)
+                .lastUpdateDate(BASE_TIME)
+                .status(DeviceStatus.HEALTHY)
+                .nodeReference("node-ref-" + i)
+                .statusUpdate(statusUpdate)
+                .build();
+    }
+
+    public static Map<String, String> deviceInfo(int i) {
+        Map<String, String> info = new LinkedHashMap<>();
+        info.put("CPU_SOCKETS", "1");
+        info.put("CPU_CORES", "4");
+        info.put("CPU_PROCESSORS", "8");
+        info.put("RAM_TOTAL_KB", "8000000");
+        info.put("RAM_AVAILABLE_KB", "" + (4000000 + i));
+        info.put("DISK_TOTAL_KB", "120000000");
+        info.put("DISK_FREE_KB", "80000000");
+        info.put("OS_ARCHITECTURE", "x86_64");
+        info.put("OS_KERNEL", "Linux");
+        info.put("OS_KERNEL_RELEASE", "6.8.0-45-generic");
+        return info;
+    }
+
+    /** Device status report, as sent by EMS clients */
+    public static Map<String, Object> statusMessage(int i, Instant timestamp) {
+        Map<String, Object> update = new LinkedHashMap<>();
+        update.put("ipAddress", ipAddress(i));
+        update.put("clientId", "client-" + i);
+        update.put("state", "READY");
+        update.put("stateLastUpdate", timestamp.toString());
+        update.put("reference", "node-ref-" + i);
+        update.put("errors", List.of());
+        return Map.of("message", update);
+    }
+
+    /** Device metrics report, as sent by EMS clients: identification fields, numeric metrics and latest events */
+    public static Map<String, Object> metricsMessage(int i, Instant timestamp, int metricCount, int eventCount) {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("clientId", "client-" + i);
+        report.put("ipAddress", ipAddress(i));
+        report.put("receivedAtServer", timestamp.toString());
+        report.put("_received_at_server_timestamp", timestamp.toEpochMilli());
+        for (int m = 0; m < metricCount; m++)
+            report.put("metric_" + m, (i * 31 + m) % 100 / 10.0);
+        List<Object> events = new ArrayList<>();
+        for (int e = 0; e < eventCount; e++) {
+            Map<String, Object> event = new LinkedHashMap<>();
+            event.put("metric", "metric_" + (e % Math.max(1, metricCount)));
+            event.put("value", e * 1.5);
+            event.put("level", 1);
+            event.put("timestamp", timestamp.toEpochMilli() - e * 1000L);
+            event.put("properties", Map.of("source", "ems-client", "instance", "client-" + i));
+            events.add(event);
+        }
+        report.put("latest-events", events);
+        return Map.of("message", report);
+    }
+
+    /** Registration request waiting for the device data collection response */
+    public static RegistrationRequest registrationRequest(int i) {
+        return RegistrationRequest.builder()
+                .id("request-" + i)
+                .device(eu.nebulous.resource.discovery.registration.model.Device.builder()
+                        .id("device-" + i)
+                        .ref("app|device-" + i)
+                        .name("device-" + i)
+                        .owner("owner-" + (i % 10))
+                        .provider("provider-" + (i % 4))
+                        .ipAddress(ipAddress(i))
+                        .port(22)
+                        .username("ubuntu")
+                        .deviceInfo(new LinkedHashMap<>())
+                        .build())
+                .requester("owner-" + (i % 10))
+                .requestDate(BASE_TIME)
+                .lastUpdateDate(BASE_TIME)
+                .status(RegistrationRequestStatus.DATA_COLLECTION_REQUESTED)
+                .history(new ArrayList<>())
+                .messages(new ArrayList<>())
+                .build();
+    }
+
+    /** Successful device data collection response, as sent by EMS */
+    public static Map<String, Object> dataCollectionResponse(int i) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("requestType", "DIAGNOSTICS");
+        response.put("requestId", "request-" + i);
+        response.put("reference", "node-ref-" + i);
+        response.put("status", "SUCCESS");
+        response.put("deviceIpAddress", ipAddress(i));
+        response.put("timestamp", BASE_TIME.toEpochMilli() + 1000L);
+        response.put("nodeInfo", new LinkedHashMap<>(deviceInfo(i)));
+        return response;
+    }
+}
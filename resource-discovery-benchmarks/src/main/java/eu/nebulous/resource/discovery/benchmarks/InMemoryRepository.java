@@ -0,0 +1,79 @@
+package eu.nebulous.resource.discovery.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * In-memory stand-in of a Spring Data repository interface, backed by a map, so that services can be benchmarked
+ * without a database. The CRUD methods used by the services are implemented, and derived finder methods are
+ * given as functions of the stored entities and the call arguments. Entities are stored and returned as is (not copied).
+ */
+public class InMemoryRepository<T> implements InvocationHandler {
+    private final Map<String, T> entities = new ConcurrentHashMap<>();
+    private final Function<T, String> idGetter;
+    private final Map<String, BiFunction<Collection<T>, Object[], Object>> finders;
+
+    private InMemoryRepository(Function<T, String> idGetter, Map<String, BiFunction<Collection<T>, Object[], Object>> finders) {
+        this.idGetter = idGetter;
+        this.finders = finders;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T, R> R create(Class<R> repositoryType, Function<T, String> idGetter,
+                                  Map<String, BiFunction<Collection<T>, Object[], Object>> finders)
+    {
+        return (R) Proxy.newProxyInstance(repositoryType.getClassLoader(), new Class<?>[] { repositoryType },
+                new InMemoryRepository<>(idGetter, finders));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        int argCount = args != null ? args.length : 0;
+        switch (method.getName()) {
+            case "save":
+                entities.put(idGetter.apply((T) args[0]), (T) args[0]);
+                return args[0];
+            case "saveAll":
+                ((Iterable<T>) args[0]).forEach(entity -> entities.put(idGetter.apply(entity), entity));
+                return args[0];
+            case "findById":
+                return Optional.ofNullable(entities.get((String) args[0]));
+            case "existsById":
+                return entities.containsKey((String) args[0]);
+            case "count":
+                return (long) entities.size();
+            case "deleteById":
+                entities.remove((String) args[0]);
+                return null;
+            case "delete":
+                entities.remove(idGetter.apply((T) args[0]));
+                return null;
+            case "deleteAll":
+                if (argCount == 0) entities.clear();
+                else ((Iterable<T>) args[0]).forEach(entity -> entities.remove(idGetter.apply(entity)));
+                return null;
+            case "toString":
+                return "InMemoryRepository" + entities.keySet();
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+        }
+        if ("findAll".equals(method.getName()) && argCount == 0)
+            return new ArrayList<>(entities.values());
+
+        BiFunction<Collection<T>, Object[], Object> finder = finders.get(method.getName());
+        if (finder == null)
+            throw new UnsupportedOperationException("Not supported by the in-memory repository: " + method);
+        return finder.apply(entities.values(), args);
+    }
+}
@@ -0,0 +1,48 @@
+package eu.nebulous.resource.discovery.benchmarks;
+
+import eu.nebulous.resource.discovery.registration.model.RegistrationRequest;
+import eu.nebulous.resource.discovery.registration.model.RegistrationRequestStatus;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RegistrationRequestProcessor.processResponse (through onMessage), for successful device data collection
+ * responses: response checks, device info filtering, status change and request update.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegistrationResponseBenchmark {
+    @Param({"1000"})
+    private int requestCount;
+
+    private Fixtures fixtures;
+    private RegistrationRequest[] requests;
+    private Map<String, Object>[] responses;
+    private int next;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        fixtures = new Fixtures(0, true);
+        requests = new RegistrationRequest[requestCount];
+        responses = new Map[requestCount];
+        for (int i = 0; i < requestCount; i++) {
+            requests[i] = fixtures.registrationRequestRepository.save(Fixtures.registrationRequest(i));
+            responses[i] = Fixtures.dataCollectionResponse(i);
+        }
+    }
+
+    @Benchmark
+    public void processDataCollectionResponse() {
+        int i = next++ % requestCount;
+        // Processing moves the request to the next status. Put it back, so every call does the same work
+        requests[i].setStatus(RegistrationRequestStatus.DATA_COLLECTION_REQUESTED);
+        fixtures.registrationRequestProcessor.onMessage(responses[i]);
+    }
+}
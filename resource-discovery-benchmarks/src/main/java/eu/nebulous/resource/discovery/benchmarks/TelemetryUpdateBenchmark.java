@@ -0,0 +1,51 @@
+package eu.nebulous.resource.discovery.benchmarks;
+
+import eu.nebulous.resource.discovery.monitor.model.DeviceMetricsMessage;
+import eu.nebulous.resource.discovery.monitor.model.DeviceStatusMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DeviceStatusMonitorService.updateDeviceInfo and DeviceMetricsMonitorService.updateDeviceMetrics (through the
+ * listeners' onMessage), with already decoded reports: device lookup, staleness check, metrics history and
+ * write-behind buffering.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TelemetryUpdateBenchmark {
+    @Param({"1000"})
+    private int deviceCount;
+
+    private Fixtures fixtures;
+    private DeviceStatusMessage[] statusMessages;
+    private DeviceMetricsMessage[] metricsMessages;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        fixtures = new Fixtures(deviceCount, true);
+        statusMessages = new DeviceStatusMessage[deviceCount];
+        metricsMessages = new DeviceMetricsMessage[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            statusMessages[i] = fixtures.objectMapper.convertValue(
+                    Fixtures.statusMessage(i, Fixtures.BASE_TIME.plusSeconds(1)), DeviceStatusMessage.class);
+            metricsMessages[i] = fixtures.objectMapper.convertValue(
+                    Fixtures.metricsMessage(i, Fixtures.BASE_TIME.plusSeconds(1), 20, 5), DeviceMetricsMessage.class);
+        }
+    }
+
+    @Benchmark
+    public void updateDeviceInfo() {
+        fixtures.statusMonitorService.onMessage(statusMessages[next++ % deviceCount]);
+    }
+
+    @Benchmark
+    public void updateDeviceMetrics() {
+        fixtures.metricsMonitorService.onMessage(metricsMessages[next++ % deviceCount]);
+    }
+}
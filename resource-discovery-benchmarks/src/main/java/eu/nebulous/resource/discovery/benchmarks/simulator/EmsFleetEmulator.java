@@ -0,0 +1,159 @@
+package eu.nebulous.resource.discovery.benchmarks.simulator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.benchmarks.Fixtures;
+import jakarta.jms.*;
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Emulates the EMS clients of a device fleet, over its own broker connection:
+ * answers DIAGNOSTICS and INSTALL requests (on the data collection request topic) with successful responses,
+ * and sends status and metrics reports of every device at the configured periods.
+ * Device i has IP address Fixtures.ipAddress(i), client id 'client-i' and node reference 'node-ref-i'.
+ * Reports carry their sending time, which the simulator uses to compute the update latencies.
+ */
+class EmsFleetEmulator implements MessageListener, AutoCloseable {
+    private final SimulatorOptions options;
+    private final ResourceDiscoveryProperties properties;
+    private final ObjectMapper objectMapper;
+    private final Map<String, Integer> devicesByIpAddress = new ConcurrentHashMap<>();
+
+    private Connection connection;
+    private Session responseSession;
+    private MessageProducer responseProducer;
+    private final List<Lane> lanes = new ArrayList<>();
+
+    final LongAdder diagnosticsAnswered = new LongAdder();
+    final LongAdder installsAnswered = new LongAdder();
+    final LongAdder statusSent = new LongAdder();
+    final LongAdder metricsSent = new LongAdder();
+    final LongAdder sendErrors = new LongAdder();
+
+    /** A sender thread with its own session, sending the reports of a subset of the devices */
+    private record Lane(ScheduledExecutorService executor, Session session,
+                        MessageProducer statusProducer, MessageProducer metricsProducer) {
+    }
+
+    EmsFleetEmulator(SimulatorOptions options, ResourceDiscoveryProperties properties, ObjectMapper objectMapper) {
+        this.options = options;
+        this.properties = properties;
+        this.objectMapper = objectMapper;
+        for (int i = 0; i < options.devices; i++)
+            devicesByIpAddress.put(Fixtures.ipAddress(i), i);
+    }
+
+    void start(String brokerUrl) throws JMSException {
+        connection = new ActiveMQConnectionFactory(brokerUrl).createConnection();
+        connection.start();
+        responseSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        responseProducer = responseSession.createProducer(responseSession.createTopic(properties.getDataCollectionResponseTopic()));
+        responseSession.createConsumer(responseSession.createTopic(properties.getDataCollectionRequestTopic())).setMessageListener(this);
+    }
+
+    // ------------------------------------------------------------------------
+    // Registration requests
+
+    @Override
+    public void onMessage(Message message) {
+        try {
+            if (!(message instanceof TextMessage textMessage)) return;
+            Map<?, ?> request = objectMapper.readValue(textMessage.getText(), Map.class);
+            String requestType = String.valueOf(request.get("requestType"));
+            Integer i = devicesByIpAddress.get(String.valueOf(request.get("deviceIpAddress")));
+            if (i == null || !("DIAGNOSTICS".equals(requestType) || "INSTALL".equals(requestType)))
+                return;
+
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("requestType", requestType);
+            response.put("requestId", request.get("requestId"));
+            response.put("reference", "node-ref-" + i);
+            response.put("status", "SUCCESS");
+            response.put("deviceIpAddress", Fixtures.ipAddress(i));
+            response.put("timestamp", System.currentTimeMillis());
+            response.put("nodeInfo", Fixtures.deviceInfo(i));
+            responseProducer.send(responseSession.createTextMessage(objectMapper.writeValueAsString(response)));
+            ("INSTALL".equals(requestType) ? installsAnswered : diagnosticsAnswered).increment();
+        } catch (Exception e) {
+            sendErrors.increment();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Status and metrics reports
+
+    /** Starts the reports of all devices. Each device starts at a random offset within its period */
+    synchronized void startReporting() throws JMSException {
+        for (int l = 0; l < options.senderThreads; l++) {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer statusProducer = session.createProducer(session.createTopic(properties.getDeviceStatusMonitorTopic()));
+            MessageProducer metricsProducer = session.createProducer(session.createTopic(properties.getDeviceMetricsMonitorTopic()));
+            statusProducer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+            metricsProducer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("ems-fleet-sender-" + l).daemon().factory());
+            lanes.add(new Lane(executor, session, statusProducer, metricsProducer));
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < options.devices; i++) {
+            int device = i;
+            Lane lane = lanes.get(i % lanes.size());
+            lane.executor().scheduleAtFixedRate(
+                    () -> send(lane.session(), lane.statusProducer(), statusReport(device), statusSent),
+                    random.nextLong(options.heartbeatPeriod), options.heartbeatPeriod, TimeUnit.MILLISECONDS);
+            lane.executor().scheduleAtFixedRate(
+                    () -> send(lane.session(), lane.metricsProducer(), metricsReport(device), metricsSent),
+                    random.nextLong(options.metricsPeriod), options.metricsPeriod, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void stopReporting() throws InterruptedException {
+        for (Lane lane : lanes) lane.executor().shutdownNow();
+        for (Lane lane : lanes) lane.executor().awaitTermination(10, TimeUnit.SECONDS);
+        for (Lane lane : lanes) closeQuietly(lane.session());
+        lanes.clear();
+    }
+
+    private void send(Session session, MessageProducer producer, Map<String, Object> report, LongAdder counter) {
+        try {
+            producer.send(session.createTextMessage(objectMapper.writeValueAsString(report)));
+            counter.increment();
+        } catch (Exception e) {
+            sendErrors.increment();
+        }
+    }
+
+    private static Map<String, Object> statusReport(int i) {
+        return Fixtures.statusMessage(i, Instant.now());
+    }
+
+    private Map<String, Object> metricsReport(int i) {
+        return Fixtures.metricsMessage(i, Instant.now(), options.metricsPerReport, options.eventsPerReport);
+    }
+
+    // ------------------------------------------------------------------------
+
+    @Override
+    public void close() throws Exception {
+        stopReporting();
+        closeQuietly(responseSession);
+        if (connection != null) connection.close();
+    }
+
+    private static void closeQuietly(Session session) {
+        try {
+            if (session != null) session.close();
+        } catch (JMSException e) {
+            // Closing anyway
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package eu.nebulous.resource.discovery.benchmarks.simulator;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with 1ms buckets, up to one minute (longer latencies go to the last bucket).
+ */
+class LatencyRecorder {
+    private final static int MAX_LATENCY = 60_000;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(MAX_LATENCY + 1);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+
+    void record(long latency) {
+        buckets.incrementAndGet((int) Math.max(0, Math.min(latency, MAX_LATENCY)));
+        count.increment();
+        total.add(Math.max(0, latency));
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    double getMean() {
+        long n = count.sum();
+        return n > 0 ? (double) total.sum() / n : 0;
+    }
+
+    /** Latency (in millis) below or equal to which the given fraction of the recorded latencies are */
+    long getPercentile(double fraction) {
+        long n = count.sum();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) return i;
+        }
+        return MAX_LATENCY;
+    }
+
+    long getMax() {
+        for (int i = buckets.length() - 1; i >= 0; i--)
+            if (buckets.get(i) > 0) return i;
+        return 0;
+    }
+}
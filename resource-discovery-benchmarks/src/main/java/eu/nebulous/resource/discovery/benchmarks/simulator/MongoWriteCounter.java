@@ -0,0 +1,41 @@
+package eu.nebulous.resource.discovery.benchmarks.simulator;
+
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import org.bson.BsonDocument;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the write commands sent to MongoDB, and the documents they insert, update or delete.
+ * Registered to the application's MongoClient, so all writes are counted, including bulk and unacknowledged ones.
+ */
+class MongoWriteCounter implements CommandListener {
+    // command name -> field holding the written documents
+    private final static Map<String, String> WRITE_COMMANDS = Map.of(
+            "insert", "documents",
+            "update", "updates",
+            "delete", "deletes",
+            "findAndModify", "");
+
+    private final LongAdder commands = new LongAdder();
+    private final LongAdder documents = new LongAdder();
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+        String field = WRITE_COMMANDS.get(event.getCommandName());
+        if (field == null) return;
+        BsonDocument command = event.getCommand();
+        commands.increment();
+        documents.add(!field.isEmpty() && command.isArray(field) ? command.getArray(field).size() : 1);
+    }
+
+    long getCommands() {
+        return commands.sum();
+    }
+
+    long getDocuments() {
+        return documents.sum();
+    }
+}
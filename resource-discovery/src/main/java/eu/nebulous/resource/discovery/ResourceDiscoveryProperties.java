@@ -8,7 +8,9 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @Slf4j
 @Data
@@ -37,6 +39,29 @@ public class ResourceDiscoveryProperties implements InitializingBean {
 	private long subscriptionStartupDelay = 10;
 	private long subscriptionRetryDelay = 60;
 
+	// Broker message dispatch settings
+	private BROKER_DISPATCH_MODE brokerDispatchMode = BROKER_DISPATCH_MODE.SESSION_PER_TOPIC;
+	private Map<String, String> brokerTopicGroups = new HashMap<>();	// topic -> session group. Ungrouped topics get their own session
+	private int brokerDispatchWorkers = 16;					// number of dispatch stripes. Messages of the same device go to the same stripe
+	private int brokerDispatchQueueSize = 1000;				// pending messages per stripe, before consumer sessions block
+	private boolean brokerDispatchVirtualThreads = true;
+
+	// Broker outbound message settings
+	private int brokerSendQueueSize = 10000;
+	private BROKER_SEND_OVERFLOW_POLICY brokerSendOverflowPolicy = BROKER_SEND_OVERFLOW_POLICY.BLOCK;
+	private long brokerSendBlockTimeout = 5000;				// in millis. Only for BLOCK policy. 0 waits indefinitely
+	private int brokerSenderThreads = 1;					// more than one sender does not preserve the per-topic sending order
+	private int brokerSendMaxInFlight = 1000;				// async sends awaiting broker acknowledgement
+	private long brokerSendRetryDelay = 2000;				// in millis
+	private long brokerSendDefaultTimeToLive = 0;			// in millis. 0 means that messages never expire
+	private Map<String, Long> brokerSendTopicTimeToLive = new HashMap<>();	// topic -> TTL in millis. Installation requests default to 10 min
+
+	// Broker message format settings
+	private String brokerDefaultCodec = "json";				// json, smile or cbor. Non-JSON payloads are sent in bytes messages
+	private Map<String, String> brokerTopicCodecs = new HashMap<>();	// topic -> codec. Received messages are decoded by their content type
+	private int brokerCompressionThreshold = 0;				// in bytes. Larger payloads are gzip-compressed (in bytes messages). 0 disables compression
+	private int brokerMaxDecompressedSize = 16 * 1024 * 1024;	// in bytes. Larger decompressed payloads are rejected
+
 	// Sample data creation settings
 	private boolean createSampleDataAtStartup;
 	private boolean createSampleDataPeriodically;
@@ -48,6 +73,9 @@ public class ResourceDiscoveryProperties implements InitializingBean {
 	private boolean enablePeriodicProcessing = true;
 	private long processingStartupDelay = 10;
 	private long processingPeriod = 60;
+	private boolean eventDrivenProcessing = true;			// process new and authorized requests as soon as they are saved
+	private int registrationWorkers = 4;					// threads sending DIAGNOSTICS/INSTALL requests in parallel
+	private int registrationBatchSize = 50;					// requests per chunk. One bulk status update per chunk
 
 	// Data collection settings
 	private String dataCollectionRequestTopic = "ems.client.installation.requests";
@@ -64,16 +92,97 @@ public class ResourceDiscoveryProperties implements InitializingBean {
 	private String deviceLifeCycleRequestsTopic = "ems.client.installation.requests";
 	private String deviceLifeCycleResponsesTopic = "ems.client.installation.reports";
 
+	// Device telemetry write-behind settings (DeviceTelemetryBuffer)
+	private boolean telemetryWriteBehindEnabled = true;
+	private long telemetryFlushPeriod = 5000;				// in millis
+	private int telemetryFlushThreshold = 1000;				// devices with pending updates that trigger an early flush
+
+	// Device index settings (in-memory lookup of active devices)
+	private boolean deviceIndexEnabled = true;
+	private long deviceIndexResyncPeriod = 60*1000;			// in millis. Re-reads devices modified since the last resync
+	private long deviceIndexFullReloadPeriod = 60*60*1000;	// in millis. Re-loads the whole index, dropping deleted devices
+
+	// Device partial update settings (write concern names, e.g. UNACKNOWLEDGED, W1, ACKNOWLEDGED, MAJORITY)
+	private String telemetryWriteConcern = "ACKNOWLEDGED";	// for device status/metrics updates. UNACKNOWLEDGED ones skip index and events
+	private String lifecycleWriteConcern = "ACKNOWLEDGED";		// for device status transitions
+
+	// Database index settings
+	private boolean createIndexesOnStartup = true;				// creates the indexes declared in models
+	private boolean checkQueryPlansOnStartup = true;			// explains repository queries and reports collection scans
+
+	// List API settings (paging of device and registration request lists)
+	private int listDefaultPageSize = 1000;					// page size when 'after' is given without 'limit' (0 for all). Lists without both are not paged
+	private int listMaxPageSize = 1000;						// upper bound of the 'limit' parameter
+	private boolean deviceListSnapshotEnabled = true;		// serve unfiltered device list from a pre-serialized snapshot
+	private boolean deviceListSnapshotGzip = true;			// also keep a gzip-compressed copy of the snapshot
+	private long deviceListSnapshotMinInterval = 1000;		// in millis. Snapshot is rebuilt at most once per interval
+
+	// Change feed settings (ChangeFeedService, /monitor/events)
+	private int changeFeedCapacity = 10000;					// latest changes kept for clients catching up
+	private long changeFeedMetricsInterval = 5000;			// in millis. Minimum interval between metrics deltas of a device
+	private List<String> changeFeedMetricsKeys = new ArrayList<>(List.of("cpu", "ram", "disk"));
+	private long changeFeedSseTimeout = 30*60*1000;			// in millis. Event stream clients reconnect after it
+	private long changeFeedPollTimeout = 30*1000;			// in millis. Maximum long-poll wait
+	private long changeFeedKeepAlivePeriod = 15*1000;		// in millis
+	private long changeFeedSlowSubscriberTimeout = 10*1000;	// in millis. Event stream clients blocking a send for longer are disconnected
+	private long changeFeedTrackedDeviceExpiry = 10*60*1000;	// in millis. Devices without changes or telemetry for longer are forgotten
+
+	// Device metrics time-series settings (DeviceMetricsStore)
+	private boolean metricsTimeSeriesEnabled = true;
+	// Each device metric takes (raw + minute + hour capacity) * 16 bytes, i.e. 12KB with the defaults
+	private int metricsRawCapacity = 240;					// raw samples kept per device metric (1 hour at 15s)
+	private int metricsMinuteCapacity = 360;				// 1-minute averages kept per device metric (6 hours)
+	private int metricsHourCapacity = 168;					// 1-hour averages kept per device metric (7 days)
+	private long metricsMemoryBudget = 256L*1024*1024;		// in bytes. ~21K device metrics, e.g. 1000 devices with 20 metrics. Metrics beyond it are not kept in memory
+	private int metricsMaxKeys = 1000;						// distinct metric names tracked
+	private boolean metricsOffHeap;							// keep samples in direct (off-heap) buffers
+	private boolean metricsPersistenceEnabled;				// store metrics in a Mongo time-series collection
+	private String metricsCollection = "device_metrics";
+	private long metricsRetention = 30;						// in days. Expiry of persisted metrics
+	private long metricsFlushPeriod = 5000;					// in millis
+	private int metricsFlushQueueSize = 10000;				// persisted samples waiting to be written, before dropping new ones
+
 	// SAL registration settings
 	private boolean salRegistrationEnabled = true;
 	private long salRegistrationTimeout = 60*1000;
 	private String registration_topic_name = "eu.nebulouscloud.exn.sal.node.create";
 	private String deregistration_topic_prefix = "eu.nebulouscloud.exn.sal.edge.node.delete";
+	private int salPublisherLanes = 8;						// requests in flight per topic connection
+	private long salPublisherConnectTimeout = 30*1000;		// in millis
+	private long salPublisherReconnectDelay = 3000;			// in millis. Doubled after each failed connection attempt
+	private int salPublisherMaxFailures = 3;				// consecutive failed requests before the connection is replaced
+	private int salWorkers = 8;								// SAL requests in flight. Should not exceed salPublisherLanes
+	private int salMaxConcurrentPerProvider = 4;			// SAL requests in flight for devices of the same provider
+	private int salRetryMaxAttempts = 3;
+	private long salRetryInitialDelay = 2000;				// in millis. Doubled after each failed attempt
+	private long salRetryMaxDelay = 60*1000;				// in millis
+	private int salHttpMaxConnections = 20;					// SAL REST client (SALCommunicator) connection pool size
+	private int salHttpMaxConnectionsPerRoute = 5;
+	private long salHttpConnectTimeout = 5000;				// in millis
+	private long salHttpSocketTimeout = 60*1000;			// in millis
+	private long salHttpKeepAlive = 30*1000;				// in millis. Idle connections are closed after it
+	private int salHttpLogSampleRate = 100;					// one in that many responses is logged at debug level
+
+	// SAL outbox settings (SalOutboxService). Persists pending SAL (de)registrations in the 'sal_outbox' collection
+	private boolean salOutboxEnabled = true;
+	private boolean salOutboxCatchUpOnStartup = true;		// queue devices not registered to SAL
+	private long salOutboxPollPeriod = 5000;				// in millis
+	private int salOutboxBatchSize = 100;					// entries in progress per instance
+	private long salOutboxLeaseDuration = 10*60*1000;		// in millis. Renewed while in progress. Entries of crashed instances are claimed again after it
+	private int salOutboxMaxAttempts = 10;					// entries are kept, but no longer attempted, after it
+	private long salOutboxRetryDelay = 30*1000;				// in millis. Doubled after each failed attempt
+	private long salOutboxMaxRetryDelay = 60*60*1000;		// in millis
 	
 	// Failed devices detection
 	private boolean automaticFailedDetection = true;
 	private long suspectDeviceThreshold = 0;				// in minutes
 	private long failedDeviceThreshold = 1;				// in minutes
+	private FAILURE_DETECTION_MODE failureDetectionMode = FAILURE_DETECTION_MODE.DEADLINE;
+	private long failureDetectionTick = 1000;				// in millis. Timing wheel tick (DEADLINE, PHI_ACCRUAL)
+	private int phiWindowSize = 100;						// heartbeat intervals kept per device
+	private int phiMinSamples = 5;							// fixed thresholds are used until a device has that many intervals
+	private double phiSuspectThreshold = 5.0;
+	private double phiFailedThreshold = 8.0;
 
 	// Device detailed data settings
 	private String deviceInfoRequestsTopic = "ems.client.info.requests";
@@ -87,6 +196,7 @@ public class ResourceDiscoveryProperties implements InitializingBean {
 
 	// Encryption settings
 	private boolean enableEncryption;						// Set to 'true' to enable message encryption
+	private ENCRYPTION_MODE encryptionMode = ENCRYPTION_MODE.LEGACY;	// for sent messages. Received messages of both modes are decrypted
 	private boolean usePasswordGeneratedKey = true;
 	private String generatedKeyFile;						// NOTE: If blank, the key will be logged
 	private String keyPasswordFile;							// If provided, it will override the next settings
@@ -109,14 +219,42 @@ public class ResourceDiscoveryProperties implements InitializingBean {
 	private String lostDeviceTopic;
 	private String compromisedDeviceTopic;
 	
+	// Nonce authentication settings (NonceAuthenticationService)
+	private long nonceCacheTtl = 60*1000;					// in millis
+	private long nonceNegativeCacheTtl = 5*1000;			// in millis. For nonces without a username
+	private int nonceCacheMaxSize = 10000;
+	private long nonceLookupTimeout = 5*1000;				// in millis
+
 	// Nebulous server data
 	private String nebulousServerIpAddress;
 
     @Override
     public void afterPropertiesSet() throws Exception {
+        // Stale installation requests must not reach devices. Other topics keep the default (no expiry)
+        brokerSendTopicTimeToLive.putIfAbsent(dataCollectionRequestTopic, 10*60*1000L);
         log.debug("ResourceDiscoveryProperties: {}", this);
     }
 
+	public enum BROKER_DISPATCH_MODE {
+		SINGLE_SESSION,			// all topics on one session; listeners called inline on its delivery thread
+		SESSION_PER_TOPIC		// one session per topic (or topic group); listeners called by striped dispatch workers
+	}
+
+	public enum BROKER_SEND_OVERFLOW_POLICY {
+		BLOCK, DROP_OLDEST, FAIL_FAST
+	}
+
+	public enum FAILURE_DETECTION_MODE {
+		SWEEP,					// periodically check all devices against suspect/failed thresholds
+		DEADLINE,				// per-device deadlines re-armed on every heartbeat, using suspect/failed thresholds
+		PHI_ACCRUAL				// per-device deadlines derived from each device's heartbeat intervals and phi thresholds
+	}
+
+	public enum ENCRYPTION_MODE {
+		LEGACY,					// AES with the provider's default transformation (ECB). Compatible with existing peers
+		AES_GCM					// authenticated encryption, with a random IV per message
+	}
+
 	public enum AUTHORIZATION_TYPE {
 		NONE, MANUAL,
 		ALWAYS_AUTHORIZE, ALWAYS_REJECT
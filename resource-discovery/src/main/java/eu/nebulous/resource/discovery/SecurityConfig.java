@@ -1,6 +1,6 @@
 package eu.nebulous.resource.discovery;
 
-import eu.nebulous.resource.discovery.registration.controller.RegistrationRequestController;
+import eu.nebulous.resource.discovery.registration.service.NonceAuthenticationService;
 import jakarta.servlet.Filter;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -31,7 +31,6 @@ import org.springframework.security.web.context.SecurityContextRepository;
 
 import java.security.SecureRandom;
 import java.util.Collections;
-import java.util.HashMap;
 
 import static org.springframework.security.config.Customizer.withDefaults;
 
@@ -53,6 +52,7 @@ public class SecurityConfig {
     public final static String SSO_USER_ROLE = "ROLE_SSO_USER";
 
     private final ResourceDiscoveryProperties properties;
+    private final NonceAuthenticationService nonceAuthenticationService;
 
     @Bean
     public SecurityFilterChain securityFilterChain(HttpSecurity httpSecurity) throws Exception {
@@ -61,6 +61,8 @@ public class SecurityConfig {
                 .authorizeHttpRequests(authorize -> authorize
                         .requestMatchers("/discovery/**", "/monitor/**", "/*.html").authenticated()
                         .requestMatchers("/css/**", "/js/**", "/img/**", "/sass/**").permitAll()
+                        .requestMatchers("/actuator/health", "/actuator/health/**").permitAll()
+                        .requestMatchers("/actuator/**").authenticated()
                         .anyRequest().permitAll()
                 )
                 .addFilterBefore(apiKeyAuthenticationFilter(), UsernamePasswordAuthenticationFilter.class)
@@ -220,12 +222,9 @@ public class SecurityConfig {
                 }
 
                 String username = null;
-                HashMap<String, String> map = new HashMap<>();
-                map.put(NONCE_REQUEST_PARAM, nonce);
-                map.put(APPID_REQUEST_PARAM, appId);
-                log.trace("nonceAuthenticationFilter: Starting NONCE authentication: map={}", map);
+                log.trace("nonceAuthenticationFilter: Starting NONCE authentication: nonce={}, appId={}", nonce, appId);
                 long startTm = System.currentTimeMillis();
-                username = RegistrationRequestController.getNonceUsername(map);
+                username = nonceAuthenticationService.getUsername(nonce, appId);
                 long endTm = System.currentTimeMillis();
                 log.trace("nonceAuthenticationFilter: NONCE authentication completed in {}ms: username={}, nonce={}", endTm-startTm, username, nonce);
 //                if ((nonce != null && appId != null) && (!nonce.isEmpty())) {
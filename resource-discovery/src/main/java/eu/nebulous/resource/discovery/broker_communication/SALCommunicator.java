@@ -1,23 +1,33 @@
 package eu.nebulous.resource.discovery.broker_communication;
 
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
 import eu.nebulous.resource.discovery.monitor.model.Device;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.entity.mime.content.StringBody;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.util.EntityUtils;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
@@ -25,6 +35,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
 
 
 /**
@@ -81,15 +97,15 @@ public class SALCommunicator {
         return null;
     }
 
-    private static String request_running_applications_REST(String sessionID) {
+    private static Object request_running_applications_REST(String sessionID) {
 
         // Request 2 - Get available jobs
         String get_jobs_payload = "{\"sessionid\": \""+sessionID+"\"}";
         HashMap<String,String> session_id_headers = new HashMap<>();
         session_id_headers.put("sessionid",sessionID);
         log.info("Using temporary \"job\" endpoint to get the jobs from SAL...");
-        String get_jobs_string = sendGETRequest("http://localhost:9000/sal/job/",session_id_headers );
-        return  get_jobs_string;
+        Object get_jobs_json = sendGETRequestForJson("http://localhost:9000/sal/job/",session_id_headers );
+        return  get_jobs_json;
     }
 
     private static void register_devices(String request_body_file, String sessionID, ArrayList<String> applications,String internal_ip_address, String external_ip_address, int cpu_cores, int gpu, int ram_gb, int disk_gb, String device_name,String provider_id, String city_name, String country_name, int number_of_devices_to_register) {
@@ -130,7 +146,7 @@ public class SALCommunicator {
                 ((JSONObject) ((JSONObject) json.get("nodeProperties")).get("geoLocation")).put("longitude", new Random().nextFloat(-90, 90));
             }
 
-            System.out.println(json.toJSONString());
+            log.debug("SALCommunicator: Device registration payload: {}", json.toJSONString());
 
             for (String application : applications) {
                 //json.put("jobId", application);
@@ -240,13 +256,20 @@ public class SALCommunicator {
 
 
     public static ArrayList<String> get_running_applications(String running_jobs_string) {
+        try {
+            return get_running_applications(new JSONParser().parse(running_jobs_string));
+        } catch (ParseException e) {
+            log.warn("SALCommunicator: Could not parse the jobs string: {}", running_jobs_string, e);
+            return new ArrayList<>();
+        }
+    }
+
+    public static ArrayList<String> get_running_applications(Object received_json) {
 
         ArrayList<String>applications = new ArrayList<>();
-        JSONParser parser = new JSONParser();
         try{
-            Object received_json = parser.parse(running_jobs_string);
             if (received_json instanceof JSONArray) {
-                JSONArray jobs_array = (JSONArray) parser.parse(running_jobs_string);
+                JSONArray jobs_array = (JSONArray) received_json;
                 for (int i = 0; i < jobs_array.size(); i++) {
                     JSONObject json_job_object = (JSONObject) jobs_array.get(i);
                     //applications.add((String) json_job_object.get("jobId"));
@@ -256,43 +279,168 @@ public class SALCommunicator {
                 //applications.add((String) json_job_object.get("jobId"));
             }
         }catch (Exception e){
-            e.printStackTrace();
-            System.out.println("This is the input json jobs string\n\n");
-            System.out.println(running_jobs_string);
+            log.warn("SALCommunicator: Could not read the jobs: {}", received_json, e);
         }
         return  applications;
     }
 
-    private static String sendGETRequest(String url, HashMap<String,String>headers) {
-        String response_string = "";
-        CloseableHttpClient client = HttpClients.createDefault();
+    // ------------------------------------------------------------------------
+    // Shared HTTP client. Connections are pooled and kept alive, so bulk SAL interactions reuse a few connections
+
+    private static volatile CloseableHttpClient http_client;
+    private static PoolingHttpClientConnectionManager connection_manager;
+    private static ExecutorService async_executor;
+    private static final AtomicLong response_counter = new AtomicLong();
+    private static int max_connections = 20;
+    private static int max_connections_per_route = 5;
+    private static int connect_timeout_millis = 5000;
+    private static int socket_timeout_millis = 60000;
+    private static long keep_alive_millis = 30000;
+    private static int log_sample_rate = 100;
+
+    /** Sets the HTTP client settings. The shared client is re-created on next use */
+    public static synchronized void configure(ResourceDiscoveryProperties properties) {
+        max_connections = properties.getSalHttpMaxConnections();
+        max_connections_per_route = properties.getSalHttpMaxConnectionsPerRoute();
+        connect_timeout_millis = (int) properties.getSalHttpConnectTimeout();
+        socket_timeout_millis = (int) properties.getSalHttpSocketTimeout();
+        keep_alive_millis = properties.getSalHttpKeepAlive();
+        log_sample_rate = Math.max(1, properties.getSalHttpLogSampleRate());
+        close();
+    }
+
+    public static synchronized void close() {
+        if (http_client != null) {
+            try {
+                http_client.close();
+            } catch (IOException e) {
+                log.debug("SALCommunicator: Error while closing HTTP client: ", e);
+            }
+            http_client = null;
+            connection_manager = null;
+        }
+        if (async_executor != null) {
+            // Requests already submitted still run (and fail fast on the closed client); new ones get a new executor
+            async_executor.shutdown();
+            async_executor = null;
+        }
+    }
+
+    private static CloseableHttpClient get_http_client() {
+        CloseableHttpClient client = http_client;
+        if (client != null) return client;
+        synchronized (SALCommunicator.class) {
+            if (http_client == null) {
+                connection_manager = new PoolingHttpClientConnectionManager(keep_alive_millis, TimeUnit.MILLISECONDS);
+                connection_manager.setMaxTotal(max_connections);
+                connection_manager.setDefaultMaxPerRoute(max_connections_per_route);
+                connection_manager.setValidateAfterInactivity(2000);
+                ConnectionKeepAliveStrategy keep_alive_strategy = (response, context) -> {
+                    long server_keep_alive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return server_keep_alive > 0 ? Math.min(server_keep_alive, keep_alive_millis) : keep_alive_millis;
+                };
+                http_client = HttpClients.custom()
+                        .setConnectionManager(connection_manager)
+                        .setKeepAliveStrategy(keep_alive_strategy)
+                        .evictExpiredConnections()
+                        .evictIdleConnections(keep_alive_millis, TimeUnit.MILLISECONDS)
+                        .setDefaultRequestConfig(RequestConfig.custom()
+                                .setConnectTimeout(connect_timeout_millis)
+                                .setConnectionRequestTimeout(connect_timeout_millis)
+                                .setSocketTimeout(socket_timeout_millis)
+                                .build())
+                        .build();
+            }
+            return http_client;
+        }
+    }
+
+    private static synchronized ExecutorService get_async_executor() {
+        if (async_executor == null)
+            async_executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("sal-http-", 0).factory());
+        return async_executor;
+    }
+
+    /** Exports the response count and the connection pool usage of the shared HTTP client */
+    public static void register_metrics(MeterRegistry meter_registry) {
+        FunctionCounter.builder("discovery.sal.http.responses", response_counter, AtomicLong::get)
+                .description("SAL HTTP responses received")
+                .register(meter_registry);
+        Map.<String, ToIntFunction<PoolStats>>of(
+                "leased", PoolStats::getLeased,
+                "available", PoolStats::getAvailable,
+                "pending", PoolStats::getPending)
+                .forEach((state, value) -> Gauge.builder("discovery.sal.http.connections", () -> {
+                            PoolingHttpClientConnectionManager manager = connection_manager;
+                            return manager != null ? value.applyAsInt(manager.getTotalStats()) : 0;
+                        })
+                        .tag("state", state)
+                        .description("SAL HTTP connections, by state")
+                        .register(meter_registry));
+    }
+
+    /** Logs one in 'log_sample_rate' responses, at debug level */
+    private static void log_response(HttpRequestBase request, HttpResponse response, String body) {
+        long count = response_counter.incrementAndGet();
+        if (log.isDebugEnabled() && count % log_sample_rate == 1 % log_sample_rate)
+            log.debug("SALCommunicator: {} {}: status={}, body={}", request.getMethod(), request.getURI(),
+                    response.getStatusLine().getStatusCode(), body != null ? StringUtils.abbreviate(body, 1000) : "<streamed>");
+    }
+
+    private static String execute_for_string(HttpRequestBase request) throws IOException {
+        return get_http_client().execute(request, response -> {
+            HttpEntity entity = response.getEntity();
+            String body = entity != null ? EntityUtils.toString(entity, StandardCharsets.UTF_8) : "";
+            log_response(request, response, body);
+            return body;
+        });
+    }
+
+    /** Parses the response body while reading it, without buffering it in a String */
+    private static Object execute_for_json(HttpRequestBase request) throws IOException {
+        return get_http_client().execute(request, response -> {
+            log_response(request, response, null);
+            HttpEntity entity = response.getEntity();
+            if (entity == null) return null;
+            try (Reader reader = new InputStreamReader(entity.getContent(), StandardCharsets.UTF_8)) {
+                return new JSONParser().parse(reader);
+            } catch (ParseException e) {
+                throw new IOException("Invalid JSON response from " + request.getURI() + ": " + e, e);
+            }
+        });
+    }
+
+    private static HttpGet create_get(String url, Map<String,String> headers) {
         HttpGet httpGet = new HttpGet(url);
+        headers.forEach(httpGet::setHeader);
+        return httpGet;
+    }
+
+    private static HttpPost create_post(String url, Map<String,String> headers, String payload) {
+        HttpPost httpPost = new HttpPost(url);
+        headers.forEach(httpPost::setHeader);
+        httpPost.setEntity(new StringEntity(payload, StandardCharsets.UTF_8));
+        return httpPost;
+    }
 
-        // Set headers
-        for (Map.Entry<String,String> entry : headers.entrySet()) {
-            httpGet.setHeader(entry.getKey(), entry.getValue());
+    private static String sendGETRequest(String url, HashMap<String,String>headers) {
+        try {
+            return execute_for_string(create_get(url, headers));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
+    }
 
-        CloseableHttpResponse response = null;
+    public static Object sendGETRequestForJson(String url, Map<String,String> headers) {
         try {
-            response = client.execute(httpGet);
-            HttpEntity responseEntity = response.getEntity();
-            if (responseEntity != null) {
-                InputStream inputStream = responseEntity.getContent();
-                response_string = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
-                byte[] buffer = new byte[1024];
-                int bytesRead;
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    System.out.write(buffer, 0, bytesRead);
-                }
-            }
-            response.close();
-            client.close();
+            return execute_for_json(create_get(url, headers));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        System.out.println("Status code: " + response.getStatusLine().getStatusCode());
-        return response_string;
+    }
+
+    public static CompletableFuture<Object> sendGETRequestAsync(String url, Map<String,String> headers) {
+        return CompletableFuture.supplyAsync(() -> sendGETRequestForJson(url, headers), get_async_executor());
     }
 
     public static String sendPOSTRequest(String urlString, HashMap<String,String> headers, HashMap<String,String> multipart_form) {
@@ -316,67 +464,33 @@ public class SALCommunicator {
                 }
             }
 
-
-            CloseableHttpClient client = HttpClients.createDefault();
-
-
-            HttpResponse response = client.execute(post);
-            HttpEntity responseEntity = response.getEntity();
-            if (responseEntity != null) {
-                InputStream inputStream = responseEntity.getContent();
-                response_string = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
-                System.out.println("Printing before "+response_string);
-                byte[] buffer = new byte[1024];
-                int bytesRead;
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    System.out.write(buffer, 0, bytesRead);
-                }
-            }
+            response_string = execute_for_string(post);
 
         }catch (Exception e){
-            e.printStackTrace();
+            log.warn("SALCommunicator: POST {} failed: ", urlString, e);
         }
-        System.out.println("Returning the response string "+response_string);
         return response_string;
     }
 
 
 
     public static String sendPOSTRequest(String urlString, HashMap<String,String> headers, String payload) {
-        String response_string = "";
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        HttpPost httpPost = new HttpPost(urlString);
-
-        // Set headers
-        if (!headers.isEmpty()) {
-            for (Map.Entry<String,String> entry : headers.entrySet()) {
-                httpPost.setHeader(entry.getKey(), entry.getValue());
-            }
-        }
-        // Define JSON payload
-        String jsonPayload = payload;
-        StringEntity entity = null;
         try {
-            entity = new StringEntity(jsonPayload);
-        } catch (UnsupportedEncodingException e) {
+            return execute_for_string(create_post(urlString, headers, payload));
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        httpPost.setEntity(entity);
+    }
 
-        // Execute the request
-        CloseableHttpResponse response = null;
+    public static Object sendPOSTRequestForJson(String urlString, Map<String,String> headers, String payload) {
         try {
-            response = httpclient.execute(httpPost);
-
-            // Handle the response
-            HttpEntity responseEntity = response.getEntity();
-            response_string = EntityUtils.toString(responseEntity);
-            // Close resources
-            response.close();
-            httpclient.close();
+            return execute_for_json(create_post(urlString, headers, payload));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return response_string;
+    }
+
+    public static CompletableFuture<Object> sendPOSTRequestAsync(String urlString, Map<String,String> headers, String payload) {
+        return CompletableFuture.supplyAsync(() -> sendPOSTRequestForJson(urlString, headers, payload), get_async_executor());
     }
 }
@@ -0,0 +1,296 @@
+package eu.nebulous.resource.discovery.broker_communication;
+
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulouscloud.exn.Connector;
+import eu.nebulouscloud.exn.core.Publisher;
+import eu.nebulouscloud.exn.core.SyncedPublisher;
+import eu.nebulouscloud.exn.settings.StaticExnConfig;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Long-lived request-reply publishers to the Nebulous broker (e.g. for SAL), replacing one
+ * SynchronousBrokerPublisher (i.e. one connection) per request.
+ * There is one connector (AMQP connection) per (broker, topic), created on first use and kept open.
+ * Each connector has several SyncedPublisher lanes, each with at most one outstanding request, so that many requests
+ * are in flight over the same connection while each reply is matched to its request by the lane's publisher.
+ * Each request has its own timeout. A timed-out request is interrupted and its lane is given up, since its publisher
+ * may still be waiting for the reply. Failed connections, connections with repeated failed requests, and connections
+ * with no lanes left, are replaced, with increasing delays between connection attempts.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class SalPublisherPool implements InitializingBean, DisposableBean {
+    private final static long MAX_RECONNECT_DELAY = 60_000L;
+    private final static Lane ABANDONED = new Lane(-1L, null);
+
+    private final ResourceDiscoveryProperties properties;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("sal-publisher-", 0).factory());
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    @Override
+    public void afterPropertiesSet() {
+        Gauge.builder("discovery.sal.publisher.in.flight", inFlight, AtomicInteger::get)
+                .description("Requests sent to the Nebulous broker and waiting for a reply")
+                .register(meterRegistry);
+        Map.of("healthy", true, "unhealthy", false)
+                .forEach((state, healthy) -> Gauge.builder("discovery.sal.publisher.channels", channels,
+                                map -> map.values().stream().filter(channel -> channel.isHealthy() == healthy).count())
+                        .tag("state", state)
+                        .description("Publisher channels (one per topic), by state")
+                        .register(meterRegistry));
+    }
+
+    /** Sends a JSON request. JSON objects are sent as map payloads, the same way SynchronousBrokerPublisher does */
+    public CompletableFuture<Map> request(@NonNull String topic, @NonNull String json, String application, @NonNull Duration timeout) {
+        Map<String, Object> payload = new HashMap<>();
+        try {
+            JSONObject json_object = (JSONObject) new JSONParser().parse(json);
+            json_object.forEach((key, value) -> payload.put((String) key, value));
+        } catch (ParseException | ClassCastException e) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Request is not a JSON object: " + json, e));
+        }
+        return request(topic, payload, application, timeout);
+    }
+
+    /**
+     * Sends a request to the topic and completes with the reply, or exceptionally if no reply arrives within the timeout.
+     * Requests wait for a free lane, and the wait counts towards their timeout.
+     */
+    public CompletableFuture<Map> request(@NonNull String topic, @NonNull Map<String, Object> payload, String application, @NonNull Duration timeout) {
+        Channel channel = channels.computeIfAbsent(
+                properties.getNebulousBrokerIpAddress() + ":" + properties.getNebulousBrokerPort() + "/" + topic,
+                key -> new Channel(topic));
+        Timer.Sample sample = Timer.start(meterRegistry);
+        CompletableFuture<Map> result = new CompletableFuture<>();
+        AtomicReference<Lane> lane = new AtomicReference<>();
+        Future<?> task = executor.submit(() -> {
+            try {
+                result.complete(channel.send(payload, StringUtils.defaultString(application), timeout, lane));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result
+                .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((reply, error) -> {
+                    if (error instanceof TimeoutException) {
+                        log.warn("SalPublisherPool: Request to topic {} timed out after {}ms", topic, timeout.toMillis());
+                        // The publisher may never get the reply. Interrupt the sender, and do not reuse its lane
+                        task.cancel(true);
+                        channel.abandon(lane.getAndSet(ABANDONED));
+                    }
+                    sample.stop(meterRegistry.timer("discovery.sal.publisher.requests", "topic", topic,
+                            "outcome", error == null ? "success" : error instanceof TimeoutException ? "timeout" : "failure"));
+                });
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+        channels.values().forEach(Channel::close);
+        channels.clear();
+    }
+
+    private record Lane(long generation, SyncedPublisher publisher) {
+    }
+
+    private class Channel {
+        private final String topic;
+        private final BlockingQueue<Lane> lanes = new LinkedBlockingQueue<>();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicInteger lostLanes = new AtomicInteger();
+        private Connector connector;
+        private volatile long generation;
+        private volatile boolean healthy;
+        private long nextConnectAttempt;
+        private long reconnectDelay;
+
+        private Channel(String topic) {
+            this.topic = topic;
+            this.reconnectDelay = properties.getSalPublisherReconnectDelay();
+        }
+
+        boolean isHealthy() {
+            return healthy;
+        }
+
+        /** Sends the request over a free lane. 'owner' holds the lane while in use, or ABANDONED once the request timed out */
+        Map send(Map<String, Object> payload, String application, Duration timeout, AtomicReference<Lane> owner) {
+            long deadline = System.currentTimeMillis() + timeout.toMillis();
+            Lane lane = acquireLane(deadline);
+            if (!owner.compareAndSet(null, lane)) {
+                // Timed out while waiting for the lane
+                release(lane);
+                throw new CancellationException("Request to topic " + topic + " timed out");
+            }
+            inFlight.incrementAndGet();
+            boolean failed = true;
+            try {
+                Map reply = lane.publisher().sendSync(payload, application, null, false);
+                if (reply == null)
+                    throw new IllegalStateException("No reply received from topic: " + topic);
+                failed = false;
+                consecutiveFailures.set(0);
+                return reply;
+            } catch (RuntimeException e) {
+                log.warn("SalPublisherPool: Request to topic {} failed: {}", topic, e.getMessage());
+                throw e;
+            } finally {
+                inFlight.decrementAndGet();
+                // Abandoned lanes were already accounted for by abandon()
+                if (owner.compareAndSet(lane, null)) {
+                    release(lane);
+                    if (failed)
+                        countFailure(lane);
+                }
+            }
+        }
+
+        private void release(Lane lane) {
+            // Lanes of replaced connectors are dropped
+            if (lane.generation() == generation)
+                lanes.offer(lane);
+        }
+
+        private void countFailure(Lane lane) {
+            if (consecutiveFailures.incrementAndGet() >= properties.getSalPublisherMaxFailures())
+                reset(lane.generation(), "too many consecutive failures");
+        }
+
+        /** Gives up the lane of a timed-out request. The connection is replaced when no lanes are left */
+        void abandon(Lane lane) {
+            if (lane == null || lane == ABANDONED) return;
+            countFailure(lane);
+            if (lane.generation() == generation
+                    && lostLanes.incrementAndGet() >= Math.max(1, properties.getSalPublisherLanes()))
+                reset(lane.generation(), "all lanes are waiting for lost replies");
+        }
+
+        private Lane acquireLane(long deadline) {
+            try {
+                while (true) {
+                    connect(deadline);
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0)
+                        throw new CompletionException(new TimeoutException("No free publisher lane for topic: " + topic));
+                    Lane lane = lanes.poll(Math.min(wait, 1000), TimeUnit.MILLISECONDS);
+                    if (lane != null && lane.generation() == generation)
+                        return lane;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        }
+
+        private synchronized void connect(long deadline) throws InterruptedException {
+            if (healthy) return;
+            // Fail fast while waiting to reconnect
+            long now = System.currentTimeMillis();
+            if (now < nextConnectAttempt)
+                throw new IllegalStateException("Broker connection for topic "+topic+" is unavailable. Next attempt in "+(nextConnectAttempt-now)+"ms");
+
+            log.info("SalPublisherPool: Connecting to broker {}:{} for topic {}",
+                    properties.getNebulousBrokerIpAddress(), properties.getNebulousBrokerPort(), topic);
+            long newGeneration = generation + 1;
+            List<Publisher> publishers = new ArrayList<>();
+            List<Lane> newLanes = new ArrayList<>();
+            for (int i = 0; i < Math.max(1, properties.getSalPublisherLanes()); i++) {
+                SyncedPublisher publisher = new SyncedPublisher("resource_manager_" + topic + "_" + i, topic, true, true);
+                publishers.add(publisher);
+                newLanes.add(new Lane(newGeneration, publisher));
+            }
+            CustomConnectorHandler handler = new CustomConnectorHandler();
+            Connector newConnector = new Connector("resource_manager_sal_" + newGeneration, handler, publishers, List.of(),
+                    false, false,
+                    new StaticExnConfig(
+                            properties.getNebulousBrokerIpAddress(),
+                            properties.getNebulousBrokerPort(),
+                            properties.getNebulousBrokerUsername(),
+                            properties.getNebulousBrokerPassword(),
+                            60,
+                            ""));
+            meterRegistry.counter("discovery.sal.publisher.connects", "topic", topic).increment();
+            try {
+                newConnector.start();
+                if (!awaitReady(handler.getReady(), Math.min(deadline, now + properties.getSalPublisherConnectTimeout())))
+                    throw new IllegalStateException("Broker connection for topic "+topic+" was not ready in time");
+            } catch (RuntimeException e) {
+                stopQuietly(newConnector);
+                nextConnectAttempt = System.currentTimeMillis() + reconnectDelay;
+                reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY);
+                log.warn("SalPublisherPool: Connection for topic {} failed. Next attempt in {}ms: {}",
+                        topic, nextConnectAttempt - System.currentTimeMillis(), e.getMessage());
+                throw e;
+            }
+
+            connector = newConnector;
+            generation = newGeneration;
+            lanes.clear();
+            lanes.addAll(newLanes);
+            consecutiveFailures.set(0);
+            lostLanes.set(0);
+            reconnectDelay = properties.getSalPublisherReconnectDelay();
+            healthy = true;
+            log.info("SalPublisherPool: Connected for topic {} with {} lanes", topic, newLanes.size());
+        }
+
+        private boolean awaitReady(AtomicBoolean ready, long deadline) throws InterruptedException {
+            synchronized (ready) {
+                long wait;
+                while (!ready.get() && (wait = deadline - System.currentTimeMillis()) > 0)
+                    ready.wait(wait);
+                return ready.get();
+            }
+        }
+
+        private synchronized void reset(long failedGeneration, String reason) {
+            if (failedGeneration != generation || !healthy) return;
+            log.warn("SalPublisherPool: Replacing connection for topic {}: {}", topic, reason);
+            healthy = false;
+            lanes.clear();
+            stopQuietly(connector);
+            connector = null;
+        }
+
+        private synchronized void close() {
+            healthy = false;
+            lanes.clear();
+            stopQuietly(connector);
+            connector = null;
+        }
+
+        private void stopQuietly(Connector c) {
+            if (c == null) return;
+            try {
+                c.stop();
+            } catch (Exception e) {
+                log.debug("SalPublisherPool: Error while stopping connector for topic {}: ", topic, e);
+            }
+        }
+    }
+}
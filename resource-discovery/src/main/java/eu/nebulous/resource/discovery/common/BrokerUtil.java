@@ -1,47 +1,116 @@
 
 package eu.nebulous.resource.discovery.common;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.common.OutboundMessageQueue.OutboundMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.jms.*;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.activemq.ActiveMQConnection;
 import org.apache.activemq.ActiveMQSslConnectionFactory;
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.apache.activemq.command.ActiveMQMessage;
 import org.apache.activemq.command.ActiveMQTextMessage;
 import org.apache.activemq.command.ActiveMQTopic;
 import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.config.ConfigurableBeanFactory;
 import org.springframework.context.annotation.Scope;
 import org.springframework.scheduling.TaskScheduler;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Slf4j
 @Component
 @Scope(value = ConfigurableBeanFactory.SCOPE_SINGLETON)
 @RequiredArgsConstructor
-public class BrokerUtil implements InitializingBean, MessageListener {
+public class BrokerUtil implements InitializingBean, DisposableBean, MessageListener {
     private final ResourceDiscoveryProperties properties;
     private final EncryptionUtil encryptionUtil;
     private final TaskScheduler taskScheduler;
     private final ObjectMapper objectMapper;
-    private final Map<String, MessageProducer> producers = new HashMap<>();
-    private final Map<String, MessageConsumer> consumers = new HashMap<>();
-    private final Map<String, Set<Listener>> listeners = new HashMap<>();
-    private ActiveMQConnection connection;
-    private Session session;
+    private final MessageDecoderRegistry messageDecoderRegistry;
+    private final MessageCodecRegistry messageCodecRegistry;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, GenerationBound<MessageProducer>> producers = new ConcurrentHashMap<>();
+    private final Map<String, GenerationBound<MessageConsumer>> consumers = new ConcurrentHashMap<>();
+    private final Map<String, Set<TypedListener<?>>> listeners = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> prefilterFields = new ConcurrentHashMap<>();
+    private final Map<String, TopicMeters> topicMeters = new ConcurrentHashMap<>();
+    private final AtomicReference<BrokerConnection> brokerConnection = new AtomicReference<>();
+    private final AtomicLong generationCounter = new AtomicLong();
+    private KeyStripedExecutor dispatchExecutor;
+    private OutboundMessageQueue outboundQueue;
+    private Semaphore inFlightPermits;
+    private final List<Thread> senderThreads = new ArrayList<>();
+    private final AtomicBoolean reconnecting = new AtomicBoolean();
+
+    /** An open broker connection. Its generation increases with every (re-)connection. */
+    private record BrokerConnection(long generation, ActiveMQConnection connection, Session session,
+                                    Session healthCheckSession, Map<String, Session> consumerSessions)
+    {
+        private BrokerConnection(long generation, ActiveMQConnection connection, Session session, Session healthCheckSession) {
+            this(generation, connection, session, healthCheckSession, new ConcurrentHashMap<>());
+        }
+    }
+
+    /** A producer or consumer, tagged with the generation of the connection it was created from. */
+    private record GenerationBound<T>(long generation, T value) { }
+
+    /** Meters of a topic. Only configured topics are subscribed to or sent to, so the 'topic' tag stays low-cardinality. */
+    private record TopicMeters(Counter received, Timer decode, Timer listener, Timer send, Counter sendRetries, Counter sendFailures) { }
 
     @Override
     public void afterPropertiesSet() throws Exception {
         log.trace("BrokerUtil: afterPropertiesSet: BEGIN");
+        // Initialize message dispatch workers
+        if (properties.getBrokerDispatchMode() == ResourceDiscoveryProperties.BROKER_DISPATCH_MODE.SESSION_PER_TOPIC) {
+            ThreadFactory threadFactory = properties.isBrokerDispatchVirtualThreads()
+                    ? Thread.ofVirtual().name("broker-dispatch-", 0).factory()
+                    : Thread.ofPlatform().name("broker-dispatch-", 0).daemon().factory();
+            dispatchExecutor = new KeyStripedExecutor("broker-dispatch",
+                    properties.getBrokerDispatchWorkers(), properties.getBrokerDispatchQueueSize(), threadFactory);
+            log.info("BrokerUtil: Enabled session-per-topic dispatch: workers={}, queue-size={}, virtual-threads={}, topic-groups={}",
+                    properties.getBrokerDispatchWorkers(), properties.getBrokerDispatchQueueSize(),
+                    properties.isBrokerDispatchVirtualThreads(), properties.getBrokerTopicGroups());
+        }
+
+        // Initialize outbound message queue and senders
+        outboundQueue = new OutboundMessageQueue(properties.getBrokerSendQueueSize(),
+                properties.getBrokerSendOverflowPolicy(), properties.getBrokerSendBlockTimeout());
+        inFlightPermits = new Semaphore(properties.getBrokerSendMaxInFlight());
+        for (int i = 0; i < properties.getBrokerSenderThreads(); i++) {
+            senderThreads.add(Thread.ofPlatform().name("broker-sender-" + i).daemon().start(this::processOutboundQueue));
+        }
+        log.info("BrokerUtil: Started {} outbound message senders: queue-size={}, overflow-policy={}, max-in-flight={}",
+                properties.getBrokerSenderThreads(), properties.getBrokerSendQueueSize(),
+                properties.getBrokerSendOverflowPolicy(), properties.getBrokerSendMaxInFlight());
+        registerMeters();
+
         // Initialize broker connection
         taskScheduler.schedule(this::initializeBrokerConnection,
                 Instant.now().plusSeconds(properties.getSubscriptionStartupDelay()));
@@ -63,43 +132,92 @@ public class BrokerUtil implements InitializingBean, MessageListener {
                 Duration.ofSeconds(60L));*/
     }
 
+    private void registerMeters() {
+        Gauge.builder("discovery.broker.send.queue.size", outboundQueue, OutboundMessageQueue::size)
+                .description("Messages waiting in the outbound queue")
+                .register(meterRegistry);
+        Gauge.builder("discovery.broker.send.in.flight", inFlightPermits,
+                        permits -> properties.getBrokerSendMaxInFlight() - permits.availablePermits())
+                .description("Messages sent but not acknowledged by the broker yet")
+                .register(meterRegistry);
+        Map.of("dropped", outboundQueue.getDroppedCount(),
+                "rejected", outboundQueue.getRejectedCount(),
+                "expired", outboundQueue.getExpiredCount()
+        ).forEach((reason, count) -> FunctionCounter.builder("discovery.broker.send.discarded", count, AtomicLong::get)
+                .description("Messages discarded by the outbound queue")
+                .tag("reason", reason)
+                .register(meterRegistry));
+        if (dispatchExecutor != null)
+            Gauge.builder("discovery.broker.dispatch.pending", dispatchExecutor, KeyStripedExecutor::getPendingTasks)
+                    .description("Received messages waiting for a dispatch worker")
+                    .register(meterRegistry);
+    }
+
+    private TopicMeters getTopicMeters(@NonNull String topic) {
+        return topicMeters.computeIfAbsent(topic, t -> new TopicMeters(
+                Counter.builder("discovery.broker.messages.received")
+                        .description("Messages received from the broker").tag("topic", t).register(meterRegistry),
+                Timer.builder("discovery.broker.decode")
+                        .description("Time to read, decrypt and decode a received message").tag("topic", t).register(meterRegistry),
+                Timer.builder("discovery.broker.listener")
+                        .description("Time spent in the listeners of a received message").tag("topic", t).register(meterRegistry),
+                Timer.builder("discovery.broker.send")
+                        .description("Time from queuing a message until the broker acknowledges it").tag("topic", t).register(meterRegistry),
+                Counter.builder("discovery.broker.send.retries")
+                        .description("Failed message sends, requeued for retry").tag("topic", t).register(meterRegistry),
+                Counter.builder("discovery.broker.send.failures")
+                        .description("Sent messages not acknowledged by the broker, reported to the sender").tag("topic", t).register(meterRegistry)));
+    }
+
+    @Override
+    public void destroy() {
+        senderThreads.forEach(Thread::interrupt);
+        // Senders may still be taking a message. Waiting for them ensures nothing is left queued unreported
+        for (Thread sender : senderThreads) {
+            try {
+                sender.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        int unsent = outboundQueue.drain(new CancellationException("Broker client is shutting down"));
+        if (unsent > 0)
+            log.warn("BrokerUtil: Discarded {} queued messages on shutdown", unsent);
+        if (dispatchExecutor != null)
+            dispatchExecutor.close();
+        closeBrokerConnection(brokerConnection.getAndSet(null));
+    }
+
     private synchronized void initializeBrokerConnection() {
         try {
             // Open new connection to broker
             log.info("BrokerUtil: Initializing broker connection");
             log.trace("BrokerUtil: initializeBrokerConnection: BEGIN: Calling openBrokerConnection()");
-            openBrokerConnection();
+            BrokerConnection previous = brokerConnection.getAndSet(openBrokerConnection());
+            meterRegistry.counter("discovery.broker.connections", "type", previous == null ? "initial" : "reconnect").increment();
+
+            // Close the previous connection. Producers and consumers bound to it are fenced off by generation
+            closeBrokerConnection(previous);
 
             // Re-subscribe consumers
-            log.info("BrokerUtil: Re-subscribing consumers to topics: {}", consumers.keySet());
-            Set<String> consumerTopics = new HashSet<>(consumers.keySet());
-            consumers.clear();
-            consumerTopics.forEach((topic) -> {
+            log.info("BrokerUtil: Re-subscribing consumers to topics: {}", listeners.keySet());
+            listeners.keySet().forEach((topic) -> {
                 try {
                     log.trace("BrokerUtil: initializeBrokerConnection: ....Re-subscribing consumer to topic: {}", topic);
-                    getOrCreateConsumer(topic).setMessageListener(this);
+                    getOrCreateConsumer(topic);
                     log.trace("BrokerUtil: initializeBrokerConnection: ....SUCCESS Re-subscribing consumer to topic: {}", topic);
                 } catch (JMSException e) {
                     log.error("BrokerUtil: initializeBrokerConnection: ....ERROR while Re-subscribing consumer to topic: {}", topic);
                 }
             });
 
-            // Re-create producers
-            log.info("BrokerUtil: Re-creating producers for topics: {}", producers.keySet());
-            Set<String> producerTopics = new HashSet<>(producers.keySet());
-            producers.clear();
-            producerTopics.forEach((topic) -> {
-                try {
-                    log.trace("BrokerUtil: initializeBrokerConnection: ....Re-creating producer for topic: {}", topic);
-                    getOrCreateProducer(topic);
-                    log.trace("BrokerUtil: initializeBrokerConnection: ....SUCCESS Re-creating producer for topic: {}", topic);
-                } catch (JMSException e) {
-                    log.warn("BrokerUtil: initializeBrokerConnection: ....ERROR while Re-creating producer for topic: {}", topic);
-                }
-            });
+            // Producers are re-created lazily, when first used with the new connection
+            log.debug("BrokerUtil: Producers to be re-created for topics: {}", producers.keySet());
 
             log.trace("BrokerUtil: initializeBrokerConnection: END");
         } catch (Exception e) {
+            meterRegistry.counter("discovery.broker.connection.failures").increment();
             log.error("BrokerUtil: ERROR while opening connection to Message broker: ", e);
             log.error("BrokerUtil: Will retry calling 'initializeBrokerConnection' in {} seconds: ", properties.getSubscriptionRetryDelay());
             taskScheduler.schedule(this::initializeBrokerConnection,
@@ -107,15 +225,9 @@ public class BrokerUtil implements InitializingBean, MessageListener {
         }
     }
 
-    private void openBrokerConnection() throws Exception {
+    private BrokerConnection openBrokerConnection() throws Exception {
         log.trace("BrokerUtil: openBrokerConnection: BEGIN");
 
-        if (connection!=null && connection.isStarted()) {
-            log.warn("BrokerUtil: Connection has already started!");
-            log.trace("BrokerUtil: openBrokerConnection: END: Connection has already started!");
-            return;
-        }
-
         ActiveMQSslConnectionFactory cf = new ActiveMQSslConnectionFactory(properties.getBrokerURL());
         cf.setUserName(properties.getBrokerUsername());
         cf.setPassword(properties.getBrokerPassword());
@@ -136,10 +248,9 @@ public class BrokerUtil implements InitializingBean, MessageListener {
 
         ActiveMQConnection conn = (ActiveMQConnection) cf.createConnection();
         Session ses = conn.createSession();
+        Session healthCheckSes = conn.createSession();     // Sessions are single-threaded. The health check runs on its own thread
         log.trace("BrokerUtil: openBrokerConnection: Starting connection: {}", conn);
         conn.start();
-        this.connection = conn;
-        this.session = ses;
 
         long startTm = System.currentTimeMillis();
         while (! conn.isStarted()) {
@@ -150,201 +261,411 @@ public class BrokerUtil implements InitializingBean, MessageListener {
         }
         log.trace("BrokerUtil: openBrokerConnection: connection.isStarted={}", conn.isStarted());
 
-        log.info("BrokerUtil: Opened connection to Message broker: {}", properties.getBrokerURL());
+        BrokerConnection newConnection = new BrokerConnection(generationCounter.incrementAndGet(), conn, ses, healthCheckSes);
+        log.info("BrokerUtil: Opened connection to Message broker: {}, generation={}", properties.getBrokerURL(), newConnection.generation());
+        return newConnection;
     }
 
-    private void closeBrokerConnection() throws JMSException {
-        /*producers.clear();
-        consumers.clear();
-        listeners.clear();*/
-        if (session != null) this.session.close();
-        if (connection != null && !connection.isClosed() && !connection.isClosing())
-            this.connection.close();
-        this.session = null;
-        this.connection = null;
-        log.info("BrokerUtil: Closed connection to Message broker: {}", properties.getBrokerURL());
+    private void closeBrokerConnection(BrokerConnection brokerConnection) {
+        if (brokerConnection == null) return;
+        try {
+            // Closing the connection also closes its sessions, producers and consumers
+            ActiveMQConnection conn = brokerConnection.connection();
+            if (!conn.isClosed() && !conn.isClosing())
+                conn.close();
+            log.info("BrokerUtil: Closed connection to Message broker: {}, generation={}", properties.getBrokerURL(), brokerConnection.generation());
+        } catch (JMSException e) {
+            log.error("BrokerUtil: ERROR while closing connection to Message broker: generation={}\n", brokerConnection.generation(), e);
+        }
     }
 
     public void connectionHealthCheck() {
         log.debug("BrokerUtil: Checking connection health: {}", properties.getBrokerURL());
         boolean error = false;
         try {
-            sendMessage(properties.getHealthCheckTopic(), Map.of("ping", "pong"));
+            // Sent directly (not queued), so that a backed-up outbound queue does not look like a broken connection.
+            // Uses its own session, since the senders use the producer session concurrently
+            ActiveMQTextMessage textMessage = new ActiveMQTextMessage();
+            textMessage.setText(objectMapper.writeValueAsString(Map.of("ping", "pong")));
+            Session session = getCurrentConnection().healthCheckSession();
+            MessageProducer producer = session.createProducer(new ActiveMQTopic(properties.getHealthCheckTopic()));
+            try {
+                producer.send(textMessage);
+            } finally {
+                closeQuietly(producer);
+            }
         } catch (Exception e) {
             log.warn("BrokerUtil: EXCEPTION during connection health: ", e);
             error = true;
         }
 
         if (error) {
-            // Close connection
+            reconnect();
+        }
+    }
+
+    private void reconnect() {
+        // Only one reconnection at a time. Senders keep their messages queued meanwhile
+        if (!reconnecting.compareAndSet(false, true)) return;
+        taskScheduler.schedule(() -> {
             try {
-                closeBrokerConnection();
-            } catch (JMSException e) {
-                log.error("BrokerUtil: ERROR while closing connection to Message broker: ", e);
-                this.session = null;
-                this.connection = null;
+                // Open a new connection and then close the broken one
+                initializeBrokerConnection();
+            } finally {
+                reconnecting.set(false);
             }
-
-            // Try to re-connect
-            taskScheduler.schedule(this::initializeBrokerConnection,
-                    Instant.now().plusSeconds(1));
-        }
+        }, Instant.now().plusSeconds(1));
     }
 
     // ------------------------------------------------------------------------
 
-    public void sendMessage(@NonNull String topic, @NonNull Map<String, ? extends Object> message) {
-        sendMessage(topic, message, false);
+    public CompletableFuture<Void> sendMessage(@NonNull String topic, @NonNull Map<String, ? extends Object> message) {
+        return sendMessage(topic, message, false);
     }
 
-    public void sendMessage(@NonNull String topic, @NonNull Map<String, ? extends Object> message, boolean encrypt) {
-        String jsonMessage = null;
+    public CompletableFuture<Void> sendMessage(@NonNull String topic, @NonNull Map<String, ? extends Object> message, boolean encrypt) {
+        String jsonMessage;
+        // Messages are sent in plain when encryption is disabled
+        encrypt = encrypt && properties.isEnableEncryption();
         try {
+            if (encrypt) {
+                // Encrypt the serialized bytes, without an intermediate String
+                byte[] bytes = objectMapper.writer().writeValueAsBytes(message);
+                log.debug("BrokerUtil: sendMessage: ENCRYPT: topic={}, encrypt={}, message={}", topic, encrypt, message);
+                String encrypted = encryptionUtil.encryptBytes(bytes);
+                if (encrypted == null)
+                    return encryptionFailed(topic);
+                return sendMessage(topic, encryptedEnvelope(encrypted), false);
+            }
+            MessageCodec codec = messageCodecRegistry.forTopic(topic);
+            if (!encrypt && (!codec.isText() || properties.getBrokerCompressionThreshold() > 0))
+                return sendEncoded(topic, codec, codec.encode(message));
             jsonMessage = objectMapper.writer().writeValueAsString(message);
-        } catch (JsonProcessingException e) {
+        } catch (IOException e) {
             log.error("Could not parse json message " + e);
+            return CompletableFuture.failedFuture(e);
         }
-        sendMessage(topic, jsonMessage, encrypt);
+        return sendMessage(topic, jsonMessage, encrypt);
     }
 
-    public void sendMessage(@NonNull String topic, @NonNull String message) throws JMSException, JsonProcessingException {
-        sendMessage(topic, message, false);
+    public CompletableFuture<Void> sendMessage(@NonNull String topic, @NonNull String message) {
+        return sendMessage(topic, message, false);
     }
 
-    public void sendMessage(@NonNull String topic, @NonNull String message, boolean encrypt) {
+    /**
+     * Queues a message for sending to the broker, and returns immediately.
+     * The returned future completes when the broker acknowledges the message, or exceptionally
+     * if the message is rejected by the outbound queue or expires before it can be sent.
+     */
+    public CompletableFuture<Void> sendMessage(@NonNull String topic, @NonNull String message, boolean encrypt) {
         log.trace("BrokerUtil: sendMessage: BEGIN: topic={}, encrypt={}, message={}", topic, encrypt, message);
-        ActiveMQTextMessage textMessage = new ActiveMQTextMessage();
-        if (encrypt) {
+        if (encrypt && properties.isEnableEncryption()) {
             log.debug("BrokerUtil: sendMessage: ENCRYPT: topic={}, encrypt={}, message={}", topic, encrypt, message);
-            sendMessage(topic, Map.of("encrypted-message", encryptionUtil.encryptText(message)), false);
-            log.trace("BrokerUtil: sendMessage: ENCRYPT-END: topic={}, encrypt={}, message={}", topic, encrypt, message);
-        } else {
-            log.trace("BrokerUtil: sendMessage: PLAIN: topic={}, encrypt={}, message={}", topic, encrypt, message);
+            String encrypted = encryptionUtil.encryptText(message);
+            if (encrypted == null)
+                return encryptionFailed(topic);
+            return sendMessage(topic, encryptedEnvelope(encrypted), false);
+        }
+        if (messageCodecRegistry.shouldCompress(message.length())) {
+            try {
+                return sendEncoded(topic, messageCodecRegistry.getJsonCodec(), message.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        return outboundQueue.offer(new OutboundMessage(topic, message, getTimeToLive(topic)));
+    }
 
-            boolean message_sent = false;
-            while (!message_sent) {
-                boolean error = false;
-                try {
-                    log.trace("BrokerUtil: sendMessage: PLAIN: Sending....  topic={}, encrypt={}, message={}", topic, encrypt, message);
-                    textMessage.setText(message);
-                    getOrCreateProducer(topic).send(textMessage);
-                    message_sent = true;
-                    log.trace("BrokerUtil: sendMessage: PLAIN: Sending....OK  topic={}, encrypt={}, message={}", topic, encrypt, message);
-                } catch (Exception e) {
-                    log.warn("BrokerUtil: EXCEPTION during sending message: ", e);
-                    error = true;
-                }
+    /**
+     * Queues an encoded payload. Text payloads below the compression threshold are sent as text messages,
+     * so that text-only peers can still read them. The rest are sent as bytes messages, with content type
+     * (and encoding, if compressed) message properties.
+     */
+    private CompletableFuture<Void> sendEncoded(@NonNull String topic, @NonNull MessageCodec codec, byte @NonNull [] payload) throws IOException {
+        boolean compress = messageCodecRegistry.shouldCompress(payload.length);
+        if (codec.isText() && !compress)
+            return outboundQueue.offer(new OutboundMessage(topic, new String(payload, StandardCharsets.UTF_8), getTimeToLive(topic)));
+
+        byte[] body = compress ? messageCodecRegistry.compress(payload) : payload;
+        String contentEncoding = compress ? MessageCodecRegistry.GZIP_ENCODING : null;
+        log.trace("BrokerUtil: sendEncoded: topic={}, codec={}, size={}, encoded-size={}", topic, codec.getName(), payload.length, body.length);
+        return outboundQueue.offer(new OutboundMessage(topic, body, codec.getContentType(), contentEncoding, getTimeToLive(topic)));
+    }
 
-                if (error) {
-                    log.warn("BrokerUtil: Error while sending message to topic: {}", topic);
-                    log.trace("BrokerUtil: sendMessage: PLAIN: ERROR!!!!!  topic={}, encrypt={}, message={}", topic, encrypt, message);
-                    // Close connection
-                    try {
-                        log.trace("BrokerUtil: sendMessage: PLAIN: Closing conn....  topic={}, encrypt={}, message={}", topic, encrypt, message);
-                        closeBrokerConnection();
-                        log.trace("BrokerUtil: sendMessage: PLAIN: Closed conn....  topic={}, encrypt={}, message={}", topic, encrypt, message);
-                    } catch (Exception e) {
-                        log.error("BrokerUtil: ERROR while closing connection to Message broker: ", e);
-                        this.session = null;
-                        this.connection = null;
-                    }
+    private long getTimeToLive(@NonNull String topic) {
+        return properties.getBrokerSendTopicTimeToLive()
+                .getOrDefault(topic, properties.getBrokerSendDefaultTimeToLive());
+    }
 
-                    // Try to re-connect
-                    log.trace("BrokerUtil: sendMessage: PLAIN: RECONNECTING....  topic={}, encrypt={}, message={}", topic, encrypt, message);
-                    initializeBrokerConnection();
-
-                    // Wait until
-                    log.trace("BrokerUtil: sendMessage: PLAIN: DELAYING 2 seconds....  topic={}, encrypt={}, message={}", topic, encrypt, message);
-                    try {
-                        Thread.sleep(2000L);
-                    } catch (InterruptedException e) {
-                        log.warn("BrokerUtil: sendMessage: PLAIN: Interrupted DELAYING 2 seconds....  topic={}, encrypt={}, message={}", topic, encrypt, message);
-                        throw new RuntimeException(e);
-                    }
+    /** Wraps an encrypted message. Encrypted messages need no JSON escaping, so the envelope is built directly */
+    private static String encryptedEnvelope(@NonNull String encryptedMessage) {
+        return "{\"" + JsonPrefilter.ENCRYPTED_MESSAGE_FIELD + "\":\"" + encryptedMessage + "\"}";
+    }
+
+    private static CompletableFuture<Void> encryptionFailed(@NonNull String topic) {
+        log.error("BrokerUtil: Message encryption failed. Message not sent to topic: {}", topic);
+        return CompletableFuture.failedFuture(new GeneralSecurityException("Message encryption failed"));
+    }
+
+    private void processOutboundQueue() {
+        while (!Thread.currentThread().isInterrupted()) {
+            // The permit is acquired first, so that no message is taken off the queue and then lost on interruption
+            OutboundMessage message;
+            try {
+                inFlightPermits.acquire();
+            } catch (InterruptedException e) {
+                log.debug("BrokerUtil: processOutboundQueue: Interrupted. Sender exits");
+                return;
+            }
+            try {
+                message = outboundQueue.take();
+            } catch (InterruptedException e) {
+                inFlightPermits.release();
+                log.debug("BrokerUtil: processOutboundQueue: Interrupted. Sender exits");
+                return;
+            }
+
+            try {
+                log.trace("BrokerUtil: processOutboundQueue: Sending....  topic={}, message={}", message.getTopic(), message.getPayload());
+                getOrCreateProducer(message.getTopic()).send(createJmsMessage(message),
+                        DeliveryMode.PERSISTENT, Message.DEFAULT_PRIORITY, message.getRemainingTimeToLive(),
+                        new CompletionListener() {
+                            @Override
+                            public void onCompletion(Message jmsMessage) {
+                                inFlightPermits.release();
+                                getTopicMeters(message.getTopic()).send()
+                                        .record(System.nanoTime() - message.getQueuedAt(), TimeUnit.NANOSECONDS);
+                                message.getFuture().complete(null);
+                                log.trace("BrokerUtil: processOutboundQueue: Sending....OK  topic={}", message.getTopic());
+                            }
+
+                            @Override
+                            public void onException(Message jmsMessage, Exception exception) {
+                                // Later messages of the topic may be already sent. Re-queuing this one would reorder them,
+                                // so the failure is reported to the sender instead
+                                inFlightPermits.release();
+                                handleAsyncSendFailure(message, exception);
+                            }
+                        });
+            } catch (Exception e) {
+                inFlightPermits.release();
+                handleSendFailure(message, e);
+
+                // Back off this sender only. Callers keep queuing meanwhile
+                try {
+                    Thread.sleep(properties.getBrokerSendRetryDelay());
+                } catch (InterruptedException ex) {
+                    log.debug("BrokerUtil: processOutboundQueue: Interrupted while backing off. Sender exits");
+                    return;
                 }
             }
         }
     }
 
+    private static Message createJmsMessage(@NonNull OutboundMessage message) throws JMSException {
+        if (message.getBody() == null) {
+            ActiveMQTextMessage textMessage = new ActiveMQTextMessage();
+            textMessage.setText(message.getPayload());
+            return textMessage;
+        }
+        ActiveMQBytesMessage bytesMessage = new ActiveMQBytesMessage();
+        bytesMessage.writeBytes(message.getBody());
+        bytesMessage.setStringProperty(MessageCodec.CONTENT_TYPE_PROPERTY, message.getContentType());
+        if (message.getContentEncoding() != null)
+            bytesMessage.setStringProperty(MessageCodec.CONTENT_ENCODING_PROPERTY, message.getContentEncoding());
+        return bytesMessage;
+    }
+
+    private void handleAsyncSendFailure(@NonNull OutboundMessage message, Exception e) {
+        log.warn("BrokerUtil: Message was not acknowledged by broker: topic={}: {}", message.getTopic(), e.getMessage());
+        log.debug("BrokerUtil: EXCEPTION during sending message: ", e);
+        getTopicMeters(message.getTopic()).sendFailures().increment();
+        message.getFuture().completeExceptionally(e);
+        reconnect();
+    }
+
+    /** The message was not handed to the broker client, so no later message was sent. It is put back in front */
+    private void handleSendFailure(@NonNull OutboundMessage message, Exception e) {
+        log.warn("BrokerUtil: Error while sending message to topic: {}: {}", message.getTopic(), e.getMessage());
+        log.debug("BrokerUtil: EXCEPTION during sending message: ", e);
+        getTopicMeters(message.getTopic()).sendRetries().increment();
+        outboundQueue.requeue(message);
+        reconnect();
+    }
+
     // ------------------------------------------------------------------------
 
     public MessageProducer getOrCreateProducer(@NonNull String topic) throws JMSException {
-        MessageProducer producer = producers.get(topic);
-        if (producer == null) {
-            producer = createProducer(topic);
-            producers.put(topic, producer);
-        }
-        return producer;
+        BrokerConnection current = getCurrentConnection();
+        GenerationBound<MessageProducer> entry = producers.get(topic);
+        if (entry != null && entry.generation() == current.generation())
+            return entry.value();
+
+        // Missing, or bound to a previous connection. Concurrent creators race, and the losers close their producer
+        GenerationBound<MessageProducer> created = new GenerationBound<>(current.generation(), createProducer(current, topic));
+        GenerationBound<MessageProducer> winner = producers.merge(topic, created,
+                (existing, replacement) -> existing.generation() >= replacement.generation() ? existing : replacement);
+        if (winner != created)
+            closeQuietly(created.value());
+        return winner.value();
     }
 
     public MessageConsumer getOrCreateConsumer(@NonNull String topic) throws JMSException {
         log.trace("BrokerUtil: getOrCreateConsumer: BEGIN: topic={}", topic);
-        MessageConsumer consumer = consumers.get(topic);
-        log.debug("BrokerUtil: getOrCreateConsumer: MID: topic={}, consumer={}", topic, consumer);
-        if (consumer == null) {
-            consumer = createConsumer(topic);
+        BrokerConnection current = getCurrentConnection();
+        GenerationBound<MessageConsumer> entry = consumers.get(topic);
+        log.debug("BrokerUtil: getOrCreateConsumer: MID: topic={}, consumer={}", topic, entry);
+        if (entry != null && entry.generation() == current.generation())
+            return entry.value();
+
+        MessageConsumer consumer = createConsumer(current, topic);
+        GenerationBound<MessageConsumer> created = new GenerationBound<>(current.generation(), consumer);
+        GenerationBound<MessageConsumer> winner = consumers.merge(topic, created,
+                (existing, replacement) -> existing.generation() >= replacement.generation() ? existing : replacement);
+        if (winner != created) {
+            closeQuietly(consumer);
+        } else {
             log.trace("BrokerUtil: getOrCreateConsumer: NEW CONSUMER: topic={}, consumer={}", topic, consumer);
-            consumers.put(topic, consumer);
+            consumer.setMessageListener(this);
         }
-        return consumer;
+        return winner.value();
     }
 
-    public MessageProducer createProducer(@NonNull String topic) throws JMSException {
-        log.trace("BrokerUtil: createProducer: BEGIN: topic={}, session={}", topic, session);
-        if (session == null) initializeBrokerConnection();
-        log.debug("BrokerUtil: createProducer: New producer for: topic={}, session={}", topic, session);
-        return session.createProducer(new ActiveMQTopic(topic));
+    private BrokerConnection getCurrentConnection() throws JMSException {
+        BrokerConnection current = brokerConnection.get();
+        if (current == null)
+            throw new jakarta.jms.IllegalStateException("Not connected to Message broker: " + properties.getBrokerURL());
+        return current;
     }
 
-    public MessageConsumer createConsumer(@NonNull String topic) throws JMSException {
-        log.trace("BrokerUtil: createConsumer: BEGIN: topic={}, session={}", topic, session);
-        if (session == null) initializeBrokerConnection();
-        log.debug("BrokerUtil: createConsumer: New consumer for: topic={}, session={}", topic, session);
-        return session.createConsumer(new ActiveMQTopic(topic));
+    private MessageProducer createProducer(@NonNull BrokerConnection current, @NonNull String topic) throws JMSException {
+        log.debug("BrokerUtil: createProducer: New producer for: topic={}, generation={}", topic, current.generation());
+        return current.session().createProducer(new ActiveMQTopic(topic));
+    }
+
+    private MessageConsumer createConsumer(@NonNull BrokerConnection current, @NonNull String topic) throws JMSException {
+        Session consumerSession = getOrCreateConsumerSession(current, topic);
+        log.debug("BrokerUtil: createConsumer: New consumer for: topic={}, session={}, generation={}", topic, consumerSession, current.generation());
+        return consumerSession.createConsumer(new ActiveMQTopic(topic));
+    }
+
+    private Session getOrCreateConsumerSession(@NonNull BrokerConnection current, @NonNull String topic) throws JMSException {
+        if (dispatchExecutor == null)
+            return current.session();
+        // Each session has its own delivery thread, so topics (or topic groups) are consumed in parallel
+        String group = properties.getBrokerTopicGroups().getOrDefault(topic, topic);
+        Session consumerSession = current.consumerSessions().get(group);
+        if (consumerSession == null) {
+            consumerSession = current.connection().createSession();
+            Session existing = current.consumerSessions().putIfAbsent(group, consumerSession);
+            if (existing != null) {
+                closeQuietly(consumerSession);
+                return existing;
+            }
+            log.debug("BrokerUtil: getOrCreateConsumerSession: New session for topic group: group={}, topic={}", group, topic);
+        }
+        return consumerSession;
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            log.debug("BrokerUtil: closeQuietly: EXCEPTION while closing {}: ", closeable, e);
+        }
     }
 
     // ------------------------------------------------------------------------
 
     public void subscribe(@NonNull String topic, @NonNull Listener listener) throws JMSException {
+        subscribe(topic, new MapListener(listener, messageDecoderRegistry.forMap()));
+    }
+
+    public void subscribe(@NonNull String topic, @NonNull TypedListener<?> listener) throws JMSException {
         log.trace("BrokerUtil: subscribe: BEGIN: topic={}, listener={}", topic, listener);
-        Set<Listener> set = listeners.computeIfAbsent(topic, t -> new HashSet<>());
-        if (set.contains(listener)) return;
-        log.trace("BrokerUtil: subscribe: ADDING LISTENER: topic={}, listener={}", topic, listener);
-        set.add(listener);
-        getOrCreateConsumer(topic).setMessageListener(this);
+        Set<TypedListener<?>> set = listeners.computeIfAbsent(topic, t -> ConcurrentHashMap.newKeySet());
+        if (!set.add(listener)) return;
+        updatePrefilterFields(topic);
+        log.trace("BrokerUtil: subscribe: ADDED LISTENER: topic={}, listener={}", topic, listener);
+        if (brokerConnection.get() == null) {
+            // Consumer will be created when the connection opens
+            log.debug("BrokerUtil: subscribe: Not connected yet. Consumer will be created on connect: topic={}", topic);
+            return;
+        }
+        try {
+            getOrCreateConsumer(topic);
+        } catch (JMSException | RuntimeException e) {
+            // Let the caller retry subscribing
+            set.remove(listener);
+            updatePrefilterFields(topic);
+            throw e;
+        }
         log.trace("BrokerUtil: subscribe: END: topic={}, listener={}", topic, listener);
     }
 
+    private void updatePrefilterFields(@NonNull String topic) {
+        // Top-level fields the pre-filter looks for, in the messages of this topic
+        Set<String> fields = new HashSet<>();
+        listeners.getOrDefault(topic, Collections.emptySet())
+                .forEach(l -> fields.addAll(l.getDecoder().getRequiredFields()));
+        prefilterFields.put(topic, Set.copyOf(fields));
+    }
+
     @Override
     public void onMessage(Message message) {
         try {
             log.debug("BrokerUtil: Received a message from broker: {}", message);
-            if (message instanceof ActiveMQTextMessage textMessage) {
-                String payload = textMessage.getText();
-                log.trace("BrokerUtil: Message payload (TEXT): {}", payload);
-
-                TypeReference<Map<String, Object>> typeRef = new TypeReference<>() {
-                };
-                Object obj = objectMapper.readerFor(typeRef).readValue(payload);
-                log.trace("BrokerUtil: Message payload (OBJ):  {}", obj);
-
-                if (obj instanceof Map<?, ?> dataMap) {
-                    log.trace("BrokerUtil: Payload map: {}", dataMap);
-                    String topic = ((ActiveMQTextMessage) message).getDestination().getPhysicalName();
-                    log.trace("BrokerUtil: Topic={}", topic);
-                    // Print response messages except the EMS node status reports (_ui_instance_info, _client_metrics)
-                    if (StringUtils.isNotBlank(topic)
-                            && !topic.equals(properties.getDeviceStatusMonitorTopic())
-                            && !topic.equals(properties.getDeviceMetricsMonitorTopic()))
-                    {
-                        log.trace("BrokerUtil: Received a new message:   topic: {}", topic);
-                        log.trace("BrokerUtil: Received a new message: payload: {}", dataMap);
+            if (message instanceof ActiveMQTextMessage || message instanceof ActiveMQBytesMessage) {
+                String topic = ((ActiveMQMessage) message).getDestination().getPhysicalName();
+                log.trace("BrokerUtil: Topic={}", topic);
+                Set<TypedListener<?>> set = listeners.get(topic);
+                if (set == null || set.isEmpty()) {
+                    log.trace("BrokerUtil: No listeners for topic: {}", topic);
+                    return;
+                }
+                long startTime = System.nanoTime();
+                TopicMeters meters = getTopicMeters(topic);
+                meters.received().increment();
+
+                Payload payload = readPayload(message);
+                if (payload == null) return;
+                log.trace("BrokerUtil: Message payload: {}", payload);
+
+                // Check message fields, without parsing it, and decrypt it (if encrypted)
+                Set<String> fields = prefilterFields.getOrDefault(topic, Collections.emptySet());
+                JsonPrefilter.Result scan = payload.scan(fields);
+                if (scan.isEncrypted() && !properties.isEnableEncryption()) {
+                    // Peers with encryption disabled wrap the plain JSON message in the envelope
+                    payload = new Payload(scan.getEncryptedMessage(), null, messageCodecRegistry.getJsonCodec());
+                    log.trace("BrokerUtil: Unwrapped message payload (encryption is disabled): {}", payload);
+                    scan = payload.scan(fields);
+                } else if (scan.isEncrypted()) {
+                    // Decrypted bytes are scanned and bound directly, without an intermediate String
+                    byte[] decrypted = encryptionUtil.decryptBytes(scan.getEncryptedMessage());
+                    if (decrypted == null) {
+                        log.warn("BrokerUtil: Could not decrypt message. Message dropped: topic={}", topic);
+                        meterRegistry.counter("discovery.broker.messages.dropped", "topic", topic, "reason", "decryption").increment();
+                        return;
                     }
-                    handlePayload(topic, dataMap);
-                } else {
-                    log.warn("BrokerUtil: Message payload is not recognized. Expected Map but got: type={}, object={}",
-                            obj!=null ? obj.getClass().getName() : null, obj);
+                    payload = new Payload(null, decrypted, messageCodecRegistry.getJsonCodec());
+                    log.trace("BrokerUtil: Decrypted message payload: {}", payload);
+                    scan = payload.scan(fields);
+                }
+                if (!scan.isObject()) {
+                    log.warn("BrokerUtil: Message payload is not recognized. Expected an object but got: {}", payload);
+                    meterRegistry.counter("discovery.broker.messages.dropped", "topic", topic, "reason", "not-an-object").increment();
+                    return;
                 }
+
+                // Print response messages except the EMS node status reports (_ui_instance_info, _client_metrics)
+                if (StringUtils.isNotBlank(topic)
+                        && !topic.equals(properties.getDeviceStatusMonitorTopic())
+                        && !topic.equals(properties.getDeviceMetricsMonitorTopic()))
+                {
+                    log.trace("BrokerUtil: Received a new message:   topic: {}", topic);
+                    log.trace("BrokerUtil: Received a new message: payload: {}", payload);
+                }
+                dispatchPayload(topic, meters, startTime, payload, scan, set);
             } else {
                 log.debug("BrokerUtil: Message type is not supported: type={}, message={}",
                         message!=null ? message.getClass().getName() : null, message);
@@ -354,28 +675,147 @@ public class BrokerUtil implements InitializingBean, MessageListener {
         }
     }
 
-    private void handlePayload(@NonNull String topic, @NonNull Map<?, ?> dataMap) {
-        log.trace("BrokerUtil: handlePayload: BEGIN: topic={}, map={}", topic, dataMap);
-        // Decrypt message (if encrypted)
-        Object encryptedMessage = dataMap.get("encrypted-message");
-        log.trace("BrokerUtil: handlePayload: encrypted={}", encryptedMessage);
-        if (encryptedMessage != null)
-            dataMap = encryptionUtil.decryptMap(encryptedMessage.toString());
-        log.trace("BrokerUtil: handlePayload: DATA-MAP={}", dataMap);
+    /** Reads the payload of a text or bytes message. Bytes messages are decoded by their content type (JSON if not set) */
+    private Payload readPayload(@NonNull Message message) throws JMSException, IOException {
+        if (message instanceof ActiveMQTextMessage textMessage)
+            return new Payload(textMessage.getText(), null, messageCodecRegistry.getJsonCodec());
+
+        ActiveMQBytesMessage bytesMessage = (ActiveMQBytesMessage) message;
+        String contentType = bytesMessage.getStringProperty(MessageCodec.CONTENT_TYPE_PROPERTY);
+        MessageCodec codec = messageCodecRegistry.forContentType(contentType);
+        if (codec == null) {
+            log.warn("BrokerUtil: Message content type is not supported: {}", contentType);
+            return null;
+        }
+        byte[] body = new byte[(int) bytesMessage.getBodyLength()];
+        bytesMessage.readBytes(body);
+        body = messageCodecRegistry.decompress(body, bytesMessage.getStringProperty(MessageCodec.CONTENT_ENCODING_PROPERTY));
+        return new Payload(null, body, codec);
+    }
+
+    /** Message payload, either received as text, or as bytes (bytes messages, decrypted messages) of the codec's format */
+    private record Payload(String text, byte[] bytes, MessageCodec codec) {
+        JsonPrefilter.Result scan(Set<String> fields) throws IOException {
+            return bytes != null
+                    ? JsonPrefilter.scan(codec.getFactory(), bytes, fields)
+                    : JsonPrefilter.scan(codec.getFactory(), text, fields);
+        }
 
+        Object decode(MessageDecoder<?> decoder) throws IOException {
+            if (bytes == null)
+                return decoder.decode(text);
+            if (codec.isText())
+                return decoder.decode(bytes);
+            try (JsonParser parser = codec.getFactory().createParser(bytes)) {
+                return decoder.decode(parser);
+            }
+        }
+
+        @Override
+        public String toString() {
+            if (bytes == null) return text;
+            return codec.isText()
+                    ? new String(bytes, StandardCharsets.UTF_8)
+                    : "(" + bytes.length + " bytes of " + codec.getContentType() + ")";
+        }
+    }
+
+    private void dispatchPayload(@NonNull String topic, @NonNull TopicMeters meters, long startTime, @NonNull Payload payload,
+                                 @NonNull JsonPrefilter.Result scan, @NonNull Set<TypedListener<?>> set) throws InterruptedException
+    {
+        // Decode payload once per decoder. Listeners usually share the decoder of their topic
+        List<Delivery<?>> deliveries = new ArrayList<>(set.size());
+        String key = null;
+        MessageDecoder<?> lastDecoder = null;
+        Object lastDecoded = null;
+        for (TypedListener<?> listener : set) {
+            MessageDecoder<?> decoder = listener.getDecoder();
+            if (decoder != lastDecoder) {
+                lastDecoder = decoder;
+                lastDecoded = decode(decoder, payload, scan);
+                if (key == null && lastDecoded != null)
+                    key = getKey(decoder, lastDecoded);
+            }
+            if (lastDecoded != null)
+                deliveries.add(Delivery.of(listener, lastDecoded));
+        }
+        meters.decode().record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        log.trace("BrokerUtil: dispatchPayload: topic={}, key={}, deliveries={}", topic, key, deliveries);
+        if (deliveries.isEmpty()) return;
+
+        if (dispatchExecutor == null) {
+            meters.listener().record(() -> handlePayload(topic, deliveries));
+        } else {
+            // Messages of the same device are handled in order, by the same worker
+            dispatchExecutor.execute(key != null ? key : topic, () -> meters.listener().record(() -> handlePayload(topic, deliveries)));
+        }
+    }
+
+    private static Object decode(@NonNull MessageDecoder<?> decoder, @NonNull Payload payload, @NonNull JsonPrefilter.Result scan) {
+        if (!decoder.accepts(scan)) {
+            log.trace("BrokerUtil: decode: Payload rejected by pre-filter: decoder={}, found-fields={}", decoder, scan.getFoundFields());
+            return null;
+        }
+        try {
+            return payload.decode(decoder);
+        } catch (IOException e) {
+            log.warn("BrokerUtil: decode: ERROR while decoding payload: decoder={}, payload={}\n", decoder, payload, e);
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> String getKey(@NonNull MessageDecoder<T> decoder, @NonNull Object decoded) {
+        return decoder.getKey((T) decoded);
+    }
+
+    private void handlePayload(@NonNull String topic, @NonNull List<Delivery<?>> deliveries) {
+        log.trace("BrokerUtil: handlePayload: BEGIN: topic={}", topic);
         // Dispatch message to listeners
-        Set<Listener> set = listeners.get(topic);
-        log.trace("BrokerUtil: handlePayload: listeners: {}", set);
-        if (set == null) return;
-        final Map<?, ?> immutableMap = Collections.unmodifiableMap(dataMap);
-        set.forEach(l -> {
-            log.trace("BrokerUtil: handlePayload: ....CALLING LISTENER: {} -- mao: {}", l, immutableMap);
-            l.onMessage(immutableMap);
+        deliveries.forEach(delivery -> {
+            log.trace("BrokerUtil: handlePayload: ....CALLING LISTENER: {} -- message: {}", delivery.listener(), delivery.message());
+            try {
+                delivery.deliver();
+            } catch (Exception e) {
+                log.warn("BrokerUtil: handlePayload: EXCEPTION in listener: topic={}, listener={}\n", topic, delivery.listener(), e);
+            }
         });
         log.trace("BrokerUtil: handlePayload: END");
     }
 
+    private record Delivery<T>(TypedListener<T> listener, T message) {
+        @SuppressWarnings("unchecked")
+        private static <T> Delivery<T> of(TypedListener<T> listener, Object message) {
+            return new Delivery<>(listener, (T) message);
+        }
+
+        private void deliver() {
+            listener.onMessage(message);
+        }
+    }
+
+    /** Adapts listeners processing untyped (map) payloads */
+    private record MapListener(Listener listener, MessageDecoder<Map<String, Object>> decoder)
+            implements TypedListener<Map<String, Object>>
+    {
+        @Override
+        public @NonNull MessageDecoder<Map<String, Object>> getDecoder() {
+            return decoder;
+        }
+
+        @Override
+        public void onMessage(@NonNull Map<String, Object> message) {
+            listener.onMessage(Collections.unmodifiableMap(message));
+        }
+    }
+
     public interface Listener {
         void onMessage(Map map);
     }
+
+    /** A listener receiving payloads bound to the type of its decoder */
+    public interface TypedListener<T> {
+        @NonNull MessageDecoder<T> getDecoder();
+        void onMessage(@NonNull T message);
+    }
 }
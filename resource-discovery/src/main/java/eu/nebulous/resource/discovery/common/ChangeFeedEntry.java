@@ -0,0 +1,33 @@
+package eu.nebulous.resource.discovery.common;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * A compact delta of the change feed. Only the fields relevant to the change type are set:
+ * CREATED, UPDATED and DELETED (also used for archiving) carry the status, STATE carries the
+ * reported device state and health status, and METRICS carries a summary of the latest metrics.
+ */
+@Getter
+@Builder
+@ToString
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ChangeFeedEntry {
+    public enum ENTITY { DEVICE, REQUEST }
+    public enum TYPE { CREATED, UPDATED, DELETED, STATE, METRICS }
+
+    private final long seq;
+    private final Instant timestamp;
+    private final ENTITY entity;
+    private final TYPE type;
+    private final String id;
+    private final String owner;
+    private final String status;
+    private final String state;
+    private final Map<String, Object> metrics;
+}
@@ -0,0 +1,443 @@
+package eu.nebulous.resource.discovery.common;
+
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.monitor.model.Device;
+import eu.nebulous.resource.discovery.monitor.model.DeviceChangeEvent;
+import eu.nebulous.resource.discovery.monitor.model.DeviceStatus;
+import eu.nebulous.resource.discovery.monitor.model.DeviceTelemetryEvent;
+import eu.nebulous.resource.discovery.monitor.service.DeviceManagementService;
+import eu.nebulous.resource.discovery.registration.model.RegistrationRequest;
+import eu.nebulous.resource.discovery.registration.model.RegistrationRequestChangeEvent;
+import eu.nebulous.resource.discovery.registration.service.RegistrationRequestService;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * Sequenced feed of device and registration request changes, for clients that would otherwise poll the lists.
+ * Each change gets the next sequence number, and the latest changes are kept in a ring buffer, so clients can
+ * catch up from the last sequence they have seen. Device telemetry becomes compact deltas: STATE when the reported
+ * state (or health) of a device changes, and METRICS summaries at most once per interval per device.
+ * A single dispatcher thread wakes up event stream (SSE) subscribers and long-poll waiters, so publishers never wait
+ * for slow clients. Each event stream is written by its own (virtual) sender thread, reading from the ring buffer,
+ * so a slow client only holds up itself. Clients falling behind the ring buffer get a reset, and clients whose
+ * send blocks for longer than the slow subscriber timeout are disconnected.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ChangeFeedService implements InitializingBean, DisposableBean {
+    private final ResourceDiscoveryProperties properties;
+    private final DeviceManagementService deviceManagementService;
+    private final RegistrationRequestService registrationRequestService;
+    private final MeterRegistry meterRegistry;
+
+    private ChangeFeedEntry[] ring;
+    private long lastSeq;                   // guarded by 'this'
+    private final Map<String, TrackedDevice> devices = new ConcurrentHashMap<>();
+    private final Map<String, String> requesters = new ConcurrentHashMap<>();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Semaphore changes = new Semaphore(0);
+    private final ExecutorService senders =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("change-feed-sender-", 0).factory());
+    private volatile boolean running;
+
+    public record Page(long seq, boolean reset, List<ChangeFeedEntry> events) {
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        ring = new ChangeFeedEntry[Math.max(1, properties.getChangeFeedCapacity())];
+        running = true;
+        FunctionCounter.builder("discovery.change.feed.events", this, ChangeFeedService::getLastSeq)
+                .description("Change feed events appended")
+                .register(meterRegistry);
+        Gauge.builder("discovery.change.feed.subscribers", subscribers, List::size)
+                .description("Open change feed event streams and long polls")
+                .register(meterRegistry);
+        Gauge.builder("discovery.change.feed.tracked.devices", devices, Map::size)
+                .description("Devices tracked by the change feed")
+                .register(meterRegistry);
+        Thread.ofPlatform().name("change-feed-dispatcher").daemon().start(this::dispatch);
+        log.info("ChangeFeedService: Change feed started: capacity={}, metrics-interval={}ms",
+                ring.length, properties.getChangeFeedMetricsInterval());
+    }
+
+    @Override
+    public void destroy() {
+        running = false;
+        changes.release();
+        subscribers.forEach(Subscriber::close);
+        senders.shutdownNow();
+    }
+
+    // ------------------------------------------------------------------------
+
+    @EventListener
+    public void onDeviceChange(@NonNull DeviceChangeEvent event) {
+        String id = event.getDeviceId();
+        TrackedDevice tracked = event.getType() == DeviceChangeEvent.TYPE.DELETED
+                ? devices.remove(id) : getTracked(id, event.getDevice());
+        String status = event.getStatus() != null ? event.getStatus().name() : null;
+        if (tracked != null && status != null)
+            tracked.setStatus(status);
+        if (event.getStatus() == DeviceStatus.OFFBOARDED)
+            devices.remove(id);
+        append(ChangeFeedEntry.builder()
+                .entity(ChangeFeedEntry.ENTITY.DEVICE)
+                .type(ChangeFeedEntry.TYPE.valueOf(event.getType().name()))
+                .id(id)
+                .owner(tracked != null ? tracked.owner : null)
+                .status(status));
+    }
+
+    @EventListener
+    public void onDeviceTelemetry(@NonNull DeviceTelemetryEvent event) {
+        TrackedDevice tracked = getTracked(event.getDeviceId(), null);
+        if (tracked == null) return;
+
+        String newState = event.getStatusUpdate() != null ? event.getStatusUpdate().getState() : null;
+        String healthy = DeviceStatus.HEALTHY.name();
+        long now = System.currentTimeMillis();
+        boolean stateChanged;
+        boolean sendMetrics;
+        String state;
+        synchronized (tracked) {
+            stateChanged = !healthy.equals(tracked.status) || (newState != null && !newState.equals(tracked.state));
+            tracked.status = healthy;
+            if (newState != null) tracked.state = newState;
+            state = tracked.state;
+            sendMetrics = event.getMetrics() != null && event.getMetrics().getMetrics() != null
+                    && now - tracked.lastMetricsMillis >= properties.getChangeFeedMetricsInterval();
+            if (sendMetrics) tracked.lastMetricsMillis = now;
+        }
+
+        if (stateChanged)
+            append(ChangeFeedEntry.builder()
+                    .entity(ChangeFeedEntry.ENTITY.DEVICE)
+                    .type(ChangeFeedEntry.TYPE.STATE)
+                    .id(event.getDeviceId())
+                    .owner(tracked.owner)
+                    .status(healthy)
+                    .state(state));
+        if (sendMetrics) {
+            Map<String, Object> summary = new LinkedHashMap<>();
+            properties.getChangeFeedMetricsKeys().forEach(key -> {
+                Object value = event.getMetrics().getMetrics().get(key);
+                if (value != null) summary.put(key, value);
+            });
+            if (!summary.isEmpty())
+                append(ChangeFeedEntry.builder()
+                        .entity(ChangeFeedEntry.ENTITY.DEVICE)
+                        .type(ChangeFeedEntry.TYPE.METRICS)
+                        .id(event.getDeviceId())
+                        .owner(tracked.owner)
+                        .metrics(summary));
+        }
+    }
+
+    @EventListener
+    public void onRegistrationRequestChange(@NonNull RegistrationRequestChangeEvent event) {
+        String id = event.getRequestId();
+        String requester = event.getRequester();
+        if (event.getType() == RegistrationRequestChangeEvent.TYPE.DELETED) {
+            String cached = requesters.remove(id);
+            if (requester == null) requester = cached;
+        } else if (requester != null) {
+            requesters.put(id, requester);
+        } else {
+            requester = requesters.get(id);
+            if (requester == null) {
+                requester = registrationRequestService.getById(id).map(RegistrationRequest::getRequester).orElse(null);
+                if (requester != null) requesters.put(id, requester);
+            }
+        }
+        append(ChangeFeedEntry.builder()
+                .entity(ChangeFeedEntry.ENTITY.REQUEST)
+                .type(ChangeFeedEntry.TYPE.valueOf(event.getType().name()))
+                .id(id)
+                .owner(requester)
+                .status(event.getStatus() != null ? event.getStatus().name() : null));
+    }
+
+    /** Returns the tracked state of a device. Devices seen for the first time are read from the device service */
+    private TrackedDevice getTracked(@NonNull String id, Device device) {
+        TrackedDevice tracked = devices.get(id);
+        if (tracked == null) {
+            Optional<Device> result = device != null ? Optional.of(device) : deviceManagementService.getById(id);
+            if (result.isEmpty()) return null;
+            tracked = devices.computeIfAbsent(id, key -> new TrackedDevice(result.get()));
+        } else if (device != null) {
+            tracked.owner = device.getOwner();
+        }
+        tracked.lastSeenMillis = System.currentTimeMillis();
+        return tracked;
+    }
+
+    private void append(@NonNull ChangeFeedEntry.ChangeFeedEntryBuilder builder) {
+        synchronized (this) {
+            if (ring == null) return;
+            long seq = ++lastSeq;
+            ring[(int) (seq % ring.length)] = builder.seq(seq).timestamp(Instant.now()).build();
+        }
+        changes.release();
+    }
+
+    // ------------------------------------------------------------------------
+
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Returns the changes after 'since' that pass the filter. If 'since' is no longer in the ring buffer,
+     * or is ahead of the feed (e.g. after a restart), the page is flagged for reset and the client must reload.
+     */
+    public synchronized Page getChanges(long since, Predicate<ChangeFeedEntry> filter) {
+        long oldest = Math.max(1, lastSeq - ring.length + 1);
+        if (since > lastSeq || since < oldest - 1)
+            return new Page(lastSeq, true, List.of());
+        List<ChangeFeedEntry> entries = new ArrayList<>();
+        for (long seq = since + 1; seq <= lastSeq; seq++) {
+            ChangeFeedEntry entry = ring[(int) (seq % ring.length)];
+            if (filter == null || filter.test(entry))
+                entries.add(entry);
+        }
+        return new Page(lastSeq, false, entries);
+    }
+
+    /** Opens an event stream, starting after 'since' (or from now if null) */
+    public SseEmitter subscribe(Long since, Predicate<ChangeFeedEntry> filter) {
+        SseEmitter emitter = new SseEmitter(properties.getChangeFeedSseTimeout());
+        EventStreamSubscriber subscriber = new EventStreamSubscriber(emitter, filter, since != null ? since : getLastSeq());
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        emitter.onError(e -> subscribers.remove(subscriber));
+        subscribers.add(subscriber);
+        changes.release();
+        log.debug("ChangeFeedService: New event stream subscriber: since={}, subscribers={}", since, subscribers.size());
+        return emitter;
+    }
+
+    /**
+     * Returns the changes after 'since' as soon as there are any, or an empty page after the timeout.
+     * Without 'since', the current sequence is returned right away, as the client's starting point.
+     */
+    public DeferredResult<Page> poll(Long since, long timeout, Predicate<ChangeFeedEntry> filter) {
+        if (since == null) {
+            DeferredResult<Page> result = new DeferredResult<>();
+            result.setResult(new Page(getLastSeq(), false, List.of()));
+            return result;
+        }
+        long maxTimeout = properties.getChangeFeedPollTimeout();
+        long waitTime = timeout > 0 ? Math.min(timeout, maxTimeout) : maxTimeout;
+        DeferredResult<Page> result = new DeferredResult<>(waitTime, () -> getChanges(since, filter));
+        Page page = getChanges(since, filter);
+        if (page.reset() || !page.events().isEmpty()) {
+            result.setResult(page);
+            return result;
+        }
+        PollSubscriber subscriber = new PollSubscriber(result, filter, since);
+        result.onCompletion(() -> subscribers.remove(subscriber));
+        subscribers.add(subscriber);
+        changes.release();      // in case a change arrived meanwhile
+        return result;
+    }
+
+    private void dispatch() {
+        long keepAlivePeriod = Math.max(1000, properties.getChangeFeedKeepAlivePeriod());
+        long lastKeepAlive = System.currentTimeMillis();
+        while (running) {
+            try {
+                changes.tryAcquire(keepAlivePeriod, TimeUnit.MILLISECONDS);
+                changes.drainPermits();
+                long now = System.currentTimeMillis();
+                boolean keepAlive = now - lastKeepAlive >= keepAlivePeriod;
+                if (keepAlive) {
+                    lastKeepAlive = now;
+                    pruneTrackedDevices(now);
+                }
+
+                for (Subscriber subscriber : subscribers) {
+                    try {
+                        if (!subscriber.deliver(keepAlive))
+                            subscribers.remove(subscriber);
+                    } catch (Exception e) {
+                        log.debug("ChangeFeedService: Removing subscriber after delivery failure: {}", e.getMessage());
+                        subscribers.remove(subscriber);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.warn("ChangeFeedService: EXCEPTION while dispatching changes: ", e);
+            }
+        }
+    }
+
+    /** Forgets devices without changes or telemetry for a while, e.g. deleted while their telemetry was processed */
+    private void pruneTrackedDevices(long now) {
+        long expiry = properties.getChangeFeedTrackedDeviceExpiry();
+        if (expiry > 0)
+            devices.values().removeIf(tracked -> now - tracked.lastSeenMillis > expiry);
+    }
+
+    // ------------------------------------------------------------------------
+
+    private static class TrackedDevice {
+        private volatile String owner;
+        private String status;
+        private String state;
+        private long lastMetricsMillis;
+        private volatile long lastSeenMillis = System.currentTimeMillis();
+
+        private TrackedDevice(@NonNull Device device) {
+            this.owner = device.getOwner();
+            this.status = device.getStatus() != null ? device.getStatus().name() : null;
+            this.state = device.getStatusUpdate() != null ? device.getStatusUpdate().getState() : null;
+        }
+
+        private synchronized void setStatus(String status) {
+            this.status = status;
+        }
+    }
+
+    private abstract class Subscriber {
+        protected final Predicate<ChangeFeedEntry> filter;
+        protected long lastSeq;
+
+        private Subscriber(Predicate<ChangeFeedEntry> filter, long since) {
+            this.filter = filter;
+            this.lastSeq = since;
+        }
+
+        /** Returns false if the subscriber must be removed */
+        abstract boolean deliver(boolean keepAlive) throws Exception;
+
+        void close() {
+        }
+    }
+
+    /** Written by its own sender thread. The dispatcher only wakes it up, and disconnects it if it is stuck */
+    private class EventStreamSubscriber extends Subscriber {
+        private final SseEmitter emitter;
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private volatile boolean pending;
+        private volatile boolean pendingKeepAlive;
+        private volatile long sendStartMillis;      // 0 when not sending
+
+        private EventStreamSubscriber(SseEmitter emitter, Predicate<ChangeFeedEntry> filter, long since) {
+            super(filter, since);
+            this.emitter = emitter;
+        }
+
+        @Override
+        boolean deliver(boolean keepAlive) {
+            long startMillis = sendStartMillis;
+            if (startMillis > 0 && System.currentTimeMillis() - startMillis > properties.getChangeFeedSlowSubscriberTimeout()) {
+                log.debug("ChangeFeedService: Disconnecting slow event stream subscriber: blocked-for={}ms",
+                        System.currentTimeMillis() - startMillis);
+                // Completing waits for the blocked send, so it is not done on the dispatcher thread
+                senders.execute(() -> emitter.completeWithError(new TimeoutException("Event stream subscriber too slow")));
+                return false;
+            }
+            pendingKeepAlive |= keepAlive;
+            pending = true;
+            if (sending.compareAndSet(false, true))
+                senders.execute(this::send);
+            return true;
+        }
+
+        private void send() {
+            try {
+                do {
+                    while (pending) {
+                        pending = false;
+                        boolean keepAlive = pendingKeepAlive;
+                        pendingKeepAlive = false;
+                        sendStartMillis = System.currentTimeMillis();
+                        sendChanges(keepAlive);
+                        sendStartMillis = 0;
+                    }
+                    sending.set(false);
+                    // Re-check, in case the dispatcher set 'pending' after the loop ended
+                } while (pending && sending.compareAndSet(false, true));
+            } catch (Exception e) {
+                log.debug("ChangeFeedService: Removing event stream subscriber after delivery failure: {}", e.getMessage());
+                subscribers.remove(this);
+                emitter.completeWithError(e);
+            }
+        }
+
+        private void sendChanges(boolean keepAlive) throws Exception {
+            Page page = getChanges(lastSeq, filter);
+            if (page.reset()) {
+                emitter.send(SseEmitter.event().name("reset").id(Long.toString(page.seq())).data(Map.of("seq", page.seq())));
+            } else {
+                for (ChangeFeedEntry entry : page.events())
+                    emitter.send(SseEmitter.event().id(Long.toString(entry.getSeq())).data(entry, MediaType.APPLICATION_JSON));
+                if (page.events().isEmpty() && keepAlive)
+                    emitter.send(SseEmitter.event().comment("keep-alive"));
+            }
+            lastSeq = page.seq();
+        }
+
+        @Override
+        void close() {
+            emitter.complete();
+        }
+    }
+
+    private class PollSubscriber extends Subscriber {
+        private final DeferredResult<Page> result;
+
+        private PollSubscriber(DeferredResult<Page> result, Predicate<ChangeFeedEntry> filter, long since) {
+            super(filter, since);
+            this.result = result;
+        }
+
+        @Override
+        boolean deliver(boolean keepAlive) {
+            if (result.isSetOrExpired()) return false;
+            Page page = getChanges(lastSeq, filter);
+            if (page.reset() || !page.events().isEmpty()) {
+                result.setResult(page);
+                return false;
+            }
+            lastSeq = page.seq();       // changes not passing the filter
+            return true;
+        }
+
+        @Override
+        void close() {
+            result.setResult(new Page(getLastSeq(), false, List.of()));
+        }
+    }
+}
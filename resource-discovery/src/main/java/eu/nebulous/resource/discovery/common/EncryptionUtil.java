@@ -16,6 +16,7 @@ import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
 import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 import javax.security.auth.DestroyFailedException;
@@ -23,14 +24,18 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /*
  * SEE:
@@ -47,6 +52,10 @@ public class EncryptionUtil implements InitializingBean {
     public final static String KEY_GEN_ALGORITHM = "AES";
     public final static String CIPHER_ALGORITHM = "AES";
     //public final static String CIPHER_ALGORITHM = "AES/CTR/PKCS5Padding";
+    public final static String GCM_CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+    public final static String GCM_PREFIX = "gcm:";
+    public final static int GCM_IV_LENGTH = 12;         // in bytes
+    public final static int GCM_TAG_LENGTH = 128;       // in bits
     public final static int SIZE = 256;
     public final static int ITERATION_COUNT = 65536;
 
@@ -57,6 +66,9 @@ public class EncryptionUtil implements InitializingBean {
     private final ResourceDiscoveryProperties properties;
     private final ObjectMapper objectMapper;
     private SecretKey key;
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final CipherPool legacyCiphers = new CipherPool(CIPHER_ALGORITHM);
+    private final CipherPool gcmCiphers = new CipherPool(GCM_CIPHER_ALGORITHM);
 
     @Override
     public void afterPropertiesSet() throws Exception {
@@ -143,26 +155,18 @@ public class EncryptionUtil implements InitializingBean {
 
     public String encryptText(@NonNull String message) {
         if (! properties.isEnableEncryption()) return message;
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
         try {
-            return encrypt(message.getBytes(StandardCharsets.UTF_8), key);
-        } catch (IllegalBlockSizeException | NoSuchPaddingException | BadPaddingException |
-                 NoSuchAlgorithmException | InvalidKeyException e)
-        {
-            log.warn("EncryptionUtil: ERROR while encrypting message: ", e);
+            return encryptBytes(bytes);
+        } finally {
+            Arrays.fill(bytes, NULL);
         }
-        return null;
     }
 
     public String decryptText(@NonNull String message) {
         if (! properties.isEnableEncryption()) return message;
-        try {
-            return new String(decrypt(message, key), StandardCharsets.UTF_8);
-        } catch (NoSuchPaddingException | IllegalBlockSizeException | NoSuchAlgorithmException
-                 | BadPaddingException | InvalidKeyException e)
-        {
-            log.warn("EncryptionUtil: ERROR while decrypting message: ", e);
-        }
-        return null;
+        byte[] bytes = decryptBytes(message);
+        return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
     }
 
     public String encryptMap(@NonNull Map<?,?> message) {
@@ -170,13 +174,8 @@ public class EncryptionUtil implements InitializingBean {
             if (! properties.isEnableEncryption()) return objectMapper.writeValueAsString(message);
 
             byte[] bytes = objectMapper.writeValueAsBytes(message);
-
             try {
-                return encrypt(bytes, key);
-            } catch (IllegalBlockSizeException | NoSuchPaddingException | BadPaddingException |
-                     NoSuchAlgorithmException | InvalidKeyException e)
-            {
-                log.warn("EncryptionUtil: ERROR while encrypting message: ", e);
+                return encryptBytes(bytes);
             } finally {
                 Arrays.fill(bytes, NULL);
             }
@@ -190,42 +189,122 @@ public class EncryptionUtil implements InitializingBean {
         try {
             if (! properties.isEnableEncryption()) return objectMapper.readValue(message, Map.class);
 
-            byte[] bytes = decrypt(message, key);
-
+            byte[] bytes = decryptBytes(message);
+            if (bytes == null) return null;
             try {
                 TypeReference<Map<String, Object>> tr = new TypeReference<>() {};
                 return objectMapper.readValue(bytes, tr);
-            } catch (IOException e) {
-                log.warn("EncryptionUtil: ERROR while converting decrypted bytes to Map: ", e);
             } finally {
                 Arrays.fill(bytes, NULL);
             }
-        } catch (NoSuchPaddingException | IllegalBlockSizeException | NoSuchAlgorithmException
-                 | BadPaddingException | InvalidKeyException | IOException e)
-        {
+        } catch (IOException e) {
+            log.warn("EncryptionUtil: ERROR while converting decrypted bytes to Map: ", e);
+        }
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    // Byte-oriented API. Encrypted messages are Base64 strings. AES-GCM ones start with GCM_PREFIX
+    // (never found in Base64), so both kinds can be decrypted regardless of the configured mode
+
+    /** Encrypts the bytes with the configured mode, and returns the encrypted message. Returns null on error */
+    public String encryptBytes(byte @NonNull [] bytesToEncrypt) {
+        try {
+            if (properties.getEncryptionMode() == ResourceDiscoveryProperties.ENCRYPTION_MODE.AES_GCM)
+                return GCM_PREFIX + Base64.encodeBase64String(encryptGcm(ByteBuffer.wrap(bytesToEncrypt)));
+            return Base64.encodeBase64String(encryptLegacy(bytesToEncrypt));
+        } catch (GeneralSecurityException e) {
+            log.warn("EncryptionUtil: ERROR while encrypting message: ", e);
+        }
+        return null;
+    }
+
+    /** Decrypts an encrypted message (of either mode) into bytes, e.g. to bind them with Jackson. Returns null on error */
+    public byte[] decryptBytes(@NonNull String encryptedMessage) {
+        try {
+            if (encryptedMessage.startsWith(GCM_PREFIX))
+                return decryptGcm(ByteBuffer.wrap(Base64.decodeBase64(encryptedMessage.substring(GCM_PREFIX.length()))));
+            return decryptLegacy(Base64.decodeBase64(encryptedMessage));
+        } catch (GeneralSecurityException e) {
             log.warn("EncryptionUtil: ERROR while decrypting message: ", e);
         }
         return null;
     }
 
-    private String encrypt(byte[] bytesToEncrypt, SecretKey secretKey)
-            throws IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException,
-                   NoSuchAlgorithmException, InvalidKeyException
-    {
-        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-        return Base64.encodeBase64String(
-                cipher.doFinal(bytesToEncrypt));
+    /** Encrypts with AES-GCM. Returns the IV followed by the ciphertext and the authentication tag */
+    public byte[] encryptGcm(@NonNull ByteBuffer plaintext) throws GeneralSecurityException {
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        secureRandom.nextBytes(iv);
+        Cipher cipher = gcmCiphers.borrow();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            ByteBuffer output = ByteBuffer.allocate(GCM_IV_LENGTH + cipher.getOutputSize(plaintext.remaining()));
+            output.put(iv);
+            cipher.doFinal(plaintext, output);
+            return output.flip().remaining() == output.capacity() ? output.array() : Arrays.copyOf(output.array(), output.limit());
+        } finally {
+            gcmCiphers.release(cipher);
+        }
     }
 
-    private byte[] decrypt(final String encryptedMessage, SecretKey secretKey)
-            throws NoSuchPaddingException, NoSuchAlgorithmException, IllegalBlockSizeException,
-                   BadPaddingException, InvalidKeyException
-    {
-        //final SecretKeySpec secretKey = new SecretKeySpec(keyStr.getBytes(StandardCharsets.UTF_8), "AES");
-        final Cipher c = Cipher.getInstance(CIPHER_ALGORITHM);
-        c.init(Cipher.DECRYPT_MODE, secretKey);
-        return c.doFinal(
-                Base64.decodeBase64(encryptedMessage));
+    /** Decrypts and authenticates the output of encryptGcm */
+    public byte[] decryptGcm(@NonNull ByteBuffer encrypted) throws GeneralSecurityException {
+        if (encrypted.remaining() < GCM_IV_LENGTH + GCM_TAG_LENGTH / 8)
+            throw new AEADBadTagException("Encrypted message is too short");
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        encrypted.get(iv);
+        Cipher cipher = gcmCiphers.borrow();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            ByteBuffer output = ByteBuffer.allocate(cipher.getOutputSize(encrypted.remaining()));
+            cipher.doFinal(encrypted, output);
+            return output.flip().remaining() == output.capacity() ? output.array() : Arrays.copyOf(output.array(), output.limit());
+        } finally {
+            gcmCiphers.release(cipher);
+        }
+    }
+
+    private byte[] encryptLegacy(byte[] bytesToEncrypt) throws GeneralSecurityException {
+        Cipher cipher = legacyCiphers.borrow();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+            return cipher.doFinal(bytesToEncrypt);
+        } finally {
+            legacyCiphers.release(cipher);
+        }
+    }
+
+    private byte[] decryptLegacy(byte[] encrypted) throws GeneralSecurityException {
+        Cipher cipher = legacyCiphers.borrow();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key);
+            return cipher.doFinal(encrypted);
+        } finally {
+            legacyCiphers.release(cipher);
+        }
+    }
+
+    /**
+     * Reuses Cipher instances, since Cipher.getInstance() is costly. A pool rather than thread-locals,
+     * because messages may be handled by short-lived virtual threads.
+     */
+    private static class CipherPool {
+        private final static int MAX_IDLE = 64;
+        private final String transformation;
+        private final Queue<Cipher> idle = new ConcurrentLinkedQueue<>();
+
+        CipherPool(String transformation) {
+            this.transformation = transformation;
+        }
+
+        Cipher borrow() throws NoSuchPaddingException, NoSuchAlgorithmException {
+            Cipher cipher = idle.poll();
+            return cipher != null ? cipher : Cipher.getInstance(transformation);
+        }
+
+        void release(Cipher cipher) {
+            if (idle.size() < MAX_IDLE)
+                idle.offer(cipher);
+        }
     }
 }
@@ -0,0 +1,94 @@
+package eu.nebulous.resource.discovery.common;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hashed timing wheel holding at most one deadline per key.
+ * Scheduling, re-scheduling and cancelling a key are O(1). The wheel does not run its own thread;
+ * the owner calls advance() once per tick and receives the keys whose deadlines have passed.
+ * Deadlines never fire early, and fire at most one tick late (plus the caller's advance delay).
+ */
+public class HashedTimingWheel<K> {
+    @Getter
+    private final long tickMillis;
+    private final List<Set<K>> buckets;
+    private final Map<K, Timer> timers = new HashMap<>();
+    private long currentTick;       // last processed tick
+
+    public HashedTimingWheel(long tickMillis, int wheelSize, long startMillis) {
+        if (tickMillis < 1) throw new IllegalArgumentException("Tick duration must be positive: " + tickMillis);
+        if (wheelSize < 1) throw new IllegalArgumentException("Wheel size must be positive: " + wheelSize);
+        this.tickMillis = tickMillis;
+        this.buckets = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++)
+            buckets.add(new HashSet<>());
+        this.currentTick = startMillis / tickMillis;
+    }
+
+    /** Sets (or replaces) the deadline of the key. Deadlines already passed fire on the next advance */
+    public synchronized void schedule(@NonNull K key, long deadlineMillis) {
+        removeTimer(key);
+        long tick = Math.max(Math.ceilDiv(deadlineMillis, tickMillis), currentTick + 1);
+        timers.put(key, new Timer(deadlineMillis, tick));
+        bucket(tick).add(key);
+    }
+
+    public synchronized boolean cancel(@NonNull K key) {
+        return removeTimer(key) != null;
+    }
+
+    public synchronized Long getDeadline(@NonNull K key) {
+        Timer timer = timers.get(key);
+        return timer != null ? timer.deadline() : null;
+    }
+
+    public synchronized int size() {
+        return timers.size();
+    }
+
+    /** Processes all ticks up to the given time, and returns the keys that expired. They are removed from the wheel */
+    public synchronized List<K> advance(long nowMillis) {
+        long targetTick = nowMillis / tickMillis;
+        if (targetTick <= currentTick) return List.of();
+
+        // After a long pause, visit each bucket once
+        long fromTick = Math.max(currentTick + 1, targetTick - buckets.size() + 1);
+        List<K> expired = new ArrayList<>();
+        for (long tick = fromTick; tick <= targetTick; tick++) {
+            Iterator<K> it = bucket(tick).iterator();
+            while (it.hasNext()) {
+                K key = it.next();
+                if (timers.get(key).tick() <= targetTick) {     // else it is due in a later round
+                    it.remove();
+                    timers.remove(key);
+                    expired.add(key);
+                }
+            }
+        }
+        currentTick = targetTick;
+        return expired;
+    }
+
+    private Timer removeTimer(K key) {
+        Timer timer = timers.remove(key);
+        if (timer != null)
+            bucket(timer.tick()).remove(key);
+        return timer;
+    }
+
+    private Set<K> bucket(long tick) {
+        return buckets.get((int) Math.floorMod(tick, (long) buckets.size()));
+    }
+
+    private record Timer(long deadline, long tick) {
+    }
+}
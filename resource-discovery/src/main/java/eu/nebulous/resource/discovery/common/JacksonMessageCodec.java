@@ -0,0 +1,52 @@
+package eu.nebulous.resource.discovery.common;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.IOException;
+
+/**
+ * Message codec for any Jackson data format (JSON, Smile, CBOR). The codec mapper is a copy of the
+ * application mapper using the format's factory, so modules and (de)serialization settings are shared.
+ */
+public class JacksonMessageCodec implements MessageCodec {
+    @Getter private final String name;
+    @Getter private final String contentType;
+    private final boolean text;
+    private final ObjectMapper objectMapper;
+    private final ObjectWriter writer;
+
+    public JacksonMessageCodec(@NonNull String name, @NonNull String contentType, boolean text,
+                               @NonNull ObjectMapper objectMapper, @NonNull JsonFactory factory)
+    {
+        this.name = name;
+        this.contentType = contentType;
+        this.text = text;
+        this.objectMapper = objectMapper.getFactory().getClass() == factory.getClass()
+                ? objectMapper : objectMapper.copyWith(factory);
+        this.writer = this.objectMapper.writer();
+    }
+
+    @Override
+    public boolean isText() {
+        return text;
+    }
+
+    @Override
+    public JsonFactory getFactory() {
+        return objectMapper.getFactory();
+    }
+
+    @Override
+    public byte[] encode(@NonNull Object value) throws IOException {
+        return writer.writeValueAsBytes(value);
+    }
+
+    @Override
+    public String toString() {
+        return "MessageCodec{name=" + name + ", content-type=" + contentType + "}";
+    }
+}
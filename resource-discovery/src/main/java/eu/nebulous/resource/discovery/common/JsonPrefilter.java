@@ -0,0 +1,69 @@
+package eu.nebulous.resource.discovery.common;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Scans the top-level fields of a JSON document with a streaming parser, without building a tree.
+ * Nested objects and arrays are skipped, and scanning stops as soon as all fields of interest are found.
+ */
+public class JsonPrefilter {
+    public final static String ENCRYPTED_MESSAGE_FIELD = "encrypted-message";
+
+    private final static Result NOT_AN_OBJECT = new Result(false, Collections.emptySet(), null);
+
+    public static Result scan(@NonNull JsonFactory jsonFactory, @NonNull String json, @NonNull Set<String> fields) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(json)) {
+            return scan(parser, fields);
+        }
+    }
+
+    /** Scans UTF-8 encoded JSON, e.g. a decrypted message, without converting it to a String */
+    public static Result scan(@NonNull JsonFactory jsonFactory, byte @NonNull [] json, @NonNull Set<String> fields) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(json)) {
+            return scan(parser, fields);
+        }
+    }
+
+    private static Result scan(JsonParser parser, Set<String> fields) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT)
+            return NOT_AN_OBJECT;
+
+        Set<String> found = fields.isEmpty() ? Collections.emptySet() : new HashSet<>();
+        String encryptedMessage = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if (ENCRYPTED_MESSAGE_FIELD.equals(name) && token == JsonToken.VALUE_STRING) {
+                encryptedMessage = parser.getText();
+            } else if (token != JsonToken.VALUE_NULL && fields.contains(name)) {
+                found.add(name);
+                if (found.size() == fields.size()) break;
+            }
+            parser.skipChildren();
+        }
+        return new Result(true, found, encryptedMessage);
+    }
+
+    @Getter
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    public static class Result {
+        private final boolean object;
+        private final Set<String> foundFields;
+        private final String encryptedMessage;
+
+        public boolean isEncrypted() {
+            return encryptedMessage != null;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package eu.nebulous.resource.discovery.common;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Executes tasks on a fixed number of single-threaded lanes (stripes).
+ * Tasks submitted with the same key always run on the same lane, in submission order,
+ * while tasks with different keys may run in parallel.
+ * Each lane has a bounded queue; when it is full, the submitting thread blocks.
+ */
+@Slf4j
+public class KeyStripedExecutor implements AutoCloseable {
+    private final String name;
+    private final Lane[] lanes;
+
+    public KeyStripedExecutor(@NonNull String name, int stripes, int queueSize, @NonNull ThreadFactory threadFactory) {
+        if (stripes < 1) throw new IllegalArgumentException("Number of stripes must be positive: " + stripes);
+        if (queueSize < 1) throw new IllegalArgumentException("Stripe queue size must be positive: " + queueSize);
+        this.name = name;
+        this.lanes = new Lane[stripes];
+        for (int i = 0; i < stripes; i++) {
+            lanes[i] = new Lane(new ArrayBlockingQueue<>(queueSize));
+            lanes[i].thread = threadFactory.newThread(lanes[i]);
+            lanes[i].thread.start();
+        }
+        log.debug("KeyStripedExecutor: {}: Started {} stripes with queue size {}", name, stripes, queueSize);
+    }
+
+    public void execute(@NonNull String key, @NonNull Runnable task) throws InterruptedException {
+        Lane lane = lanes[Math.floorMod(key.hashCode(), lanes.length)];
+        if (!lane.running)
+            throw new IllegalStateException("KeyStripedExecutor " + name + " has been closed");
+        lane.queue.put(task);
+    }
+
+    public int getStripes() {
+        return lanes.length;
+    }
+
+    public int getPendingTasks() {
+        return Arrays.stream(lanes).mapToInt(lane -> lane.queue.size()).sum();
+    }
+
+    @Override
+    public void close() {
+        for (Lane lane : lanes) {
+            lane.running = false;
+            lane.thread.interrupt();
+        }
+        log.debug("KeyStripedExecutor: {}: Closed. Pending tasks discarded: {}", name, getPendingTasks());
+    }
+
+    private class Lane implements Runnable {
+        private final BlockingQueue<Runnable> queue;
+        private volatile boolean running = true;
+        private Thread thread;
+
+        private Lane(BlockingQueue<Runnable> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    queue.take().run();
+                } catch (InterruptedException e) {
+                    if (running)
+                        log.warn("KeyStripedExecutor: {}: Stripe worker interrupted while running", name);
+                } catch (Throwable t) {
+                    log.warn("KeyStripedExecutor: {}: EXCEPTION while running task: ", name, t);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package eu.nebulous.resource.discovery.common;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Data;
+import lombok.NonNull;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Paging, filtering and projection parameters of list APIs, bound from request parameters:
+ * ?after=&limit=&status=&owner=&provider=&updatedFrom=&updatedTo=&fields=&exclude=
+ * Paging is keyset-based: results are sorted by id, and 'after' is the last id of the previous page,
+ * returned in the X-Next-After header. Requests without 'limit' and 'after' return all matching entries, as the
+ * lists always did. Paged requests ('after' given) without a limit get pages of a default size.
+ */
+@Data
+public class ListQuery {
+    public final static String NEXT_AFTER_HEADER = "X-Next-After";
+
+    private String after;
+    private Integer limit;
+    private List<String> status;
+    private String owner;
+    private String provider;
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+    private Instant updatedFrom;
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+    private Instant updatedTo;
+    private List<String> fields;        // fields to return (id is always returned)
+    private List<String> exclude;       // fields to omit. Ignored if 'fields' is set
+
+    /** Returns true if any paging, filtering or projection parameter is set */
+    public boolean hasParameters() {
+        return after != null || limit != null || status != null || owner != null || provider != null
+                || updatedFrom != null || updatedTo != null || fields != null || exclude != null;
+    }
+
+    /**
+     * Returns the number of entries to return: the requested limit, or 'defaultLimit' if 'after' is given without
+     * a limit, capped to 'maxLimit' if positive. Zero means no limit, e.g. when neither 'limit' nor 'after' is given
+     */
+    public int getPageLimit(int defaultLimit, int maxLimit) {
+        boolean hasLimit = limit != null && limit > 0;
+        if (!hasLimit && StringUtils.isBlank(after))
+            return 0;
+        int pageLimit = hasLimit ? limit : Math.max(0, defaultLimit);
+        return maxLimit > 0 && pageLimit > maxLimit ? maxLimit : pageLimit;
+    }
+
+    /**
+     * Builds the Mongo query, returning at most 'pageLimit' entries if positive (see {@link #getPageLimit}).
+     * A non-null 'forcedOwner' replaces any requested owner (e.g. for non-admin users). Hidden fields are never returned.
+     */
+    public Query toQuery(@NonNull String ownerField, @NonNull String providerField, String forcedOwner,
+                         @NonNull Collection<String> hiddenFields, int pageLimit)
+    {
+        List<Criteria> criteria = new ArrayList<>();
+        if (StringUtils.isNotBlank(after))
+            criteria.add(Criteria.where("id").gt(after));
+        if (status != null && !status.isEmpty())
+            criteria.add(Criteria.where("status").in(status));
+        String ownerValue = forcedOwner != null ? forcedOwner : StringUtils.trimToNull(owner);
+        if (ownerValue != null)
+            criteria.add(Criteria.where(ownerField).is(ownerValue));
+        if (StringUtils.isNotBlank(provider))
+            criteria.add(Criteria.where(providerField).is(provider.trim()));
+        if (updatedFrom != null || updatedTo != null) {
+            Criteria range = Criteria.where("lastUpdateDate");
+            if (updatedFrom != null) range.gte(updatedFrom);
+            if (updatedTo != null) range.lt(updatedTo);
+            criteria.add(range);
+        }
+
+        Query query = new Query(criteria.isEmpty() ? new Criteria() : new Criteria().andOperator(criteria))
+                .with(Sort.by(Sort.Direction.ASC, "id"));
+        if (pageLimit > 0)
+            query.limit(pageLimit);
+
+        if (fields != null && !fields.isEmpty()) {
+            fields.stream()
+                    .filter(StringUtils::isNotBlank)
+                    .filter(field -> hiddenFields.stream().noneMatch(hidden -> field.equals(hidden) || field.startsWith(hidden + ".")))
+                    .forEach(field -> query.fields().include(field.trim()));
+            query.fields().include("id");
+        } else {
+            hiddenFields.forEach(field -> query.fields().exclude(field));
+            if (exclude != null)
+                exclude.stream().filter(StringUtils::isNotBlank).forEach(field -> query.fields().exclude(field.trim()));
+        }
+        return query;
+    }
+
+    /** Returns a page, with the X-Next-After header if more entries might follow, i.e. if the page is full */
+    public static <T> ResponseEntity<List<T>> toResponse(@NonNull List<T> page, int pageLimit, @NonNull Function<T, String> idGetter) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (pageLimit > 0 && page.size() >= pageLimit && !page.isEmpty())
+            response.header(NEXT_AFTER_HEADER, idGetter.apply(page.get(page.size() - 1)));
+        return response.body(page);
+    }
+
+    /** Writes the entries as newline-delimited JSON, while reading them from the database cursor */
+    public static <T> ResponseEntity<StreamingResponseBody> toNdjsonResponse(@NonNull Supplier<Stream<T>> entries, @NonNull ObjectMapper objectMapper) {
+        StreamingResponseBody body = out -> {
+            try (Stream<T> stream = entries.get()) {
+                for (T entry : (Iterable<T>) stream::iterator) {
+                    out.write(objectMapper.writeValueAsBytes(entry));
+                    out.write('\n');
+                }
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+}
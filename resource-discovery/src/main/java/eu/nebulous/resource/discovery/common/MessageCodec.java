@@ -0,0 +1,27 @@
+package eu.nebulous.resource.discovery.common;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import lombok.NonNull;
+
+import java.io.IOException;
+
+/**
+ * Wire format of broker message payloads. Codecs are selected per topic when sending, and by the
+ * content type message property when receiving. Text codecs are sent in text messages, the rest in bytes messages.
+ */
+public interface MessageCodec {
+    String CONTENT_TYPE_PROPERTY = "contentType";
+    String CONTENT_ENCODING_PROPERTY = "contentEncoding";
+
+    String getName();
+
+    String getContentType();
+
+    /** True if payloads are (UTF-8) text, and can be sent to peers expecting text messages */
+    boolean isText();
+
+    /** Streaming factory, used to pre-filter and bind received payloads */
+    JsonFactory getFactory();
+
+    byte[] encode(@NonNull Object value) throws IOException;
+}
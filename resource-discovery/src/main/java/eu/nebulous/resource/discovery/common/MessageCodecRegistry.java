@@ -0,0 +1,129 @@
+package eu.nebulous.resource.discovery.common;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Message codecs (wire formats) by name and content type, and payload compression.
+ * JSON, Smile and CBOR are built in. Other codecs can be registered by name.
+ */
+@Slf4j
+@Component
+public class MessageCodecRegistry {
+    public final static String JSON = "json";
+    public final static String SMILE = "smile";
+    public final static String CBOR = "cbor";
+    public final static String GZIP_ENCODING = "gzip";
+
+    private final ResourceDiscoveryProperties properties;
+    private final Map<String, MessageCodec> codecsByName = new ConcurrentHashMap<>();
+    private final Map<String, MessageCodec> codecsByContentType = new ConcurrentHashMap<>();
+    private final MessageCodec jsonCodec;
+
+    private final AtomicLong compressedMessages = new AtomicLong();
+    private final AtomicLong bytesBeforeCompression = new AtomicLong();
+    private final AtomicLong bytesAfterCompression = new AtomicLong();
+    private final AtomicLong decompressedMessages = new AtomicLong();
+
+    public MessageCodecRegistry(@NonNull ResourceDiscoveryProperties properties, @NonNull ObjectMapper objectMapper,
+                                @NonNull MeterRegistry meterRegistry)
+    {
+        this.properties = properties;
+        this.jsonCodec = new JacksonMessageCodec(JSON, "application/json", true, objectMapper, objectMapper.getFactory());
+        register(jsonCodec);
+        register(new JacksonMessageCodec(SMILE, "application/x-jackson-smile", false, objectMapper, new SmileFactory()));
+        register(new JacksonMessageCodec(CBOR, "application/cbor", false, objectMapper, new CBORFactory()));
+
+        FunctionCounter.builder("discovery.broker.compression.messages", compressedMessages, AtomicLong::get)
+                .tag("operation", "compress")
+                .description("Broker payloads compressed or decompressed")
+                .register(meterRegistry);
+        FunctionCounter.builder("discovery.broker.compression.messages", decompressedMessages, AtomicLong::get)
+                .tag("operation", "decompress")
+                .description("Broker payloads compressed or decompressed")
+                .register(meterRegistry);
+        Map.of("before", bytesBeforeCompression, "after", bytesAfterCompression)
+                .forEach((stage, bytes) -> FunctionCounter.builder("discovery.broker.compression.bytes", bytes, AtomicLong::get)
+                        .tag("stage", stage)
+                        .description("Sizes of the compressed broker payloads, before and after compression")
+                        .baseUnit("bytes")
+                        .register(meterRegistry));
+    }
+
+    public void register(@NonNull MessageCodec codec) {
+        codecsByName.put(codec.getName().toLowerCase(Locale.ROOT), codec);
+        codecsByContentType.put(codec.getContentType().toLowerCase(Locale.ROOT), codec);
+        log.debug("MessageCodecRegistry: Registered codec: {}", codec);
+    }
+
+    public MessageCodec getJsonCodec() {
+        return jsonCodec;
+    }
+
+    /** Codec for the messages sent to the topic. Unknown codec names fall back to JSON */
+    public MessageCodec forTopic(@NonNull String topic) {
+        String name = properties.getBrokerTopicCodecs().getOrDefault(topic, properties.getBrokerDefaultCodec());
+        MessageCodec codec = StringUtils.isNotBlank(name) ? codecsByName.get(name.toLowerCase(Locale.ROOT)) : null;
+        return codec != null ? codec : jsonCodec;
+    }
+
+    /** Codec for a received content type (parameters, like charset, are ignored). Returns null for unknown types */
+    public MessageCodec forContentType(String contentType) {
+        if (StringUtils.isBlank(contentType))
+            return jsonCodec;
+        return codecsByContentType.get(StringUtils.substringBefore(contentType, ';').trim().toLowerCase(Locale.ROOT));
+    }
+
+    /** True if the payload should be compressed before sending */
+    public boolean shouldCompress(int payloadSize) {
+        int threshold = properties.getBrokerCompressionThreshold();
+        return threshold > 0 && payloadSize >= threshold;
+    }
+
+    public byte[] compress(byte @NonNull [] payload) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, payload.length / 4));
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(payload);
+        }
+        compressedMessages.incrementAndGet();
+        bytesBeforeCompression.addAndGet(payload.length);
+        bytesAfterCompression.addAndGet(out.size());
+        return out.toByteArray();
+    }
+
+    /** Decompresses a payload, refusing payloads that expand beyond brokerMaxDecompressedSize */
+    public byte[] decompress(byte @NonNull [] payload, String contentEncoding) throws IOException {
+        if (StringUtils.isBlank(contentEncoding) || "identity".equalsIgnoreCase(contentEncoding))
+            return payload;
+        if (!GZIP_ENCODING.equalsIgnoreCase(contentEncoding))
+            throw new IOException("Unsupported content encoding: " + contentEncoding);
+
+        int maxSize = properties.getBrokerMaxDecompressedSize();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(payload))) {
+            byte[] bytes = in.readNBytes(maxSize);
+            if (in.read() != -1)
+                throw new IOException("Decompressed payload exceeds the maximum size: " + maxSize);
+            decompressedMessages.incrementAndGet();
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package eu.nebulous.resource.discovery.common;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectReader;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Binds broker message payloads directly to a target type, using a cached (thread-safe) ObjectReader.
+ * Payloads lacking any of the required top-level fields are rejected by a streaming pre-filter,
+ * before any binding takes place.
+ */
+@Getter
+@RequiredArgsConstructor
+public class MessageDecoder<T> {
+    private final @NonNull JavaType type;
+    private final @NonNull ObjectReader reader;
+    private final @NonNull Set<String> requiredFields;
+    private final @NonNull Function<T, String> keyExtractor;
+
+    public boolean accepts(@NonNull JsonPrefilter.Result prefilterResult) {
+        return prefilterResult.isObject() && prefilterResult.getFoundFields().containsAll(requiredFields);
+    }
+
+    public T decode(@NonNull String payload) throws IOException {
+        return reader.readValue(payload);
+    }
+
+    public T decode(byte @NonNull [] payload) throws IOException {
+        return reader.readValue(payload);
+    }
+
+    /** Binds a payload of any data format (e.g. Smile, CBOR), read by a parser of that format */
+    public T decode(@NonNull JsonParser parser) throws IOException {
+        return reader.readValue(parser);
+    }
+
+    /** Returns the key used to order the processing of messages (usually a device IP address), or null */
+    public String getKey(@NonNull T message) {
+        return keyExtractor.apply(message);
+    }
+
+    @Override
+    public String toString() {
+        return "MessageDecoder{type=" + type + ", requiredFields=" + requiredFields + "}";
+    }
+}
@@ -0,0 +1,65 @@
+package eu.nebulous.resource.discovery.common;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Creates message decoders for broker listeners, sharing one ObjectReader per target type.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class MessageDecoderRegistry {
+    private final static String[] MAP_KEY_FIELDS = { "ipAddress", "deviceIpAddress", "reference", "clientId", "requestId" };
+
+    private final ObjectMapper objectMapper;
+    private final Map<JavaType, ObjectReader> readers = new ConcurrentHashMap<>();
+    private MessageDecoder<Map<String, Object>> mapDecoder;
+
+    public <T> MessageDecoder<T> forType(@NonNull Class<T> type, @NonNull Function<T, String> keyExtractor, String... requiredFields) {
+        return create(objectMapper.constructType(type), keyExtractor, requiredFields);
+    }
+
+    public <T> MessageDecoder<T> forType(@NonNull TypeReference<T> type, @NonNull Function<T, String> keyExtractor, String... requiredFields) {
+        return create(objectMapper.constructType(type), keyExtractor, requiredFields);
+    }
+
+    /** Decoder for listeners that process payloads as maps */
+    public synchronized MessageDecoder<Map<String, Object>> forMap() {
+        if (mapDecoder == null)
+            mapDecoder = forType(new TypeReference<>() { }, MessageDecoderRegistry::getMapKey);
+        return mapDecoder;
+    }
+
+    public JsonFactory getJsonFactory() {
+        return objectMapper.getFactory();
+    }
+
+    private <T> MessageDecoder<T> create(JavaType javaType, Function<T, String> keyExtractor, String... requiredFields) {
+        ObjectReader reader = readers.computeIfAbsent(javaType, objectMapper::readerFor);
+        log.debug("MessageDecoderRegistry: New decoder: type={}, required-fields={}", javaType, requiredFields);
+        return new MessageDecoder<>(javaType, reader, Set.of(requiredFields), keyExtractor);
+    }
+
+    private static String getMapKey(@NonNull Map<String, Object> dataMap) {
+        Map<?, ?> map = dataMap.get("message") instanceof Map<?, ?> message ? message : dataMap;
+        for (String field : MAP_KEY_FIELDS) {
+            Object value = map.get(field);
+            if (value != null && !value.toString().isBlank())
+                return value.toString();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,97 @@
+package eu.nebulous.resource.discovery.common;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Fixed-size ring buffer of (timestamp, value) samples, kept in primitive arrays.
+ * When full, the oldest sample is overwritten. Samples are expected in ascending timestamp order.
+ * Storage is either on the Java heap (long[]/double[]) or off-heap (direct buffers), to keep large
+ * numbers of samples out of the garbage collector's way.
+ */
+public class MetricRingBuffer {
+    public final static int BYTES_PER_SAMPLE = Long.BYTES + Double.BYTES;
+
+    private final int capacity;
+    private final long[] heapTimestamps;
+    private final double[] heapValues;
+    private final LongBuffer directTimestamps;
+    private final DoubleBuffer directValues;
+    private int next;
+    private int size;
+
+    public MetricRingBuffer(int capacity, boolean offHeap) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        if (offHeap) {
+            this.heapTimestamps = null;
+            this.heapValues = null;
+            this.directTimestamps = ByteBuffer.allocateDirect(capacity * Long.BYTES).asLongBuffer();
+            this.directValues = ByteBuffer.allocateDirect(capacity * Double.BYTES).asDoubleBuffer();
+        } else {
+            this.heapTimestamps = new long[capacity];
+            this.heapValues = new double[capacity];
+            this.directTimestamps = null;
+            this.directValues = null;
+        }
+    }
+
+    public static long sizeInBytes(int capacity) {
+        return (long) capacity * BYTES_PER_SAMPLE;
+    }
+
+    public synchronized void add(long timestamp, double value) {
+        if (heapTimestamps != null) {
+            heapTimestamps[next] = timestamp;
+            heapValues[next] = value;
+        } else {
+            directTimestamps.put(next, timestamp);
+            directValues.put(next, value);
+        }
+        next = (next + 1) % capacity;
+        if (size < capacity) size++;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /** Timestamp of the oldest retained sample, or Long.MAX_VALUE if empty */
+    public synchronized long getOldestTimestamp() {
+        return size > 0 ? timestampAt(oldestIndex()) : Long.MAX_VALUE;
+    }
+
+    /** Visits, oldest first, the samples with from <= timestamp < to */
+    public synchronized void forEach(long from, long to, SampleConsumer consumer) {
+        int start = oldestIndex();
+        for (int i = 0; i < size; i++) {
+            int index = (start + i) % capacity;
+            long timestamp = timestampAt(index);
+            if (timestamp >= to) break;
+            if (timestamp >= from)
+                consumer.accept(timestamp, valueAt(index));
+        }
+    }
+
+    private int oldestIndex() {
+        return size < capacity ? 0 : next;
+    }
+
+    private long timestampAt(int index) {
+        return heapTimestamps != null ? heapTimestamps[index] : directTimestamps.get(index);
+    }
+
+    private double valueAt(int index) {
+        return heapValues != null ? heapValues[index] : directValues.get(index);
+    }
+
+    @FunctionalInterface
+    public interface SampleConsumer {
+        void accept(long timestamp, double value);
+    }
+}
@@ -0,0 +1,196 @@
+package eu.nebulous.resource.discovery.common;
+
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.monitor.model.ArchivedDevice;
+import eu.nebulous.resource.discovery.monitor.model.Device;
+import eu.nebulous.resource.discovery.registration.model.ArchivedRegistrationRequest;
+import eu.nebulous.resource.discovery.registration.model.RegistrationRequest;
+import eu.nebulous.resource.discovery.registration.model.SalOutboxEntry;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import com.mongodb.client.FindIterable;
+import org.bson.Document;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.data.mongodb.core.annotation.Collation;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.MongoPersistentEntityIndexResolver;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.repository.core.RepositoryInformation;
+import org.springframework.data.repository.query.parser.Part;
+import org.springframework.data.repository.query.parser.PartTree;
+import org.springframework.data.repository.support.Repositories;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Method;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * Creates the indexes declared in the persisted models (@Indexed, @CompoundIndex) at startup,
+ * and verifies that the derived queries of the Mongo repositories do not need a collection scan.
+ * Query plans are checked by running explain() with a placeholder value for each query parameter, using the
+ * operator of each predicate (equality, IN, range, etc.) and the collation of the query method, if any.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class MongoIndexManager implements InitializingBean {
+    private final static List<Class<?>> INDEXED_ENTITIES = List.of(
+            Device.class, ArchivedDevice.class, RegistrationRequest.class, ArchivedRegistrationRequest.class,
+            SalOutboxEntry.class);
+    private final static String PLACEHOLDER_VALUE = "query-plan-check";
+
+    private final ResourceDiscoveryProperties properties;
+    private final MongoTemplate mongoTemplate;
+    private final ApplicationContext applicationContext;
+    private final TaskScheduler taskScheduler;
+
+    @Override
+    public void afterPropertiesSet() {
+        if (properties.isCreateIndexesOnStartup() || properties.isCheckQueryPlansOnStartup()) {
+            taskScheduler.schedule(() -> {
+                if (properties.isCreateIndexesOnStartup())
+                    createIndexes();
+                if (properties.isCheckQueryPlansOnStartup())
+                    checkQueryPlans();
+            }, Instant.now());
+        }
+    }
+
+    public void createIndexes() {
+        MongoPersistentEntityIndexResolver resolver =
+                new MongoPersistentEntityIndexResolver(mongoTemplate.getConverter().getMappingContext());
+        for (Class<?> entityClass : INDEXED_ENTITIES) {
+            try {
+                IndexOperations indexOps = mongoTemplate.indexOps(entityClass);
+                resolver.resolveIndexFor(entityClass).forEach(index -> {
+                    String name = indexOps.ensureIndex(index);
+                    log.debug("MongoIndexManager: Ensured index: collection={}, index={}",
+                            mongoTemplate.getCollectionName(entityClass), name);
+                });
+            } catch (Exception e) {
+                log.warn("MongoIndexManager: ERROR while creating indexes for {}: {}", entityClass.getSimpleName(), e.getMessage());
+                log.debug("MongoIndexManager: EXCEPTION: ", e);
+            }
+        }
+        log.info("MongoIndexManager: Indexes created for: {}",
+                INDEXED_ENTITIES.stream().map(mongoTemplate::getCollectionName).toList());
+    }
+
+    /**
+     * Explains every derived query method of the Mongo repositories.
+     * Returns the winning plan stages per repository method. Methods whose plan contains a COLLSCAN are logged.
+     */
+    public Map<String, Object> checkQueryPlans() {
+        Map<String, Object> results = new LinkedHashMap<>();
+        Repositories repositories = new Repositories(applicationContext);
+        for (Class<?> domainClass : repositories) {
+            Optional<RepositoryInformation> info = repositories.getRepositoryInformationFor(domainClass);
+            if (info.isEmpty()) continue;
+            for (Method method : info.get().getQueryMethods()) {
+                String key = info.get().getRepositoryInterface().getSimpleName() + "." + method.getName();
+                try {
+                    List<String> stages = explain(domainClass, method);
+                    results.put(key, stages);
+                    if (stages.contains("COLLSCAN"))
+                        log.warn("MongoIndexManager: Query requires a collection scan: {}, plan={}", key, stages);
+                    else
+                        log.debug("MongoIndexManager: Query plan: {}, plan={}", key, stages);
+                } catch (Exception e) {
+                    results.put(key, "ERROR: " + e.getMessage());
+                    log.warn("MongoIndexManager: ERROR while checking query plan of {}: {}", key, e.getMessage());
+                    log.debug("MongoIndexManager: EXCEPTION: ", e);
+                }
+            }
+        }
+        log.info("MongoIndexManager: Checked query plans of {} repository methods", results.size());
+        return results;
+    }
+
+    private List<String> explain(@NonNull Class<?> domainClass, @NonNull Method method) {
+        Criteria criteria = new Criteria();
+        List<Criteria> orCriteria = new ArrayList<>();
+        for (PartTree.OrPart orPart : new PartTree(method.getName(), domainClass)) {
+            Criteria andCriteria = new Criteria();
+            for (Part part : orPart)
+                addPredicate(andCriteria.and(part.getProperty().toDotPath()), part);
+            orCriteria.add(andCriteria);
+        }
+        if (orCriteria.size() == 1) criteria = orCriteria.get(0);
+        else criteria.orOperator(orCriteria);
+
+        MongoPersistentEntity<?> entity = mongoTemplate.getConverter().getMappingContext().getPersistentEntity(domainClass);
+        Document query = new QueryMapper(mongoTemplate.getConverter()).getMappedObject(criteria.getCriteriaObject(), entity);
+        FindIterable<Document> find = mongoTemplate.getCollection(mongoTemplate.getCollectionName(domainClass)).find(query);
+        Collation collation = AnnotatedElementUtils.findMergedAnnotation(method, Collation.class);
+        if (collation != null)
+            find.collation(org.springframework.data.mongodb.core.query.Collation.parse(collation.value()).toMongoCollation());
+        Document explanation = find.explain();
+        Object queryPlanner = explanation.get("queryPlanner");
+        Object winningPlan = queryPlanner instanceof Document planner ? planner.get("winningPlan") : null;
+        if (winningPlan == null) return Collections.emptyList();
+        List<String> stages = new ArrayList<>();
+        collectStages(winningPlan, stages);
+        return stages;
+    }
+
+    /** Adds the predicate of the query part, with its actual operator and a placeholder value of the property type */
+    private static void addPredicate(Criteria c, Part part) {
+        Object value = placeholder(part.getProperty().getLeafType());
+        switch (part.getType()) {
+            case IN -> c.in(List.of(value));
+            case NOT_IN -> c.nin(List.of(value));
+            case GREATER_THAN, AFTER -> c.gt(value);
+            case GREATER_THAN_EQUAL -> c.gte(value);
+            case LESS_THAN, BEFORE -> c.lt(value);
+            case LESS_THAN_EQUAL -> c.lte(value);
+            case BETWEEN -> c.gte(value).lte(value);
+            case IS_NULL -> c.is(null);
+            case IS_NOT_NULL -> c.ne(null);
+            case EXISTS -> c.exists(true);
+            case TRUE -> c.is(true);
+            case FALSE -> c.is(false);
+            case NEGATING_SIMPLE_PROPERTY -> c.ne(value);
+            case LIKE, STARTING_WITH -> c.regex("^" + Pattern.quote(PLACEHOLDER_VALUE));
+            case CONTAINING, ENDING_WITH, NOT_LIKE, NOT_CONTAINING, REGEX -> c.regex(Pattern.quote(PLACEHOLDER_VALUE));
+            default -> {
+                if (part.shouldIgnoreCase() != Part.IgnoreCaseType.NEVER)
+                    c.regex("^" + Pattern.quote(PLACEHOLDER_VALUE) + "$", "i");
+                else
+                    c.is(value);
+            }
+        }
+    }
+
+    private static Object placeholder(Class<?> type) {
+        if (Instant.class.isAssignableFrom(type) || Date.class.isAssignableFrom(type)) return Instant.now();
+        if (type == boolean.class || type == Boolean.class) return true;
+        if (type.isPrimitive() || Number.class.isAssignableFrom(type)) return 0;
+        if (type.isEnum() && type.getEnumConstants().length > 0) return type.getEnumConstants()[0];
+        return PLACEHOLDER_VALUE;
+    }
+
+    private static void collectStages(Object node, List<String> stages) {
+        if (node instanceof Document doc) {
+            if (doc.get("stage") instanceof String stage)
+                stages.add(stage);
+            doc.values().forEach(value -> collectStages(value, stages));
+        } else if (node instanceof List<?> list) {
+            list.forEach(item -> collectStages(item, stages));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package eu.nebulous.resource.discovery.common;
+
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties.BROKER_SEND_OVERFLOW_POLICY;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of messages waiting to be sent to the broker.
+ * When the queue is full, the configured overflow policy decides whether the caller
+ * waits, the oldest queued message is discarded, or the new message is rejected.
+ * Messages past their expiration time are never handed out for sending.
+ * Messages put back after a failed send are kept apart from the bounded queue, so an accepted message
+ * is never rejected for lack of room.
+ */
+@Slf4j
+public class OutboundMessageQueue {
+    private final LinkedBlockingDeque<OutboundMessage> queue;
+    private final Deque<OutboundMessage> retries = new ConcurrentLinkedDeque<>();
+    private final BROKER_SEND_OVERFLOW_POLICY overflowPolicy;
+    private final long blockTimeout;
+    @Getter private final AtomicLong droppedCount = new AtomicLong();
+    @Getter private final AtomicLong rejectedCount = new AtomicLong();
+    @Getter private final AtomicLong expiredCount = new AtomicLong();
+
+    public OutboundMessageQueue(int capacity, @NonNull BROKER_SEND_OVERFLOW_POLICY overflowPolicy, long blockTimeout) {
+        this.queue = new LinkedBlockingDeque<>(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeout = blockTimeout;
+    }
+
+    public CompletableFuture<Void> offer(@NonNull OutboundMessage message) {
+        switch (overflowPolicy) {
+            case BLOCK -> {
+                try {
+                    if (blockTimeout <= 0) {
+                        queue.putLast(message);
+                    } else if (!queue.offerLast(message, blockTimeout, TimeUnit.MILLISECONDS)) {
+                        reject(message, "Outbound queue full for " + blockTimeout + "ms");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    message.getFuture().completeExceptionally(e);
+                }
+            }
+            case DROP_OLDEST -> {
+                while (!queue.offerLast(message)) {
+                    OutboundMessage oldest = queue.pollFirst();
+                    if (oldest != null) {
+                        droppedCount.incrementAndGet();
+                        log.warn("OutboundMessageQueue: Queue full. Dropped oldest message for topic: {}", oldest.getTopic());
+                        oldest.getFuture().completeExceptionally(
+                                new RejectedExecutionException("Message dropped from full outbound queue"));
+                    }
+                }
+            }
+            case FAIL_FAST -> {
+                if (!queue.offerLast(message))
+                    reject(message, "Outbound queue full");
+            }
+        }
+        return message.getFuture();
+    }
+
+    /**
+     * Puts back a message that could not be sent, ahead of the rest, to preserve the sending order.
+     * It is not subject to the queue capacity. It is handed out on the next take(), which the sender that
+     * put it back always calls.
+     */
+    public void requeue(@NonNull OutboundMessage message) {
+        retries.offerFirst(message);
+    }
+
+    public OutboundMessage take() throws InterruptedException {
+        while (true) {
+            OutboundMessage message = retries.pollFirst();
+            if (message == null)
+                message = queue.takeFirst();
+            if (!message.isExpired())
+                return message;
+            expiredCount.incrementAndGet();
+            log.debug("OutboundMessageQueue: Message expired before sending: topic={}", message.getTopic());
+            message.getFuture().completeExceptionally(
+                    new TimeoutException("Message expired before it could be sent to topic: " + message.getTopic()));
+        }
+    }
+
+    public int size() {
+        return queue.size() + retries.size();
+    }
+
+    /** Removes all queued messages and fails their futures with the given exception. Returns their number */
+    public int drain(@NonNull Exception reason) {
+        int count = 0;
+        OutboundMessage message;
+        while ((message = retries.pollFirst()) != null || (message = queue.pollFirst()) != null) {
+            message.getFuture().completeExceptionally(reason);
+            count++;
+        }
+        return count;
+    }
+
+    private void reject(OutboundMessage message, String reason) {
+        rejectedCount.incrementAndGet();
+        log.warn("OutboundMessageQueue: {}. Rejected message for topic: {}", reason, message.getTopic());
+        message.getFuture().completeExceptionally(new RejectedExecutionException(reason));
+    }
+
+    @Getter
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    public static class OutboundMessage {
+        private final String topic;
+        private final String payload;           // text payload, or null if 'body' is set
+        private final byte[] body;              // encoded (and maybe compressed) payload, sent as a bytes message
+        private final String contentType;
+        private final String contentEncoding;
+        private final long timeToLive;          // in millis. 0 means never expires
+        private final long expiresAt;
+        private final long queuedAt = System.nanoTime();    // for measuring the send latency
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        public OutboundMessage(@NonNull String topic, @NonNull String payload, long timeToLive) {
+            this(topic, payload, null, null, null, timeToLive, timeToLive > 0 ? System.currentTimeMillis() + timeToLive : 0L);
+        }
+
+        public OutboundMessage(@NonNull String topic, byte @NonNull [] body, @NonNull String contentType, String contentEncoding, long timeToLive) {
+            this(topic, null, body, contentType, contentEncoding, timeToLive, timeToLive > 0 ? System.currentTimeMillis() + timeToLive : 0L);
+        }
+
+        public boolean isExpired() {
+            return expiresAt > 0 && System.currentTimeMillis() > expiresAt;
+        }
+
+        public long getRemainingTimeToLive() {
+            return expiresAt > 0 ? Math.max(1L, expiresAt - System.currentTimeMillis()) : 0L;
+        }
+    }
+}
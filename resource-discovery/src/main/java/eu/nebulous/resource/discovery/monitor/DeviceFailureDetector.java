@@ -0,0 +1,314 @@
+package eu.nebulous.resource.discovery.monitor;
+
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.common.HashedTimingWheel;
+import eu.nebulous.resource.discovery.monitor.model.Device;
+import eu.nebulous.resource.discovery.monitor.model.DeviceChangeEvent;
+import eu.nebulous.resource.discovery.monitor.model.DeviceStatus;
+import eu.nebulous.resource.discovery.monitor.service.DeviceManagementService;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+/**
+ * Detects suspect and failed devices using per-device deadlines, instead of periodically checking all devices.
+ * Each device has one armed deadline in a timing wheel: first the suspect deadline, and after it expires the
+ * failed deadline. Every heartbeat (status update or metrics) re-arms the suspect deadline.
+ * In DEADLINE mode timeouts are the suspect/failed thresholds. In PHI_ACCRUAL mode they are derived from each
+ * device's mean heartbeat interval, assuming exponentially distributed intervals: phi(t) = t / (mean * ln(10)),
+ * so the deadline for a phi threshold is last-heartbeat + threshold * mean * ln(10).
+ * Status updates and metrics have separate heartbeat histories, since they arrive at different rates.
+ * The deadline of a device is the latest deadline of its signals.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class DeviceFailureDetector implements InitializingBean, DisposableBean {
+    private final static int WHEEL_SIZE = 1024;
+    private final static double LN_10 = Math.log(10);
+
+    private final ResourceDiscoveryProperties properties;
+    private final DeviceManagementService deviceManagementService;
+    private final DeviceProcessor deviceProcessor;
+    private final TaskScheduler taskScheduler;
+    private final TaskExecutor taskExecutor;
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, Heartbeats> histories = new ConcurrentHashMap<>();
+    private final Map<String, STAGE> stages = new ConcurrentHashMap<>();
+    private final AtomicLong suspectCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private HashedTimingWheel<String> wheel;
+    private ScheduledFuture<?> ticker;
+
+    private enum STAGE { SUSPECT, FAILED }
+
+    /** Heartbeat signals of a device */
+    public enum SIGNAL { STATUS, METRICS }
+
+    @Override
+    public void afterPropertiesSet() {
+        Map.of("suspect", suspectCount, "failed", failedCount)
+                .forEach((stage, count) -> FunctionCounter.builder("discovery.failure.detector.detections", count, AtomicLong::get)
+                        .tag("stage", stage)
+                        .description("Devices detected as suspect or failed, by stage")
+                        .register(meterRegistry));
+        Gauge.builder("discovery.failure.detector.armed", this, detector -> detector.wheel != null ? detector.wheel.size() : 0)
+                .description("Devices with an armed deadline")
+                .register(meterRegistry);
+
+        if (!isActive()) {
+            log.info("DeviceFailureDetector: Deadline-based failure detection is disabled: mode={}", properties.getFailureDetectionMode());
+            return;
+        }
+        wheel = new HashedTimingWheel<>(properties.getFailureDetectionTick(), WHEEL_SIZE, System.currentTimeMillis());
+        ticker = taskScheduler.scheduleAtFixedRate(this::tick, Duration.ofMillis(properties.getFailureDetectionTick()));
+        taskScheduler.schedule(this::armAll, Instant.now().plusSeconds(properties.getProcessingStartupDelay()));
+        log.info("DeviceFailureDetector: Started failure detection: mode={}, tick={}ms",
+                properties.getFailureDetectionMode(), properties.getFailureDetectionTick());
+    }
+
+    @Override
+    public void destroy() {
+        if (ticker != null)
+            ticker.cancel(false);
+    }
+
+    public boolean isActive() {
+        return properties.isAutomaticFailedDetection()
+                && properties.getFailureDetectionMode() != ResourceDiscoveryProperties.FAILURE_DETECTION_MODE.SWEEP;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /** Called by monitor services for every accepted status update or metrics report */
+    public void heartbeat(@NonNull Device device, Instant timestamp, @NonNull SIGNAL signal) {
+        if (!isActive()) return;
+        long now = System.currentTimeMillis();
+        long heartbeatTime = timestamp != null ? Math.min(timestamp.toEpochMilli(), now) : now;
+        Heartbeats heartbeats = getHeartbeats(device.getId());
+        heartbeats.record(signal, heartbeatTime);
+        arm(device.getId(), STAGE.SUSPECT, heartbeats);
+    }
+
+    private Heartbeats getHeartbeats(String id) {
+        return histories.computeIfAbsent(id, key -> new Heartbeats(properties.getPhiWindowSize()));
+    }
+
+    @EventListener
+    public void onDeviceChange(@NonNull DeviceChangeEvent event) {
+        if (!isActive()) return;
+        String id = event.getDeviceId();
+        switch (event.getType()) {
+            case DELETED -> forget(id);
+            case CREATED, UPDATED -> {
+                if (DeviceProcessor.STATUSES_TO_EXCLUDE_FROM_SUSPECT_CHECK.contains(event.getStatus())) {
+                    disarm(id);
+                } else if (!stages.containsKey(id)) {
+                    Optional.ofNullable(event.getDevice())
+                            .or(() -> deviceManagementService.getById(id))
+                            .ifPresent(this::arm);
+                }
+            }
+        }
+    }
+
+    private void armAll() {
+        try {
+            List<Device> devices = deviceManagementService.getAll();
+            devices.stream()
+                    .filter(device -> !DeviceProcessor.STATUSES_TO_EXCLUDE_FROM_SUSPECT_CHECK.contains(device.getStatus()))
+                    .forEach(this::arm);
+            log.info("DeviceFailureDetector: Armed deadlines for {} of {} devices", stages.size(), devices.size());
+        } catch (Exception e) {
+            log.warn("DeviceFailureDetector: ERROR while arming device deadlines. Will retry: {}", e.getMessage());
+            log.debug("DeviceFailureDetector: EXCEPTION: ", e);
+            taskScheduler.schedule(this::armAll, Instant.now().plusSeconds(properties.getProcessingPeriod()));
+        }
+    }
+
+    private void arm(@NonNull Device device) {
+        Heartbeats heartbeats = getHeartbeats(device.getId());
+        Instant status = device.getStatusUpdate() != null ? device.getStatusUpdate().getStateLastUpdate() : null;
+        Instant metrics = device.getMetrics() != null ? device.getMetrics().getTimestamp() : null;
+        if (status != null) heartbeats.record(SIGNAL.STATUS, status.toEpochMilli());
+        if (metrics != null) heartbeats.record(SIGNAL.METRICS, metrics.toEpochMilli());
+        if (status == null && metrics == null) heartbeats.record(SIGNAL.STATUS, getLastHeartbeat(device).toEpochMilli());
+        arm(device.getId(), device.getStatus() == DeviceStatus.SUSPECT ? STAGE.FAILED : STAGE.SUSPECT, heartbeats);
+    }
+
+    private void arm(String id, STAGE stage, Heartbeats heartbeats) {
+        long deadline = heartbeats.getDeadline(history -> getTimeout(stage, history));
+        stages.put(id, stage);
+        wheel.schedule(id, deadline);
+        log.trace("DeviceFailureDetector: Armed {} deadline of device {}: {}", stage, id, Instant.ofEpochMilli(deadline));
+    }
+
+    private void disarm(String id) {
+        stages.remove(id);
+        wheel.cancel(id);
+    }
+
+    private void forget(String id) {
+        disarm(id);
+        histories.remove(id);
+    }
+
+    private static Instant getLastHeartbeat(@NonNull Device device) {
+        return Stream.of(
+                        device.getStatusUpdate() != null ? device.getStatusUpdate().getStateLastUpdate() : null,
+                        device.getMetrics() != null ? device.getMetrics().getTimestamp() : null,
+                        device.getCreationDate())
+                .filter(Objects::nonNull)
+                .max(Instant::compareTo)
+                .orElse(Instant.now());
+    }
+
+    private long getTimeout(STAGE stage, HeartbeatHistory history) {
+        if (properties.getFailureDetectionMode() == ResourceDiscoveryProperties.FAILURE_DETECTION_MODE.PHI_ACCRUAL
+                && history.getSamples() >= properties.getPhiMinSamples())
+        {
+            double threshold = stage == STAGE.SUSPECT ? properties.getPhiSuspectThreshold() : properties.getPhiFailedThreshold();
+            return (long) (threshold * history.getMeanInterval() * LN_10);
+        }
+        // A zero suspect threshold would flag every device right after each heartbeat.
+        // Like the periodic check, do not suspect a device before a processing period has passed
+        return stage == STAGE.SUSPECT
+                ? Math.max(Duration.ofMinutes(properties.getSuspectDeviceThreshold()).toMillis(),
+                        Duration.ofSeconds(properties.getProcessingPeriod()).toMillis())
+                : Duration.ofMinutes(properties.getFailedDeviceThreshold()).toMillis();
+    }
+
+    // ------------------------------------------------------------------------
+
+    private void tick() {
+        try {
+            List<String> expired = wheel.advance(System.currentTimeMillis());
+            if (!expired.isEmpty()) {
+                log.debug("DeviceFailureDetector: Deadlines expired for {} devices", expired.size());
+                expired.forEach(id -> taskExecutor.execute(() -> onDeadline(id)));
+            }
+        } catch (Exception e) {
+            log.warn("DeviceFailureDetector: EXCEPTION while advancing timing wheel: ", e);
+        }
+    }
+
+    private void onDeadline(String id) {
+        try {
+            STAGE stage = stages.get(id);
+            if (stage == null || wheel.getDeadline(id) != null)
+                return;     // disarmed or re-armed by a heartbeat meanwhile
+            Optional<Device> result = deviceManagementService.getById(id);
+            if (result.isEmpty()) {
+                forget(id);
+                return;
+            }
+            Device device = result.get();
+            if (DeviceProcessor.STATUSES_TO_EXCLUDE_FROM_SUSPECT_CHECK.contains(device.getStatus())) {
+                disarm(id);
+                return;
+            }
+
+            if (stage == STAGE.SUSPECT) {
+                log.debug("DeviceFailureDetector: Suspect deadline expired for device: {}", id);
+                deviceProcessor.processSuspectDevice(device);
+                suspectCount.incrementAndGet();
+                Heartbeats heartbeats = histories.get(id);
+                if (heartbeats != null && wheel.getDeadline(id) == null)
+                    arm(id, STAGE.FAILED, heartbeats);
+            } else {
+                log.debug("DeviceFailureDetector: Failed deadline expired for device: {}", id);
+                disarm(id);
+                deviceProcessor.processFailedDevice(device);
+                failedCount.incrementAndGet();
+            }
+        } catch (Exception e) {
+            log.warn("DeviceFailureDetector: EXCEPTION while processing expired deadline of device {}: ", id, e);
+        }
+    }
+
+    /** Heartbeat histories of a device, one per signal */
+    private static class Heartbeats {
+        private final Map<SIGNAL, HeartbeatHistory> signals = new EnumMap<>(SIGNAL.class);
+        private final int windowSize;
+
+        private Heartbeats(int windowSize) {
+            this.windowSize = windowSize;
+        }
+
+        private void record(SIGNAL signal, long timestamp) {
+            HeartbeatHistory history;
+            synchronized (this) {
+                history = signals.computeIfAbsent(signal, s -> new HeartbeatHistory(windowSize));
+            }
+            history.record(timestamp);
+        }
+
+        /** Latest deadline over the signals, i.e. a device is alive while any of its signals is */
+        private synchronized long getDeadline(ToLongFunction<HeartbeatHistory> timeout) {
+            long deadline = 0L;
+            for (HeartbeatHistory history : signals.values())
+                deadline = Math.max(deadline, history.getLast() + timeout.applyAsLong(history));
+            return deadline;
+        }
+    }
+
+    /** Window of the latest heartbeat intervals of a device signal */
+    private static class HeartbeatHistory {
+        private final long[] intervals;
+        private int next;
+        private int samples;
+        private long sum;
+        private long last;
+
+        private HeartbeatHistory(int windowSize) {
+            this.intervals = new long[Math.max(1, windowSize)];
+        }
+
+        private synchronized void record(long timestamp) {
+            if (last > 0 && timestamp > last) {
+                long interval = timestamp - last;
+                if (samples == intervals.length) sum -= intervals[next];
+                else samples++;
+                intervals[next] = interval;
+                sum += interval;
+                next = (next + 1) % intervals.length;
+            }
+            last = Math.max(last, timestamp);
+        }
+
+        private synchronized long getLast() {
+            return last;
+        }
+
+        private synchronized int getSamples() {
+            return samples;
+        }
+
+        private synchronized double getMeanInterval() {
+            return samples > 0 ? Math.max(1.0, (double) sum / samples) : 1.0;
+        }
+    }
+}
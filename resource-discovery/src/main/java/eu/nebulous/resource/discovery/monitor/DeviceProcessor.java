@@ -8,6 +8,9 @@ import eu.nebulous.resource.discovery.monitor.model.Device;
 import eu.nebulous.resource.discovery.monitor.model.DeviceStatus;
 import eu.nebulous.resource.discovery.monitor.service.DeviceManagementService;
 import eu.nebulous.resource.discovery.registration.service.SALDeregistrationService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.json.simple.JSONObject;
@@ -22,7 +25,9 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.temporal.ChronoUnit;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
@@ -36,7 +41,7 @@ import static eu.nebulous.resource.discovery.broker_communication.BrokerPublishe
 @EnableScheduling
 @RequiredArgsConstructor
 public class DeviceProcessor  implements InitializingBean {
-    private final static List<DeviceStatus> STATUSES_TO_EXCLUDE_FROM_SUSPECT_CHECK = List.of(
+    final static List<DeviceStatus> STATUSES_TO_EXCLUDE_FROM_SUSPECT_CHECK = List.of(
             DeviceStatus.ON_HOLD, DeviceStatus.ONBOARDING, DeviceStatus.FAILED,
             DeviceStatus.OFFBOARDING, DeviceStatus.OFFBOARDED, DeviceStatus.OFFBOARD_ERROR
     );
@@ -51,6 +56,7 @@ public class DeviceProcessor  implements InitializingBean {
     private final TaskScheduler taskScheduler;
     private final AtomicBoolean isRunning = new AtomicBoolean(false);
     private final Optional<SALDeregistrationService> salDeregistrationService;
+    private final MeterRegistry meterRegistry;
     private BrokerPublisher device_lost_publisher;
 
 
@@ -86,13 +92,17 @@ public class DeviceProcessor  implements InitializingBean {
             log.debug("processDevices: Processing devices");
 
             // Process requests
+            Timer.Sample sample = Timer.start(meterRegistry);
             try {
-                if (processorProperties.isAutomaticFailedDetection())
+                if (processorProperties.isAutomaticFailedDetection()
+                        && processorProperties.getFailureDetectionMode()==ResourceDiscoveryProperties.FAILURE_DETECTION_MODE.SWEEP)
                     processFailedDevices();
                 if (processorProperties.isAutomaticArchivingEnabled())
                     archiveDevices();
             } catch (Throwable t) {
                 log.error("processDevices: ERROR while processing devices: ", t);
+            } finally {
+                sample.stop(meterRegistry.timer("discovery.device.processing.cycle"));
             }
 
             log.debug("processDevices: Processing completed");
@@ -124,57 +134,96 @@ public class DeviceProcessor  implements InitializingBean {
                     suspectDevices.size(), suspectDevices.stream().map(Device::getId).toList());
 
         for (Device device : suspectDevices) {
-            // Mark device as suspect
-            log.debug("processFailedDevices: Marking as suspect device with Id: {}", device.getId());
-            device.setStatus(DeviceStatus.SUSPECT);
-            if (device.getSuspectTimestamp()==null) {
-                device.setSuspectTimestamp(Instant.now());
-                device.setRetries(0);
-                log.info("processFailedDevices: Marked as suspect device with Id: {}", device.getId());
-            } else {
-                device.incrementRetries();
-            }
+            DeviceStatus previousStatus = device.getStatus();
+            markSuspect(device);
 
             // If fail threshold exceeded the mark device as PROBLEMATIC
-            if ( (device.getStatusUpdate()==null || device.getStatusUpdate().getStateLastUpdate().isBefore(failedDeviceThreshold))
+            boolean failed = (device.getStatusUpdate()==null || device.getStatusUpdate().getStateLastUpdate().isBefore(failedDeviceThreshold))
                     && (device.getMetrics()==null || device.getMetrics().getTimestamp().isBefore(failedDeviceThreshold))
-                    && device.getCreationDate().isBefore(failedDeviceThreshold) )
-            {
-                device.setStatus(DeviceStatus.FAILED);
-                log.info("processFailedDevices: Deregistering device with Id: {}", device.getId());
-                salDeregistrationService.ifPresent(deregistrationService -> deregistrationService.deregister(device));
-                JSONObject lost_device_message = new JSONObject();
-                lost_device_message.put("device_name",device.getName());
-                Clock clock = Clock.systemUTC();
-                lost_device_message.put("timestamp",(int)(clock.millis()/1000));
-                log.info("Trying to use existing BrokerPublisher to publish device lost message");
-                //device_lost_publisher = new BrokerPublisher(processorProperties.getLost_device_topic(), processorProperties.getNebulous_broker_ip_address(), processorProperties.getNebulous_broker_port(), processorProperties.getNebulous_broker_username(), processorProperties.getNebulous_broker_password(), "");
-                int sending_attempt = 1;
-                while (device_lost_publisher==null || device_lost_publisher.is_publisher_null()){
-
-                    try {
-                        log.warn("Will now make attempt No "+sending_attempt+" to (re)create the BrokerPublisher connector for the lost device topic");
-                        log.info("The topic name is "+processorProperties.getLostDeviceTopic()+", the broker ip is "+ processorProperties.getNebulousBrokerIpAddress()+", the broker port is "+ processorProperties.getNebulousBrokerPort()+", the username is "+ processorProperties.getNebulousBrokerUsername()+", and the password is "+ processorProperties.getNebulousBrokerPassword());
-                        
-                        device_lost_publisher = getExistingOrNewBrokerPublisher(processorProperties.getLostDeviceTopic(), processorProperties.getNebulousBrokerIpAddress(), processorProperties.getNebulousBrokerPort(), processorProperties.getNebulousBrokerUsername(), processorProperties.getNebulousBrokerPassword(), "");
-                    
-                        Thread.sleep(3000);
-                    }catch (InterruptedException i){
-                        i.printStackTrace();
-                    }
-                    sending_attempt++;
-                }
-                device_lost_publisher.publish(lost_device_message.toJSONString(), Collections.singleton(""),false);
-                log.warn("processFailedDevices: Marked as FAILED device with Id: {}", device.getId());
-                //device_lost_publisher.stop();
-            }
+                    && device.getCreationDate().isBefore(failedDeviceThreshold);
             device.setStatus(DeviceStatus.OFFBOARDED);
-            deviceManagementService.update(device);
+            if (persistStatus(device, previousStatus) && failed)
+                handleFailedDevice(device);
         }
 
         log.trace("processProblematicDevices: END");
     }
 
+    /** Marks a device as SUSPECT. Used by DeviceFailureDetector when a device misses its suspect deadline */
+    public void processSuspectDevice(@NonNull Device device) {
+        DeviceStatus previousStatus = device.getStatus();
+        markSuspect(device);
+        persistStatus(device, previousStatus);
+    }
+
+    /** Handles a FAILED device, like processFailedDevices does. Used by DeviceFailureDetector when a device misses its failed deadline */
+    public void processFailedDevice(@NonNull Device device) {
+        DeviceStatus previousStatus = device.getStatus();
+        device.setStatus(DeviceStatus.OFFBOARDED);
+        if (persistStatus(device, previousStatus))
+            handleFailedDevice(device);
+    }
+
+    private void markSuspect(Device device) {
+        // Mark device as suspect
+        log.debug("processFailedDevices: Marking as suspect device with Id: {}", device.getId());
+        device.setStatus(DeviceStatus.SUSPECT);
+        meterRegistry.counter("discovery.device.processed", "status", DeviceStatus.SUSPECT.name()).increment();
+        if (device.getSuspectTimestamp()==null) {
+            device.setSuspectTimestamp(Instant.now());
+            device.setRetries(0);
+            log.info("processFailedDevices: Marked as suspect device with Id: {}", device.getId());
+        } else {
+            device.incrementRetries();
+        }
+    }
+
+    /** Deregisters a failed device and announces it as lost. Called only after its status change was stored */
+    private void handleFailedDevice(Device device) {
+        meterRegistry.counter("discovery.device.processed", "status", DeviceStatus.FAILED.name()).increment();
+        log.info("processFailedDevices: Deregistering device with Id: {}", device.getId());
+        salDeregistrationService.ifPresent(deregistrationService -> deregistrationService.deregister(device));
+        JSONObject lost_device_message = new JSONObject();
+        lost_device_message.put("device_name",device.getName());
+        Clock clock = Clock.systemUTC();
+        lost_device_message.put("timestamp",(int)(clock.millis()/1000));
+        log.info("Trying to use existing BrokerPublisher to publish device lost message");
+        getDeviceLostPublisher().publish(lost_device_message.toJSONString(), Collections.singleton(""),false);
+        log.warn("processFailedDevices: Marked as FAILED device with Id: {}", device.getId());
+    }
+
+    private synchronized BrokerPublisher getDeviceLostPublisher() {
+        int sending_attempt = 1;
+        while (device_lost_publisher==null || device_lost_publisher.is_publisher_null()){
+            log.warn("Will now make attempt No "+sending_attempt+" to (re)create the BrokerPublisher connector for the lost device topic");
+            log.info("The topic name is "+processorProperties.getLostDeviceTopic()+", the broker ip is "+ processorProperties.getNebulousBrokerIpAddress()+", the broker port is "+ processorProperties.getNebulousBrokerPort()+", the username is "+ processorProperties.getNebulousBrokerUsername());
+            device_lost_publisher = getExistingOrNewBrokerPublisher(processorProperties.getLostDeviceTopic(), processorProperties.getNebulousBrokerIpAddress(), processorProperties.getNebulousBrokerPort(), processorProperties.getNebulousBrokerUsername(), processorProperties.getNebulousBrokerPassword(), "");
+            if (device_lost_publisher!=null && !device_lost_publisher.is_publisher_null())
+                break;
+            // Wait before the next attempt, only if this one failed
+            try {
+                Thread.sleep(3000);
+            } catch (InterruptedException i) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while creating the BrokerPublisher for the lost device topic", i);
+            }
+            sending_attempt++;
+        }
+        return device_lost_publisher;
+    }
+
+    /** Stores the status fields of the device, unless its status changed meanwhile. Returns true if stored */
+    private boolean persistStatus(Device device, DeviceStatus previousStatus) {
+        // Only status fields are written. Skipped if device status changed meanwhile (e.g. a status update arrived)
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("suspectTimestamp", device.getSuspectTimestamp());
+        fields.put("retries", device.getRetries());
+        boolean changed = deviceManagementService.transitionStatus(device.getId(), previousStatus, device.getStatus(), fields);
+        if (!changed)
+            log.debug("processFailedDevices: Device status changed while processing. Skipped status update of device with Id: {}", device.getId());
+        return changed;
+    }
+
     private void archiveDevices() {
         Instant archiveThreshold = Instant.now().minus(processorProperties.getArchivingThreshold(), ChronoUnit.MINUTES);
         log.trace("archiveDevices: BEGIN: archive-threshold: {}", archiveThreshold);
@@ -189,6 +238,7 @@ public class DeviceProcessor  implements InitializingBean {
         for (Device device : devicesForArchiving) {
             log.debug("archiveDevices: Archiving device with Id: {}", device.getId());
             deviceManagementService.archiveDeviceBySystem(device.getId());
+            meterRegistry.counter("discovery.device.processed", "status", "ARCHIVED").increment();
             log.info("archiveDevices: Archived device with Id: {}", device.getId());
         }
 
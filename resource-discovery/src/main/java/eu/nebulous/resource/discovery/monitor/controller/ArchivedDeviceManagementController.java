@@ -1,5 +1,7 @@
 package eu.nebulous.resource.discovery.monitor.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.nebulous.resource.discovery.common.ListQuery;
 import eu.nebulous.resource.discovery.monitor.model.ArchivedDevice;
 import eu.nebulous.resource.discovery.monitor.model.Device;
 import eu.nebulous.resource.discovery.monitor.model.DeviceException;
@@ -7,8 +9,10 @@ import eu.nebulous.resource.discovery.monitor.service.DeviceManagementService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.util.List;
 import java.util.Map;
@@ -20,10 +24,16 @@ import java.util.Map;
 @PreAuthorize("hasAuthority('ROLE_ADMIN')")
 public class ArchivedDeviceManagementController {
 	private final DeviceManagementService deviceService;
+	private final ObjectMapper objectMapper;
 
 	@GetMapping(value = "/device/all", produces = MediaType.APPLICATION_JSON_VALUE)
-	public List<ArchivedDevice> listDevicesAll() {
-		return deviceService.getArchivedAll();
+	public ResponseEntity<List<ArchivedDevice>> listDevicesAll(ListQuery listQuery) {
+		return ListQuery.toResponse(deviceService.findArchived(listQuery, null), deviceService.getPageLimit(listQuery), Device::getId);
+	}
+
+	@GetMapping(value = "/device/all", produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public ResponseEntity<StreamingResponseBody> streamDevicesAll(ListQuery listQuery) {
+		return ListQuery.toNdjsonResponse(() -> deviceService.streamArchived(listQuery, null), objectMapper);
 	}
 
 	@GetMapping(value = "/device/owner/{owner}", produces = MediaType.APPLICATION_JSON_VALUE)
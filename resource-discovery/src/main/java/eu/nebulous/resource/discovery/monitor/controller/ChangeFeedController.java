@@ -0,0 +1,62 @@
+package eu.nebulous.resource.discovery.monitor.controller;
+
+import eu.nebulous.resource.discovery.common.ChangeFeedEntry;
+import eu.nebulous.resource.discovery.common.ChangeFeedService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.http.MediaType;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.function.Predicate;
+
+/**
+ * Change feed of devices and registration requests. Browsers subscribe to the event stream (EventSource);
+ * machine clients long-poll with the last sequence they have seen. Admins can ask for all changes ('all=true'),
+ * other users only receive changes of their own devices and requests.
+ */
+@Slf4j
+@RestController
+@RequiredArgsConstructor
+@RequestMapping("/monitor")
+@PreAuthorize(DeviceManagementController.REQUIRES_ADMIN_OR_USER_ROLE)
+public class ChangeFeedController {
+	private final ChangeFeedService changeFeedService;
+
+	@GetMapping(value = "/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public SseEmitter subscribe(@RequestParam(required = false) Long since,
+								@RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+								@RequestParam(defaultValue = "false") boolean all,
+								Authentication authentication)
+	{
+		// Reconnecting browsers resume from the last event they received
+		Long start = StringUtils.isNumeric(lastEventId) ? Long.valueOf(lastEventId) : since;
+		return changeFeedService.subscribe(start, getFilter(all, authentication));
+	}
+
+	@GetMapping(value = "/events", produces = MediaType.APPLICATION_JSON_VALUE)
+	public DeferredResult<ChangeFeedService.Page> poll(@RequestParam(required = false) Long since,
+													   @RequestParam(defaultValue = "0") long timeout,
+													   @RequestParam(defaultValue = "false") boolean all,
+													   Authentication authentication)
+	{
+		return changeFeedService.poll(since, timeout, getFilter(all, authentication));
+	}
+
+	private Predicate<ChangeFeedEntry> getFilter(boolean all, Authentication authentication) {
+		if (authentication == null || StringUtils.isBlank(authentication.getName()))
+			return null;
+		boolean isAdmin = authentication.getAuthorities().stream()
+				.map(GrantedAuthority::getAuthority)
+				.anyMatch("ROLE_ADMIN"::equals);
+		if (all && isAdmin)
+			return null;
+		String user = authentication.getName().trim();
+		return entry -> user.equals(entry.getOwner());
+	}
+}
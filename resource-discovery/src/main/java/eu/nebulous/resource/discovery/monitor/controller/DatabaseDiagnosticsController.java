@@ -0,0 +1,27 @@
+package eu.nebulous.resource.discovery.monitor.controller;
+
+import eu.nebulous.resource.discovery.common.MongoIndexManager;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Map;
+
+/**
+ * Database diagnostics, for admins only. Runtime statistics are exported as meters, on the actuator endpoints.
+ */
+@Slf4j
+@RestController
+@RequiredArgsConstructor
+@RequestMapping("/monitor/db")
+@PreAuthorize(DeviceManagementController.REQUIRES_ADMIN_ROLE)
+public class DatabaseDiagnosticsController {
+	private final MongoIndexManager mongoIndexManager;
+
+	@GetMapping(value = "/query-plans", produces = MediaType.APPLICATION_JSON_VALUE)
+	public Map<String, Object> checkQueryPlans() {
+		return mongoIndexManager.checkQueryPlans();
+	}
+}
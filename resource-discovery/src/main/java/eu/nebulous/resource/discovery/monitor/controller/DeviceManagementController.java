@@ -1,12 +1,17 @@
 package eu.nebulous.resource.discovery.monitor.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import eu.nebulous.resource.discovery.SecurityConfig;
+import eu.nebulous.resource.discovery.common.ListQuery;
 import eu.nebulous.resource.discovery.monitor.DeviceProcessor;
 import eu.nebulous.resource.discovery.monitor.model.ArchivedDevice;
 import eu.nebulous.resource.discovery.monitor.model.Device;
 import eu.nebulous.resource.discovery.monitor.model.DeviceException;
+import eu.nebulous.resource.discovery.monitor.model.DeviceMetricsSeries;
 import eu.nebulous.resource.discovery.monitor.service.DeviceLifeCycleRequestService;
+import eu.nebulous.resource.discovery.monitor.service.DeviceListSnapshot;
 import eu.nebulous.resource.discovery.monitor.service.DeviceManagementService;
+import eu.nebulous.resource.discovery.monitor.service.DeviceMetricsStore;
 import eu.nebulous.resource.discovery.registration.model.RegistrationRequestException;
 import eu.nebulous.resource.discovery.registration.service.SALDeregistrationService;
 import eu.nebulous.resource.discovery.registration.service.SALRegistrationService;
@@ -14,13 +19,20 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -40,9 +52,12 @@ public class DeviceManagementController {
 
 	private final DeviceProcessor deviceProcessor;
 	private final DeviceManagementService deviceService;
+	private final DeviceMetricsStore deviceMetricsStore;
+	private final DeviceListSnapshot deviceListSnapshot;
 	private final DeviceLifeCycleRequestService deviceLifeCycleRequestService;
 	private final Optional<SALRegistrationService> salRegistrationService;
 	private final Optional<SALDeregistrationService> salDeregistrationService;
+	private final ObjectMapper objectMapper;
 
 	private boolean isAuthenticated(Authentication authentication) {
 		return authentication!=null && StringUtils.isNotBlank(authentication.getName());
@@ -57,12 +72,21 @@ public class DeviceManagementController {
 		return false;
 	}
 
+	private String getOwnerFilter(Authentication authentication) {
+		return isAuthenticated(authentication) ? authentication.getName().trim() : null;
+	}
+
 	@PreAuthorize(REQUIRES_ADMIN_OR_USER_ROLE)
 	@GetMapping(value = "/device", produces = MediaType.APPLICATION_JSON_VALUE)
-	public List<Device> listDevicesUser(Authentication authentication) {
-		return isAuthenticated(authentication)
-				? deviceService.getByOwner(authentication.getName().trim())
-				: listDevicesAll();
+	public ResponseEntity<List<Device>> listDevicesUser(ListQuery listQuery, Authentication authentication) {
+		return ListQuery.toResponse(deviceService.find(listQuery, getOwnerFilter(authentication)), deviceService.getPageLimit(listQuery), Device::getId);
+	}
+
+	@PreAuthorize(REQUIRES_ADMIN_OR_USER_ROLE)
+	@GetMapping(value = "/device", produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public ResponseEntity<StreamingResponseBody> streamDevicesUser(ListQuery listQuery, Authentication authentication) {
+		String owner = getOwnerFilter(authentication);
+		return ListQuery.toNdjsonResponse(() -> deviceService.stream(listQuery, owner), objectMapper);
 	}
 
 	@GetMapping(value = "/testdereg/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
@@ -76,8 +100,35 @@ public class DeviceManagementController {
 	
 	
 	@GetMapping(value = "/device/all", produces = MediaType.APPLICATION_JSON_VALUE)
-	public List<Device> listDevicesAll() {
-		return deviceService.getAll();
+	public ResponseEntity<?> listDevicesAll(ListQuery listQuery,
+											@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+											@RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding)
+	{
+		// The full list is served from the shared snapshot. Paged, filtered or projected lists are queried
+		if (!listQuery.hasParameters() && deviceListSnapshot.isEnabled())
+			return getDeviceListSnapshot(ifNoneMatch, acceptEncoding);
+		return ListQuery.toResponse(deviceService.find(listQuery, null), deviceService.getPageLimit(listQuery), Device::getId);
+	}
+
+	private ResponseEntity<byte[]> getDeviceListSnapshot(String ifNoneMatch, String acceptEncoding) {
+		DeviceListSnapshot.Snapshot snapshot = deviceListSnapshot.getSnapshot();
+		boolean gzipped = snapshot.gzip() != null && StringUtils.containsIgnoreCase(acceptEncoding, "gzip");
+		ResponseEntity.BodyBuilder response = snapshot.matches(ifNoneMatch)
+				? ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+				: ResponseEntity.ok();
+		response.eTag(snapshot.etag(gzipped))
+				.cacheControl(CacheControl.noCache())
+				.varyBy(HttpHeaders.ACCEPT_ENCODING);
+		if (snapshot.matches(ifNoneMatch))
+			return response.build();
+		if (gzipped)
+			response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+		return response.contentType(MediaType.APPLICATION_JSON).body(gzipped ? snapshot.gzip() : snapshot.json());
+	}
+
+	@GetMapping(value = "/device/all", produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public ResponseEntity<StreamingResponseBody> streamDevicesAll(ListQuery listQuery) {
+		return ListQuery.toNdjsonResponse(() -> deviceService.stream(listQuery, null), objectMapper);
 	}
 
 	@GetMapping(value = "/device/owner/{owner}", produces = MediaType.APPLICATION_JSON_VALUE)
@@ -97,6 +148,21 @@ public class DeviceManagementController {
 		return device;
 	}
 
+	@PreAuthorize(REQUIRES_ADMIN_OR_USER_ROLE)
+	@GetMapping(value = "/device/{id}/metrics", produces = MediaType.APPLICATION_JSON_VALUE)
+	public DeviceMetricsSeries getDeviceMetrics(@PathVariable String id,
+												@RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+												@RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to,
+												@RequestParam(required = false) Duration step,
+												@RequestParam(required = false) List<String> metric,
+												Authentication authentication)
+	{
+		getDevice(id, authentication);		// checks device exists and is accessible
+		Instant end = to != null ? to : Instant.now();
+		Instant start = from != null ? from : end.minus(Duration.ofHours(1));
+		return deviceMetricsStore.query(id, start, end, step, metric);
+	}
+
 	@GetMapping(value = "/device/ipaddress/{ipAddress}", produces = MediaType.APPLICATION_JSON_VALUE)
 	public Device getDeviceByIpAddress(@PathVariable String ipAddress) {
 		return deviceService.getByIpAddress(ipAddress)
@@ -168,13 +234,25 @@ public class DeviceManagementController {
 
 	@PreAuthorize(REQUIRES_ADMIN_OR_USER_ROLE)
 	@GetMapping(value = "/device/archived", produces = MediaType.APPLICATION_JSON_VALUE)
-	public List<ArchivedDevice> listArchivedRequests(Authentication authentication) {
-		return deviceService.getArchivedByOwner(authentication);
+	public ResponseEntity<List<ArchivedDevice>> listArchivedRequests(ListQuery listQuery, Authentication authentication) {
+		return ListQuery.toResponse(deviceService.findArchived(listQuery, authentication.getName()), deviceService.getPageLimit(listQuery), Device::getId);
+	}
+
+	@PreAuthorize(REQUIRES_ADMIN_OR_USER_ROLE)
+	@GetMapping(value = "/device/archived", produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public ResponseEntity<StreamingResponseBody> streamArchivedRequests(ListQuery listQuery, Authentication authentication) {
+		String owner = authentication.getName();
+		return ListQuery.toNdjsonResponse(() -> deviceService.streamArchived(listQuery, owner), objectMapper);
 	}
 
 	@GetMapping(value = "/device/archived/all", produces = MediaType.APPLICATION_JSON_VALUE)
-	public List<ArchivedDevice> listArchivedRequestsAdmin() {
-		return deviceService.getArchivedAll();
+	public ResponseEntity<List<ArchivedDevice>> listArchivedRequestsAdmin(ListQuery listQuery) {
+		return ListQuery.toResponse(deviceService.findArchived(listQuery, null), deviceService.getPageLimit(listQuery), Device::getId);
+	}
+
+	@GetMapping(value = "/device/archived/all", produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public ResponseEntity<StreamingResponseBody> streamArchivedRequestsAdmin(ListQuery listQuery) {
+		return ListQuery.toNdjsonResponse(() -> deviceService.streamArchived(listQuery, null), objectMapper);
 	}
 
 	@PreAuthorize(REQUIRES_ADMIN_OR_USER_ROLE)
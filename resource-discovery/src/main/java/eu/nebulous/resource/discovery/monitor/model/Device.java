@@ -4,6 +4,8 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import eu.nebulous.resource.discovery.common.DeviceLocation;
 import lombok.*;
 import lombok.experimental.SuperBuilder;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.Instant;
@@ -12,10 +14,16 @@ import java.util.List;
 import java.util.Map;
 
 @Data
-@SuperBuilder
+@SuperBuilder(toBuilder = true)
 @NoArgsConstructor
 @Document(collection = "device")
+@CompoundIndex(name = "ipAddress_nodeReference", def = "{'ipAddress': 1, 'nodeReference': 1}")	// also serves ipAddress lookups
+@CompoundIndex(name = "status_lastUpdateDate", def = "{'status': 1, 'lastUpdateDate': 1}")
+@CompoundIndex(name = "statusUpdate_clientId_ci", def = "{'statusUpdate.clientId': 1}", collation = Device.CASE_INSENSITIVE)	// serves case-insensitive lookups
+@CompoundIndex(name = "registeredToSAL_status", def = "{'registeredToSAL': 1, 'status': 1}")	// SAL outbox catch-up
 public class Device {
+    public final static String CASE_INSENSITIVE = "{ 'locale': 'en', 'strength': 2 }";	// collation
+
     private String id; //This is the internal id of the device in the Resource Discovery component 
     private String sal_id; //This identifier is used by SAL, and is used for deregistration
     private String ref; //This identifier is used by the Cloud Fog Service Broker, to ascertain which devices are available for which applications
@@ -23,6 +31,7 @@ public class Device {
     private Double price;
     private String os;
     private String name;
+    @Indexed
     private String owner;
     private String provider;
     private String ipAddress;
@@ -40,6 +49,7 @@ public class Device {
     //private RegistrationRequest request;
     private String requestId;
     private Instant creationDate;
+    @Indexed    // device index resync
     private Instant lastUpdateDate;
     private Instant archiveDate;
     private DeviceStatus status;
@@ -0,0 +1,27 @@
+package eu.nebulous.resource.discovery.monitor.model;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * Published by DeviceManagementService after a device is created, updated or deleted.
+ * 'device' is null for partial updates (e.g. status transitions), where only the new status is known.
+ */
+@Getter
+@ToString
+@RequiredArgsConstructor
+public class DeviceChangeEvent {
+    public enum TYPE { CREATED, UPDATED, DELETED }
+
+    @NonNull private final String deviceId;
+    @NonNull private final TYPE type;
+    private final DeviceStatus status;
+    @ToString.Exclude
+    private final Device device;
+
+    public DeviceChangeEvent(@NonNull TYPE type, @NonNull Device device) {
+        this(device.getId(), type, device.getStatus(), device);
+    }
+}
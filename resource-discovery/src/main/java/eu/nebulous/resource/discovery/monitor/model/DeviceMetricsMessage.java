@@ -0,0 +1,13 @@
+package eu.nebulous.resource.discovery.monitor.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.Data;
+
+/**
+ * Device metrics report sent by EMS clients (on '_client_metrics' topic)
+ */
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class DeviceMetricsMessage {
+    private DeviceMetricsReport message;
+}
@@ -0,0 +1,31 @@
+package eu.nebulous.resource.discovery.monitor.model;
+
+import com.fasterxml.jackson.annotation.JsonAnySetter;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The 'message' part of EMS client metrics reports. Any field other than the identification
+ * and timestamp fields is a metric.
+ */
+@Data
+public class DeviceMetricsReport {
+    private String clientId;
+    private String ipAddress;
+    private String receivedAtServer;
+    @JsonProperty("_received_at_server_timestamp")
+    private Object receivedAtServerTimestamp;
+    @JsonProperty("latest-events")
+    private List<Object> latestEvents;
+    private final Map<String, Object> metrics = new LinkedHashMap<>();
+
+    @JsonAnySetter
+    public void setMetric(String name, Object value) {
+        if (name != null && value != null)
+            metrics.put(name, value);
+    }
+}
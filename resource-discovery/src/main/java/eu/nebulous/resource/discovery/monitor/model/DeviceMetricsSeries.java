@@ -0,0 +1,32 @@
+package eu.nebulous.resource.discovery.monitor.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+import java.util.Map;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeviceMetricsSeries {
+    private String deviceId;
+    private Instant from;
+    private Instant to;
+    private long step;                      // in millis. 0 means the resolution of each series
+    private Map<String, Series> metrics;
+
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Series {
+        private String source;              // RAW, MINUTE, HOUR or DATABASE
+        private long resolution;            // in millis. 0 for raw samples
+        private long[] timestamps;          // epoch millis
+        private double[] values;
+    }
+}
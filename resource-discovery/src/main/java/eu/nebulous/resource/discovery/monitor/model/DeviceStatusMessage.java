@@ -0,0 +1,13 @@
+package eu.nebulous.resource.discovery.monitor.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.Data;
+
+/**
+ * Device status report sent by EMS clients (on '_ui_instance_info' topic)
+ */
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class DeviceStatusMessage {
+    private DeviceStatusUpdate message;
+}
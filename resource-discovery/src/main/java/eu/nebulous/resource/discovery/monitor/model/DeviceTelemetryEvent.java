@@ -0,0 +1,19 @@
+package eu.nebulous.resource.discovery.monitor.model;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * Published by DeviceManagementService after the status update and/or metrics of a device are stored.
+ * The device is HEALTHY afterwards. Either 'statusUpdate' or 'metrics' can be null.
+ */
+@Getter
+@ToString
+@RequiredArgsConstructor
+public class DeviceTelemetryEvent {
+    @NonNull private final String deviceId;
+    private final DeviceStatusUpdate statusUpdate;
+    private final DeviceMetrics metrics;
+}
@@ -1,12 +1,17 @@
 package eu.nebulous.resource.discovery.monitor.repository;
 
 import eu.nebulous.resource.discovery.monitor.model.Device;
+import org.springframework.data.mongodb.core.annotation.Collation;
 import org.springframework.data.mongodb.repository.MongoRepository;
 
+import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
 
 public interface DeviceRepository extends MongoRepository<Device, String> {
 	List<Device> findByOwner(String owner);
 	Optional<Device> findByIpAddress(String ipAddress);
+	@Collation(Device.CASE_INSENSITIVE)		// uses the collated index. IgnoreCase would be a regex query
+	Optional<Device> findFirstByStatusUpdateClientId(String clientId);
+	List<Device> findByLastUpdateDateGreaterThanEqual(Instant date);
 }
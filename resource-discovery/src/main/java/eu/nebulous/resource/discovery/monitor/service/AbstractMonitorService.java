@@ -4,6 +4,7 @@ package eu.nebulous.resource.discovery.monitor.service;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
 import eu.nebulous.resource.discovery.common.BrokerUtil;
+import eu.nebulous.resource.discovery.common.MessageDecoder;
 import eu.nebulous.resource.discovery.monitor.model.Device;
 import eu.nebulous.resource.discovery.monitor.model.DeviceStatus;
 import lombok.NonNull;
@@ -17,15 +18,15 @@ import org.springframework.stereotype.Service;
 
 import java.time.Instant;
 import java.util.List;
-import java.util.Map;
 
 @Slf4j
 @Service
 @EnableAsync
 @EnableScheduling
 @RequiredArgsConstructor
-public abstract class AbstractMonitorService implements InitializingBean, BrokerUtil.Listener {
+public abstract class AbstractMonitorService<T> implements InitializingBean, BrokerUtil.TypedListener<T> {
     @NonNull protected final String name;
+    @NonNull protected final MessageDecoder<T> decoder;
     protected final ResourceDiscoveryProperties monitorProperties;
     protected final TaskScheduler taskScheduler;
     protected final ObjectMapper objectMapper;
@@ -53,7 +54,12 @@ public abstract class AbstractMonitorService implements InitializingBean, Broker
     protected abstract @NonNull List<String> getTopicsToMonitor();
 
     @Override
-    public void onMessage(Map message) {
+    public @NonNull MessageDecoder<T> getDecoder() {
+        return decoder;
+    }
+
+    @Override
+    public void onMessage(@NonNull T message) {
         try {
             log.debug("{}: Received a message: {}", name, message);
             processPayload(message);
@@ -68,5 +74,5 @@ public abstract class AbstractMonitorService implements InitializingBean, Broker
         device.setRetries(0);
     }
 
-    protected abstract void processPayload(Map<?, ?> dataMap);
+    protected abstract void processPayload(@NonNull T message);
 }
@@ -0,0 +1,310 @@
+package eu.nebulous.resource.discovery.monitor.service;
+
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.monitor.model.Device;
+import eu.nebulous.resource.discovery.monitor.model.DeviceMetrics;
+import eu.nebulous.resource.discovery.monitor.model.DeviceStatusUpdate;
+import eu.nebulous.resource.discovery.monitor.repository.DeviceRepository;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * In-memory index of the active (non-archived) devices, keyed by id, IP address, client id and node reference.
+ * It is kept up to date by DeviceManagementService on every write (write-through). To pick up changes made outside
+ * the service (e.g. by other instances), the devices modified since the last resync are periodically re-read, and
+ * the whole index is rarely re-loaded, which also drops devices deleted from the database.
+ * Lookups return (deep) copies, so callers can freely modify them before saving.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class DeviceIndex implements InitializingBean {
+    private final ResourceDiscoveryProperties properties;
+    private final DeviceRepository deviceRepository;
+    private final TaskScheduler taskScheduler;
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, Device> byId = new ConcurrentHashMap<>();
+    private final Map<String, String> byIpAddress = new ConcurrentHashMap<>();
+    private final Map<String, String> byClientId = new ConcurrentHashMap<>();
+    private final Map<String, String> byNodeReference = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private Set<String> modifiedDuringReload;      // ids written while a reload is in progress. Guarded by writeLock
+    private volatile boolean loaded;
+    private Instant lastFullReload;                 // Accessed by the resync task only
+    private Instant lastResync;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+    private final AtomicLong resyncs = new AtomicLong();
+
+    @Override
+    public void afterPropertiesSet() {
+        Map.of("hit", hits, "miss", misses)
+                .forEach((result, count) -> FunctionCounter.builder("discovery.device.index.lookups", count, AtomicLong::get)
+                        .description("Device index lookups, by result")
+                        .tag("result", result)
+                        .register(meterRegistry));
+        Map.of("reload", reloads, "resync", resyncs)
+                .forEach((type, count) -> FunctionCounter.builder("discovery.device.index.loads", count, AtomicLong::get)
+                        .description("Device index loads from the database, by type")
+                        .tag("type", type)
+                        .register(meterRegistry));
+        Gauge.builder("discovery.device.index.size", byId, Map::size)
+                .description("Devices in the device index")
+                .register(meterRegistry);
+        if (!isEnabled()) {
+            log.info("DeviceIndex: Device index is disabled");
+            return;
+        }
+        taskScheduler.scheduleWithFixedDelay(this::resync, Instant.now(),
+                Duration.ofMillis(properties.getDeviceIndexResyncPeriod()));
+        log.info("DeviceIndex: Device index is enabled: resync-period={}ms, full-reload-period={}ms",
+                properties.getDeviceIndexResyncPeriod(), properties.getDeviceIndexFullReloadPeriod());
+    }
+
+    public boolean isEnabled() {
+        return properties.isDeviceIndexEnabled();
+    }
+
+    /** The index can answer lookups (including negative ones) once it has been loaded from the database */
+    public boolean isLoaded() {
+        return isEnabled() && loaded;
+    }
+
+    // ------------------------------------------------------------------------
+
+    public Optional<Device> getById(@NonNull String id) {
+        return count(Optional.ofNullable(byId.get(id)));
+    }
+
+    public Optional<Device> getByIpAddress(@NonNull String ipAddress) {
+        return lookup(byIpAddress, ipAddress);
+    }
+
+    public Optional<Device> getByClientId(@NonNull String clientId) {
+        return lookup(byClientId, clientId.toLowerCase());
+    }
+
+    public Optional<Device> getByNodeReference(@NonNull String nodeReference) {
+        return lookup(byNodeReference, nodeReference);
+    }
+
+    private Optional<Device> lookup(Map<String, String> keyIndex, String key) {
+        String id = keyIndex.get(key);
+        return count(Optional.ofNullable(id != null ? byId.get(id) : null));
+    }
+
+    private Optional<Device> count(Optional<Device> result) {
+        (result.isPresent() ? hits : misses).incrementAndGet();
+        return result.map(DeviceIndex::copy);
+    }
+
+    // ------------------------------------------------------------------------
+
+    public void put(@NonNull Device device) {
+        if (!isEnabled() || StringUtils.isBlank(device.getId())) return;
+        Device copy = copy(device);
+        synchronized (writeLock) {
+            markModified(copy.getId());
+            removeKeys(byId.put(copy.getId(), copy));
+            addKeys(copy);
+        }
+    }
+
+    /** Applies a change to the indexed device, if present, e.g. after a partial update in the database */
+    public void update(@NonNull String id, @NonNull UnaryOperator<Device> change) {
+        if (!isEnabled()) return;
+        synchronized (writeLock) {
+            Device current = byId.get(id);
+            if (current == null) return;
+            Device updated = change.apply(copy(current));
+            markModified(id);
+            removeKeys(current);
+            byId.put(id, updated);
+            addKeys(updated);
+        }
+    }
+
+    /** Re-reads a single device from the database, e.g. after a partial update the index cannot apply itself */
+    public void reload(@NonNull String id) {
+        if (!isEnabled()) return;
+        deviceRepository.findById(id).ifPresentOrElse(this::put, () -> remove(id));
+    }
+
+    public void remove(@NonNull String id) {
+        if (!isEnabled()) return;
+        synchronized (writeLock) {
+            markModified(id);
+            removeKeys(byId.remove(id));
+        }
+    }
+
+    private void markModified(String id) {
+        if (modifiedDuringReload != null)
+            modifiedDuringReload.add(id);
+    }
+
+    private void addKeys(Device device) {
+        putKey(byIpAddress, device.getIpAddress(), device);
+        putKey(byNodeReference, device.getNodeReference(), device);
+        if (device.getStatusUpdate() != null)
+            putKey(byClientId, StringUtils.lowerCase(device.getStatusUpdate().getClientId()), device);
+    }
+
+    private void removeKeys(Device device) {
+        if (device == null) return;
+        removeKey(byIpAddress, device.getIpAddress(), device);
+        removeKey(byNodeReference, device.getNodeReference(), device);
+        if (device.getStatusUpdate() != null)
+            removeKey(byClientId, StringUtils.lowerCase(device.getStatusUpdate().getClientId()), device);
+    }
+
+    private static void putKey(Map<String, String> keyIndex, String key, Device device) {
+        if (StringUtils.isNotBlank(key))
+            keyIndex.put(key, device.getId());
+    }
+
+    private static void removeKey(Map<String, String> keyIndex, String key, Device device) {
+        if (StringUtils.isNotBlank(key))
+            keyIndex.remove(key, device.getId());
+    }
+
+    // ------------------------------------------------------------------------
+
+    /** Re-reads the devices modified since the last resync, or re-loads the whole index when it is due */
+    public void resync() {
+        Instant startTm = Instant.now();
+        if (lastFullReload == null || lastResync == null
+                || Duration.between(lastFullReload, startTm).toMillis() >= properties.getDeviceIndexFullReloadPeriod())
+        {
+            if (reload()) {
+                lastFullReload = lastResync = startTm;
+            }
+            return;
+        }
+        // Overlaps the previous resync by a period, to tolerate clock differences between instances
+        Instant since = lastResync.minusMillis(properties.getDeviceIndexResyncPeriod());
+        if (load(() -> deviceRepository.findByLastUpdateDateGreaterThanEqual(since), false)) {
+            lastResync = startTm;
+            resyncs.incrementAndGet();
+        }
+    }
+
+    /** Re-loads the whole index from the database */
+    public boolean reload() {
+        if (load(deviceRepository::findAll, true)) {
+            reloads.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean load(Supplier<List<Device>> query, boolean full) {
+        try {
+            long startTm = System.currentTimeMillis();
+            synchronized (writeLock) {
+                modifiedDuringReload = ConcurrentHashMap.newKeySet();
+            }
+            List<Device> devices;
+            try {
+                devices = query.get();
+            } catch (Exception e) {
+                synchronized (writeLock) {
+                    modifiedDuringReload = null;
+                }
+                throw e;
+            }
+
+            // Devices written while loading are already up-to-date in the index. Loaded copies may be stale.
+            // The lock is taken per device, so writers are never held up for the whole fleet
+            Set<String> skip = modifiedDuringReload;
+            Map<String, Device> loadedDevices = new LinkedHashMap<>();
+            devices.forEach(device -> loadedDevices.put(device.getId(), device));
+            for (Device device : loadedDevices.values()) {
+                synchronized (writeLock) {
+                    if (skip.contains(device.getId())) continue;
+                    removeKeys(byId.put(device.getId(), device));
+                    addKeys(device);
+                }
+            }
+            if (full) {
+                for (String id : new ArrayList<>(byId.keySet())) {
+                    if (loadedDevices.containsKey(id)) continue;
+                    synchronized (writeLock) {
+                        if (!skip.contains(id))
+                            removeKeys(byId.remove(id));
+                    }
+                }
+                loaded = true;
+            }
+            synchronized (writeLock) {
+                modifiedDuringReload = null;
+            }
+            log.debug("DeviceIndex: {} {} devices in {}ms", full ? "Reloaded" : "Resynced",
+                    devices.size(), System.currentTimeMillis() - startTm);
+            return true;
+        } catch (Exception e) {
+            synchronized (writeLock) {
+                modifiedDuringReload = null;
+            }
+            log.warn("DeviceIndex: ERROR while {} device index: {}", full ? "reloading" : "resyncing", e.getMessage());
+            log.debug("DeviceIndex: EXCEPTION: ", e);
+            return false;
+        }
+    }
+
+    private static Device copy(Device device) {
+        return device.toBuilder()
+                .messages(device.getMessages() != null ? new ArrayList<>(device.getMessages()) : new ArrayList<>())
+                .deviceInfo(device.getDeviceInfo() != null ? new LinkedHashMap<>(device.getDeviceInfo()) : null)
+                .statusUpdate(copy(device.getStatusUpdate()))
+                .metrics(copy(device.getMetrics()))
+                .build();
+    }
+
+    private static DeviceStatusUpdate copy(DeviceStatusUpdate statusUpdate) {
+        if (statusUpdate == null) return null;
+        DeviceStatusUpdate copy = new DeviceStatusUpdate();
+        copy.setIpAddress(statusUpdate.getIpAddress());
+        copy.setClientId(statusUpdate.getClientId());
+        copy.setState(statusUpdate.getState());
+        copy.setStateLastUpdate(statusUpdate.getStateLastUpdate());
+        copy.setReference(statusUpdate.getReference());
+        copy.setErrors(statusUpdate.getErrors() != null ? new ArrayList<>(statusUpdate.getErrors()) : null);
+        return copy;
+    }
+
+    private static DeviceMetrics copy(DeviceMetrics metrics) {
+        if (metrics == null) return null;
+        DeviceMetrics copy = new DeviceMetrics();
+        copy.setIpAddress(metrics.getIpAddress());
+        copy.setClientId(metrics.getClientId());
+        copy.setTimestamp(metrics.getTimestamp());
+        copy.setMetrics(metrics.getMetrics() != null ? new LinkedHashMap<>(metrics.getMetrics()) : null);
+        copy.setLatestEvents(metrics.getLatestEvents() != null ? new ArrayList<>(metrics.getLatestEvents()) : null);
+        return copy;
+    }
+}
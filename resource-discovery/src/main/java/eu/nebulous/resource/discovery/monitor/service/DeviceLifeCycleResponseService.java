@@ -3,6 +3,7 @@ package eu.nebulous.resource.discovery.monitor.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import eu.nebulous.resource.discovery.common.BrokerUtil;
+import eu.nebulous.resource.discovery.common.MessageDecoderRegistry;
 import eu.nebulous.resource.discovery.common.REQUEST_TYPE;
 import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
 import eu.nebulous.resource.discovery.monitor.model.Device;
@@ -20,14 +21,14 @@ import java.util.stream.Collectors;
 
 @Slf4j
 @Service
-public class DeviceLifeCycleResponseService extends AbstractMonitorService {
+public class DeviceLifeCycleResponseService extends AbstractMonitorService<Map<String, Object>> {
     private final DeviceManagementService deviceManagementService;
 
     public DeviceLifeCycleResponseService(ResourceDiscoveryProperties monitorProperties, TaskScheduler taskScheduler,
                                           ObjectMapper objectMapper, DeviceManagementService deviceManagementService,
-                                          BrokerUtil brokerUtil)
+                                          BrokerUtil brokerUtil, MessageDecoderRegistry messageDecoderRegistry)
     {
-        super("DeviceLifeCycleResponseService", monitorProperties, taskScheduler, objectMapper, brokerUtil);
+        super("DeviceLifeCycleResponseService", messageDecoderRegistry.forMap(), monitorProperties, taskScheduler, objectMapper, brokerUtil);
         this.deviceManagementService = deviceManagementService;
     }
 
@@ -37,7 +38,7 @@ public class DeviceLifeCycleResponseService extends AbstractMonitorService {
     }
 
     @Override
-    protected void processPayload(Map<?, ?> dataMap) {
+    protected void processPayload(@NonNull Map<String, Object> dataMap) {
         log.trace("DeviceLifeCycleResponseService: BEGIN: {}", dataMap);
         if (dataMap==null || dataMap.isEmpty()) {
             log.debug("DeviceLifeCycleResponseService: Device Life-Cycle map is empty: {}", dataMap);
@@ -108,7 +109,7 @@ public class DeviceLifeCycleResponseService extends AbstractMonitorService {
         } else {
             device.setStatus(newStatus = DeviceStatus.ONBOARD_ERROR);
         }
-        deviceManagementService.update(device);
+        deviceManagementService.transitionStatus(device.getId(), null, newStatus);
 
         log.debug("DeviceLifeCycleResponseService: processReinstallMessage: Device status updated: newStatus={} --requestType={}, status={}, requestId={}, deviceId={}, ipAddress={}, reference={}, device-reference={}",
                 newStatus, requestType, status, requestId, deviceId, ipAddress, reference, device.getNodeReference());
@@ -122,7 +123,7 @@ public class DeviceLifeCycleResponseService extends AbstractMonitorService {
         } else {
             device.setStatus(newStatus = DeviceStatus.OFFBOARD_ERROR);
         }
-        deviceManagementService.update(device);
+        deviceManagementService.transitionStatus(device.getId(), null, newStatus);
 
         log.debug("DeviceLifeCycleResponseService: processUninstallMessage: Device status updated: newStatus={} --requestType={}, status={}, requestId={}, deviceId={}, ipAddress={}, reference={}, device-reference={}",
                 newStatus, requestType, status, requestId, deviceId, ipAddress, reference, device.getNodeReference());
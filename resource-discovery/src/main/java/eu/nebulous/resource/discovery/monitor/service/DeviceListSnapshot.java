@@ -0,0 +1,159 @@
+package eu.nebulous.resource.discovery.monitor.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.monitor.model.Device;
+import eu.nebulous.resource.discovery.monitor.model.DeviceChangeEvent;
+import eu.nebulous.resource.discovery.monitor.model.DeviceTelemetryEvent;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Pre-serialized JSON of the full device list. The version is bumped on every device change (including telemetry),
+ * and the list is read and serialized once per version, no matter how many clients ask for it.
+ * Each snapshot has a strong ETag, made of the startup time and the version, so clients can revalidate with
+ * If-None-Match. To bound the cost under continuous telemetry, snapshots are rebuilt at most once per interval
+ * after telemetry updates. Device changes (creation, update, deletion, archiving) invalidate the snapshot right away.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class DeviceListSnapshot implements InitializingBean {
+    private final static String INSTANCE_ID = Long.toHexString(System.currentTimeMillis());
+
+    private final ResourceDiscoveryProperties properties;
+    private final DeviceManagementService deviceManagementService;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicLong changeVersion = new AtomicLong();
+    private final AtomicLong builds = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private volatile Snapshot current;
+
+    public record Snapshot(long version, long changeVersion, long createdMillis, String tag, byte[] json, byte[] gzip) {
+        /** Strong ETag of the plain or gzip-encoded representation */
+        public String etag(boolean gzipped) {
+            return "\"" + tag + (gzipped ? "-gz" : "") + "\"";
+        }
+
+        /** Returns true if the If-None-Match header contains the ETag of either representation */
+        public boolean matches(String ifNoneMatch) {
+            if (ifNoneMatch == null) return false;
+            for (String etag : ifNoneMatch.split(",")) {
+                String value = etag.trim();
+                if (value.equals("*") || value.equals(etag(false)) || value.equals(etag(true)))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        FunctionCounter.builder("discovery.device.snapshot.builds", builds, AtomicLong::get)
+                .description("Device list snapshots built")
+                .register(meterRegistry);
+        FunctionCounter.builder("discovery.device.snapshot.requests", requests, AtomicLong::get)
+                .description("Device list snapshot requests")
+                .register(meterRegistry);
+        Gauge.builder("discovery.device.snapshot.size", this, snapshot -> {
+                    Snapshot current = snapshot.current;
+                    return current != null ? current.json().length : 0;
+                })
+                .description("Size of the current device list snapshot")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return properties.isDeviceListSnapshotEnabled();
+    }
+
+    @EventListener
+    public void onDeviceChange(@NonNull DeviceChangeEvent event) {
+        changeVersion.incrementAndGet();
+        version.incrementAndGet();
+    }
+
+    @EventListener
+    public void onDeviceTelemetry(@NonNull DeviceTelemetryEvent event) {
+        version.incrementAndGet();
+    }
+
+    public Snapshot getSnapshot() {
+        requests.incrementAndGet();
+        Snapshot snapshot = current;
+        if (isUsable(snapshot)) return snapshot;
+        synchronized (this) {
+            snapshot = current;
+            if (isUsable(snapshot)) return snapshot;
+            current = snapshot = build();
+            return snapshot;
+        }
+    }
+
+    private boolean isUsable(Snapshot snapshot) {
+        if (snapshot == null) return false;
+        if (snapshot.version() == version.get()) return true;
+        // Only telemetry updates are rate-limited. Stale snapshots are never served after a device change
+        return snapshot.changeVersion() == changeVersion.get()
+                && System.currentTimeMillis() - snapshot.createdMillis() < properties.getDeviceListSnapshotMinInterval();
+    }
+
+    private Snapshot build() {
+        try {
+            // Read version first. Changes made while reading will be picked up by the next snapshot
+            long snapshotChangeVersion = changeVersion.get();
+            long snapshotVersion = version.get();
+            long startTm = System.currentTimeMillis();
+            byte[] json = serializeAllDevices();
+            byte[] gzip = properties.isDeviceListSnapshotGzip() ? gzip(json) : null;
+            builds.incrementAndGet();
+            log.debug("DeviceListSnapshot: Built snapshot: version={}, size={}, gzip-size={}, duration={}ms",
+                    snapshotVersion, json.length, gzip != null ? gzip.length : null, System.currentTimeMillis() - startTm);
+            return new Snapshot(snapshotVersion, snapshotChangeVersion, System.currentTimeMillis(),
+                    INSTANCE_ID + "-" + snapshotVersion, json, gzip);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Writes the JSON array of all devices while reading them, so the whole list is never held as objects */
+    private byte[] serializeAllDevices() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(1024, current != null ? current.json().length : 0));
+        try (JsonGenerator generator = objectMapper.createGenerator(out);
+             Stream<Device> devices = deviceManagementService.streamAll())
+        {
+            generator.writeStartArray();
+            for (Device device : (Iterable<Device>) devices::iterator)
+                generator.writeObject(device);
+            generator.writeEndArray();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+        try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
+            gzipOut.write(data);
+        }
+        return out.toByteArray();
+    }
+}
@@ -1,10 +1,17 @@
 package eu.nebulous.resource.discovery.monitor.service;
 
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteResult;
 import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.common.ListQuery;
 import eu.nebulous.resource.discovery.monitor.model.ArchivedDevice;
 import eu.nebulous.resource.discovery.monitor.model.Device;
+import eu.nebulous.resource.discovery.monitor.model.DeviceChangeEvent;
 import eu.nebulous.resource.discovery.monitor.model.DeviceException;
+import eu.nebulous.resource.discovery.monitor.model.DeviceMetrics;
 import eu.nebulous.resource.discovery.monitor.model.DeviceStatus;
+import eu.nebulous.resource.discovery.monitor.model.DeviceStatusUpdate;
+import eu.nebulous.resource.discovery.monitor.model.DeviceTelemetryEvent;
 import eu.nebulous.resource.discovery.monitor.repository.ArchivedDeviceRepository;
 import eu.nebulous.resource.discovery.monitor.repository.DeviceRepository;
 import eu.nebulous.resource.discovery.registration.model.RegistrationRequestException;
@@ -12,21 +19,35 @@ import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.stereotype.Service;
 
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class DeviceManagementService {
+	private final static List<String> HIDDEN_FIELDS = List.of("password", "publicKey");
+
 	private final ResourceDiscoveryProperties properties;
 	private final DeviceRepository deviceRepository;
 	private final ArchivedDeviceRepository archivedDeviceRepository;
 	private final DeviceConversionService deviceConversionService;
+	private final DeviceIndex deviceIndex;
+	private final MongoTemplate mongoTemplate;
+	private final ApplicationEventPublisher eventPublisher;
+	private final Map<WriteConcern, MongoTemplate> templatesByWriteConcern = new ConcurrentHashMap<>();
 
 	// ------------------------------------------------------------------------
 
@@ -38,14 +59,60 @@ public class DeviceManagementService {
 		return deviceRepository.findByOwner(owner);
 	}
 
+	// Paged, filtered and projected lists. A non-null owner restricts results to the owner's devices
+
+	public List<Device> find(@NonNull ListQuery listQuery, String owner) {
+		return mongoTemplate.find(toQuery(listQuery, owner, getPageLimit(listQuery)), Device.class);
+	}
+
+	public Stream<Device> stream(@NonNull ListQuery listQuery, String owner) {
+		return mongoTemplate.stream(toQuery(listQuery, owner, getStreamLimit(listQuery)), Device.class);
+	}
+
+	/** Streams all devices, never paged, without the hidden fields (e.g. for the device list snapshot) */
+	public Stream<Device> streamAll() {
+		return mongoTemplate.stream(new ListQuery().toQuery("owner", "provider", null, HIDDEN_FIELDS, 0), Device.class);
+	}
+
+	public List<ArchivedDevice> findArchived(@NonNull ListQuery listQuery, String owner) {
+		return mongoTemplate.find(toQuery(listQuery, owner, getPageLimit(listQuery)), ArchivedDevice.class);
+	}
+
+	public Stream<ArchivedDevice> streamArchived(@NonNull ListQuery listQuery, String owner) {
+		return mongoTemplate.stream(toQuery(listQuery, owner, getStreamLimit(listQuery)), ArchivedDevice.class);
+	}
+
+	/** Returns the size of a full page of the list query */
+	public int getPageLimit(@NonNull ListQuery listQuery) {
+		return listQuery.getPageLimit(properties.getListDefaultPageSize(), properties.getListMaxPageSize());
+	}
+
+	private int getStreamLimit(@NonNull ListQuery listQuery) {
+		return listQuery.getPageLimit(0, properties.getListMaxPageSize());
+	}
+
+	private Query toQuery(@NonNull ListQuery listQuery, String owner, int pageLimit) {
+		return listQuery.toQuery("owner", "provider", owner, HIDDEN_FIELDS, pageLimit);
+	}
+
 	public Optional<Device> getById(@NonNull String id) {
+		if (deviceIndex.isLoaded())
+			return deviceIndex.getById(id);
 		return deviceRepository.findById(id);
 	}
 
 	public Optional<Device> getByIpAddress(@NonNull String ipAddress) {
+		if (deviceIndex.isLoaded())
+			return deviceIndex.getByIpAddress(ipAddress);
 		return deviceRepository.findByIpAddress(ipAddress);
 	}
 
+	public Optional<Device> getByClientId(@NonNull String clientId) {
+		if (deviceIndex.isLoaded())
+			return deviceIndex.getByClientId(clientId);
+		return deviceRepository.findFirstByStatusUpdateClientId(clientId);
+	}
+
 	public void setCompromised(@NonNull String id){
 		Optional<Device> device = getById(id);
         device.ifPresent(value -> value.setStatus(DeviceStatus.COMPROMISED));
@@ -56,7 +123,7 @@ public class DeviceManagementService {
 	}
 	
 	public boolean isIpAddressInUse(@NonNull String ipAddress) {
-		return deviceRepository.findByIpAddress(ipAddress).isPresent();
+		return getByIpAddress(ipAddress).isPresent();
 	}
 
 	public @NonNull Device save(@NonNull Device device) {
@@ -81,10 +148,15 @@ public class DeviceManagementService {
 		if (getByIpAddress(device.getIpAddress()).isPresent())
 			throw new DeviceException(
 					"A device with the same IP address already exists in repository: "+device.getIpAddress());
-		device.setCreationDate(Instant.now());
+		// lastUpdateDate is set too, so that the device index resync of other instances picks up new devices
+		Instant now = Instant.now();
+		device.setCreationDate(now);
+		device.setLastUpdateDate(now);
 		checkDevice(device, false);
 
 		deviceRepository.save(device);
+		deviceIndex.put(device);
+		eventPublisher.publishEvent(new DeviceChangeEvent(DeviceChangeEvent.TYPE.CREATED, device));
 		return device;
 	}
 
@@ -97,11 +169,152 @@ public class DeviceManagementService {
 
 		device.setLastUpdateDate(Instant.now());
 		deviceRepository.save(device);
+		deviceIndex.put(device);
+		eventPublisher.publishEvent(new DeviceChangeEvent(DeviceChangeEvent.TYPE.UPDATED, device));
 
 		return getById(device.getId()).orElseThrow(() ->
 				new DeviceException("Device update failed for Device Id: "+device.getId()));
 	}
 
+	// ------------------------------------------------------------------------
+	// Partial updates. Only the given fields are written ($set/$unset), instead of the whole device document
+
+	public record TelemetryUpdate(@NonNull String deviceId, DeviceStatusUpdate statusUpdate, DeviceMetrics metrics) {
+	}
+
+	/**
+	 * Stores the latest status update and/or metrics of a device, and marks it as healthy.
+	 * Uses the telemetry write concern (acknowledged by default). Unacknowledged writes are not known to be stored,
+	 * so they neither update the device index (it catches up on its next resync) nor publish telemetry events.
+	 */
+	public void updateTelemetry(@NonNull String id, DeviceStatusUpdate statusUpdate, DeviceMetrics metrics) {
+		updateTelemetry(List.of(new TelemetryUpdate(id, statusUpdate, metrics)));
+	}
+
+	/** Bulk version of updateTelemetry. All updates are sent in a single unordered bulk write */
+	public void updateTelemetry(@NonNull Collection<TelemetryUpdate> updates) {
+		if (updates.isEmpty()) return;
+		Instant now = Instant.now();
+		List<PartialUpdate> partialUpdates = updates.stream()
+				.map(u -> new PartialUpdate(toQuery(u.deviceId(), null), createTelemetryUpdate(u, now)))
+				.toList();
+		BulkWriteResult result = executeUpdates(partialUpdates, getWriteConcern(properties.getTelemetryWriteConcern()));
+		if (!result.wasAcknowledged()) {
+			log.trace("DeviceManagementService: updateTelemetry: Unacknowledged write of {} updates", updates.size());
+			return;
+		}
+		if (result.getMatchedCount() < updates.size()) {
+			// Some devices no longer exist. Bulk results do not tell which, so the indexed ones are re-read
+			log.debug("DeviceManagementService: updateTelemetry: Only {} of {} devices found", result.getMatchedCount(), updates.size());
+			updates.forEach(u -> deviceIndex.reload(u.deviceId()));
+		} else {
+			updates.forEach(u -> deviceIndex.update(u.deviceId(), device -> applyTelemetry(device, u, now)));
+		}
+		updates.forEach(u -> eventPublisher.publishEvent(new DeviceTelemetryEvent(u.deviceId(), u.statusUpdate(), u.metrics())));
+	}
+
+	private static Update createTelemetryUpdate(@NonNull TelemetryUpdate telemetry, @NonNull Instant now) {
+		Update update = new Update()
+				.set("status", DeviceStatus.HEALTHY)
+				.unset("suspectTimestamp")
+				.set("retries", 0)
+				.set("lastUpdateDate", now);
+		if (telemetry.statusUpdate() != null)
+			update.set("statusUpdate", telemetry.statusUpdate());
+		if (telemetry.metrics() != null)
+			update.set("metrics", telemetry.metrics());
+		return update;
+	}
+
+	private static Device applyTelemetry(@NonNull Device device, @NonNull TelemetryUpdate telemetry, @NonNull Instant now) {
+		device.setStatus(DeviceStatus.HEALTHY);
+		device.setSuspectTimestamp(null);
+		device.setRetries(0);
+		device.setLastUpdateDate(now);
+		if (telemetry.statusUpdate() != null)
+			device.setStatusUpdate(telemetry.statusUpdate());
+		if (telemetry.metrics() != null)
+			device.setMetrics(telemetry.metrics());
+		return device;
+	}
+
+	/**
+	 * Changes device status, only if its current status is the expected one ('from'). If 'from' is null
+	 * the status is changed unconditionally. Uses the lifecycle write concern (acknowledged by default).
+	 * Returns true if the device status was changed, or if the write was not acknowledged.
+	 */
+	public boolean transitionStatus(@NonNull String id, DeviceStatus from, @NonNull DeviceStatus to) {
+		return transitionStatus(id, from, to, Collections.emptyMap());
+	}
+
+	/**
+	 * Like transitionStatus(id, from, to), but also sets the given fields in the same update.
+	 * Fields with null values are removed.
+	 */
+	public boolean transitionStatus(@NonNull String id, DeviceStatus from, @NonNull DeviceStatus to, @NonNull Map<String,Object> otherFields) {
+		Instant now = Instant.now();
+		Update update = new Update()
+				.set("status", to)
+				.set("lastUpdateDate", now);
+		otherFields.forEach((field, value) -> {
+			if (value != null) update.set(field, value);
+			else update.unset(field);
+		});
+
+		BulkWriteResult result = executeUpdates(
+				List.of(new PartialUpdate(toQuery(id, from), update)),
+				getWriteConcern(properties.getLifecycleWriteConcern()));
+		boolean changed = !result.wasAcknowledged() || result.getMatchedCount() > 0;
+		if (changed) {
+			deviceIndex.update(id, device -> {
+				if (from != null && device.getStatus() != from) return device;
+				device.setStatus(to);
+				device.setLastUpdateDate(now);
+				return device;
+			});
+			if (!otherFields.isEmpty())
+				deviceIndex.reload(id);
+			eventPublisher.publishEvent(new DeviceChangeEvent(id, DeviceChangeEvent.TYPE.UPDATED, to, null));
+		}
+		log.debug("DeviceManagementService: transitionStatus: id={}, from={}, to={}, changed={}", id, from, to, changed);
+		return changed;
+	}
+
+	private record PartialUpdate(@NonNull Query query, @NonNull Update update) {
+	}
+
+	private static Query toQuery(@NonNull String id, DeviceStatus expectedStatus) {
+		Criteria criteria = Criteria.where("id").is(id);
+		if (expectedStatus != null)
+			criteria = criteria.and("status").is(expectedStatus);
+		return Query.query(criteria);
+	}
+
+	/** Sends the updates in a single unordered bulk write, with the given write concern */
+	private BulkWriteResult executeUpdates(@NonNull List<PartialUpdate> updates, @NonNull WriteConcern writeConcern) {
+		BulkOperations bulkOps = getTemplate(writeConcern).bulkOps(BulkOperations.BulkMode.UNORDERED, Device.class);
+		updates.forEach(u -> bulkOps.updateOne(u.query(), u.update()));
+		return bulkOps.execute();
+	}
+
+	/** Bulk operations use the write concern of their template. A template is kept per write concern */
+	private MongoTemplate getTemplate(@NonNull WriteConcern writeConcern) {
+		return templatesByWriteConcern.computeIfAbsent(writeConcern, wc -> {
+			MongoTemplate template = new MongoTemplate(mongoTemplate.getMongoDatabaseFactory(), mongoTemplate.getConverter());
+			template.setWriteConcern(wc);
+			return template;
+		});
+	}
+
+	private static WriteConcern getWriteConcern(String name) {
+		WriteConcern writeConcern = StringUtils.isNotBlank(name) ? WriteConcern.valueOf(name.trim()) : null;
+		if (writeConcern == null)
+			throw new DeviceException("Unknown write concern: " + name);
+		return writeConcern;
+	}
+
+	// ------------------------------------------------------------------------
+
 	public void checkDevice(@NonNull Device device, boolean dryRun) {
 		List<String> errors = new ArrayList<>();
 		if (!dryRun && StringUtils.isBlank(device.getId())) errors.add("Null or blank Id");
@@ -128,11 +341,15 @@ public class DeviceManagementService {
 			throw new DeviceException(
 					"Device with the Id does not exists in repository: "+id);
 		deviceRepository.delete(result.get());
+		deviceIndex.remove(id);
+		eventPublisher.publishEvent(new DeviceChangeEvent(DeviceChangeEvent.TYPE.DELETED, result.get()));
 		result.get().setLastUpdateDate(Instant.now());
 	}
 
 	public void delete(@NonNull Device device) {
 		deviceRepository.deleteById(device.getId());
+		deviceIndex.remove(device.getId());
+		eventPublisher.publishEvent(new DeviceChangeEvent(DeviceChangeEvent.TYPE.DELETED, device));
 		device.setLastUpdateDate(Instant.now());
 	}
 
@@ -202,6 +419,8 @@ public class DeviceManagementService {
 		result.get().setArchiveDate(Instant.now());
 		archivedDeviceRepository.save(deviceConversionService.toArchivedDevice(result.get()));
 		deviceRepository.delete(result.get());
+		deviceIndex.remove(id);
+		eventPublisher.publishEvent(new DeviceChangeEvent(DeviceChangeEvent.TYPE.DELETED, result.get()));
 		//XXX:TODO: Send notification to SAL to deregister Device
 	}
 
@@ -217,7 +436,10 @@ public class DeviceManagementService {
 		restoredDevice.setUsername(credentials.get("username"));
 		restoredDevice.setPassword(credentials.get("password").toCharArray());
 		restoredDevice.setPublicKey(credentials.get("publicKey").toCharArray());
+		restoredDevice.setLastUpdateDate(Instant.now());
 		deviceRepository.save(restoredDevice);
+		deviceIndex.put(restoredDevice);
+		eventPublisher.publishEvent(new DeviceChangeEvent(DeviceChangeEvent.TYPE.CREATED, restoredDevice));
 		archivedDeviceRepository.deleteById(result.get().getId());
 		//XXX:TODO: Send notification to SAL to re-register Device
 	}
@@ -4,33 +4,45 @@ package eu.nebulous.resource.discovery.monitor.service;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
 import eu.nebulous.resource.discovery.common.BrokerUtil;
+import eu.nebulous.resource.discovery.common.MessageDecoderRegistry;
+import eu.nebulous.resource.discovery.monitor.DeviceFailureDetector;
 import eu.nebulous.resource.discovery.monitor.model.Device;
 import eu.nebulous.resource.discovery.monitor.model.DeviceMetrics;
+import eu.nebulous.resource.discovery.monitor.model.DeviceMetricsMessage;
+import eu.nebulous.resource.discovery.monitor.model.DeviceMetricsReport;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.scheduling.TaskScheduler;
 import org.springframework.stereotype.Service;
 
-import java.io.Serializable;
 import java.time.Instant;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 @Slf4j
 @Service
-public class DeviceMetricsMonitorService extends AbstractMonitorService {
+public class DeviceMetricsMonitorService extends AbstractMonitorService<DeviceMetricsMessage> {
     private final DeviceManagementService deviceManagementService;
+    private final DeviceTelemetryBuffer telemetryBuffer;
+    private final DeviceFailureDetector failureDetector;
+    private final DeviceMetricsStore metricsStore;
 
     public DeviceMetricsMonitorService(ResourceDiscoveryProperties monitorProperties, TaskScheduler taskScheduler,
                                        ObjectMapper objectMapper, DeviceManagementService deviceManagementService,
-                                       BrokerUtil brokerUtil)
+                                       BrokerUtil brokerUtil, MessageDecoderRegistry messageDecoderRegistry,
+                                       DeviceTelemetryBuffer telemetryBuffer, DeviceFailureDetector failureDetector,
+                                       DeviceMetricsStore metricsStore)
     {
-        super("DeviceMetricsMonitorService", monitorProperties, taskScheduler, objectMapper, brokerUtil);
+        super("DeviceMetricsMonitorService",
+                messageDecoderRegistry.forType(DeviceMetricsMessage.class,
+                        m -> m.getMessage() != null ? m.getMessage().getIpAddress() : null, "message"),
+                monitorProperties, taskScheduler, objectMapper, brokerUtil);
         this.deviceManagementService = deviceManagementService;
+        this.telemetryBuffer = telemetryBuffer;
+        this.failureDetector = failureDetector;
+        this.metricsStore = metricsStore;
         log.trace("DeviceMetricsMonitorService.<INIT>: {}", monitorProperties);
     }
 
@@ -39,34 +51,25 @@ public class DeviceMetricsMonitorService extends AbstractMonitorService {
         return List.of(monitorProperties.getDeviceMetricsMonitorTopic());
     }
 
-    protected void processPayload(@NonNull Map<?,?> dataMap) {
-        Object obj = dataMap.get("message");
-        log.trace("DeviceMetricsMonitorService: dataMap={}, message={}, message-class={}", dataMap, obj, obj!=null ? obj.getClass() : null);
-        if (obj==null) {
-            log.debug("DeviceMetricsMonitorService: Message does not contain device metrics (message field is null): {}", dataMap);
+    protected void processPayload(@NonNull DeviceMetricsMessage metricsMessage) {
+        DeviceMetricsReport report = metricsMessage.getMessage();
+        log.trace("DeviceMetricsMonitorService: message={}", report);
+        if (report==null) {
+            log.debug("DeviceMetricsMonitorService: Message does not contain device metrics (message field is null): {}", metricsMessage);
             return;
         }
-        if (obj instanceof Map<?,?> infoMap) {
-            if (infoMap.isEmpty())
-                log.debug("DeviceMetricsMonitorService: Device metrics map (message field) is empty: {}", dataMap);
-            else
-                updateDeviceMetrics(infoMap);
-        } else {
-            log.debug("DeviceMetricsMonitorService: Message is not a device metrics (message field is not a map): {}", dataMap);
-        }
+        updateDeviceMetrics(report);
     }
 
-    private void updateDeviceMetrics(@NonNull Map<?, ?> infoMap) {
+    private void updateDeviceMetrics(@NonNull DeviceMetricsReport report) {
         try {
-            @NonNull Map<?,?> metricsMap = objectMapper.convertValue(infoMap, Map.class);
-
-            // Extract required data from metrics map
-            String clientId = stringValue(metricsMap.get("clientId"));
-            String ipAddress = stringValue(metricsMap.get("ipAddress"));
-            String timestampStr = stringValue(metricsMap.get("receivedAtServer"));
+            // Extract required data from metrics report
+            String clientId = stringValue(report.getClientId());
+            String ipAddress = stringValue(report.getIpAddress());
+            String timestampStr = stringValue(report.getReceivedAtServer());
             log.debug("DeviceMetricsMonitorService: client={}, ip={}, ts={}", clientId, ipAddress, timestampStr);
-            if (clientId.isEmpty() || ipAddress.isEmpty() || timestampStr.isEmpty()) {
-                log.warn("DeviceMetricsMonitorService: Device metrics received do not contain clientId or ipAddress or receivedAtServer. Ignoring them: {}", metricsMap);
+            if (StringUtils.isEmpty(clientId) || StringUtils.isEmpty(ipAddress) || StringUtils.isEmpty(timestampStr)) {
+                log.warn("DeviceMetricsMonitorService: Device metrics received do not contain clientId or ipAddress or receivedAtServer. Ignoring them: {}", report);
                 return;
             }
             Instant timestamp = StringUtils.isNotBlank(timestampStr)
@@ -76,59 +79,53 @@ public class DeviceMetricsMonitorService extends AbstractMonitorService {
             Optional<Device> result = deviceManagementService.getByIpAddress(ipAddress);
             log.debug("DeviceMetricsMonitorService: device-by-ip: {}", result);
             if (result.isEmpty()) {
-                log.debug("DeviceMetricsMonitorService: Device metrics IP address does not match any registered device: {}", infoMap);
+                log.debug("DeviceMetricsMonitorService: Device metrics IP address does not match any registered device: {}", report);
 
-                result = deviceManagementService.getAll().stream()
-                        .filter(d->d.getStatusUpdate()!=null)
-                        .filter(d->StringUtils.isNotBlank(d.getStatusUpdate().getClientId()))
-                        .filter(d->StringUtils.equalsIgnoreCase(d.getStatusUpdate().getClientId(), clientId))
-                        .findAny();
+                result = deviceManagementService.getByClientId(clientId);
                 log.debug("DeviceMetricsMonitorService: device-by-clientId: {}", result);
                 if (result.isEmpty())
                     return;
             }
             Device device = result.get();
 
-            // Check if the received device metrics are older than the cached
-            if (device.getMetrics()!=null && device.getMetrics().getTimestamp()!=null && timestamp!=null) {
-                if (device.getMetrics().getTimestamp().isAfter(timestamp)) {
+            // Check if the received device metrics are older than the cached (or the ones waiting to be written)
+            DeviceMetrics cachedMetrics = telemetryBuffer.getPendingMetrics(device.getId())
+                    .orElse(device.getMetrics());
+            if (cachedMetrics!=null && cachedMetrics.getTimestamp()!=null && timestamp!=null) {
+                if (cachedMetrics.getTimestamp().isAfter(timestamp)) {
                     log.warn("DeviceMetricsMonitorService: Device metrics received are older than the cached. Ignoring them: id={}, update-timestamp={}, registered-timestamp={}",
-                            device.getId(), timestamp, device.getMetrics().getTimestamp());
+                            device.getId(), timestamp, cachedMetrics.getTimestamp());
                     return;
                 }
             }
 
             // Prepare DeviceMetrics object
-            metricsMap.remove("clientId");
-            metricsMap.remove("ipAddress");
-            metricsMap.remove("receivedAtServer");
-            metricsMap.remove("_received_at_server_timestamp");
-            Object latestEventsObj = metricsMap.remove("latest-events");
-            List<Object> latestEvents = (latestEventsObj instanceof List list) ? list : Collections.emptyList();
-            Map<String, Object> metricsMapClean = metricsMap.entrySet().stream()
-                    .filter(e -> e.getKey()!=null)
-                    .filter(e -> e.getValue()!=null)
-                    .collect(Collectors.toMap(
-                            e -> e.getKey().toString(),
-                            e -> (Serializable) e.getValue()
-                    ));
+            List<Object> latestEvents = report.getLatestEvents()!=null ? report.getLatestEvents() : Collections.emptyList();
 
             DeviceMetrics metrics = new DeviceMetrics();
             metrics.setClientId(clientId);
             metrics.setIpAddress(ipAddress);
             metrics.setTimestamp(timestamp);
-            metrics.setMetrics(metricsMapClean);
+            metrics.setMetrics(report.getMetrics());
             metrics.setLatestEvents(latestEvents);
 
+            // Keep metrics history. Latest events go to the time-series collection, if enabled, instead of the device
+            metricsStore.record(device.getId(), metrics);
+            if (metricsStore.isPersistenceEnabled())
+                metrics.setLatestEvents(null);
+
             // Update device data
-            device.setMetrics(metrics);
-            setHealthyStatus(device);
-            deviceManagementService.update(device);
+            if (telemetryBuffer.isEnabled()) {
+                telemetryBuffer.bufferMetrics(device.getId(), metrics);
+            } else {
+                deviceManagementService.updateTelemetry(device.getId(), null, metrics);
+            }
+            failureDetector.heartbeat(device, timestamp, DeviceFailureDetector.SIGNAL.METRICS);
             log.debug("DeviceMetricsMonitorService: Device metrics updated for device: id={}, ip-address={}, update={}",
                     device.getId(), device.getIpAddress(), metrics);
             log.debug("DeviceMetricsMonitorService: Device statistics updated: {}", device);
         } catch (Exception e) {
-            log.warn("DeviceMetricsMonitorService: EXCEPTION while processing device metrics map: {}\n", infoMap, e);
+            log.warn("DeviceMetricsMonitorService: EXCEPTION while processing device metrics report: {}\n", report, e);
         }
     }
 
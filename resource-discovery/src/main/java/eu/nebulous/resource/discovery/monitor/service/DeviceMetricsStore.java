@@ -0,0 +1,541 @@
+package eu.nebulous.resource.discovery.monitor.service;
+
+import com.mongodb.WriteConcern;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.result.InsertManyResult;
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.common.MetricRingBuffer;
+import eu.nebulous.resource.discovery.monitor.model.DeviceChangeEvent;
+import eu.nebulous.resource.discovery.monitor.model.DeviceException;
+import eu.nebulous.resource.discovery.monitor.model.DeviceMetrics;
+import eu.nebulous.resource.discovery.monitor.model.DeviceMetricsSeries;
+import eu.nebulous.resource.discovery.monitor.model.DeviceStatus;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.Document;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.CollectionOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.timeseries.Granularity;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a bounded history of the numeric device metrics reported to DeviceMetricsMonitorService.
+ * Each device metric has three primitive ring buffers: raw samples, 1-minute averages and 1-hour averages.
+ * Metric names are interned to small integer ids, and the ring buffers of all devices are kept within the
+ * configured memory budget. Series that do not fit in it are rejected, which is logged and counted.
+ * The memory of a device is released when it is deleted, archived or offboarded.
+ * Optionally, samples (and latest events) are persisted to a Mongo time-series collection, which also serves
+ * queries for periods no longer held in memory.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class DeviceMetricsStore implements InitializingBean, DisposableBean {
+    private final static long MINUTE = Duration.ofMinutes(1).toMillis();
+    private final static long HOUR = Duration.ofHours(1).toMillis();
+    private final static String[] TIER_NAMES = { "RAW", "MINUTE", "HOUR" };
+    private final static String DATABASE_SOURCE = "DATABASE";
+
+    private final ResourceDiscoveryProperties properties;
+    private final MongoTemplate mongoTemplate;
+    private final TaskScheduler taskScheduler;
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, Integer> keyIds = new ConcurrentHashMap<>();
+    private final List<String> keyNames = new CopyOnWriteArrayList<>();
+    private final Map<String, DeviceSeries> devices = new ConcurrentHashMap<>();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicBoolean budgetExceeded = new AtomicBoolean();
+    private final AtomicLong rejectedSeries = new AtomicLong();
+    private final AtomicLong recordedSamples = new AtomicLong();
+    private final AtomicLong droppedSamples = new AtomicLong();
+
+    private final Queue<Document> pendingDocuments = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicLong persistedDocuments = new AtomicLong();
+    private final AtomicLong unacknowledgedDocuments = new AtomicLong();
+    private final AtomicLong droppedDocuments = new AtomicLong();
+    private ScheduledFuture<?> flusher;
+
+    @Override
+    public void afterPropertiesSet() {
+        FunctionCounter.builder("discovery.metrics.series.rejected", rejectedSeries, AtomicLong::get)
+                .description("Device metric series not kept in memory, because the memory budget was exhausted")
+                .register(meterRegistry);
+        Gauge.builder("discovery.metrics.memory.allocated", allocatedBytes, AtomicLong::get)
+                .description("Memory allocated to device metric series, in bytes")
+                .baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("discovery.metrics.devices", devices, Map::size)
+                .description("Devices with metric series in memory")
+                .register(meterRegistry);
+        Map.of("recorded", recordedSamples, "dropped", droppedSamples)
+                .forEach((result, count) -> FunctionCounter.builder("discovery.metrics.samples", count, AtomicLong::get)
+                        .tag("result", result)
+                        .description("Device metric samples, by result")
+                        .register(meterRegistry));
+        Map.of("persisted", persistedDocuments, "unacknowledged", unacknowledgedDocuments, "dropped", droppedDocuments)
+                .forEach((result, count) -> FunctionCounter.builder("discovery.metrics.documents", count, AtomicLong::get)
+                        .tag("result", result)
+                        .description("Device metric documents written to the database, by result")
+                        .register(meterRegistry));
+        Gauge.builder("discovery.metrics.documents.pending", pendingCount, AtomicInteger::get)
+                .description("Device metric documents waiting to be written to the database")
+                .register(meterRegistry);
+        if (isPersistenceEnabled()) {
+            taskScheduler.schedule(this::createCollection, Instant.now());
+            flusher = taskScheduler.scheduleWithFixedDelay(this::flush, Duration.ofMillis(properties.getMetricsFlushPeriod()));
+        }
+        log.info("DeviceMetricsStore: Device metrics store: in-memory={}, off-heap={}, memory-budget={}, persistence={}, collection={}",
+                isEnabled(), properties.isMetricsOffHeap(), properties.getMetricsMemoryBudget(),
+                isPersistenceEnabled(), properties.getMetricsCollection());
+    }
+
+    @Override
+    public void destroy() {
+        if (flusher != null) {
+            flusher.cancel(false);
+            flush();
+        }
+    }
+
+    public boolean isEnabled() {
+        return properties.isMetricsTimeSeriesEnabled();
+    }
+
+    public boolean isPersistenceEnabled() {
+        return properties.isMetricsPersistenceEnabled();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /** Records the numeric values of a metrics report. Non-numeric values are ignored */
+    public void record(@NonNull String deviceId, @NonNull DeviceMetrics metrics) {
+        if (metrics.getMetrics() == null || (!isEnabled() && !isPersistenceEnabled())) return;
+        long timestamp = (metrics.getTimestamp() != null ? metrics.getTimestamp() : Instant.now()).toEpochMilli();
+        Map<String, Double> values = numericValues(metrics.getMetrics());
+
+        if (isEnabled()) {
+            DeviceSeries deviceSeries = devices.computeIfAbsent(deviceId, id -> new DeviceSeries());
+            values.forEach((key, value) -> {
+                MetricSeries series = deviceSeries.getOrCreate(key);
+                if (series != null && series.add(timestamp, value))
+                    recordedSamples.incrementAndGet();
+                else
+                    droppedSamples.incrementAndGet();
+            });
+        }
+        if (isPersistenceEnabled())
+            enqueue(toDocument(deviceId, metrics, timestamp, values));
+    }
+
+    /** Archiving also publishes DELETED. Offboarded devices no longer report, and are only kept until archived */
+    @EventListener
+    public void onDeviceChange(@NonNull DeviceChangeEvent event) {
+        if (event.getType() == DeviceChangeEvent.TYPE.DELETED || event.getStatus() == DeviceStatus.OFFBOARDED)
+            remove(event.getDeviceId());
+    }
+
+    public void remove(@NonNull String deviceId) {
+        DeviceSeries deviceSeries = devices.remove(deviceId);
+        if (deviceSeries != null) {
+            allocatedBytes.addAndGet(-deviceSeries.close());
+            budgetExceeded.set(false);
+        }
+    }
+
+    private static Map<String, Double> numericValues(@NonNull Map<String, Object> metrics) {
+        Map<String, Double> values = new LinkedHashMap<>();
+        metrics.forEach((key, value) -> {
+            Double number = null;
+            if (value instanceof Number n) {
+                number = n.doubleValue();
+            } else if (value instanceof String s && StringUtils.isNotBlank(s)) {
+                try {
+                    number = Double.parseDouble(s.trim());
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            if (StringUtils.isNotBlank(key) && number != null && Double.isFinite(number))
+                values.put(key, number);
+        });
+        return values;
+    }
+
+    private int internKey(@NonNull String key) {
+        Integer id = keyIds.get(key);
+        if (id != null) return id;
+        synchronized (keyNames) {
+            id = keyIds.get(key);
+            if (id != null) return id;
+            if (keyNames.size() >= properties.getMetricsMaxKeys()) return -1;
+            keyNames.add(key);
+            keyIds.put(key, keyNames.size() - 1);
+            return keyNames.size() - 1;
+        }
+    }
+
+    private MetricSeries newSeries() {
+        int[] capacities = { properties.getMetricsRawCapacity(), properties.getMetricsMinuteCapacity(), properties.getMetricsHourCapacity() };
+        long size = Arrays.stream(capacities).mapToLong(MetricRingBuffer::sizeInBytes).sum();
+        long current;
+        do {
+            current = allocatedBytes.get();
+            if (current + size > properties.getMetricsMemoryBudget()) {
+                long rejected = rejectedSeries.incrementAndGet();
+                if (budgetExceeded.compareAndSet(false, true) || Long.bitCount(rejected) == 1)
+                    log.warn("DeviceMetricsStore: Memory budget exhausted. New device metrics will not be kept in memory: budget={}, series-size={}, rejected-series={}",
+                            properties.getMetricsMemoryBudget(), size, rejected);
+                return null;
+            }
+        } while (!allocatedBytes.compareAndSet(current, current + size));
+        return new MetricSeries(capacities, properties.isMetricsOffHeap());
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns the metrics of a device in [from, to). If step is positive, samples are averaged in step-long buckets
+     * aligned to 'from'. Each metric is served from the finest in-memory resolution that covers 'from'.
+     * If memory does not cover 'from' and persistence is enabled, the time-series collection is queried instead.
+     */
+    public DeviceMetricsSeries query(@NonNull String deviceId, @NonNull Instant from, @NonNull Instant to, Duration step, Collection<String> keys) {
+        if (!to.isAfter(from))
+            throw new DeviceException("Query end must be after its start: from=" + from + ", to=" + to);
+        long fromMillis = from.toEpochMilli();
+        long toMillis = to.toEpochMilli();
+        long stepMillis = step != null ? Math.max(0, step.toMillis()) : 0;
+
+        Map<String, MetricSeries> selected = new TreeMap<>();
+        DeviceSeries deviceSeries = devices.get(deviceId);
+        if (deviceSeries != null)
+            deviceSeries.snapshot().forEach((key, series) -> {
+                if (keys == null || keys.isEmpty() || keys.contains(key))
+                    selected.put(key, series);
+            });
+
+        Map<String, DeviceMetricsSeries.Series> results;
+        boolean coveredByMemory = !selected.isEmpty()
+                && selected.values().stream().allMatch(series -> series.getOldestTimestamp() <= fromMillis);
+        if (!coveredByMemory && isPersistenceEnabled()) {
+            results = queryDatabase(deviceId, fromMillis, toMillis, stepMillis, keys);
+        } else {
+            results = new TreeMap<>();
+            selected.forEach((key, series) -> {
+                DeviceMetricsSeries.Series result = series.query(fromMillis, toMillis, stepMillis);
+                if (result != null) results.put(key, result);
+            });
+        }
+
+        return DeviceMetricsSeries.builder()
+                .deviceId(deviceId)
+                .from(from)
+                .to(to)
+                .step(stepMillis)
+                .metrics(results)
+                .build();
+    }
+
+    private Map<String, DeviceMetricsSeries.Series> queryDatabase(String deviceId, long from, long to, long step, Collection<String> keys) {
+        long bucketSize = step > 0 ? step : MINUTE;
+        Document time = new Document("$toLong", "$timestamp");
+        Document bucket = new Document("$subtract", List.of(time,
+                new Document("$mod", List.of(new Document("$subtract", List.of(time, from)), bucketSize))));
+        List<Document> pipeline = new ArrayList<>();
+        pipeline.add(new Document("$match", new Document("deviceId", deviceId)
+                .append("timestamp", new Document("$gte", new Date(from)).append("$lt", new Date(to)))));
+        pipeline.add(new Document("$project", new Document("bucket", bucket)
+                .append("metric", new Document("$objectToArray", "$metrics"))));
+        pipeline.add(new Document("$unwind", "$metric"));
+        if (keys != null && !keys.isEmpty())
+            pipeline.add(new Document("$match", new Document("metric.k", new Document("$in", new ArrayList<>(keys)))));
+        pipeline.add(new Document("$group", new Document("_id", new Document("key", "$metric.k").append("bucket", "$bucket"))
+                .append("value", new Document("$avg", "$metric.v"))));
+        pipeline.add(new Document("$sort", new Document("_id.key", 1).append("_id.bucket", 1)));
+
+        Map<String, SeriesBuilder> builders = new TreeMap<>();
+        for (Document document : mongoTemplate.getCollection(properties.getMetricsCollection()).aggregate(pipeline).allowDiskUse(true)) {
+            Document id = document.get("_id", Document.class);
+            if (id.get("bucket") instanceof Number start && document.get("value") instanceof Number value)
+                builders.computeIfAbsent(id.getString("key"), key -> new SeriesBuilder(from, 0))
+                        .accept(start.longValue(), value.doubleValue());
+        }
+        Map<String, DeviceMetricsSeries.Series> results = new TreeMap<>();
+        builders.forEach((key, builder) -> results.put(key, builder.build(DATABASE_SOURCE, bucketSize)));
+        return results;
+    }
+
+    // ------------------------------------------------------------------------
+
+    private Document toDocument(String deviceId, DeviceMetrics metrics, long timestamp, Map<String, Double> values) {
+        Document document = new Document("timestamp", new Date(timestamp))
+                .append("deviceId", deviceId)
+                .append("clientId", metrics.getClientId())
+                .append("ipAddress", metrics.getIpAddress())
+                .append("metrics", new Document(values));
+        if (metrics.getLatestEvents() != null && !metrics.getLatestEvents().isEmpty())
+            document.append("events", mongoTemplate.getConverter().convertToMongoType(metrics.getLatestEvents()));
+        return document;
+    }
+
+    private void enqueue(Document document) {
+        if (pendingCount.incrementAndGet() > properties.getMetricsFlushQueueSize()) {
+            pendingCount.decrementAndGet();
+            droppedDocuments.incrementAndGet();
+            return;
+        }
+        pendingDocuments.add(document);
+    }
+
+    private synchronized void flush() {
+        List<Document> batch = new ArrayList<>();
+        Document document;
+        while ((document = pendingDocuments.poll()) != null) {
+            batch.add(document);
+            pendingCount.decrementAndGet();
+        }
+        if (batch.isEmpty()) return;
+        try {
+            InsertManyResult result = mongoTemplate.getCollection(properties.getMetricsCollection())
+                    .withWriteConcern(getWriteConcern())
+                    .insertMany(batch, new InsertManyOptions().ordered(false));
+            // Unacknowledged writes are not known to be persisted
+            (result.wasAcknowledged() ? persistedDocuments : unacknowledgedDocuments).addAndGet(batch.size());
+            log.trace("DeviceMetricsStore: Written {} metrics documents: acknowledged={}", batch.size(), result.wasAcknowledged());
+        } catch (Exception e) {
+            droppedDocuments.addAndGet(batch.size());
+            log.warn("DeviceMetricsStore: ERROR while persisting {} metrics documents: {}", batch.size(), e.getMessage());
+            log.debug("DeviceMetricsStore: EXCEPTION: ", e);
+        }
+    }
+
+    private WriteConcern getWriteConcern() {
+        String name = properties.getTelemetryWriteConcern();
+        WriteConcern writeConcern = StringUtils.isNotBlank(name) ? WriteConcern.valueOf(name.trim()) : null;
+        return writeConcern != null ? writeConcern : WriteConcern.ACKNOWLEDGED;
+    }
+
+    private void createCollection() {
+        String name = properties.getMetricsCollection();
+        try {
+            if (!mongoTemplate.collectionExists(name)) {
+                mongoTemplate.createCollection(name, CollectionOptions.timeSeries("timestamp", options -> options
+                        .metaField("deviceId")
+                        .granularity(Granularity.SECONDS)
+                        .expireAfter(Duration.ofDays(properties.getMetricsRetention()))));
+                log.info("DeviceMetricsStore: Created time-series collection: {}", name);
+            }
+        } catch (Exception e) {
+            log.warn("DeviceMetricsStore: ERROR while creating time-series collection {}: {}", name, e.getMessage());
+            log.debug("DeviceMetricsStore: EXCEPTION: ", e);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /** Metric series of a device, indexed by interned metric key id */
+    private class DeviceSeries {
+        private MetricSeries[] series = new MetricSeries[16];
+        private boolean closed;
+
+        private synchronized MetricSeries getOrCreate(String key) {
+            int id = internKey(key);
+            if (id < 0 || closed) return null;
+            if (id >= series.length)
+                series = Arrays.copyOf(series, Math.max(id + 1, series.length * 2));
+            if (series[id] == null)
+                series[id] = newSeries();
+            return series[id];
+        }
+
+        private synchronized Map<String, MetricSeries> snapshot() {
+            Map<String, MetricSeries> snapshot = new LinkedHashMap<>();
+            for (int id = 0; id < series.length; id++)
+                if (series[id] != null)
+                    snapshot.put(keyNames.get(id), series[id]);
+            return snapshot;
+        }
+
+        /** Returns the bytes released */
+        private synchronized long close() {
+            closed = true;
+            long size = Arrays.stream(series).filter(s -> s != null).mapToLong(MetricSeries::sizeInBytes).sum();
+            series = new MetricSeries[0];
+            return size;
+        }
+    }
+
+    /** Raw, 1-minute and 1-hour tiers of a device metric */
+    private static class MetricSeries {
+        private final Tier[] tiers;
+        private long lastTimestamp = Long.MIN_VALUE;
+
+        private MetricSeries(int[] capacities, boolean offHeap) {
+            this.tiers = new Tier[] {
+                    new Tier(0, new MetricRingBuffer(capacities[0], offHeap)),
+                    new Tier(MINUTE, new MetricRingBuffer(capacities[1], offHeap)),
+                    new Tier(HOUR, new MetricRingBuffer(capacities[2], offHeap)) };
+        }
+
+        private synchronized boolean add(long timestamp, double value) {
+            if (timestamp < lastTimestamp) return false;     // out of order
+            lastTimestamp = timestamp;
+            for (Tier tier : tiers)
+                tier.add(timestamp, value);
+            return true;
+        }
+
+        private synchronized long getOldestTimestamp() {
+            return Arrays.stream(tiers).mapToLong(Tier::getOldestTimestamp).min().orElse(Long.MAX_VALUE);
+        }
+
+        private synchronized DeviceMetricsSeries.Series query(long from, long to, long step) {
+            // Finest tier covering 'from', or a coarser covering one if the step is at least its resolution
+            int chosen = -1;
+            for (int i = 0; i < tiers.length; i++)
+                if (tiers[i].getOldestTimestamp() <= from && (chosen < 0 || tiers[i].resolution <= step))
+                    chosen = i;
+            // Otherwise, the tier with the longest history
+            if (chosen < 0)
+                for (int i = 0; i < tiers.length; i++)
+                    if (tiers[i].getOldestTimestamp() != Long.MAX_VALUE)
+                        chosen = i;
+            if (chosen < 0) return null;
+
+            Tier tier = tiers[chosen];
+            SeriesBuilder builder = new SeriesBuilder(from, step > tier.resolution ? step : 0);
+            tier.forEach(from, to, builder);
+            return builder.build(TIER_NAMES[chosen], tier.resolution);
+        }
+
+        private long sizeInBytes() {
+            return Arrays.stream(tiers).mapToLong(tier -> MetricRingBuffer.sizeInBytes(tier.buffer.capacity())).sum();
+        }
+    }
+
+    /** Ring buffer of one resolution. Samples are averaged in resolution-long buckets, before being added */
+    private static class Tier {
+        private final long resolution;
+        private final MetricRingBuffer buffer;
+        private long bucket = Long.MIN_VALUE;
+        private double sum;
+        private int count;
+
+        private Tier(long resolution, MetricRingBuffer buffer) {
+            this.resolution = resolution;
+            this.buffer = buffer;
+        }
+
+        private void add(long timestamp, double value) {
+            if (resolution <= 0) {
+                buffer.add(timestamp, value);
+                return;
+            }
+            long start = timestamp - Math.floorMod(timestamp, resolution);
+            if (start != bucket) {
+                if (count > 0) buffer.add(bucket, sum / count);
+                bucket = start;
+                sum = 0;
+                count = 0;
+            }
+            sum += value;
+            count++;
+        }
+
+        private long getOldestTimestamp() {
+            long oldest = buffer.getOldestTimestamp();
+            return oldest == Long.MAX_VALUE && count > 0 ? bucket : oldest;
+        }
+
+        private void forEach(long from, long to, MetricRingBuffer.SampleConsumer consumer) {
+            buffer.forEach(from, to, consumer);
+            if (count > 0 && bucket >= from && bucket < to)
+                consumer.accept(bucket, sum / count);       // current (incomplete) bucket
+        }
+    }
+
+    /** Collects query results in primitive arrays, averaging them in step-long buckets if step is positive */
+    private static class SeriesBuilder implements MetricRingBuffer.SampleConsumer {
+        private final long from;
+        private final long step;
+        private long[] timestamps = new long[64];
+        private double[] values = new double[64];
+        private int size;
+        private long bucket = Long.MIN_VALUE;
+        private double sum;
+        private int count;
+
+        private SeriesBuilder(long from, long step) {
+            this.from = from;
+            this.step = step;
+        }
+
+        @Override
+        public void accept(long timestamp, double value) {
+            if (step <= 0) {
+                append(timestamp, value);
+                return;
+            }
+            long start = from + Math.floorDiv(timestamp - from, step) * step;
+            if (start != bucket) {
+                closeBucket();
+                bucket = start;
+            }
+            sum += value;
+            count++;
+        }
+
+        private void closeBucket() {
+            if (count > 0) append(bucket, sum / count);
+            sum = 0;
+            count = 0;
+        }
+
+        private void append(long timestamp, double value) {
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            timestamps[size] = timestamp;
+            values[size] = value;
+            size++;
+        }
+
+        private DeviceMetricsSeries.Series build(String source, long resolution) {
+            closeBucket();
+            return DeviceMetricsSeries.Series.builder()
+                    .source(source)
+                    .resolution(step > 0 ? step : resolution)
+                    .timestamps(Arrays.copyOf(timestamps, size))
+                    .values(Arrays.copyOf(values, size))
+                    .build();
+        }
+    }
+}
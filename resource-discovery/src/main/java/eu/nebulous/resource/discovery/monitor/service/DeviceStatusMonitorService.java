@@ -4,7 +4,10 @@ package eu.nebulous.resource.discovery.monitor.service;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
 import eu.nebulous.resource.discovery.common.BrokerUtil;
+import eu.nebulous.resource.discovery.common.MessageDecoderRegistry;
+import eu.nebulous.resource.discovery.monitor.DeviceFailureDetector;
 import eu.nebulous.resource.discovery.monitor.model.Device;
+import eu.nebulous.resource.discovery.monitor.model.DeviceStatusMessage;
 import eu.nebulous.resource.discovery.monitor.model.DeviceStatusUpdate;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -13,20 +16,27 @@ import org.springframework.scheduling.TaskScheduler;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
 
 @Slf4j
 @Service
-public class DeviceStatusMonitorService extends AbstractMonitorService {
+public class DeviceStatusMonitorService extends AbstractMonitorService<DeviceStatusMessage> {
     private final DeviceManagementService deviceManagementService;
+    private final DeviceTelemetryBuffer telemetryBuffer;
+    private final DeviceFailureDetector failureDetector;
 
     public DeviceStatusMonitorService(ResourceDiscoveryProperties monitorProperties, TaskScheduler taskScheduler,
                                       ObjectMapper objectMapper, DeviceManagementService deviceManagementService,
-                                      BrokerUtil brokerUtil)
+                                      BrokerUtil brokerUtil, MessageDecoderRegistry messageDecoderRegistry,
+                                      DeviceTelemetryBuffer telemetryBuffer, DeviceFailureDetector failureDetector)
     {
-        super("DeviceStatusMonitorService", monitorProperties, taskScheduler, objectMapper, brokerUtil);
+        super("DeviceStatusMonitorService",
+                messageDecoderRegistry.forType(DeviceStatusMessage.class,
+                        m -> m.getMessage() != null ? m.getMessage().getIpAddress() : null, "message"),
+                monitorProperties, taskScheduler, objectMapper, brokerUtil);
         this.deviceManagementService = deviceManagementService;
+        this.telemetryBuffer = telemetryBuffer;
+        this.failureDetector = failureDetector;
     }
 
     @Override
@@ -34,31 +44,26 @@ public class DeviceStatusMonitorService extends AbstractMonitorService {
         return List.of(monitorProperties.getDeviceStatusMonitorTopic());
     }
 
-    protected void processPayload(@NonNull Map<?,?> dataMap) {
-        Object obj = dataMap.get("message");
-        if (obj==null) {
-            log.debug("DeviceStatusMonitorService: Message does not contain device status info (message field is null): {}", dataMap);
+    protected void processPayload(@NonNull DeviceStatusMessage statusMessage) {
+        DeviceStatusUpdate deviceStatusUpdate = statusMessage.getMessage();
+        if (deviceStatusUpdate==null) {
+            log.debug("DeviceStatusMonitorService: Message does not contain device status info (message field is null): {}", statusMessage);
             return;
         }
-        if (obj instanceof Map<?,?> infoMap) {
-            if (infoMap.isEmpty())
-                log.debug("DeviceStatusMonitorService: Device status map (message field) is empty: {}", dataMap);
-            else
-                updateDeviceInfo(infoMap);
-        } else {
-            log.debug("DeviceStatusMonitorService: Message is not a device status update (message field is not a map): {}", dataMap);
-        }
+        updateDeviceInfo(deviceStatusUpdate);
     }
 
-    private void updateDeviceInfo(@NonNull Map<?, ?> infoMap) {
+    private void updateDeviceInfo(@NonNull DeviceStatusUpdate deviceStatusUpdate) {
         try {
-            @NonNull DeviceStatusUpdate deviceStatusUpdate = objectMapper.convertValue(infoMap, DeviceStatusUpdate.class);
-
             // Get registered device using IP address
             String ipAddress = deviceStatusUpdate.getIpAddress();
+            if (StringUtils.isBlank(ipAddress)) {
+                log.debug("DeviceStatusMonitorService: Device status update does not contain IP address: {}", deviceStatusUpdate);
+                return;
+            }
             Optional<Device> result = deviceManagementService.getByIpAddress(ipAddress);
             if (result.isEmpty()) {
-                log.debug("DeviceStatusMonitorService: Device status update IP address does not match any registered device: {}", infoMap);
+                log.debug("DeviceStatusMonitorService: Device status update IP address does not match any registered device: {}", deviceStatusUpdate);
                 return;
             }
             Device device = result.get();
@@ -77,23 +82,28 @@ public class DeviceStatusMonitorService extends AbstractMonitorService {
                 return;
             }
 
-            // Check if the received device status update is older than the cached one
-            if (device.getStatusUpdate()!=null && device.getStatusUpdate().getStateLastUpdate()!=null) {
-                if (device.getStatusUpdate().getStateLastUpdate().isAfter(deviceStatusUpdate.getStateLastUpdate())) {
+            // Check if the received device status update is older than the cached one (or the one waiting to be written)
+            DeviceStatusUpdate cachedStatusUpdate = telemetryBuffer.getPendingStatusUpdate(device.getId())
+                    .orElse(device.getStatusUpdate());
+            if (cachedStatusUpdate!=null && cachedStatusUpdate.getStateLastUpdate()!=null) {
+                if (cachedStatusUpdate.getStateLastUpdate().isAfter(deviceStatusUpdate.getStateLastUpdate())) {
                     log.warn("DeviceStatusMonitorService: Device status update received is older than the cached one. Ignoring it: id={}, update-timestamp={}, registered-timestamp={}",
-                            device.getId(), deviceStatusUpdate.getStateLastUpdate(), device.getStatusUpdate().getStateLastUpdate());
+                            device.getId(), deviceStatusUpdate.getStateLastUpdate(), cachedStatusUpdate.getStateLastUpdate());
                     return;
                 }
             }
 
             // Update device data
-            device.setStatusUpdate(deviceStatusUpdate);
-            setHealthyStatus(device);
-            deviceManagementService.update(device);
+            if (telemetryBuffer.isEnabled()) {
+                telemetryBuffer.bufferStatusUpdate(device.getId(), deviceStatusUpdate);
+            } else {
+                deviceManagementService.updateTelemetry(device.getId(), deviceStatusUpdate, null);
+            }
+            failureDetector.heartbeat(device, deviceStatusUpdate.getStateLastUpdate(), DeviceFailureDetector.SIGNAL.STATUS);
             log.debug("DeviceStatusMonitorService: Device status updated for device: id={}, ip-address={}, update={}",
                     device.getId(), device.getIpAddress(), deviceStatusUpdate);
         } catch (Exception e) {
-            log.warn("DeviceStatusMonitorService: EXCEPTION while converting device status update info map to DeviceStatus object: {}\n", infoMap, e);
+            log.warn("DeviceStatusMonitorService: EXCEPTION while processing device status update: {}\n", deviceStatusUpdate, e);
         }
     }
 }
@@ -0,0 +1,148 @@
+package eu.nebulous.resource.discovery.monitor.service;
+
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.monitor.model.DeviceMetrics;
+import eu.nebulous.resource.discovery.monitor.model.DeviceStatusUpdate;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind stage for device telemetry. Keeps only the latest status update and metrics
+ * of each device, and periodically writes them to the database with a single bulk operation.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class DeviceTelemetryBuffer implements InitializingBean, DisposableBean {
+    private final ResourceDiscoveryProperties properties;
+    private final DeviceManagementService deviceManagementService;
+    private final TaskScheduler taskScheduler;
+    private final Map<String, PendingTelemetry> pending = new ConcurrentHashMap<>();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final AtomicBoolean earlyFlushScheduled = new AtomicBoolean();
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!properties.isTelemetryWriteBehindEnabled()) {
+            log.info("DeviceTelemetryBuffer: Telemetry write-behind is disabled");
+            return;
+        }
+        taskScheduler.scheduleWithFixedDelay(this::flush,
+                Instant.now().plusMillis(properties.getTelemetryFlushPeriod()),
+                Duration.ofMillis(properties.getTelemetryFlushPeriod()));
+        log.info("DeviceTelemetryBuffer: Telemetry write-behind is enabled: flush-period={}ms, flush-threshold={}",
+                properties.getTelemetryFlushPeriod(), properties.getTelemetryFlushThreshold());
+    }
+
+    @Override
+    public void destroy() {
+        flush();
+    }
+
+    public boolean isEnabled() {
+        return properties.isTelemetryWriteBehindEnabled();
+    }
+
+    public void bufferStatusUpdate(@NonNull String deviceId, @NonNull DeviceStatusUpdate statusUpdate) {
+        pending.merge(deviceId, new PendingTelemetry(statusUpdate, null), PendingTelemetry::merge);
+        checkThreshold();
+    }
+
+    public void bufferMetrics(@NonNull String deviceId, @NonNull DeviceMetrics metrics) {
+        pending.merge(deviceId, new PendingTelemetry(null, metrics), PendingTelemetry::merge);
+        checkThreshold();
+    }
+
+    /** Status update waiting to be written, if any. It is newer than the one stored in the database */
+    public Optional<DeviceStatusUpdate> getPendingStatusUpdate(@NonNull String deviceId) {
+        PendingTelemetry telemetry = pending.get(deviceId);
+        return Optional.ofNullable(telemetry != null ? telemetry.statusUpdate() : null);
+    }
+
+    /** Metrics waiting to be written, if any. They are newer than the ones stored in the database */
+    public Optional<DeviceMetrics> getPendingMetrics(@NonNull String deviceId) {
+        PendingTelemetry telemetry = pending.get(deviceId);
+        return Optional.ofNullable(telemetry != null ? telemetry.metrics() : null);
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private void checkThreshold() {
+        if (pending.size() >= properties.getTelemetryFlushThreshold() && earlyFlushScheduled.compareAndSet(false, true)) {
+            taskScheduler.schedule(() -> {
+                earlyFlushScheduled.set(false);
+                flush();
+            }, Instant.now());
+        }
+    }
+
+    public void flush() {
+        if (!flushLock.tryLock()) return;   // a flush is already in progress
+        try {
+            if (pending.isEmpty()) return;
+
+            // Entries stay pending until written, so readers never fall back to the older stored values meanwhile.
+            // Updates arriving during the write replace an entry, and are written in the next flush
+            List<Map.Entry<String, PendingTelemetry>> batch = pending.entrySet().stream()
+                    .map(e -> Map.entry(e.getKey(), e.getValue()))
+                    .toList();
+            if (batch.isEmpty()) return;
+
+            long startTm = System.currentTimeMillis();
+            try {
+                deviceManagementService.updateTelemetry(batch.stream()
+                        .map(e -> new DeviceManagementService.TelemetryUpdate(
+                                e.getKey(), e.getValue().statusUpdate(), e.getValue().metrics()))
+                        .toList());
+            } catch (Exception e) {
+                log.warn("DeviceTelemetryBuffer: ERROR while flushing telemetry of {} devices. Will retry in next flush: {}",
+                        batch.size(), e.getMessage());
+                log.debug("DeviceTelemetryBuffer: EXCEPTION: ", e);
+                return;
+            }
+            // Remove the written entries, unless newer updates have replaced them meanwhile
+            batch.forEach(entry -> pending.remove(entry.getKey(), entry.getValue()));
+            log.debug("DeviceTelemetryBuffer: Flushed telemetry of {} devices in {}ms",
+                    batch.size(), System.currentTimeMillis() - startTm);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private record PendingTelemetry(DeviceStatusUpdate statusUpdate, DeviceMetrics metrics) {
+        /** Keeps the newest status update and metrics of the two */
+        private PendingTelemetry merge(@NonNull PendingTelemetry other) {
+            return new PendingTelemetry(
+                    newer(statusUpdate, other.statusUpdate,
+                            statusUpdate != null ? statusUpdate.getStateLastUpdate() : null,
+                            other.statusUpdate != null ? other.statusUpdate.getStateLastUpdate() : null),
+                    newer(metrics, other.metrics,
+                            metrics != null ? metrics.getTimestamp() : null,
+                            other.metrics != null ? other.metrics.getTimestamp() : null));
+        }
+
+        private static <T> T newer(T current, T other, Instant currentTimestamp, Instant otherTimestamp) {
+            if (other == null) return current;
+            if (current == null) return other;
+            if (currentTimestamp != null && otherTimestamp != null && currentTimestamp.isAfter(otherTimestamp))
+                return current;
+            return other;
+        }
+    }
+}
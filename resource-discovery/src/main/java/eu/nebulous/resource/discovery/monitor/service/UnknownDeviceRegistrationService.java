@@ -4,6 +4,7 @@ package eu.nebulous.resource.discovery.monitor.service;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
 import eu.nebulous.resource.discovery.common.BrokerUtil;
+import eu.nebulous.resource.discovery.common.MessageDecoderRegistry;
 import eu.nebulous.resource.discovery.common.REQUEST_TYPE;
 import eu.nebulous.resource.discovery.monitor.model.Device;
 import eu.nebulous.resource.discovery.monitor.model.DeviceStatus;
@@ -22,7 +23,7 @@ import java.util.*;
 
 @Slf4j
 //@Service
-public class UnknownDeviceRegistrationService extends AbstractMonitorService {
+public class UnknownDeviceRegistrationService extends AbstractMonitorService<Map<String, Object>> {
     private final static List<String> MONITORED_REQUEST_TYPES = List.of(
             REQUEST_TYPE.INFO.name(),
             REQUEST_TYPE.INSTALL.name(),
@@ -37,9 +38,10 @@ public class UnknownDeviceRegistrationService extends AbstractMonitorService {
     public UnknownDeviceRegistrationService(ResourceDiscoveryProperties monitorProperties, TaskScheduler taskScheduler,
                                             ObjectMapper objectMapper, DeviceManagementService deviceManagementService,
                                             RegistrationRequestService registrationRequestService, BrokerUtil brokerUtil,
-                                            Optional<SALRegistrationService> salRegistrationService)
+                                            Optional<SALRegistrationService> salRegistrationService,
+                                            MessageDecoderRegistry messageDecoderRegistry)
     {
-        super("UnknownDeviceRegistrationService", monitorProperties, taskScheduler, objectMapper, brokerUtil);
+        super("UnknownDeviceRegistrationService", messageDecoderRegistry.forMap(), monitorProperties, taskScheduler, objectMapper, brokerUtil);
         this.registrationRequestService = registrationRequestService;
         this.deviceManagementService = deviceManagementService;
         this.salRegistrationService = salRegistrationService;
@@ -63,7 +65,8 @@ public class UnknownDeviceRegistrationService extends AbstractMonitorService {
                 monitorProperties.getDeviceMetricsMonitorTopic());
     }
 
-    protected void processPayload(@NonNull Map<?, ?> dataMap) {
+    protected void processPayload(@NonNull Map<String, Object> message) {
+        Map<?, ?> dataMap = message;
         log.trace("UnknownDeviceRegistrationService: BEGIN: {}", dataMap);
 
         // Extract 'message' field if present
@@ -7,14 +7,19 @@ import eu.nebulous.resource.discovery.common.REQUEST_TYPE;
 import eu.nebulous.resource.discovery.monitor.model.Device;
 import eu.nebulous.resource.discovery.monitor.service.DeviceManagementService;
 import eu.nebulous.resource.discovery.registration.model.RegistrationRequest;
+import eu.nebulous.resource.discovery.registration.model.RegistrationRequestChangeEvent;
 import eu.nebulous.resource.discovery.registration.model.RegistrationRequestStatus;
 import eu.nebulous.resource.discovery.registration.service.RegistrationRequestService;
 import eu.nebulous.resource.discovery.registration.service.SALRegistrationService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.TaskScheduler;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.annotation.EnableAsync;
@@ -25,12 +30,19 @@ import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 @Slf4j
@@ -38,7 +50,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 @EnableAsync
 @EnableScheduling
 @RequiredArgsConstructor
-public class RegistrationRequestProcessor implements IRegistrationRequestProcessor, InitializingBean, BrokerUtil.Listener {
+public class RegistrationRequestProcessor implements IRegistrationRequestProcessor, InitializingBean, DisposableBean, BrokerUtil.Listener {
 	private final static List<RegistrationRequestStatus> STATUSES_TO_ARCHIVE = List.of(
 			RegistrationRequestStatus.PRE_AUTHORIZATION_REJECT,
 			RegistrationRequestStatus.PRE_AUTHORIZATION_ERROR,
@@ -48,6 +60,10 @@ public class RegistrationRequestProcessor implements IRegistrationRequestProcess
 			RegistrationRequestStatus.ONBOARDING_ERROR,
 			RegistrationRequestStatus.SUCCESS
 	);
+	private final static List<RegistrationRequestStatus> STATUSES_TO_PROCESS = List.of(
+			RegistrationRequestStatus.NEW_REQUEST,
+			RegistrationRequestStatus.PENDING_ONBOARDING
+	);
 
 	private final ResourceDiscoveryProperties processorProperties;
 	private final RegistrationRequestService registrationRequestService;
@@ -56,13 +72,35 @@ public class RegistrationRequestProcessor implements IRegistrationRequestProcess
 	private final TaskScheduler taskScheduler;
 	private final ObjectMapper objectMapper;
 	private final BrokerUtil brokerUtil;
+	private final MeterRegistry meterRegistry;
 	private final AtomicBoolean isRunning = new AtomicBoolean(false);
+	private final LinkedBlockingQueue<String> workQueue = new LinkedBlockingQueue<>();
+	private final Set<String> queuedRequestIds = ConcurrentHashMap.newKeySet();
+	private final Set<String> changedWhileQueued = ConcurrentHashMap.newKeySet();
+	private final List<Thread> workerThreads = new ArrayList<>();
+	private ExecutorService batchExecutor;
+	// Send failures are reported on broker client threads. Their handling (database I/O) is moved off them
+	private final ExecutorService sendFailureExecutor =
+			Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("registration-send-failure-", 0).factory());
 
 	@Override
 	public void afterPropertiesSet() {
 		// Initialize request processing results listener
 		taskScheduler.schedule(this::initializeResultsListener, Instant.now().plusSeconds(processorProperties.getSubscriptionStartupDelay()));
 
+		// Initialize request processing as soon as requests reach NEW_REQUEST or PENDING_ONBOARDING status
+		if (processorProperties.isEventDrivenProcessing()) {
+			int workers = Math.max(1, processorProperties.getRegistrationWorkers());
+			for (int i = 0; i < workers; i++)
+				workerThreads.add(Thread.ofPlatform().name("registration-worker-" + i).daemon().start(this::processWorkQueue));
+			log.info("RegistrationRequestProcessor: Started event-driven registration request processing: workers={}, batch-size={}",
+					workers, processorProperties.getRegistrationBatchSize());
+		} else {
+			// Batches found by periodic processing are dispatched in parallel
+			batchExecutor = Executors.newFixedThreadPool(Math.max(1, processorProperties.getRegistrationWorkers()),
+					Thread.ofPlatform().name("registration-batch-", 0).daemon().factory());
+		}
+
 		// Initialize periodic request processing
 		if (processorProperties.isEnablePeriodicProcessing()) {
 			Instant firstRun;
@@ -76,6 +114,14 @@ public class RegistrationRequestProcessor implements IRegistrationRequestProcess
 		}
 	}
 
+	@Override
+	public void destroy() {
+		workerThreads.forEach(Thread::interrupt);
+		if (batchExecutor != null)
+			batchExecutor.shutdownNow();
+		sendFailureExecutor.shutdownNow();
+	}
+
 	@Async
 	public Future<String> processRequests() {
 		try {
@@ -87,13 +133,15 @@ public class RegistrationRequestProcessor implements IRegistrationRequestProcess
 			log.debug("processRequests: Processing registration requests");
 
 			// Process requests
+			Timer.Sample sample = Timer.start(meterRegistry);
 			try {
-				processNewRequests();
-				processOnboardingRequests();
+				processPendingRequests();
 				if (processorProperties.isAutomaticArchivingEnabled())
 					archiveRequests();
 			} catch (Throwable t) {
 				log.error("processRequests: ERROR processing requests: ", t);
+			} finally {
+				sample.stop(meterRegistry.timer("discovery.registration.cycle"));
 			}
 
 			log.debug("processRequests: Processing completed");
@@ -108,67 +156,191 @@ public class RegistrationRequestProcessor implements IRegistrationRequestProcess
 		}
 	}
 
-	private void processNewRequests() {
-		log.trace("processNewRequests: BEGIN");
-		List<RegistrationRequest> newRequests = registrationRequestService.getAll().stream()
-				.filter(r -> r.getStatus() == RegistrationRequestStatus.NEW_REQUEST).toList();
+	private void processPendingRequests() {
+		log.trace("processPendingRequests: BEGIN");
+		List<RegistrationRequest> requests = registrationRequestService.getByStatus(STATUSES_TO_PROCESS);
 
-		log.debug("processNewRequests: Found {} new requests: {}",
-				newRequests.size(), newRequests.stream().map(RegistrationRequest::getId).toList());
+		log.debug("processPendingRequests: Found {} new or onboarding requests: {}",
+				requests.size(), requests.stream().map(RegistrationRequest::getId).toList());
 
-		for (RegistrationRequest registrationRequest : newRequests) {
+		// Queued requests are processed by the worker threads, or right away if event-driven processing is disabled
+		if (processorProperties.isEventDrivenProcessing()) {
+			requests.forEach(r -> enqueueRequest(r.getId()));
+		} else {
+			int batchSize = Math.max(1, processorProperties.getRegistrationBatchSize());
+			List<Future<?>> batches = new ArrayList<>();
+			for (int i = 0; i < requests.size(); i += batchSize) {
+				List<RegistrationRequest> batch = requests.subList(i, Math.min(i + batchSize, requests.size()));
+				batches.add(batchExecutor.submit(() -> processBatch(batch)));
+			}
+			awaitBatches(batches);
+		}
+
+		log.trace("processPendingRequests: END");
+	}
+
+	private static void awaitBatches(@NonNull List<Future<?>> batches) {
+		for (Future<?> batch : batches) {
 			try {
-				log.debug("processNewRequests: Requesting collection of device data for request with Id: {}", registrationRequest.getId());
-				Map<String, String> dataCollectionRequest = prepareRequestPayload(REQUEST_TYPE.DIAGNOSTICS, registrationRequest);
-				brokerUtil.sendMessage(processorProperties.getDataCollectionRequestTopic(), dataCollectionRequest);
-				registrationRequest.setStatus(RegistrationRequestStatus.DATA_COLLECTION_REQUESTED);
-
-				log.debug("processNewRequests: Save updated request: id={}, request={}", registrationRequest.getId(), registrationRequest);
-				registrationRequestService.update(registrationRequest, null);
-				log.debug("processNewRequests: Data collection request sent for request with Id: {}", registrationRequest.getId());
-			} catch (Exception e) {
-				log.warn("processNewRequests: EXCEPTION while sending data collection request for request with Id: {}\n", registrationRequest.getId(), e);
-				registrationRequest.setStatus(RegistrationRequestStatus.DATA_COLLECTION_ERROR);
-				registrationRequestService.update(registrationRequest, null);
+				batch.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				log.warn("processPendingRequests: EXCEPTION while processing batch: ", e.getCause());
 			}
 		}
+	}
 
-		log.trace("processNewRequests: END");
+	@EventListener
+	public void onRegistrationRequestChange(@NonNull RegistrationRequestChangeEvent event) {
+		if (processorProperties.isEventDrivenProcessing()
+				&& event.getType() != RegistrationRequestChangeEvent.TYPE.DELETED
+				&& STATUSES_TO_PROCESS.contains(event.getStatus()))
+		{
+			enqueueRequest(event.getRequestId());
+		}
 	}
 
-	private void processOnboardingRequests() {
-		log.trace("processOnboardingRequests: BEGIN");
-		List<RegistrationRequest> onboardingRequests = registrationRequestService.getAll().stream()
-				.filter(r -> r.getStatus() == RegistrationRequestStatus.PENDING_ONBOARDING).toList();
+	private void enqueueRequest(@NonNull String requestId) {
+		// Ids stay in 'queuedRequestIds' until processed, so a request is never handled by two workers at once.
+		// Changes of requests already queued or in progress are processed again afterwards
+		if (queuedRequestIds.add(requestId))
+			workQueue.add(requestId);
+		else
+			changedWhileQueued.add(requestId);
+	}
 
-		log.debug("processOnboardingRequests: Found {} onboarding requests: {}",
-				onboardingRequests.size(), onboardingRequests.stream().map(RegistrationRequest::getId).toList());
+	private void processWorkQueue() {
+		int batchSize = Math.max(1, processorProperties.getRegistrationBatchSize());
+		List<String> batch = new ArrayList<>(batchSize);
+		while (true) {
+			try {
+				batch.add(workQueue.take());
+			} catch (InterruptedException e) {
+				log.warn("processWorkQueue: Interrupted. Exiting");
+				Thread.currentThread().interrupt();
+				return;
+			}
+			workQueue.drainTo(batch, batchSize - 1);
 
-		for (RegistrationRequest registrationRequest : onboardingRequests) {
+			// Requests are read again, since they might have been processed after queuing
 			try {
-				log.debug("processOnboardingRequests: Checking device data before requesting onboarding, for request with Id: {}", registrationRequest.getId());
-				Device deviceForMonitoring = objectMapper.convertValue(registrationRequest.getDevice(), Device.class);
-				deviceForMonitoring.setPassword(registrationRequest.getDevice().getPassword());		// ignored by 'objectMapper', so we've to copy them
-				deviceForMonitoring.setPublicKey(registrationRequest.getDevice().getPublicKey());	// ignored by 'objectMapper', so we've to copy them
-				deviceManagementService.checkDevice(deviceForMonitoring, true);
-
-				log.debug("processOnboardingRequests: Requesting device onboarding for request with Id: {}", registrationRequest.getId());
-				Map<String, String> deviceOnboardingRequest = prepareRequestPayload(REQUEST_TYPE.INSTALL, registrationRequest);
-				brokerUtil.sendMessage(processorProperties.getDataCollectionRequestTopic(), deviceOnboardingRequest);
-				registrationRequest.setStatus(RegistrationRequestStatus.ONBOARDING_REQUESTED);
-
-				log.debug("processOnboardingRequests: Save updated request: id={}, request={}", registrationRequest.getId(), registrationRequest);
-				registrationRequestService.update(registrationRequest, false, null);
-				log.debug("processOnboardingRequests: Onboarding request sent for request with Id: {}", registrationRequest.getId());
+				processBatch(registrationRequestService.getByIds(batch));
 			} catch (Exception e) {
-				log.warn("processOnboardingRequests: EXCEPTION while sending onboarding request for request with Id: {}\n", registrationRequest.getId(), e);
-				registrationRequest.setStatus(RegistrationRequestStatus.ONBOARDING_ERROR);
-				registrationRequest.getMessages().add("EXCEPTION "+e.getMessage());
-				registrationRequestService.update(registrationRequest, false, null);
+				log.warn("processWorkQueue: EXCEPTION while processing requests: {}\n", batch, e);
+			} finally {
+				batch.forEach(queuedRequestIds::remove);
+				batch.stream().filter(changedWhileQueued::remove).forEach(this::enqueueRequest);
+				batch.clear();
 			}
 		}
+	}
+
+	private void processBatch(@NonNull List<RegistrationRequest> requests) {
+		Timer.Sample sample = Timer.start(meterRegistry);
+		try {
+			dispatchBatch(requests);
+		} finally {
+			sample.stop(meterRegistry.timer("discovery.registration.batch"));
+		}
+	}
+
+	private void dispatchBatch(@NonNull List<RegistrationRequest> requests) {
+		// Prepare requests. A failure only affects the request that caused it
+		List<Dispatch> dispatches = new ArrayList<>(requests.size());
+		for (RegistrationRequest registrationRequest : requests) {
+			Dispatch dispatch = switch (registrationRequest.getStatus()) {
+				case NEW_REQUEST -> prepareNewRequest(registrationRequest);
+				case PENDING_ONBOARDING -> prepareOnboardingRequest(registrationRequest);
+				default -> null;
+			};
+			if (dispatch != null)
+				dispatches.add(dispatch);
+		}
+		if (dispatches.isEmpty()) return;
+
+		// Update the status of all requests with one bulk write, before sending anything,
+		// so that a fast EMS response finds its request already in the *_REQUESTED status
+		Set<String> changed = registrationRequestService.transitionStatus(dispatches.stream().map(Dispatch::transition).toList());
+		log.debug("processBatch: Updated status of {} of {} requests", changed.size(), dispatches.size());
+
+		// Send only the requests moved by this update. The rest were changed meanwhile (e.g. by another worker)
+		for (Dispatch dispatch : dispatches) {
+			String requestId = dispatch.transition().requestId();
+			if (!changed.contains(requestId)) continue;
+			meterRegistry.counter("discovery.registration.requests.processed",
+					"status", dispatch.transition().to().name()).increment();
+			if (dispatch.payload() != null)
+				send(dispatch);
+		}
+	}
+
+	private Dispatch prepareNewRequest(@NonNull RegistrationRequest registrationRequest) {
+		try {
+			log.debug("processNewRequests: Requesting collection of device data for request with Id: {}", registrationRequest.getId());
+			Map<String, String> dataCollectionRequest = prepareRequestPayload(REQUEST_TYPE.DIAGNOSTICS, registrationRequest);
+			return new Dispatch(new RegistrationRequestService.StatusTransition(registrationRequest.getId(),
+					RegistrationRequestStatus.NEW_REQUEST, RegistrationRequestStatus.DATA_COLLECTION_REQUESTED, null),
+					dataCollectionRequest, RegistrationRequestStatus.DATA_COLLECTION_ERROR);
+		} catch (Exception e) {
+			log.warn("processNewRequests: EXCEPTION while preparing data collection request for request with Id: {}\n", registrationRequest.getId(), e);
+			return new Dispatch(new RegistrationRequestService.StatusTransition(registrationRequest.getId(),
+					RegistrationRequestStatus.NEW_REQUEST, RegistrationRequestStatus.DATA_COLLECTION_ERROR, null),
+					null, null);
+		}
+	}
+
+	private Dispatch prepareOnboardingRequest(@NonNull RegistrationRequest registrationRequest) {
+		try {
+			log.debug("processOnboardingRequests: Checking device data before requesting onboarding, for request with Id: {}", registrationRequest.getId());
+			Device deviceForMonitoring = objectMapper.convertValue(registrationRequest.getDevice(), Device.class);
+			deviceForMonitoring.setPassword(registrationRequest.getDevice().getPassword());		// ignored by 'objectMapper', so we've to copy them
+			deviceForMonitoring.setPublicKey(registrationRequest.getDevice().getPublicKey());	// ignored by 'objectMapper', so we've to copy them
+			deviceManagementService.checkDevice(deviceForMonitoring, true);
+
+			log.debug("processOnboardingRequests: Requesting device onboarding for request with Id: {}", registrationRequest.getId());
+			Map<String, String> deviceOnboardingRequest = prepareRequestPayload(REQUEST_TYPE.INSTALL, registrationRequest);
+			return new Dispatch(new RegistrationRequestService.StatusTransition(registrationRequest.getId(),
+					RegistrationRequestStatus.PENDING_ONBOARDING, RegistrationRequestStatus.ONBOARDING_REQUESTED, null),
+					deviceOnboardingRequest, RegistrationRequestStatus.ONBOARDING_ERROR);
+		} catch (Exception e) {
+			log.warn("processOnboardingRequests: EXCEPTION while preparing onboarding request for request with Id: {}\n", registrationRequest.getId(), e);
+			return new Dispatch(new RegistrationRequestService.StatusTransition(registrationRequest.getId(),
+					RegistrationRequestStatus.PENDING_ONBOARDING, RegistrationRequestStatus.ONBOARDING_ERROR, "EXCEPTION "+e.getMessage()),
+					null, null);
+		}
+	}
+
+	private void send(@NonNull Dispatch dispatch) {
+		String requestId = dispatch.transition().requestId();
+		CompletableFuture<Void> sent;
+		try {
+			sent = brokerUtil.sendMessage(processorProperties.getDataCollectionRequestTopic(), dispatch.payload());
+			log.debug("processBatch: Request message queued for request with Id: {}", requestId);
+		} catch (Exception e) {
+			sent = CompletableFuture.failedFuture(e);
+		}
+		// Requests whose message is rejected, dropped or expires before reaching the broker are marked as failed
+		sent.exceptionallyAsync(e -> handleSendFailure(requestId, dispatch.transition().to(), dispatch.errorStatus(), e),
+				sendFailureExecutor);
+	}
+
+	private record Dispatch(RegistrationRequestService.StatusTransition transition, Map<String, String> payload,
+							RegistrationRequestStatus errorStatus) {
+	}
 
-		log.trace("processOnboardingRequests: END");
+	private Void handleSendFailure(String requestId, RegistrationRequestStatus expectedStatus, RegistrationRequestStatus errorStatus, Throwable t) {
+		// Called when a queued request is dropped or expires before reaching the broker
+		log.warn("handleSendFailure: Request message was not delivered: id={}, reason={}", requestId, t.getMessage());
+		registrationRequestService.getById(requestId)
+				.filter(r -> r.getStatus() == expectedStatus)
+				.ifPresent(r -> {
+					r.setStatus(errorStatus);
+					r.getMessages().add("Request message was not delivered to broker: " + t.getMessage());
+					registrationRequestService.update(r, false, true, null);
+				});
+		return null;
 	}
 
 	private static Map<String, String> prepareRequestPayload(@NonNull REQUEST_TYPE requestType, RegistrationRequest registrationRequest) {
@@ -199,10 +371,8 @@ public class RegistrationRequestProcessor implements IRegistrationRequestProcess
 	private void archiveRequests() {
 		Instant archiveThreshold = Instant.now().minus(processorProperties.getArchivingThreshold(), ChronoUnit.MINUTES);
 		log.trace("archiveRequests: BEGIN: archive-threshold: {}", archiveThreshold);
-		List<RegistrationRequest> requestsForArchiving = registrationRequestService.getAll().stream()
-				.filter(r -> STATUSES_TO_ARCHIVE.contains(r.getStatus()))
-				.filter(r -> r.getLastUpdateDate().isBefore(archiveThreshold))
-				.toList();
+		List<RegistrationRequest> requestsForArchiving =
+				registrationRequestService.getByStatusAndLastUpdateDateBefore(STATUSES_TO_ARCHIVE, archiveThreshold);
 
 		log.debug("archiveRequests: Found {} requests for archiving: {}",
 				requestsForArchiving.size(), requestsForArchiving.stream().map(RegistrationRequest::getId).toList());
@@ -228,7 +398,21 @@ public class RegistrationRequestProcessor implements IRegistrationRequestProcess
 	}
 
 	public void onMessage(Map message) {
-		processResponse(message);
+		Timer.Sample sample = Timer.start(meterRegistry);
+		try {
+			processResponse(message);
+		} finally {
+			sample.stop(meterRegistry.timer("discovery.registration.responses", "type", getRequestTypeTag(message)));
+		}
+	}
+
+	private static String getRequestTypeTag(@NonNull Map<?, ?> response) {
+		// Only known request types are used as tag values, to keep the number of time series bounded
+		try {
+			return REQUEST_TYPE.valueOf(String.valueOf(response.get("requestType")).trim()).name();
+		} catch (IllegalArgumentException e) {
+			return REQUEST_TYPE.OTHER.name();
+		}
 	}
 
 	private void processResponse(@NonNull Map<String, Object> response) {
@@ -1,8 +1,9 @@
 package eu.nebulous.resource.discovery.registration.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
 import eu.nebulous.resource.discovery.broker_communication.BrokerSubscriber;
-import eu.nebulous.resource.discovery.broker_communication.SynchronousBrokerPublisher;
+import eu.nebulous.resource.discovery.common.ListQuery;
 import eu.nebulous.resource.discovery.registration.IRegistrationRequestProcessor;
 import eu.nebulous.resource.discovery.registration.model.ArchivedRegistrationRequest;
 import eu.nebulous.resource.discovery.registration.model.RegistrationRequest;
@@ -19,9 +20,11 @@ import org.json.simple.parser.JSONParser;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.util.*;
 import java.util.concurrent.ExecutionException;
@@ -38,12 +41,12 @@ public class RegistrationRequestController implements InitializingBean {
 	private final ResourceDiscoveryProperties processorProperties;
 	private final RegistrationRequestService registrationRequestService;
 	private final IRegistrationRequestProcessor registrationRequestProcessor;
+	private final ObjectMapper objectMapper;
 	
 	private static final Map<String,String> nonce_messages = Collections.synchronizedMap(new HashMap<>());
 	private static final Set<String> nonce_message_published = Collections.synchronizedSet(new HashSet<>());
 	private static boolean has_initialized_nonce_connector = false;
 	private static BrokerSubscriber nonce_subscriber;
-	private static SynchronousBrokerPublisher nonce_publisher;
 	private static final int TIMEOUT_DURATION_SECONDS = 5;
 
 
@@ -53,8 +56,7 @@ public class RegistrationRequestController implements InitializingBean {
 
 		log.debug("Initializing connector");
 		if (!has_initialized_nonce_connector){
-			nonce_publisher = new SynchronousBrokerPublisher(GET_USER_TOPIC,processorPropertiesStatic.getNebulousBrokerIpAddress(), processorPropertiesStatic.getNebulousBrokerPort(), processorPropertiesStatic.getNebulousBrokerUsername(), processorPropertiesStatic.getNebulousBrokerPassword(), "");
-
+			// Nonce lookups are sent by NonceAuthenticationService
 			//Testing change 1
 			/*
 			nonce_subscriber = new BrokerSubscriber(GET_USER_TOPIC+".>",processorPropertiesStatic.getNebulousBrokerIpAddress(), processorPropertiesStatic.getNebulousBrokerPort(), processorPropertiesStatic.getNebulousBrokerUsername(),processorPropertiesStatic.getNebulousBrokerPassword(), "","");
@@ -122,13 +124,25 @@ public class RegistrationRequestController implements InitializingBean {
 
 	@PreAuthorize(REQUIRES_ADMIN_ROLE)
 	@GetMapping(value = "/request/all", produces = MediaType.APPLICATION_JSON_VALUE)
-	public List<RegistrationRequest> listRequestsAdmin(Authentication authentication) {
-		return registrationRequestService.getAll();
+	public ResponseEntity<List<RegistrationRequest>> listRequestsAdmin(ListQuery listQuery) {
+		return ListQuery.toResponse(registrationRequestService.find(listQuery, null), registrationRequestService.getPageLimit(listQuery), RegistrationRequest::getId);
+	}
+
+	@PreAuthorize(REQUIRES_ADMIN_ROLE)
+	@GetMapping(value = "/request/all", produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public ResponseEntity<StreamingResponseBody> streamRequestsAdmin(ListQuery listQuery) {
+		return ListQuery.toNdjsonResponse(() -> registrationRequestService.stream(listQuery, null), objectMapper);
 	}
 
 	@GetMapping(value = "/request", produces = MediaType.APPLICATION_JSON_VALUE)
-	public List<RegistrationRequest> listRequests(Authentication authentication) {
-		return registrationRequestService.getAllAsUser(authentication);
+	public ResponseEntity<List<RegistrationRequest>> listRequests(ListQuery listQuery, Authentication authentication) {
+		return ListQuery.toResponse(registrationRequestService.find(listQuery, authentication.getName()), registrationRequestService.getPageLimit(listQuery), RegistrationRequest::getId);
+	}
+
+	@GetMapping(value = "/request", produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public ResponseEntity<StreamingResponseBody> streamRequests(ListQuery listQuery, Authentication authentication) {
+		String requester = authentication.getName();
+		return ListQuery.toNdjsonResponse(() -> registrationRequestService.stream(listQuery, requester), objectMapper);
 	}
 
 	@GetMapping(value = "/request/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
@@ -137,76 +151,6 @@ public class RegistrationRequestController implements InitializingBean {
 				.orElseThrow(() -> new RegistrationRequestException("Not found registration request with id: "+id));
 	}
 
-	//@GetMapping(value= "/nonce_username", produces = MediaType.APPLICATION_JSON_VALUE)
-	public static String getNonceUsername(@RequestParam Map data) {
-		
-		//Get the nonce from the provided data, along with the appId
-		//initialize the BrokerPublisher
-		//Parse the response of the SyncedPublisher
-		//Return an appropriate json object to the client
-		log.debug("Initializing processing");
-		String nonce = (String) data.get("nonce");
-		String appId = (String) data.get("appId");
-		
-		
-		JSONObject json_request = new JSONObject();
-		json_request.put("token",nonce);
-		json_request.put("appId",appId);
-		
-		String empty_response = null; //"{\"nonce\": \"" + nonce + "\", \"username\": \"" + "" + "\"}";
-		
-		log.debug("Sending nonce message to middleware");
-		Map nonce_publisher_response = nonce_publisher.publish_for_response(json_request.toJSONString(),List.of(""));
-		
-		if (StringUtils.isBlank(nonce) || StringUtils.isBlank(appId)) {
-			return empty_response;
-		}
-		
-		int cumulative_sleep = 0;
-		int sleep_duration_millis = 500;
-		
-		JSONParser parser = new JSONParser();
-		
-		//Testing Change 1
-		/*
-		while (!nonce_message_published.contains(nonce)){
-			log.debug("While iteration, nonce messages {}",nonce_messages.keySet());
-			log.debug("While iteration, nonce message published {}",nonce_message_published);
-			if (cumulative_sleep>= TIMEOUT_DURATION_SECONDS *1000){
-				//nonce_message_published.remove(nonce);
-				//nonce_messages.remove(nonce);
-				return empty_response;
-			}
-            try {
-                Thread.sleep(sleep_duration_millis);
-				cumulative_sleep = cumulative_sleep + sleep_duration_millis;
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
-        }
-		*/
-
-		try {
-			
-			//nonce_message_published.remove(nonce);
-			//nonce_messages.remove(nonce);
-			
-			//Testing change 1
-			/*
-			JSONObject response = (JSONObject) parser.parse(nonce_messages.get(nonce));
-			 */
-			JSONObject response = new JSONObject(nonce_publisher_response);
-			String username = (String) response.get("username");
-
-			// Return an appropriate JSON object to the client
-			//return "{\"nonce\": \"" + nonce + "\", \"username\": \"" + username + "\"}";
-			return username;
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
-		
-	}
-	
 	@PutMapping(value = "/request", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
 	public RegistrationRequest createRequest(@RequestBody RegistrationRequest registrationRequest, Authentication authentication) {
 		return registrationRequestService.saveAsUser(registrationRequest, authentication);
@@ -270,14 +214,26 @@ public class RegistrationRequestController implements InitializingBean {
 	}
 
 	@GetMapping(value = "/request/archived", produces = MediaType.APPLICATION_JSON_VALUE)
-	public List<ArchivedRegistrationRequest> listArchivedRequests(Authentication authentication) {
-		return registrationRequestService.getArchivedAllAsUser(authentication);
+	public ResponseEntity<List<ArchivedRegistrationRequest>> listArchivedRequests(ListQuery listQuery, Authentication authentication) {
+		return ListQuery.toResponse(registrationRequestService.findArchived(listQuery, authentication.getName()), registrationRequestService.getPageLimit(listQuery), RegistrationRequest::getId);
+	}
+
+	@GetMapping(value = "/request/archived", produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public ResponseEntity<StreamingResponseBody> streamArchivedRequests(ListQuery listQuery, Authentication authentication) {
+		String requester = authentication.getName();
+		return ListQuery.toNdjsonResponse(() -> registrationRequestService.streamArchived(listQuery, requester), objectMapper);
 	}
 
 	@PreAuthorize(REQUIRES_ADMIN_ROLE)
 	@GetMapping(value = "/request/archived/all", produces = MediaType.APPLICATION_JSON_VALUE)
-	public List<ArchivedRegistrationRequest> listArchivedRequestsAdmin() {
-		return registrationRequestService.getArchivedAll();
+	public ResponseEntity<List<ArchivedRegistrationRequest>> listArchivedRequestsAdmin(ListQuery listQuery) {
+		return ListQuery.toResponse(registrationRequestService.findArchived(listQuery, null), registrationRequestService.getPageLimit(listQuery), RegistrationRequest::getId);
+	}
+
+	@PreAuthorize(REQUIRES_ADMIN_ROLE)
+	@GetMapping(value = "/request/archived/all", produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public ResponseEntity<StreamingResponseBody> streamArchivedRequestsAdmin(ListQuery listQuery) {
+		return ListQuery.toNdjsonResponse(() -> registrationRequestService.streamArchived(listQuery, null), objectMapper);
 	}
 
 	@GetMapping(value = "/request/archived/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
@@ -3,6 +3,8 @@ package eu.nebulous.resource.discovery.registration.model;
 import lombok.*;
 import lombok.experimental.SuperBuilder;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.Instant;
@@ -13,10 +15,13 @@ import java.util.List;
 @SuperBuilder
 @NoArgsConstructor
 @Document(collection = "registration_request")
+@CompoundIndex(name = "device_ipAddress", def = "{'device.ipAddress': 1}")
+@CompoundIndex(name = "status_lastUpdateDate", def = "{'status': 1, 'lastUpdateDate': 1}")
 public class RegistrationRequest {
     @Id
     private String id;
     private Device device;
+    @Indexed
     private String requester;
     private Instant requestDate;
     private Instant lastUpdateDate;
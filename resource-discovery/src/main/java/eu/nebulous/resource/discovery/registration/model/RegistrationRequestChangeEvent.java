@@ -0,0 +1,29 @@
+package eu.nebulous.resource.discovery.registration.model;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * Published by RegistrationRequestService after a registration request is created, updated or deleted.
+ */
+@Getter
+@ToString
+@RequiredArgsConstructor
+public class RegistrationRequestChangeEvent {
+    public enum TYPE { CREATED, UPDATED, DELETED }
+
+    @NonNull private final String requestId;
+    @NonNull private final TYPE type;
+    private final RegistrationRequestStatus status;
+    private final String requester;
+
+    public RegistrationRequestChangeEvent(@NonNull String requestId, @NonNull TYPE type, RegistrationRequestStatus status) {
+        this(requestId, type, status, null);
+    }
+
+    public RegistrationRequestChangeEvent(@NonNull TYPE type, @NonNull RegistrationRequest registrationRequest) {
+        this(registrationRequest.getId(), type, registrationRequest.getStatus(), registrationRequest.getRequester());
+    }
+}
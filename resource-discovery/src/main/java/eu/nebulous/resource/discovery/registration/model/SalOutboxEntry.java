@@ -0,0 +1,37 @@
+package eu.nebulous.resource.discovery.registration.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.SuperBuilder;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Pending SAL registration or deregistration of a device. There is at most one entry per device (the latest intent).
+ * Entries are claimed by an instance for a lease period, and removed once SAL has processed them.
+ */
+@Data
+@SuperBuilder
+@NoArgsConstructor
+@Document(collection = "sal_outbox")
+@CompoundIndex(name = "nextAttemptDate_leaseExpiryDate", def = "{'nextAttemptDate': 1, 'leaseExpiryDate': 1}")
+public class SalOutboxEntry {
+    public enum ACTION { REGISTER, DEREGISTER }
+
+    @Id
+    private String deviceId;
+    private ACTION action;
+    private String provider;
+    private String ref;                 // needed to deregister devices no longer in the device collection
+    private String salId;
+    private int attempts;
+    private Instant creationDate;
+    private Instant nextAttemptDate;
+    private String leaseOwner;
+    private String leaseToken;          // changes on every claim and on every new intent
+    private Instant leaseExpiryDate;
+    private String lastError;
+}
@@ -1,11 +1,16 @@
 package eu.nebulous.resource.discovery.registration.repository;
 
 import eu.nebulous.resource.discovery.registration.model.RegistrationRequest;
+import eu.nebulous.resource.discovery.registration.model.RegistrationRequestStatus;
 import org.springframework.data.mongodb.repository.MongoRepository;
 
+import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
 
 public interface RegistrationRequestRepository extends MongoRepository<RegistrationRequest, String> {
 	List<RegistrationRequest> findByRequester(String requester);
 	List<RegistrationRequest> findByDeviceIpAddress(String ipAddress);
+	List<RegistrationRequest> findByStatusIn(Collection<RegistrationRequestStatus> statuses);
+	List<RegistrationRequest> findByStatusInAndLastUpdateDateBefore(Collection<RegistrationRequestStatus> statuses, Instant lastUpdateDate);
 }
@@ -0,0 +1,159 @@
+package eu.nebulous.resource.discovery.registration.service;
+
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.broker_communication.SalPublisherPool;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.json.simple.JSONObject;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves the username of a nonce (and appId), by asking the Nebulous UI over the broker.
+ * Results are cached for a short time (unknown nonces for even shorter), so that the several requests of a page load
+ * do not each pay a broker round trip. Concurrent lookups of the same nonce share one broker request.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class NonceAuthenticationService implements InitializingBean {
+    private final static String GET_USER_TOPIC = "eu.nebulouscloud.ui.user.get";
+
+    private final ResourceDiscoveryProperties properties;
+    private final SalPublisherPool salPublisherPool;
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, CompletableFuture<String>> inProgress = new ConcurrentHashMap<>();
+    private Map<String, CachedUsername> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private Timer lookupTimer;
+
+    private record CachedUsername(String username, long expiresAt) {
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        lookupTimer = Timer.builder("discovery.nonce.lookup")
+                .description("Nonce lookups over the broker (cache misses)")
+                .register(meterRegistry);
+        Map.of("hit", hits, "negative-hit", negativeHits, "miss", misses, "coalesced", coalesced, "error", errors)
+                .forEach((result, count) -> FunctionCounter.builder("discovery.nonce.requests", count, AtomicLong::get)
+                        .description("Nonce resolutions, by cache result")
+                        .tag("result", result)
+                        .register(meterRegistry));
+        Gauge.builder("discovery.nonce.cache.size", this, service -> {
+                    synchronized (service) {
+                        return service.getCache().size();
+                    }
+                })
+                .description("Cached nonces, including unknown ones")
+                .register(meterRegistry);
+    }
+
+    /** Returns the username of the nonce, or null if the nonce is unknown or could not be checked */
+    public String getUsername(String nonce, String appId) {
+        if (StringUtils.isBlank(nonce) || StringUtils.isBlank(appId))
+            return null;
+        String key = nonce + '\n' + appId;
+
+        CachedUsername cached;
+        synchronized (this) {
+            cached = getCache().get(key);
+        }
+        if (cached != null && cached.expiresAt() > System.currentTimeMillis()) {
+            (cached.username() != null ? hits : negativeHits).incrementAndGet();
+            return cached.username();
+        }
+
+        CompletableFuture<String> lookup = new CompletableFuture<>();
+        CompletableFuture<String> existing = inProgress.putIfAbsent(key, lookup);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            try {
+                return await(existing);
+            } catch (RuntimeException e) {
+                log.warn("NonceAuthenticationService: Nonce lookup failed: appId={}, error={}", appId, e.toString());
+                return null;
+            }
+        }
+
+        misses.incrementAndGet();
+        try {
+            String username = lookup(nonce, appId);
+            long ttl = username != null ? properties.getNonceCacheTtl() : properties.getNonceNegativeCacheTtl();
+            synchronized (this) {
+                getCache().put(key, new CachedUsername(username, System.currentTimeMillis() + ttl));
+            }
+            lookup.complete(username);
+            return username;
+        } catch (RuntimeException e) {
+            // Errors are not cached, and the request is not authenticated
+            errors.incrementAndGet();
+            lookup.completeExceptionally(e);
+            log.warn("NonceAuthenticationService: Nonce lookup failed: appId={}, error={}", appId, e.toString());
+            return null;
+        } finally {
+            inProgress.remove(key, lookup);
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> lookup) {
+        try {
+            return lookup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private String lookup(String nonce, String appId) {
+        JSONObject json_request = new JSONObject();
+        json_request.put("token", nonce);
+        json_request.put("appId", appId);
+
+        log.debug("NonceAuthenticationService: Sending nonce message to middleware");
+        return lookupTimer.record(() -> {
+            Map response = await(salPublisherPool.request(GET_USER_TOPIC, json_request.toJSONString(), "",
+                    Duration.ofMillis(properties.getNonceLookupTimeout())));
+            return (String) response.get("username");
+        });
+    }
+
+    /** LRU map bounded to nonceCacheMaxSize entries. Access must be synchronized on this service */
+    private Map<String, CachedUsername> getCache() {
+        if (cache == null) {
+            int maxSize = Math.max(1, properties.getNonceCacheMaxSize());
+            cache = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedUsername> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+        return cache;
+    }
+
+    public synchronized void clearCache() {
+        getCache().clear();
+    }
+}
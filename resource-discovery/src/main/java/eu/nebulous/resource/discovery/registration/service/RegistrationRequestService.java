@@ -1,5 +1,7 @@
 package eu.nebulous.resource.discovery.registration.service;
 
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.common.ListQuery;
 import eu.nebulous.resource.discovery.monitor.service.DeviceManagementService;
 import eu.nebulous.resource.discovery.registration.model.*;
 import eu.nebulous.resource.discovery.registration.repository.ArchivedRegistrationRequestRepository;
@@ -9,21 +11,34 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.BeanUtils;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.stereotype.Service;
 
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.stream.Stream;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class RegistrationRequestService {
+	private final static List<String> HIDDEN_FIELDS = List.of("device.password", "device.publicKey");
+
+	private final ResourceDiscoveryProperties properties;
 	private final RegistrationRequestRepository registrationRequestRepository;
 	private final ArchivedRegistrationRequestRepository archivedRegistrationRequestRepository;
 	private final RegistrationRequestConversionService registrationRequestConversionService;
 	private final DeviceManagementService deviceManagementService;
+	private final ApplicationEventPublisher eventPublisher;
+	private final MongoTemplate mongoTemplate;
 
 	/*private final InMemoryRegistrationRequestRepository<RegistrationRequest>
 			registrationRequestRepository = new InMemoryRegistrationRequestRepository<>();
@@ -35,6 +50,7 @@ public class RegistrationRequestService {
 	// Used in RegistrationRequestService_SampleDataCreator to create sample requests
 	public void addRequest(@NonNull RegistrationRequest registrationRequest) {
 		registrationRequestRepository.save(registrationRequest);
+		eventPublisher.publishEvent(new RegistrationRequestChangeEvent(RegistrationRequestChangeEvent.TYPE.CREATED, registrationRequest));
 	}
 
 	public Optional<RegistrationRequest> getById(@NonNull String id) {
@@ -49,6 +65,49 @@ public class RegistrationRequestService {
 		return Collections.unmodifiableList(registrationRequestRepository.findAll());
 	}
 
+	// Paged, filtered and projected lists. A non-null requester restricts results to the requester's requests
+
+	public List<RegistrationRequest> find(@NonNull ListQuery listQuery, String requester) {
+		return mongoTemplate.find(toQuery(listQuery, requester, getPageLimit(listQuery)), RegistrationRequest.class);
+	}
+
+	public Stream<RegistrationRequest> stream(@NonNull ListQuery listQuery, String requester) {
+		return mongoTemplate.stream(toQuery(listQuery, requester, getStreamLimit(listQuery)), RegistrationRequest.class);
+	}
+
+	public List<ArchivedRegistrationRequest> findArchived(@NonNull ListQuery listQuery, String requester) {
+		return mongoTemplate.find(toQuery(listQuery, requester, getPageLimit(listQuery)), ArchivedRegistrationRequest.class);
+	}
+
+	public Stream<ArchivedRegistrationRequest> streamArchived(@NonNull ListQuery listQuery, String requester) {
+		return mongoTemplate.stream(toQuery(listQuery, requester, getStreamLimit(listQuery)), ArchivedRegistrationRequest.class);
+	}
+
+	/** Returns the size of a full page of the list query */
+	public int getPageLimit(@NonNull ListQuery listQuery) {
+		return listQuery.getPageLimit(properties.getListDefaultPageSize(), properties.getListMaxPageSize());
+	}
+
+	private int getStreamLimit(@NonNull ListQuery listQuery) {
+		return listQuery.getPageLimit(0, properties.getListMaxPageSize());
+	}
+
+	private Query toQuery(@NonNull ListQuery listQuery, String requester, int pageLimit) {
+		return listQuery.toQuery("requester", "device.provider", requester, HIDDEN_FIELDS, pageLimit);
+	}
+
+	public List<RegistrationRequest> getByIds(@NonNull Collection<String> ids) {
+		return registrationRequestRepository.findAllById(ids);
+	}
+
+	public List<RegistrationRequest> getByStatus(@NonNull Collection<RegistrationRequestStatus> statuses) {
+		return registrationRequestRepository.findByStatusIn(statuses);
+	}
+
+	public List<RegistrationRequest> getByStatusAndLastUpdateDateBefore(@NonNull Collection<RegistrationRequestStatus> statuses, @NonNull Instant lastUpdateDate) {
+		return registrationRequestRepository.findByStatusInAndLastUpdateDateBefore(statuses, lastUpdateDate);
+	}
+
 	public boolean isIpAddressInUse(@NonNull String ipAddress, String excludeId) {
 		List<RegistrationRequest> result = registrationRequestRepository.findByDeviceIpAddress(ipAddress);
 		return result.stream().anyMatch(r -> !r.getId().equals(excludeId));
@@ -88,6 +147,7 @@ public class RegistrationRequestService {
 		checkIpAddressUniqueness(registrationRequest);
 
 		registrationRequestRepository.save(registrationRequest);
+		eventPublisher.publishEvent(new RegistrationRequestChangeEvent(RegistrationRequestChangeEvent.TYPE.CREATED, registrationRequest));
 		return registrationRequest;
 	}
 
@@ -134,11 +194,56 @@ public class RegistrationRequestService {
 				ignoreList.toArray(new String[0]));
 
 		registrationRequestRepository.save(result.get());
+		eventPublisher.publishEvent(new RegistrationRequestChangeEvent(RegistrationRequestChangeEvent.TYPE.UPDATED, result.get()));
 
 		return getById(registrationRequest.getId()).orElseThrow(() ->
 				new RegistrationRequestException("Request update failed for Id: "+registrationRequest.getId()));
 	}
 
+	public record StatusTransition(@NonNull String requestId, @NonNull RegistrationRequestStatus from,
+								   @NonNull RegistrationRequestStatus to, String message) {
+	}
+
+	/**
+	 * Changes the status of many requests with a single bulk write. Each request is only changed if it is
+	 * still in the expected ('from') status. If a message is given it is appended to request messages.
+	 * Returns the ids of the requests changed. Change events are published only for them.
+	 */
+	public Set<String> transitionStatus(@NonNull Collection<StatusTransition> transitions) {
+		if (transitions.isEmpty()) return Collections.emptySet();
+		// Truncated to the stored precision, so that the changed requests can be recognized by their update date
+		Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+		BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, RegistrationRequest.class);
+		for (StatusTransition transition : transitions) {
+			Update update = new Update()
+					.set("status", transition.to())
+					.set("lastUpdateDate", now);
+			if (StringUtils.isNotBlank(transition.message()))
+				update.push("messages", transition.message());
+			bulkOps.updateOne(Query.query(Criteria.where("id").is(transition.requestId())
+					.and("status").is(transition.from())), update);
+		}
+		int modified = bulkOps.execute().getModifiedCount();
+
+		// Bulk write results do not tell which updates matched. Read back the requests moved by this write
+		Set<String> changed = new HashSet<>();
+		if (modified > 0) {
+			Map<String, RegistrationRequestStatus> targets = new HashMap<>();
+			transitions.forEach(t -> targets.put(t.requestId(), t.to()));
+			Query query = Query.query(Criteria.where("id").in(targets.keySet()).and("lastUpdateDate").is(now));
+			query.fields().include("id", "status");
+			mongoTemplate.find(query, RegistrationRequest.class).stream()
+					.filter(r -> r.getStatus() == targets.get(r.getId()))
+					.forEach(r -> changed.add(r.getId()));
+		}
+		transitions.stream()
+				.filter(t -> changed.contains(t.requestId()))
+				.forEach(t -> eventPublisher.publishEvent(
+						new RegistrationRequestChangeEvent(t.requestId(), RegistrationRequestChangeEvent.TYPE.UPDATED, t.to())));
+		log.debug("RegistrationRequestService: transitionStatus: Changed {} of {} requests", changed.size(), transitions.size());
+		return changed;
+	}
+
 	private boolean isCharArrayIsBlank(char[] arr) {
 		if (arr==null) return true;
 		for (char c : arr)
@@ -210,11 +315,13 @@ public class RegistrationRequestService {
 					"Registration request with the Id does not exists in repository: "+id);
 		canEditOrDelete(result.get());
 		registrationRequestRepository.delete(result.get());
+		eventPublisher.publishEvent(new RegistrationRequestChangeEvent(RegistrationRequestChangeEvent.TYPE.DELETED, result.get()));
 		result.get().setLastUpdateDate(Instant.now());
 	}
 
 	public void delete(@NonNull RegistrationRequest registrationRequest) {
 		registrationRequestRepository.deleteById(registrationRequest.getId());
+		eventPublisher.publishEvent(new RegistrationRequestChangeEvent(RegistrationRequestChangeEvent.TYPE.DELETED, registrationRequest));
 		registrationRequest.setLastUpdateDate(Instant.now());
 	}
 
@@ -339,6 +446,7 @@ public class RegistrationRequestService {
 		archivedRegistrationRequestRepository.save(
 				registrationRequestConversionService.toArchivedRegistrationRequest(result.get()));
 		registrationRequestRepository.delete(result.get());
+		eventPublisher.publishEvent(new RegistrationRequestChangeEvent(RegistrationRequestChangeEvent.TYPE.DELETED, result.get()));
 	}
 
 	public void unarchiveRequest(String id, Map<String,String> credentials, Authentication authentication) {
@@ -356,6 +464,7 @@ public class RegistrationRequestService {
 		device.setPassword(credentials.get("password").toCharArray());
 		device.setPublicKey(credentials.get("publicKey").toCharArray());
 		registrationRequestRepository.save(restoredRequest);
+		eventPublisher.publishEvent(new RegistrationRequestChangeEvent(RegistrationRequestChangeEvent.TYPE.CREATED, restoredRequest));
 		archivedRegistrationRequestRepository.deleteById(result.get().getId());
 	}
 
@@ -5,9 +5,11 @@ package eu.nebulous.resource.discovery.registration.service;
 import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
 import eu.nebulous.resource.discovery.broker_communication.BrokerSubscriber;
 import eu.nebulous.resource.discovery.broker_communication.BrokerSubscriptionDetails;
-import eu.nebulous.resource.discovery.broker_communication.SynchronousBrokerPublisher;
+import eu.nebulous.resource.discovery.broker_communication.SalPublisherPool;
 import eu.nebulous.resource.discovery.monitor.model.Device;
 import eu.nebulous.resource.discovery.monitor.service.DeviceManagementService;
+import eu.nebulous.resource.discovery.registration.model.SalOutboxEntry;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -15,14 +17,15 @@ import org.apache.commons.lang3.StringUtils;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
-import org.springframework.core.task.TaskExecutor;
 import org.springframework.stereotype.Service;
 
-import java.util.Collections;
+import java.time.Duration;
 import java.util.Optional;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.function.BiFunction;
 
 import static eu.nebulous.resource.discovery.broker_communication.SALCommunicator.get_device_deregistration_json;
@@ -31,22 +34,37 @@ import static eu.nebulous.resource.discovery.broker_communication.SALCommunicato
 @Service
 @ConditionalOnProperty(name = ResourceDiscoveryProperties.CONFIG_PREFIX + ".sal-registration.enabled", havingValue = "true", matchIfMissing = true)
 @RequiredArgsConstructor
-public class SALDeregistrationService implements InitializingBean {
+public class SALDeregistrationService implements InitializingBean, DisposableBean {
     
     private final DeviceManagementService deviceManagementService;
     private final ResourceDiscoveryProperties processorProperties;
-    private final TaskExecutor taskExecutor;
-    private final LinkedBlockingDeque<Device> queue = new LinkedBlockingDeque<>();
-    private Thread processQueueThread;
-    private long lastDeregistrationStartTimestamp = -1L;
+    private final SalPublisherPool salPublisherPool;
+    private final SalOutboxService salOutboxService;
+    private final MeterRegistry meterRegistry;
+    private SalRequestDispatcher<Void> dispatcher;
 
     public void queueForDeregistration(@NonNull Device device) {
-        if (processorProperties.isSalRegistrationEnabled()) //If registration is enabled, so should be deregistration as well
-            queue.add(device);
+        if (processorProperties.isSalRegistrationEnabled() && dispatcher != null) { //If registration is enabled, so should be deregistration as well
+            if (salOutboxService.isEnabled())
+                salOutboxService.enqueue(device, SalOutboxEntry.ACTION.DEREGISTER);
+            else
+                dispatcher.submit(device);
+        }
     }
 
     public void deregister(Device device) {
+        try {
+            deregisterAsync(device).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
 
+    /** Sends the deregistration request over the shared SAL publisher connection */
+    public CompletableFuture<Void> deregisterAsync(Device device) {
 
         String application_name = device.getRef().split("\\|")[1];
         if (application_name.equals("all_applications")) {
@@ -57,30 +75,18 @@ public class SALDeregistrationService implements InitializingBean {
 
         String deregister_device_message_string = get_device_deregistration_json(device);
         if (processorProperties.isDeregistrationEmulated()){
-            return;
-        }
-        SynchronousBrokerPublisher deregister_device_publisher = new SynchronousBrokerPublisher(get_deregistration_topic_name(), processorProperties.getNebulousBrokerIpAddress(), processorProperties.getNebulousBrokerPort(), processorProperties.getNebulousBrokerUsername(), processorProperties.getNebulousBrokerPassword(), "");
-        int sending_attempt = 1;
-        while (deregister_device_publisher.is_publisher_null()) {
-            if (sending_attempt <= 2) {
-                deregister_device_publisher = new SynchronousBrokerPublisher(get_deregistration_topic_name(), processorProperties.getNebulousBrokerIpAddress(), processorProperties.getNebulousBrokerPort(), processorProperties.getNebulousBrokerUsername(), processorProperties.getNebulousBrokerPassword(), "");
-            } else {
-                log.warn("Will now attempt to reset the Synchronous publisher connector to deregister");
-                deregister_device_publisher = new SynchronousBrokerPublisher(get_deregistration_topic_name(), processorProperties.getNebulousBrokerIpAddress(), processorProperties.getNebulousBrokerPort(), processorProperties.getNebulousBrokerUsername(), processorProperties.getNebulousBrokerPassword(), "");
-            }
-            try {
-                Thread.sleep(3000);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
-            sending_attempt++;
+            return CompletableFuture.completedFuture(null);
         }
         //TODO handle the response here
         if (deregister_device_message_string!=null && !deregister_device_message_string.isEmpty()) {
-            deregister_device_publisher.publish_for_response(deregister_device_message_string, Collections.singleton(application_name));
-            //log.warn("The response received while trying to deregister device " + device.getRef() + " is " + response.toString());
+            return salPublisherPool.request(get_deregistration_topic_name(), deregister_device_message_string,
+                    application_name, Duration.ofMillis(processorProperties.getSalRegistrationTimeout())
+            ).thenAccept(response -> {
+                //log.warn("The response received while trying to deregister device " + device.getRef() + " is " + response.toString());
+            });
         }else{
             log.warn("Deregistration was to be initiated with an empty deregistration payload");
+            return CompletableFuture.completedFuture(null);
         }
         //}
 
@@ -112,8 +118,9 @@ public class SALDeregistrationService implements InitializingBean {
                 StringUtils.isNotBlank(processorProperties.getNebulousBrokerUsername()) &&
                 StringUtils.isNotBlank(processorProperties.getNebulousBrokerPassword())) {
             log.info("Successful setting of properties for communication with SAL");
-            taskExecutor.execute(this::processQueue);
-            taskExecutor.execute(this::checkProcessQueue);
+            dispatcher = new SalRequestDispatcher<>("deregistration", processorProperties, this::deregisterAsync, this::deregistered,
+                    meterRegistry, true);
+            salOutboxService.setHandler(SalOutboxEntry.ACTION.DEREGISTER, device -> dispatcher.submitOnce(device));
         } else {
             String message = String.format("Nebulous broker configuration is missing:  ip-address=%s, username=%s, password=%s",
                     processorProperties.getNebulousBrokerIpAddress(),
@@ -141,7 +148,7 @@ public class SALDeregistrationService implements InitializingBean {
             
             Optional<Device> compromisedDevice = deviceManagementService.getById(device_id);
             if (compromisedDevice.isPresent()){
-                queue.add(compromisedDevice.get());
+                queueForDeregistration(compromisedDevice.get());
                 return compromisedDevice.get();
             }else{
                 return null;
@@ -159,46 +166,19 @@ public class SALDeregistrationService implements InitializingBean {
     }
     
 
-    public void processQueue() {
-        processQueueThread = Thread.currentThread();
-        while (true) {
-            Device device = null;
-            try {
-                device = queue.take();
-                log.warn("SALRegistrationService: processQueue(): Will deregister device: {}", device);
-                lastDeregistrationStartTimestamp = System.currentTimeMillis();
-                deregister(device);
-                lastDeregistrationStartTimestamp = -1L;
-                device.setRegisteredToSAL(false);
-                deviceManagementService.update(device);
-                log.warn("SALRegistrationService: processQueue(): Device deregistered from SAL: {}", device);
-            } catch (InterruptedException e) {
-                log.warn("SALRegistrationService: processQueue(): Interrupted. Will not deregister device from SAL: {}", device);
-                lastDeregistrationStartTimestamp = -1L;
-//                break;
-            } catch (Exception e) {
-                log.warn("SALRegistrationService: processQueue(): EXCEPTION caught. Will not deregister device from SAL: {}", device, e);
-                lastDeregistrationStartTimestamp = -1L;
-            }
+    private void deregistered(Device device, Void result) {
+        // Devices deregistered from the outbox might have been archived or deleted meanwhile
+        if (deviceManagementService.getById(device.getId()).isPresent()) {
+            device.setRegisteredToSAL(false);
+            deviceManagementService.update(device);
         }
+        log.warn("SALDeregistrationService: Device deregistered from SAL: {}", device);
     }
 
-    public void checkProcessQueue() {
-        while (true) {
-            try {
-                Thread.sleep(1000);
-                if (processQueueThread != null && lastDeregistrationStartTimestamp > 0) {
-                    long runningTime = System.currentTimeMillis() - lastDeregistrationStartTimestamp;
-                    if (runningTime > processorProperties.getSalRegistrationTimeout()) {
-                        log.warn("SALDeregistrationService: checkProcessQueue(): Method 'processQueue' is running for too log. Will attempt to interrupt it");
-                        processQueueThread.interrupt();
-                        lastDeregistrationStartTimestamp = -1L;
-                    }
-                }
-            } catch (Exception e) {
-                log.warn("SALDeregistrationService: checkProcessQueue(): EXCEPTION caught: ", e);
-            }
-        }
+    @Override
+    public void destroy() {
+        if (dispatcher != null)
+            dispatcher.shutdown();
     }
     
     private String get_device_compromised_topic_name(){
@@ -1,9 +1,12 @@
 package eu.nebulous.resource.discovery.registration.service;
 
 import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
-import eu.nebulous.resource.discovery.broker_communication.SynchronousBrokerPublisher;
+import eu.nebulous.resource.discovery.broker_communication.SALCommunicator;
+import eu.nebulous.resource.discovery.broker_communication.SalPublisherPool;
 import eu.nebulous.resource.discovery.monitor.model.Device;
 import eu.nebulous.resource.discovery.monitor.service.DeviceManagementService;
+import eu.nebulous.resource.discovery.registration.model.SalOutboxEntry;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -11,15 +14,16 @@ import org.apache.commons.lang3.StringUtils;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
-import org.springframework.core.task.TaskExecutor;
 import org.springframework.stereotype.Service;
 
 import java.time.Clock;
-import java.util.Collections;
+import java.time.Duration;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import static eu.nebulous.resource.discovery.broker_communication.SALCommunicator.get_device_registration_json;
 
@@ -27,20 +31,36 @@ import static eu.nebulous.resource.discovery.broker_communication.SALCommunicato
 @Service
 @ConditionalOnProperty(name = ResourceDiscoveryProperties.CONFIG_PREFIX + ".sal-registration.enabled", havingValue = "true", matchIfMissing = true)
 @RequiredArgsConstructor
-public class SALRegistrationService implements InitializingBean {
+public class SALRegistrationService implements InitializingBean, DisposableBean {
     private final DeviceManagementService deviceManagementService;
     private final ResourceDiscoveryProperties processorProperties;
-    private final TaskExecutor taskExecutor;
-    private final LinkedBlockingDeque<Device> queue = new LinkedBlockingDeque<>();
-    private Thread processQueueThread;
-    private long lastRegistrationStartTimestamp = -1L;
+    private final SalPublisherPool salPublisherPool;
+    private final SalOutboxService salOutboxService;
+    private final MeterRegistry meterRegistry;
+    private SalRequestDispatcher<String> dispatcher;
 
     public void queueForRegistration(@NonNull Device device) {
-        if (processorProperties.isSalRegistrationEnabled())
-            queue.add(device);
+        if (processorProperties.isSalRegistrationEnabled() && dispatcher != null) {
+            if (salOutboxService.isEnabled())
+                salOutboxService.enqueue(device, SalOutboxEntry.ACTION.REGISTER);
+            else
+                dispatcher.submit(device);
+        }
     }
 
     public String register(Device device) {
+        try {
+            return registerAsync(device).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /** Sends the registration request over the shared SAL publisher connection, and completes with the SAL device id */
+    public CompletableFuture<String> registerAsync(Device device) {
         log.warn("SALRegistrationService: register: BEGIN: device: {}", device);
         
         String  application_name = device.getRef().split("\\|")[1];
@@ -132,35 +152,22 @@ public class SALRegistrationService implements InitializingBean {
         //String sal_running_applications_reply = request_running_applications_AMQP();
         //ArrayList<String> applications = get_running_applications(sal_running_applications_reply);
         //for (String application_name:applications) {
-        SynchronousBrokerPublisher register_device_publisher = new SynchronousBrokerPublisher(get_registration_topic_name(application_name), processorProperties.getNebulousBrokerIpAddress(),processorProperties.getNebulousBrokerPort(), processorProperties.getNebulousBrokerUsername(), processorProperties.getNebulousBrokerPassword(), "");
-        int sending_attempt = 1;
-        while (register_device_publisher.is_publisher_null()){
-            if (sending_attempt<=2) {
-                register_device_publisher = new SynchronousBrokerPublisher(get_registration_topic_name(application_name), processorProperties.getNebulousBrokerIpAddress(), processorProperties.getNebulousBrokerPort(), processorProperties.getNebulousBrokerUsername(), processorProperties.getNebulousBrokerPassword(), "");
-            }else{
-                log.warn("Will now attempt to reset the Synchronous publisher connector to register");
-                register_device_publisher = new SynchronousBrokerPublisher(get_registration_topic_name(application_name), processorProperties.getNebulousBrokerIpAddress(), processorProperties.getNebulousBrokerPort(), processorProperties.getNebulousBrokerUsername(), processorProperties.getNebulousBrokerPassword(), "");
-            }
+        //TODO handle the response here
+        return salPublisherPool.request(get_registration_topic_name(application_name), register_device_message_string,
+                application_name, Duration.ofMillis(processorProperties.getSalRegistrationTimeout())
+        ).thenApply(response -> {
+            log.warn("The response received while trying to register device " + device_name + " is "+response.toString());
+            JSONObject response_json = new JSONObject(response);
+            JSONParser json_parser = new JSONParser();
+            JSONObject response_json_body = null;
             try {
-                Thread.sleep(3000);
-            } catch (InterruptedException e) {
+                response_json_body = (JSONObject) json_parser.parse(String.valueOf(response_json.get("body")));
+            } catch (ParseException e) {
                 throw new RuntimeException(e);
             }
-            sending_attempt++;
-        }
-        //TODO handle the response here
-        Map response = register_device_publisher.publish_for_response(register_device_message_string, Collections.singleton(application_name));
-        log.warn("The response received while trying to register device " + device_name + " is "+response.toString());
-        JSONObject response_json = new JSONObject(response);
-        JSONParser json_parser = new JSONParser();
-        JSONObject response_json_body = null;
-        try {
-            response_json_body = (JSONObject) json_parser.parse(String.valueOf(response_json.get("body")));
-        } catch (ParseException e) {
-            throw new RuntimeException(e);
-        }
-        String device_id = (String) response_json_body.get("id");
-        return device_id;
+            String device_id = (String) response_json_body.get("id");
+            return device_id;
+        });
         //}
 
         /* This is some realtime information, could be retrieved with a different call to the EMS.
@@ -193,8 +200,11 @@ public class SALRegistrationService implements InitializingBean {
                 StringUtils.isNotBlank(processorProperties.getNebulousBrokerPassword()) )
         {
             log.info("Successful setting of properties for communication with SAL");
-            taskExecutor.execute(this::processQueue);
-            taskExecutor.execute(this::checkProcessQueue);
+            SALCommunicator.configure(processorProperties);
+            SALCommunicator.register_metrics(meterRegistry);
+            dispatcher = new SalRequestDispatcher<>("registration", processorProperties, this::registerAsync, this::registered,
+                    meterRegistry, false);   // Registration is not idempotent: a timed-out one may have created the device
+            salOutboxService.setHandler(SalOutboxEntry.ACTION.REGISTER, device -> dispatcher.submitOnce(device));
         } else {
             String message = String.format("Nebulous broker configuration is missing:  ip-address=%s, username=%s, password=%s",
                     processorProperties.getNebulousBrokerIpAddress(),
@@ -205,47 +215,18 @@ public class SALRegistrationService implements InitializingBean {
         }
     }
 
-    public void processQueue() {
-        processQueueThread = Thread.currentThread();
-        while (true) {
-            Device device = null;
-            try {
-                device = queue.take();
-                log.warn("SALRegistrationService: processQueue(): Will register device: {}", device);
-                lastRegistrationStartTimestamp = System.currentTimeMillis();
-                String device_sal_id = register(device);
-                device.setSal_id(device_sal_id);
-                lastRegistrationStartTimestamp = -1L;
-                device.setRegisteredToSAL(true);
-                deviceManagementService.update(device);
-                log.warn("SALRegistrationService: processQueue(): Device registered to SAL: {}", device);
-            } catch (InterruptedException e) {
-                log.warn("SALRegistrationService: processQueue(): Interrupted. Will not register device to SAL: {}", device);
-                lastRegistrationStartTimestamp = -1L;
-//                break;
-            } catch (Exception e) {
-                log.warn("SALRegistrationService: processQueue(): EXCEPTION caught. Will not register device to SAL: {}", device, e);
-                lastRegistrationStartTimestamp = -1L;
-            }
-        }
+    private void registered(Device device, String device_sal_id) {
+        device.setSal_id(device_sal_id);
+        device.setRegisteredToSAL(true);
+        deviceManagementService.update(device);
+        log.warn("SALRegistrationService: Device registered to SAL: {}", device);
     }
 
-    public void checkProcessQueue() {
-        while (true) {
-            try {
-                Thread.sleep(1000);
-                if (processQueueThread!=null && lastRegistrationStartTimestamp > 0) {
-                    long runningTime = System.currentTimeMillis() - lastRegistrationStartTimestamp;
-                    if (runningTime > processorProperties.getSalRegistrationTimeout()) {
-                        log.warn("SALRegistrationService: checkProcessQueue(): Method 'processQueue' is running for too log. Will attempt to interrupt it");
-                        processQueueThread.interrupt();
-                        lastRegistrationStartTimestamp = -1L;
-                    }
-                }
-            } catch (Exception e) {
-                log.warn("SALRegistrationService: checkProcessQueue(): EXCEPTION caught: ", e);
-            }
-        }
+    @Override
+    public void destroy() {
+        if (dispatcher != null)
+            dispatcher.shutdown();
+        SALCommunicator.close();
     }
 }
 
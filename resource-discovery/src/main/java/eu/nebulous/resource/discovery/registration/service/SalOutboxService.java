@@ -0,0 +1,314 @@
+package eu.nebulous.resource.discovery.registration.service;
+
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.monitor.model.Device;
+import eu.nebulous.resource.discovery.monitor.model.DeviceStatus;
+import eu.nebulous.resource.discovery.monitor.service.DeviceManagementService;
+import eu.nebulous.resource.discovery.registration.model.SalOutboxEntry;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Durable queue of SAL registrations and deregistrations (the 'sal_outbox' collection).
+ * Devices are written to the outbox when queued, so pending requests survive restarts.
+ * Entries are claimed with a lease (an atomic findAndModify), so several instances can drain the same outbox,
+ * and entries of crashed instances are claimed again when their lease expires. Leases of entries in progress are
+ * renewed periodically, so slow SAL requests are never claimed twice. A new intent for an entry in progress keeps
+ * the lease, and is claimed once the current attempt ends. Failed entries are retried with exponential backoff,
+ * up to a maximum number of attempts. This is the only retry layer: handlers make a single attempt per claim.
+ * At startup, devices not registered to SAL, and without an outbox entry, are added to the outbox.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class SalOutboxService implements InitializingBean {
+    private final static String INSTANCE_ID = UUID.randomUUID().toString();
+    private final static List<DeviceStatus> NOT_REGISTERED_STATUSES = List.of(
+            DeviceStatus.FAILED, DeviceStatus.OFFBOARDING, DeviceStatus.OFFBOARDED, DeviceStatus.OFFBOARD_ERROR, DeviceStatus.COMPROMISED);
+
+    private final ResourceDiscoveryProperties properties;
+    private final DeviceManagementService deviceManagementService;
+    private final MongoTemplate mongoTemplate;
+    private final TaskScheduler taskScheduler;
+    private final MeterRegistry meterRegistry;
+
+    private final Map<SalOutboxEntry.ACTION, Function<Device, CompletableFuture<?>>> handlers =
+            new EnumMap<>(SalOutboxEntry.ACTION.class);
+    private final AtomicBoolean polling = new AtomicBoolean();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Set<String> inFlightDevices = ConcurrentHashMap.newKeySet();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public boolean isEnabled() {
+        return properties.isSalRegistrationEnabled() && properties.isSalOutboxEnabled();
+    }
+
+    /** Called by the SAL (de)registration services, to process claimed entries. Handlers must not retry */
+    synchronized void setHandler(@NonNull SalOutboxEntry.ACTION action, @NonNull Function<Device, CompletableFuture<?>> handler) {
+        handlers.put(action, handler);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        Gauge.builder("discovery.sal.outbox.in.flight", inFlight, AtomicInteger::get)
+                .description("SAL outbox entries being processed by this instance")
+                .register(meterRegistry);
+        Map.of("completed", completed, "failed", failed)
+                .forEach((outcome, count) -> FunctionCounter.builder("discovery.sal.outbox.attempts", count, AtomicLong::get)
+                        .tag("outcome", outcome)
+                        .description("SAL outbox attempts made by this instance, by outcome")
+                        .register(meterRegistry));
+        Gauge.builder("discovery.sal.outbox.entries", this, service -> service.countEntries(false))
+                .tag("state", "pending")
+                .description("SAL outbox entries, by state")
+                .register(meterRegistry);
+        Gauge.builder("discovery.sal.outbox.entries", this, service -> service.countEntries(true))
+                .tag("state", "given-up")
+                .description("SAL outbox entries, by state")
+                .register(meterRegistry);
+
+        if (!isEnabled()) {
+            log.info("SalOutboxService: SAL outbox is disabled");
+            return;
+        }
+        Instant startTime = Instant.now().plusSeconds(properties.getProcessingStartupDelay());
+        if (properties.isSalOutboxCatchUpOnStartup())
+            taskScheduler.schedule(this::catchUp, startTime);
+        taskScheduler.scheduleWithFixedDelay(this::poll, startTime, Duration.ofMillis(properties.getSalOutboxPollPeriod()));
+        taskScheduler.scheduleWithFixedDelay(this::renewLeases, startTime,
+                Duration.ofMillis(Math.max(1000L, properties.getSalOutboxLeaseDuration() / 3)));
+    }
+
+    /**
+     * Stores the latest intent for the device, replacing any pending one, and triggers a poll.
+     * The lease is kept, so an entry in progress is not claimed again until its current attempt ends.
+     */
+    public void enqueue(@NonNull Device device, @NonNull SalOutboxEntry.ACTION action) {
+        Instant now = Instant.now();
+        Update update = new Update()
+                .set("action", action)
+                .set("provider", device.getProvider())
+                .set("ref", device.getRef())
+                .set("salId", device.getSal_id())
+                .set("attempts", 0)
+                .set("nextAttemptDate", now)
+                .set("leaseToken", UUID.randomUUID().toString())
+                .unset("lastError")
+                .setOnInsert("creationDate", now);
+        mongoTemplate.upsert(Query.query(Criteria.where("deviceId").is(device.getId())), update, SalOutboxEntry.class);
+        log.debug("SalOutboxService: Queued {} of device: {}", action, device.getId());
+        taskScheduler.schedule(this::poll, Instant.now());
+    }
+
+    /** Adds a registration entry for the devices not registered to SAL, unless they already have an entry */
+    public void catchUp() {
+        Query query = Query.query(Criteria.where("registeredToSAL").is(false).and("status").nin(NOT_REGISTERED_STATUSES));
+        query.fields().include("id", "provider", "ref", "sal_id");
+        int added = 0;
+        for (Device device : mongoTemplate.find(query, Device.class)) {
+            Instant now = Instant.now();
+            try {
+                mongoTemplate.insert(SalOutboxEntry.builder()
+                        .deviceId(device.getId())
+                        .action(SalOutboxEntry.ACTION.REGISTER)
+                        .provider(device.getProvider())
+                        .ref(device.getRef())
+                        .salId(device.getSal_id())
+                        .creationDate(now)
+                        .nextAttemptDate(now)
+                        .leaseToken(UUID.randomUUID().toString())
+                        .build());
+                added++;
+            } catch (DuplicateKeyException e) {
+                // The device already has a pending entry
+            }
+        }
+        log.info("SalOutboxService: Catch-up: Queued {} devices not registered to SAL", added);
+        if (added > 0) poll();
+    }
+
+    /** Claims due entries, up to the batch size minus the entries still in progress, and dispatches them */
+    public void poll() {
+        if (!polling.compareAndSet(false, true)) return;
+        try {
+            while (inFlight.get() < properties.getSalOutboxBatchSize()) {
+                SalOutboxEntry entry = claim();
+                if (entry == null) break;
+                dispatch(entry);
+            }
+        } catch (Exception e) {
+            log.warn("SalOutboxService: EXCEPTION while polling outbox: ", e);
+        } finally {
+            polling.set(false);
+        }
+    }
+
+    private SalOutboxEntry claim() {
+        Instant now = Instant.now();
+        Query query = Query.query(new Criteria().andOperator(
+                Criteria.where("nextAttemptDate").lte(now),
+                Criteria.where("attempts").lt(properties.getSalOutboxMaxAttempts()),
+                new Criteria().orOperator(
+                        Criteria.where("leaseExpiryDate").is(null),
+                        Criteria.where("leaseExpiryDate").lt(now))
+        )).with(Sort.by("nextAttemptDate"));
+        Update update = new Update()
+                .set("leaseOwner", INSTANCE_ID)
+                .set("leaseToken", UUID.randomUUID().toString())
+                .set("leaseExpiryDate", now.plusMillis(properties.getSalOutboxLeaseDuration()))
+                .inc("attempts", 1);
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), SalOutboxEntry.class);
+    }
+
+    private void dispatch(SalOutboxEntry entry) {
+        Function<Device, CompletableFuture<?>> handler;
+        synchronized (this) {
+            handler = handlers.get(entry.getAction());
+        }
+        if (handler == null) {
+            release(entry, "No handler for action: " + entry.getAction(), true);
+            return;
+        }
+
+        Device device = deviceManagementService.getById(entry.getDeviceId()).orElse(null);
+        if (device == null && entry.getAction() == SalOutboxEntry.ACTION.REGISTER) {
+            log.warn("SalOutboxService: Device no longer exists. Dropping registration: {}", entry.getDeviceId());
+            remove(entry);
+            return;
+        }
+        if (device == null) {
+            // Already archived or deleted. Deregistration only needs the SAL id and reference
+            device = Device.builder().id(entry.getDeviceId()).sal_id(entry.getSalId())
+                    .ref(entry.getRef()).provider(entry.getProvider()).build();
+        }
+
+        inFlight.incrementAndGet();
+        inFlightDevices.add(entry.getDeviceId());
+        CompletableFuture<?> result;
+        try {
+            result = handler.apply(device);
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((r, error) -> {
+            try {
+                boolean current = error == null
+                        ? remove(entry)
+                        : release(entry, StringUtils.defaultIfBlank(error.getMessage(), error.getClass().getSimpleName()),
+                                isRetryable(entry, error));
+                if (!current)
+                    releaseReplaced(entry);
+            } finally {
+                inFlightDevices.remove(entry.getDeviceId());
+                inFlight.decrementAndGet();
+                (error == null ? completed : failed).incrementAndGet();
+            }
+        });
+    }
+
+    /** Extends the leases of the entries in progress on this instance */
+    private void renewLeases() {
+        if (inFlightDevices.isEmpty()) return;
+        try {
+            mongoTemplate.updateMulti(
+                    Query.query(Criteria.where("deviceId").in(inFlightDevices).and("leaseOwner").is(INSTANCE_ID)),
+                    Update.update("leaseExpiryDate", Instant.now().plusMillis(properties.getSalOutboxLeaseDuration())),
+                    SalOutboxEntry.class);
+        } catch (Exception e) {
+            log.warn("SalOutboxService: EXCEPTION while renewing leases: ", e);
+        }
+    }
+
+    /** Frees the lease of an entry replaced by a new intent while in progress, so that the new intent is claimed */
+    private void releaseReplaced(SalOutboxEntry entry) {
+        Update update = new Update()
+                .unset("leaseOwner")
+                .unset("leaseExpiryDate");
+        mongoTemplate.updateFirst(Query.query(Criteria.where("deviceId").is(entry.getDeviceId())
+                .and("leaseOwner").is(INSTANCE_ID)), update, SalOutboxEntry.class);
+        log.debug("SalOutboxService: Entry replaced while in progress. Released for the new intent: {}", entry.getDeviceId());
+    }
+
+    /** Removes the entry, unless a new intent replaced it in the meantime. Returns false if replaced */
+    private boolean remove(SalOutboxEntry entry) {
+        return mongoTemplate.remove(leaseQuery(entry), SalOutboxEntry.class).getDeletedCount() > 0;
+    }
+
+    /**
+     * A timed-out registration may have been carried out by SAL. Without a way to check it, it is not retried,
+     * so that the device is not registered twice.
+     */
+    private boolean isRetryable(SalOutboxEntry entry, Throwable error) {
+        return entry.getAction() != SalOutboxEntry.ACTION.REGISTER || !SalRequestDispatcher.isTimeout(error);
+    }
+
+    /**
+     * Schedules the next attempt of the entry, or gives up on it if not retryable, unless a new intent
+     * replaced it in the meantime. Returns false if replaced
+     */
+    private boolean release(SalOutboxEntry entry, String error, boolean retryable) {
+        long delay = Math.min(
+                properties.getSalOutboxRetryDelay() << Math.min(Math.max(0, entry.getAttempts() - 1), 20),
+                properties.getSalOutboxMaxRetryDelay());
+        Update update = new Update()
+                .set("nextAttemptDate", Instant.now().plusMillis(delay))
+                .set("lastError", error)
+                .unset("leaseOwner")
+                .unset("leaseExpiryDate");
+        if (!retryable)
+            update.set("attempts", Math.max(entry.getAttempts(), properties.getSalOutboxMaxAttempts()));
+        if (mongoTemplate.updateFirst(leaseQuery(entry), update, SalOutboxEntry.class).getMatchedCount() == 0)
+            return false;
+        if (!retryable)
+            log.warn("SalOutboxService: Giving up {} of device {}, as retrying it is not safe: {}",
+                    entry.getAction(), entry.getDeviceId(), error);
+        else if (entry.getAttempts() >= properties.getSalOutboxMaxAttempts())
+            log.warn("SalOutboxService: Giving up {} of device {} after {} attempts: {}",
+                    entry.getAction(), entry.getDeviceId(), entry.getAttempts(), error);
+        else
+            log.warn("SalOutboxService: {} of device {} failed. Next attempt in {}ms: {}",
+                    entry.getAction(), entry.getDeviceId(), delay, error);
+        return true;
+    }
+
+    private Query leaseQuery(SalOutboxEntry entry) {
+        return Query.query(Criteria.where("deviceId").is(entry.getDeviceId()).and("leaseToken").is(entry.getLeaseToken()));
+    }
+
+    private long countEntries(boolean givenUp) {
+        Criteria attempts = Criteria.where("attempts");
+        return mongoTemplate.count(Query.query(givenUp
+                ? attempts.gte(properties.getSalOutboxMaxAttempts())
+                : attempts.lt(properties.getSalOutboxMaxAttempts())), SalOutboxEntry.class);
+    }
+}
@@ -0,0 +1,155 @@
+package eu.nebulous.resource.discovery.registration.service;
+
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.monitor.model.Device;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Runs SAL requests (registrations, deregistrations) of many devices in parallel, on virtual threads.
+ * At most 'salWorkers' requests are in flight overall, and at most 'salMaxConcurrentPerProvider' per provider.
+ * Failed or timed-out requests are retried with exponential backoff, without holding a concurrency slot while waiting,
+ * unless submitted with 'submitOnce' (e.g. by the SAL outbox, which does its own retries).
+ * Timed-out requests are retried only if 'retryOnTimeout' is set, i.e. if repeating a request SAL may have
+ * already carried out is harmless.
+ */
+@Slf4j
+class SalRequestDispatcher<T> {
+    private final String name;
+    private final ResourceDiscoveryProperties properties;
+    private final Function<Device, CompletableFuture<T>> request;
+    private final BiConsumer<Device, T> onSuccess;
+    private final MeterRegistry meterRegistry;
+    private final boolean retryOnTimeout;
+
+    private final ExecutorService executor;
+    private final Semaphore workers;
+    private final Map<String, Semaphore> providerPermits = new ConcurrentHashMap<>();
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final Counter retriedCounter;
+
+    SalRequestDispatcher(@NonNull String name, @NonNull ResourceDiscoveryProperties properties,
+                         @NonNull Function<Device, CompletableFuture<T>> request, @NonNull BiConsumer<Device, T> onSuccess,
+                         @NonNull MeterRegistry meterRegistry, boolean retryOnTimeout)
+    {
+        this.name = name;
+        this.properties = properties;
+        this.request = request;
+        this.onSuccess = onSuccess;
+        this.meterRegistry = meterRegistry;
+        this.retryOnTimeout = retryOnTimeout;
+        this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("sal-" + name + "-", 0).factory());
+        this.workers = new Semaphore(Math.max(1, properties.getSalWorkers()));
+
+        Gauge.builder("discovery.sal.requests.pending", pending, AtomicInteger::get)
+                .description("SAL requests queued or waiting to be retried")
+                .tag("operation", name).register(meterRegistry);
+        Gauge.builder("discovery.sal.requests.active", active, AtomicInteger::get)
+                .description("SAL requests in flight")
+                .tag("operation", name).register(meterRegistry);
+        this.retriedCounter = Counter.builder("discovery.sal.requests.retries")
+                .description("Failed SAL request attempts, retried later")
+                .tag("operation", name).register(meterRegistry);
+    }
+
+    /** Schedules the request for the device. The returned future completes after the last attempt */
+    public CompletableFuture<T> submit(@NonNull Device device) {
+        return submit(device, Math.max(1, properties.getSalRetryMaxAttempts()));
+    }
+
+    /** Schedules a single attempt of the request for the device, for callers that retry on their own */
+    public CompletableFuture<T> submitOnce(@NonNull Device device) {
+        return submit(device, 1);
+    }
+
+    private CompletableFuture<T> submit(Device device, int maxAttempts) {
+        pending.incrementAndGet();
+        Timer.Sample sample = Timer.start(meterRegistry);
+        return CompletableFuture.supplyAsync(() -> {
+            String outcome = "failure";
+            try {
+                T result = run(device, maxAttempts);
+                outcome = "success";
+                return result;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            } finally {
+                pending.decrementAndGet();
+                // From submission to the last attempt, including time spent waiting for a slot and between retries
+                sample.stop(meterRegistry.timer("discovery.sal.requests", "operation", name, "outcome", outcome));
+            }
+        }, executor);
+    }
+
+    private T run(Device device, int maxAttempts) throws InterruptedException {
+        Semaphore providerSlots = providerPermits.computeIfAbsent(StringUtils.defaultString(device.getProvider()),
+                provider -> new Semaphore(Math.max(1, properties.getSalMaxConcurrentPerProvider())));
+        long delay = properties.getSalRetryInitialDelay();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                T result = attempt(device, providerSlots);
+                onSuccess.accept(device, result);
+                log.debug("SalRequestDispatcher: {}: Completed for device: {}", name, device.getId());
+                return result;
+            } catch (ExecutionException | RuntimeException e) {
+                Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                if (!retryOnTimeout && isTimeout(cause)) {
+                    log.warn("SalRequestDispatcher: {}: Timed out. Not retried, as SAL may have completed it, for device: {}",
+                            name, device.getId());
+                    throw new CompletionException(cause);
+                }
+                if (attempt >= maxAttempts) {
+                    log.warn("SalRequestDispatcher: {}: Giving up after {} attempts for device: {}", name, attempt, device, cause);
+                    throw new CompletionException(cause);
+                }
+                retriedCounter.increment();
+                long wait = delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+                log.warn("SalRequestDispatcher: {}: Attempt {} failed for device {}. Retrying in {}ms: {}",
+                        name, attempt, device.getId(), wait, cause.toString());
+                Thread.sleep(wait);
+                delay = Math.min(delay * 2, properties.getSalRetryMaxDelay());
+            }
+        }
+    }
+
+    private T attempt(Device device, Semaphore providerSlots) throws InterruptedException, ExecutionException {
+        providerSlots.acquire();
+        try {
+            workers.acquire();
+            try {
+                active.incrementAndGet();
+                return request.apply(device).get();
+            } finally {
+                active.decrementAndGet();
+                workers.release();
+            }
+        } finally {
+            providerSlots.release();
+        }
+    }
+
+    /** Checks whether the failure is a SAL request timeout, i.e. the outcome of the request is unknown */
+    static boolean isTimeout(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause())
+            if (e instanceof TimeoutException) return true;
+        return false;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
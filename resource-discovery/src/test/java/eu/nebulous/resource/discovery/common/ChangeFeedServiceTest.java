@@ -0,0 +1,153 @@
+package eu.nebulous.resource.discovery.common;
+
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.monitor.model.Device;
+import eu.nebulous.resource.discovery.monitor.model.DeviceChangeEvent;
+import eu.nebulous.resource.discovery.monitor.model.DeviceMetrics;
+import eu.nebulous.resource.discovery.monitor.model.DeviceStatus;
+import eu.nebulous.resource.discovery.monitor.model.DeviceStatusUpdate;
+import eu.nebulous.resource.discovery.monitor.model.DeviceTelemetryEvent;
+import eu.nebulous.resource.discovery.monitor.service.DeviceManagementService;
+import eu.nebulous.resource.discovery.registration.model.RegistrationRequestChangeEvent;
+import eu.nebulous.resource.discovery.registration.model.RegistrationRequestStatus;
+import eu.nebulous.resource.discovery.registration.service.RegistrationRequestService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class ChangeFeedServiceTest {
+	private ResourceDiscoveryProperties properties;
+	private DeviceManagementService deviceManagementService;
+	private SimpleMeterRegistry meterRegistry;
+	private ChangeFeedService changeFeedService;
+
+	@BeforeEach
+	void setUp() {
+		properties = new ResourceDiscoveryProperties();
+		properties.setChangeFeedCapacity(4);
+		deviceManagementService = mock(DeviceManagementService.class);
+		when(deviceManagementService.getById(anyString())).thenReturn(Optional.empty());
+		meterRegistry = new SimpleMeterRegistry();
+		changeFeedService = new ChangeFeedService(properties, deviceManagementService,
+				mock(RegistrationRequestService.class), meterRegistry);
+		changeFeedService.afterPropertiesSet();
+	}
+
+	@AfterEach
+	void tearDown() {
+		changeFeedService.destroy();
+	}
+
+	@Test
+	void changesAreNumberedInOrder() {
+		changeFeedService.onDeviceChange(new DeviceChangeEvent(DeviceChangeEvent.TYPE.CREATED, device("d1", "alice")));
+		changeFeedService.onDeviceChange(new DeviceChangeEvent(DeviceChangeEvent.TYPE.UPDATED, device("d1", "alice")));
+		changeFeedService.onDeviceChange(new DeviceChangeEvent(DeviceChangeEvent.TYPE.DELETED, device("d1", "alice")));
+
+		ChangeFeedService.Page page = changeFeedService.getChanges(0, null);
+		assertFalse(page.reset());
+		assertEquals(3, page.seq());
+		assertEquals(List.of(1L, 2L, 3L), page.events().stream().map(ChangeFeedEntry::getSeq).toList());
+		assertEquals(List.of(ChangeFeedEntry.TYPE.CREATED, ChangeFeedEntry.TYPE.UPDATED, ChangeFeedEntry.TYPE.DELETED),
+				page.events().stream().map(ChangeFeedEntry::getType).toList());
+		assertEquals("alice", page.events().get(2).getOwner());
+
+		assertEquals(List.of(3L), changeFeedService.getChanges(2, null).events().stream().map(ChangeFeedEntry::getSeq).toList());
+		assertTrue(changeFeedService.getChanges(3, null).events().isEmpty());
+		assertEquals(3, meterRegistry.get("discovery.change.feed.events").functionCounter().count());
+	}
+
+	@Test
+	void clientsOutsideTheRingBufferAreReset() {
+		for (int i = 0; i < 6; i++)
+			changeFeedService.onDeviceChange(new DeviceChangeEvent(DeviceChangeEvent.TYPE.UPDATED, device("d" + i, "alice")));
+
+		ChangeFeedService.Page behind = changeFeedService.getChanges(1, null);
+		assertTrue(behind.reset());
+		assertEquals(6, behind.seq());
+		assertTrue(behind.events().isEmpty());
+
+		ChangeFeedService.Page oldest = changeFeedService.getChanges(2, null);
+		assertFalse(oldest.reset());
+		assertEquals(List.of(3L, 4L, 5L, 6L), oldest.events().stream().map(ChangeFeedEntry::getSeq).toList());
+
+		assertTrue(changeFeedService.getChanges(7, null).reset());     // ahead of the feed, e.g. after a restart
+	}
+
+	@Test
+	void filterSelectsTheChangesOfAnOwner() {
+		changeFeedService.onDeviceChange(new DeviceChangeEvent(DeviceChangeEvent.TYPE.CREATED, device("d1", "alice")));
+		changeFeedService.onDeviceChange(new DeviceChangeEvent(DeviceChangeEvent.TYPE.CREATED, device("d2", "bob")));
+		changeFeedService.onRegistrationRequestChange(new RegistrationRequestChangeEvent(
+				"r1", RegistrationRequestChangeEvent.TYPE.CREATED, RegistrationRequestStatus.NEW_REQUEST, "alice"));
+		// Status transitions only carry the device id. The owner comes from the tracked device
+		changeFeedService.onDeviceChange(new DeviceChangeEvent("d1", DeviceChangeEvent.TYPE.UPDATED, DeviceStatus.ONBOARDED, null));
+
+		List<ChangeFeedEntry> events = changeFeedService.getChanges(0, entry -> "alice".equals(entry.getOwner())).events();
+		assertEquals(List.of("d1", "r1", "d1"), events.stream().map(ChangeFeedEntry::getId).toList());
+		assertEquals(ChangeFeedEntry.ENTITY.REQUEST, events.get(1).getEntity());
+		assertEquals("ONBOARDED", events.get(2).getStatus());
+	}
+
+	@Test
+	void telemetryIsReportedOnStateChangesAndThrottledMetrics() {
+		properties.setChangeFeedMetricsInterval(60_000);
+		changeFeedService.onDeviceChange(new DeviceChangeEvent(DeviceChangeEvent.TYPE.CREATED, device("d1", "alice")));
+
+		changeFeedService.onDeviceTelemetry(new DeviceTelemetryEvent("d1", status("UP"), metrics(0.5)));
+		changeFeedService.onDeviceTelemetry(new DeviceTelemetryEvent("d1", status("UP"), metrics(0.6)));
+		changeFeedService.onDeviceTelemetry(new DeviceTelemetryEvent("unknown", status("UP"), metrics(0.7)));
+
+		List<ChangeFeedEntry> events = changeFeedService.getChanges(1, null).events();
+		assertEquals(List.of(ChangeFeedEntry.TYPE.STATE, ChangeFeedEntry.TYPE.METRICS),
+				events.stream().map(ChangeFeedEntry::getType).toList());
+		assertEquals("HEALTHY", events.get(0).getStatus());
+		assertEquals("UP", events.get(0).getState());
+		assertEquals(Map.of("cpu", 0.5), events.get(1).getMetrics());
+	}
+
+	@Test
+	void longPollWaitsForTheNextChange() throws InterruptedException {
+		DeferredResult<?> start = changeFeedService.poll(null, 0, null);
+		assertEquals(0L, ((ChangeFeedService.Page) start.getResult()).seq());
+
+		DeferredResult<ChangeFeedService.Page> result = changeFeedService.poll(0L, 10_000, null);
+		assertFalse(result.hasResult());
+
+		changeFeedService.onDeviceChange(new DeviceChangeEvent(DeviceChangeEvent.TYPE.CREATED, device("d1", "alice")));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!result.hasResult() && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+
+		ChangeFeedService.Page page = (ChangeFeedService.Page) result.getResult();
+		assertNotNull(page, "Long poll was not completed");
+		assertEquals(List.of("d1"), page.events().stream().map(ChangeFeedEntry::getId).toList());
+	}
+
+	private static Device device(String id, String owner) {
+		return Device.builder().id(id).owner(owner).status(DeviceStatus.ONBOARDING).lastUpdateDate(Instant.now()).build();
+	}
+
+	private static DeviceStatusUpdate status(String state) {
+		DeviceStatusUpdate statusUpdate = new DeviceStatusUpdate();
+		statusUpdate.setState(state);
+		return statusUpdate;
+	}
+
+	private static DeviceMetrics metrics(double cpu) {
+		DeviceMetrics metrics = new DeviceMetrics();
+		metrics.setMetrics(Map.of("cpu", cpu));
+		return metrics;
+	}
+}
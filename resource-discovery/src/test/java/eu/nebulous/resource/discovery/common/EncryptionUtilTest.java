@@ -0,0 +1,93 @@
+package eu.nebulous.resource.discovery.common;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import org.apache.tomcat.util.codec.binary.Base64;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EncryptionUtilTest {
+	private final static String PASSWORD = "test-password";
+	private final static String SALT = "test-salt";
+	private final static String MESSAGE = "{\"device\":\"d1\",\"password\":\"secret\"}";
+
+	@Test
+	void gcmRoundTrip() throws Exception {
+		EncryptionUtil util = encryptionUtil(ResourceDiscoveryProperties.ENCRYPTION_MODE.AES_GCM);
+
+		String first = util.encryptText(MESSAGE);
+		String second = util.encryptText(MESSAGE);
+		assertTrue(first.startsWith(EncryptionUtil.GCM_PREFIX));
+		assertNotEquals(first, second, "IV is not random");
+		assertEquals(MESSAGE, util.decryptText(first));
+		assertEquals(MESSAGE, util.decryptText(second));
+
+		Map<String, Object> map = Map.of("id", "d1", "cores", 4);
+		assertEquals(map, util.decryptMap(util.encryptMap(map)));
+	}
+
+	@Test
+	void tamperedGcmMessagesAreRejected() throws Exception {
+		EncryptionUtil util = encryptionUtil(ResourceDiscoveryProperties.ENCRYPTION_MODE.AES_GCM);
+		byte[] encrypted = Base64.decodeBase64(util.encryptText(MESSAGE).substring(EncryptionUtil.GCM_PREFIX.length()));
+		encrypted[encrypted.length / 2] ^= 1;
+
+		assertNull(util.decryptText(EncryptionUtil.GCM_PREFIX + Base64.encodeBase64String(encrypted)));
+		assertNull(util.decryptText(EncryptionUtil.GCM_PREFIX + Base64.encodeBase64String(new byte[8])));
+	}
+
+	@Test
+	void legacyMessagesStayCompatibleWithExistingPeers() throws Exception {
+		EncryptionUtil util = encryptionUtil(ResourceDiscoveryProperties.ENCRYPTION_MODE.LEGACY);
+		SecretKey key = util.getKeyFromPassword(PASSWORD.toCharArray(), SALT.getBytes(StandardCharsets.UTF_8));
+
+		// What existing peers send and expect: Base64 of AES with the provider's default transformation
+		Cipher cipher = Cipher.getInstance(EncryptionUtil.CIPHER_ALGORITHM);
+		cipher.init(Cipher.ENCRYPT_MODE, key);
+		String fromPeer = Base64.encodeBase64String(cipher.doFinal(MESSAGE.getBytes(StandardCharsets.UTF_8)));
+		assertEquals(MESSAGE, util.decryptText(fromPeer));
+
+		String toPeer = util.encryptText(MESSAGE);
+		assertFalse(toPeer.startsWith(EncryptionUtil.GCM_PREFIX));
+		cipher.init(Cipher.DECRYPT_MODE, key);
+		assertEquals(MESSAGE, new String(cipher.doFinal(Base64.decodeBase64(toPeer)), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	void bothModesDecryptEachOther() throws Exception {
+		EncryptionUtil legacy = encryptionUtil(ResourceDiscoveryProperties.ENCRYPTION_MODE.LEGACY);
+		EncryptionUtil gcm = encryptionUtil(ResourceDiscoveryProperties.ENCRYPTION_MODE.AES_GCM);
+
+		assertEquals(MESSAGE, gcm.decryptText(legacy.encryptText(MESSAGE)));
+		assertEquals(MESSAGE, legacy.decryptText(gcm.encryptText(MESSAGE)));
+	}
+
+	@Test
+	void messagesPassThroughWhenEncryptionIsDisabled() throws Exception {
+		ResourceDiscoveryProperties properties = new ResourceDiscoveryProperties();
+		EncryptionUtil util = new EncryptionUtil(properties, new ObjectMapper());
+		util.afterPropertiesSet();
+
+		assertEquals(MESSAGE, util.encryptText(MESSAGE));
+		assertEquals(MESSAGE, util.decryptText(MESSAGE));
+		assertEquals(Map.of("id", "d1"), util.decryptMap(util.encryptMap(Map.of("id", "d1"))));
+	}
+
+	private static EncryptionUtil encryptionUtil(ResourceDiscoveryProperties.ENCRYPTION_MODE mode) throws Exception {
+		ResourceDiscoveryProperties properties = new ResourceDiscoveryProperties();
+		properties.setEnableEncryption(true);
+		properties.setEncryptionMode(mode);
+		// Cleared by the util, once the key is derived
+		properties.setSymmetricKeyPassword(PASSWORD.toCharArray());
+		properties.setSalt(SALT.getBytes(StandardCharsets.UTF_8));
+		EncryptionUtil util = new EncryptionUtil(properties, new ObjectMapper());
+		util.afterPropertiesSet();
+		return util;
+	}
+}
@@ -0,0 +1,86 @@
+package eu.nebulous.resource.discovery.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashedTimingWheelTest {
+	private final static long TICK = 100;
+
+	@Test
+	void deadlinesFireNotEarlyAndAtMostOneTickLate() {
+		HashedTimingWheel<String> wheel = new HashedTimingWheel<>(TICK, 8, 0);
+		wheel.schedule("a", 250);
+
+		assertEquals(List.of(), wheel.advance(200));
+		assertEquals(List.of(), wheel.advance(299));
+		assertEquals(List.of("a"), wheel.advance(300));
+		assertEquals(0, wheel.size());
+		assertEquals(List.of(), wheel.advance(400));
+	}
+
+	@Test
+	void deadlinesBeyondOneRoundFireInTheirRound() {
+		HashedTimingWheel<String> wheel = new HashedTimingWheel<>(TICK, 4, 0);
+		wheel.schedule("later", 1000);       // same bucket as tick 2, two rounds later
+
+		for (long now = TICK; now < 1000; now += TICK)
+			assertEquals(List.of(), wheel.advance(now), "Fired early at " + now);
+		assertEquals(List.of("later"), wheel.advance(1000));
+	}
+
+	@Test
+	void cancelledKeysDoNotFire() {
+		HashedTimingWheel<String> wheel = new HashedTimingWheel<>(TICK, 8, 0);
+		wheel.schedule("a", 200);
+		wheel.schedule("b", 200);
+
+		assertTrue(wheel.cancel("a"));
+		assertFalse(wheel.cancel("a"));
+		assertNull(wheel.getDeadline("a"));
+		assertEquals(List.of("b"), wheel.advance(300));
+	}
+
+	@Test
+	void reschedulingReplacesTheDeadline() {
+		HashedTimingWheel<String> wheel = new HashedTimingWheel<>(TICK, 8, 0);
+		wheel.schedule("a", 200);
+		wheel.schedule("a", 500);
+
+		assertEquals(1, wheel.size());
+		assertEquals(500L, wheel.getDeadline("a"));
+		assertEquals(List.of(), wheel.advance(400));
+		assertEquals(List.of("a"), wheel.advance(500));
+	}
+
+	@Test
+	void pastDeadlinesFireOnNextAdvance() {
+		HashedTimingWheel<String> wheel = new HashedTimingWheel<>(TICK, 8, 1000);
+		wheel.schedule("late", 500);
+
+		assertEquals(List.of("late"), wheel.advance(1100));
+	}
+
+	@Test
+	void longPauseFiresEveryDueKeyOnce() {
+		HashedTimingWheel<Integer> wheel = new HashedTimingWheel<>(TICK, 4, 0);
+		for (int i = 1; i <= 20; i++)
+			wheel.schedule(i, i * TICK);
+		wheel.schedule(100, 10_000);
+
+		List<Integer> expired = wheel.advance(5_000);
+		assertEquals(20, expired.size());
+		assertEquals(20, new HashSet<>(expired).size());
+		assertEquals(Set.of(100), Set.copyOf(wheel.advance(10_000)));
+	}
+
+	@Test
+	void invalidSettingsAreRejected() {
+		assertThrows(IllegalArgumentException.class, () -> new HashedTimingWheel<String>(0, 8, 0));
+		assertThrows(IllegalArgumentException.class, () -> new HashedTimingWheel<String>(TICK, 0, 0));
+	}
+}
@@ -0,0 +1,103 @@
+package eu.nebulous.resource.discovery.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyStripedExecutorTest {
+	private final static ThreadFactory THREAD_FACTORY = Thread.ofPlatform().daemon().name("test-stripe-", 0).factory();
+
+	@Test
+	void tasksWithSameKeyRunInSubmissionOrder() throws Exception {
+		int keys = 10;
+		int tasksPerKey = 200;
+		Map<String, List<Integer>> executed = new ConcurrentHashMap<>();
+		Map<String, List<String>> threads = new ConcurrentHashMap<>();
+		CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+
+		try (KeyStripedExecutor executor = new KeyStripedExecutor("test", 4, 16, THREAD_FACTORY)) {
+			for (int i = 0; i < tasksPerKey; i++) {
+				for (int k = 0; k < keys; k++) {
+					String key = "device-" + k;
+					int sequence = i;
+					executor.execute(key, () -> {
+						executed.computeIfAbsent(key, x -> Collections.synchronizedList(new ArrayList<>())).add(sequence);
+						threads.computeIfAbsent(key, x -> Collections.synchronizedList(new ArrayList<>())).add(Thread.currentThread().getName());
+						done.countDown();
+					});
+				}
+			}
+			assertTrue(done.await(10, TimeUnit.SECONDS), "Not all tasks were executed");
+		}
+
+		assertEquals(keys, executed.size());
+		executed.forEach((key, sequences) -> {
+			assertEquals(tasksPerKey, sequences.size(), key);
+			for (int i = 0; i < tasksPerKey; i++)
+				assertEquals(i, sequences.get(i), "Out of order task for " + key);
+		});
+		threads.forEach((key, names) -> assertEquals(1, names.stream().distinct().count(), "Tasks of " + key + " ran on several threads"));
+	}
+
+	@Test
+	void blockedStripeDoesNotHoldUpOtherStripes() throws Exception {
+		String blockedKey = "a";
+		String otherKey = findKeyOnOtherStripe(blockedKey, 2);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch otherDone = new CountDownLatch(1);
+
+		try (KeyStripedExecutor executor = new KeyStripedExecutor("test", 2, 4, THREAD_FACTORY)) {
+			executor.execute(blockedKey, () -> {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			executor.execute(otherKey, otherDone::countDown);
+			assertTrue(otherDone.await(5, TimeUnit.SECONDS), "Task on another stripe waited for the blocked stripe");
+			release.countDown();
+		}
+	}
+
+	@Test
+	void failingTaskDoesNotStopTheStripe() throws Exception {
+		CountDownLatch done = new CountDownLatch(1);
+		try (KeyStripedExecutor executor = new KeyStripedExecutor("test", 1, 4, THREAD_FACTORY)) {
+			executor.execute("key", () -> { throw new IllegalStateException("test failure"); });
+			executor.execute("key", done::countDown);
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	void executeAfterCloseIsRejected() {
+		KeyStripedExecutor executor = new KeyStripedExecutor("test", 2, 4, THREAD_FACTORY);
+		executor.close();
+		assertThrows(IllegalStateException.class, () -> executor.execute("key", () -> {}));
+	}
+
+	@Test
+	void invalidSettingsAreRejected() {
+		assertThrows(IllegalArgumentException.class, () -> new KeyStripedExecutor("test", 0, 4, THREAD_FACTORY));
+		assertThrows(IllegalArgumentException.class, () -> new KeyStripedExecutor("test", 2, 0, THREAD_FACTORY));
+	}
+
+	private static String findKeyOnOtherStripe(String key, int stripes) {
+		int stripe = Math.floorMod(key.hashCode(), stripes);
+		for (int i = 0; ; i++) {
+			String candidate = key + i;
+			if (Math.floorMod(candidate.hashCode(), stripes) != stripe)
+				return candidate;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package eu.nebulous.resource.discovery.common;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.ResponseEntity;
+
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ListQueryTest {
+	private final static List<String> HIDDEN_FIELDS = List.of("password");
+
+	@Test
+	void unpagedRequestsAreNotLimited() {
+		ListQuery listQuery = new ListQuery();
+		assertEquals(0, listQuery.getPageLimit(100, 1000));
+		listQuery.setStatus(List.of("ONBOARDED"));
+		assertEquals(0, listQuery.getPageLimit(100, 1000));
+		listQuery.setLimit(0);
+		assertEquals(0, listQuery.getPageLimit(100, 1000));
+	}
+
+	@Test
+	void pageLimitUsesDefaultAndMaximum() {
+		ListQuery listQuery = new ListQuery();
+		listQuery.setAfter("id-10");
+		assertEquals(100, listQuery.getPageLimit(100, 1000));
+		assertEquals(0, listQuery.getPageLimit(0, 1000));
+		assertEquals(1000, listQuery.getPageLimit(5000, 1000));
+
+		listQuery.setLimit(50);
+		assertEquals(50, listQuery.getPageLimit(100, 1000));
+		listQuery.setLimit(5000);
+		assertEquals(1000, listQuery.getPageLimit(100, 1000));
+		assertEquals(5000, listQuery.getPageLimit(100, 0));
+		listQuery.setLimit(-1);
+		assertEquals(100, listQuery.getPageLimit(100, 1000));
+	}
+
+	@Test
+	void toQueryDoesNotChangeTheListQuery() {
+		ListQuery listQuery = new ListQuery();
+		listQuery.setLimit(5000);
+		Query query = listQuery.toQuery("owner", "provider", null, HIDDEN_FIELDS, listQuery.getPageLimit(100, 1000));
+
+		assertEquals(1000, query.getLimit());
+		assertEquals(5000, listQuery.getLimit());
+	}
+
+	@Test
+	void toQueryWithoutPageLimitIsUnlimited() {
+		Query query = new ListQuery().toQuery("owner", "provider", null, HIDDEN_FIELDS, 0);
+		assertEquals(0, query.getLimit());
+		assertTrue(query.getQueryObject().isEmpty());
+	}
+
+	@Test
+	void forcedOwnerReplacesRequestedOwner() {
+		ListQuery listQuery = new ListQuery();
+		listQuery.setOwner("someone-else");
+		listQuery.setAfter("id-10");
+		Query query = listQuery.toQuery("owner", "provider", "me", HIDDEN_FIELDS, 10);
+
+		String criteria = query.getQueryObject().toJson();
+		assertTrue(criteria.contains("\"owner\": \"me\""), criteria);
+		assertFalse(criteria.contains("someone-else"), criteria);
+		assertTrue(criteria.contains("\"$gt\": \"id-10\""), criteria);
+		assertEquals(new Document("id", 1), query.getSortObject());
+	}
+
+	@Test
+	void hiddenFieldsAreNeverReturned() {
+		ListQuery listQuery = new ListQuery();
+		listQuery.setFields(List.of("name", "password", "password.hash"));
+		Document fields = listQuery.toQuery("owner", "provider", null, HIDDEN_FIELDS, 10).getFieldsObject();
+		assertEquals(new Document("name", 1).append("id", 1), fields);
+
+		Document excluded = new ListQuery().toQuery("owner", "provider", null, HIDDEN_FIELDS, 10).getFieldsObject();
+		assertEquals(new Document("password", 0), excluded);
+	}
+
+	@Test
+	void nextAfterHeaderIsSetForFullPagesOnly() {
+		Function<String, String> id = Function.identity();
+		ResponseEntity<List<String>> full = ListQuery.toResponse(List.of("a", "b"), 2, id);
+		assertEquals("b", full.getHeaders().getFirst(ListQuery.NEXT_AFTER_HEADER));
+
+		ResponseEntity<List<String>> partial = ListQuery.toResponse(List.of("a"), 2, id);
+		assertNull(partial.getHeaders().getFirst(ListQuery.NEXT_AFTER_HEADER));
+
+		ResponseEntity<List<String>> unlimited = ListQuery.toResponse(List.of("a", "b"), 0, id);
+		assertNull(unlimited.getHeaders().getFirst(ListQuery.NEXT_AFTER_HEADER));
+	}
+}
@@ -0,0 +1,62 @@
+package eu.nebulous.resource.discovery.common;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricRingBufferTest {
+
+	@ParameterizedTest
+	@ValueSource(booleans = { false, true })
+	void keepsSamplesInOrderUntilFull(boolean offHeap) {
+		MetricRingBuffer buffer = new MetricRingBuffer(4, offHeap);
+		assertEquals(Long.MAX_VALUE, buffer.getOldestTimestamp());
+		buffer.add(10, 1.0);
+		buffer.add(20, 2.0);
+
+		assertEquals(2, buffer.size());
+		assertEquals(10, buffer.getOldestTimestamp());
+		assertEquals(List.of(10L, 20L), timestamps(buffer, 0, Long.MAX_VALUE));
+	}
+
+	@ParameterizedTest
+	@ValueSource(booleans = { false, true })
+	void overwritesTheOldestSamplesWhenFull(boolean offHeap) {
+		MetricRingBuffer buffer = new MetricRingBuffer(3, offHeap);
+		for (int i = 1; i <= 5; i++)
+			buffer.add(i * 10, i);
+
+		assertEquals(3, buffer.size());
+		assertEquals(30, buffer.getOldestTimestamp());
+		List<Double> values = new ArrayList<>();
+		buffer.forEach(0, Long.MAX_VALUE, (timestamp, value) -> values.add(value));
+		assertEquals(List.of(3.0, 4.0, 5.0), values);
+	}
+
+	@ParameterizedTest
+	@ValueSource(booleans = { false, true })
+	void visitsOnlyTheRequestedRange(boolean offHeap) {
+		MetricRingBuffer buffer = new MetricRingBuffer(8, offHeap);
+		for (int i = 1; i <= 6; i++)
+			buffer.add(i * 10, i);
+
+		assertEquals(List.of(20L, 30L, 40L), timestamps(buffer, 20, 50));
+		assertEquals(List.of(), timestamps(buffer, 70, 100));
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { 0, -1 })
+	void invalidCapacityIsRejected(int capacity) {
+		assertThrows(IllegalArgumentException.class, () -> new MetricRingBuffer(capacity, false));
+	}
+
+	private static List<Long> timestamps(MetricRingBuffer buffer, long from, long to) {
+		List<Long> timestamps = new ArrayList<>();
+		buffer.forEach(from, to, (timestamp, value) -> timestamps.add(timestamp));
+		return timestamps;
+	}
+}
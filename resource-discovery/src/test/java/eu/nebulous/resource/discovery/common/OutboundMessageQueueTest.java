@@ -0,0 +1,142 @@
+package eu.nebulous.resource.discovery.common;
+
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties.BROKER_SEND_OVERFLOW_POLICY;
+import eu.nebulous.resource.discovery.common.OutboundMessageQueue.OutboundMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundMessageQueueTest {
+
+	@Test
+	void failFastRejectsWhenFull() {
+		OutboundMessageQueue queue = new OutboundMessageQueue(2, BROKER_SEND_OVERFLOW_POLICY.FAIL_FAST, 0);
+		CompletableFuture<Void> first = queue.offer(message("t1"));
+		CompletableFuture<Void> second = queue.offer(message("t2"));
+		CompletableFuture<Void> third = queue.offer(message("t3"));
+
+		assertFalse(first.isDone());
+		assertFalse(second.isDone());
+		assertFailedWith(RejectedExecutionException.class, third);
+		assertEquals(2, queue.size());
+		assertEquals(1, queue.getRejectedCount().get());
+	}
+
+	@Test
+	void dropOldestDiscardsTheOldestMessage() throws Exception {
+		OutboundMessageQueue queue = new OutboundMessageQueue(2, BROKER_SEND_OVERFLOW_POLICY.DROP_OLDEST, 0);
+		CompletableFuture<Void> first = queue.offer(message("t1"));
+		queue.offer(message("t2"));
+		CompletableFuture<Void> third = queue.offer(message("t3"));
+
+		assertFailedWith(RejectedExecutionException.class, first);
+		assertFalse(third.isDone());
+		assertEquals(1, queue.getDroppedCount().get());
+		assertEquals("t2", queue.take().getTopic());
+		assertEquals("t3", queue.take().getTopic());
+	}
+
+	@Test
+	void blockRejectsAfterTheBlockTimeout() {
+		OutboundMessageQueue queue = new OutboundMessageQueue(1, BROKER_SEND_OVERFLOW_POLICY.BLOCK, 50);
+		queue.offer(message("t1"));
+		long start = System.nanoTime();
+		CompletableFuture<Void> second = queue.offer(message("t2"));
+
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50, "Offer did not wait for the block timeout");
+		assertFailedWith(RejectedExecutionException.class, second);
+		assertEquals(1, queue.getRejectedCount().get());
+	}
+
+	@Test
+	void blockWaitsForRoom() throws Exception {
+		OutboundMessageQueue queue = new OutboundMessageQueue(1, BROKER_SEND_OVERFLOW_POLICY.BLOCK, 5000);
+		queue.offer(message("t1"));
+		CompletableFuture<CompletableFuture<Void>> offered = CompletableFuture.supplyAsync(() -> queue.offer(message("t2")));
+
+		Thread.sleep(50);
+		assertFalse(offered.isDone(), "Offer did not block on a full queue");
+		assertEquals("t1", queue.take().getTopic());
+		assertFalse(offered.get(5, TimeUnit.SECONDS).isDone());
+		assertEquals("t2", queue.take().getTopic());
+	}
+
+	@Test
+	void expiredMessagesAreNotHandedOut() throws Exception {
+		OutboundMessageQueue queue = new OutboundMessageQueue(4, BROKER_SEND_OVERFLOW_POLICY.FAIL_FAST, 0);
+		CompletableFuture<Void> expired = queue.offer(new OutboundMessage("expiring", "{}", 1));
+		queue.offer(new OutboundMessage("lasting", "{}", 60_000));
+		Thread.sleep(10);
+
+		OutboundMessage message = queue.take();
+		assertEquals("lasting", message.getTopic());
+		assertTrue(message.getRemainingTimeToLive() > 0);
+		assertFailedWith(TimeoutException.class, expired);
+		assertEquals(1, queue.getExpiredCount().get());
+	}
+
+	@Test
+	void messagesWithoutTimeToLiveNeverExpire() {
+		OutboundMessage message = new OutboundMessage("topic", "{}", 0);
+		assertFalse(message.isExpired());
+		assertEquals(0, message.getRemainingTimeToLive());
+	}
+
+	@Test
+	void requeuedMessageIsSentFirst() throws Exception {
+		OutboundMessageQueue queue = new OutboundMessageQueue(2, BROKER_SEND_OVERFLOW_POLICY.FAIL_FAST, 0);
+		queue.offer(message("t1"));
+		queue.offer(message("t2"));
+		OutboundMessage first = queue.take();
+		queue.requeue(first);
+
+		assertEquals("t1", queue.take().getTopic());
+		assertEquals("t2", queue.take().getTopic());
+	}
+
+	@Test
+	void requeueIntoFullQueueKeepsTheMessage() throws Exception {
+		OutboundMessageQueue queue = new OutboundMessageQueue(1, BROKER_SEND_OVERFLOW_POLICY.FAIL_FAST, 0);
+		queue.offer(message("t1"));
+		OutboundMessage first = queue.take();
+		queue.offer(message("t2"));
+		queue.requeue(first);
+
+		assertFalse(first.getFuture().isDone());
+		assertEquals(2, queue.size());
+		assertEquals(0, queue.getRejectedCount().get());
+		assertEquals("t1", queue.take().getTopic());
+		assertEquals("t2", queue.take().getTopic());
+	}
+
+	@Test
+	void drainFailsAllQueuedMessages() throws Exception {
+		OutboundMessageQueue queue = new OutboundMessageQueue(2, BROKER_SEND_OVERFLOW_POLICY.FAIL_FAST, 0);
+		queue.offer(message("t1"));
+		CompletableFuture<Void> second = queue.offer(message("t2"));
+		OutboundMessage first = queue.take();
+		queue.requeue(first);
+
+		assertEquals(2, queue.drain(new CancellationException("shutdown")));
+		assertEquals(0, queue.size());
+		assertFailedWith(CancellationException.class, first.getFuture());
+		assertFailedWith(CancellationException.class, second);
+	}
+
+	private static OutboundMessage message(String topic) {
+		return new OutboundMessage(topic, "{}", 0);
+	}
+
+	private static void assertFailedWith(Class<? extends Throwable> expected, CompletableFuture<Void> future) {
+		assertTrue(future.isCompletedExceptionally(), "Future did not fail");
+		Throwable cause = assertThrows(Exception.class, future::join);
+		assertInstanceOf(expected, cause instanceof CompletionException ? cause.getCause() : cause);
+	}
+}
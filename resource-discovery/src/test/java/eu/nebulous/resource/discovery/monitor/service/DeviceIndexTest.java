@@ -0,0 +1,162 @@
+package eu.nebulous.resource.discovery.monitor.service;
+
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.monitor.model.Device;
+import eu.nebulous.resource.discovery.monitor.model.DeviceStatus;
+import eu.nebulous.resource.discovery.monitor.model.DeviceStatusUpdate;
+import eu.nebulous.resource.discovery.monitor.repository.ArchivedDeviceRepository;
+import eu.nebulous.resource.discovery.monitor.repository.DeviceRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class DeviceIndexTest {
+	private final Map<String, Device> database = new ConcurrentHashMap<>();
+	private ResourceDiscoveryProperties properties;
+	private DeviceRepository deviceRepository;
+	private SimpleMeterRegistry meterRegistry;
+	private DeviceIndex index;
+
+	@BeforeEach
+	void setUp() {
+		properties = new ResourceDiscoveryProperties();
+		deviceRepository = mock(DeviceRepository.class);
+		when(deviceRepository.findAll()).thenAnswer(invocation -> new ArrayList<>(database.values()));
+		when(deviceRepository.findById(anyString())).thenAnswer(invocation -> Optional.ofNullable(database.get((String) invocation.getArgument(0))));
+		when(deviceRepository.findByLastUpdateDateGreaterThanEqual(any())).thenAnswer(invocation -> database.values().stream()
+				.filter(device -> device.getLastUpdateDate() != null && !device.getLastUpdateDate().isBefore(invocation.getArgument(0)))
+				.toList());
+		when(deviceRepository.save(any())).thenAnswer(invocation -> {
+			Device device = invocation.getArgument(0);
+			database.put(device.getId(), device.toBuilder().build());
+			return device;
+		});
+		meterRegistry = new SimpleMeterRegistry();
+		index = newIndex(meterRegistry);
+	}
+
+	private DeviceIndex newIndex(SimpleMeterRegistry meterRegistry) {
+		DeviceIndex deviceIndex = new DeviceIndex(properties, deviceRepository, mock(TaskScheduler.class), meterRegistry);
+		deviceIndex.afterPropertiesSet();
+		return deviceIndex;
+	}
+
+	@Test
+	void writesAreVisibleThroughEveryKey() {
+		index.put(device("d1", "10.0.0.1", "Client-1"));
+
+		assertEquals("d1", index.getById("d1").orElseThrow().getId());
+		assertEquals("d1", index.getByIpAddress("10.0.0.1").orElseThrow().getId());
+		assertEquals("d1", index.getByClientId("CLIENT-1").orElseThrow().getId());
+		assertEquals("d1", index.getByNodeReference("node-d1").orElseThrow().getId());
+
+		index.update("d1", device -> {
+			device.setIpAddress("10.0.0.2");
+			return device;
+		});
+		assertTrue(index.getByIpAddress("10.0.0.1").isEmpty());
+		assertEquals("d1", index.getByIpAddress("10.0.0.2").orElseThrow().getId());
+
+		index.remove("d1");
+		assertTrue(index.getById("d1").isEmpty());
+		assertTrue(index.getByClientId("client-1").isEmpty());
+	}
+
+	@Test
+	void lookupsReturnCopies() {
+		index.put(device("d1", "10.0.0.1", "client-1"));
+
+		Device copy = index.getById("d1").orElseThrow();
+		copy.setIpAddress("10.9.9.9");
+		copy.getStatusUpdate().setState("CHANGED");
+
+		Device indexed = index.getById("d1").orElseThrow();
+		assertEquals("10.0.0.1", indexed.getIpAddress());
+		assertNull(indexed.getStatusUpdate().getState());
+	}
+
+	@Test
+	void resyncPicksUpDevicesCreatedByAnotherInstance() {
+		index.resync();         // first resync is a full reload
+		assertTrue(index.isLoaded());
+
+		// Another instance creates a device, with its own index
+		DeviceManagementService otherInstance = new DeviceManagementService(properties, deviceRepository,
+				mock(ArchivedDeviceRepository.class), null, newIndex(new SimpleMeterRegistry()), null, mock(ApplicationEventPublisher.class));
+		Device created = device(null, "10.0.0.7", "client-7");
+		created.setStatus(null);
+		created = otherInstance.save(created);
+		assertNotNull(created.getLastUpdateDate());
+		assertTrue(index.getById(created.getId()).isEmpty());
+
+		index.resync();         // incremental
+		assertEquals(created.getId(), index.getByIpAddress("10.0.0.7").orElseThrow().getId());
+	}
+
+	@Test
+	void fullReloadDropsDeletedDevices() {
+		database.put("d1", device("d1", "10.0.0.1", "client-1"));
+		database.put("d2", device("d2", "10.0.0.2", "client-2"));
+		assertTrue(index.reload());
+		assertEquals(2, meterRegistry.get("discovery.device.index.size").gauge().value());
+
+		database.remove("d1");
+		assertTrue(index.reload());
+		assertTrue(index.getById("d1").isEmpty());
+		assertTrue(index.getByIpAddress("10.0.0.1").isEmpty());
+		assertTrue(index.getById("d2").isPresent());
+	}
+
+	@Test
+	void failedReloadKeepsTheIndex() {
+		index.put(device("d1", "10.0.0.1", "client-1"));
+		when(deviceRepository.findAll()).thenThrow(new IllegalStateException("database down"));
+
+		assertFalse(index.reload());
+		assertTrue(index.getById("d1").isPresent());
+	}
+
+	@Test
+	void lookupsAreCountedInMeters() {
+		index.put(device("d1", "10.0.0.1", "client-1"));
+		index.getById("d1");
+		index.getById("missing");
+		index.getByIpAddress("10.0.0.9");
+
+		assertEquals(1, meterRegistry.get("discovery.device.index.lookups").tag("result", "hit").functionCounter().count());
+		assertEquals(2, meterRegistry.get("discovery.device.index.lookups").tag("result", "miss").functionCounter().count());
+		assertEquals(1, meterRegistry.get("discovery.device.index.size").gauge().value());
+	}
+
+	private static Device device(String id, String ipAddress, String clientId) {
+		DeviceStatusUpdate statusUpdate = new DeviceStatusUpdate();
+		statusUpdate.setClientId(clientId);
+		return Device.builder()
+				.id(id)
+				.os("LINUX")
+				.owner("owner")
+				.provider("provider")
+				.ipAddress(ipAddress)
+				.nodeReference(id != null ? "node-" + id : "node-" + ipAddress)
+				.username("user")
+				.password("secret".toCharArray())
+				.status(DeviceStatus.NEW_DEVICE)
+				.creationDate(Instant.now())
+				.statusUpdate(statusUpdate)
+				.build();
+	}
+}
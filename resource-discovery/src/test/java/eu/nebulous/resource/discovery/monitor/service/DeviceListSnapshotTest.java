@@ -0,0 +1,82 @@
+package eu.nebulous.resource.discovery.monitor.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.nebulous.resource.discovery.ResourceDiscoveryConfig;
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.monitor.model.Device;
+import eu.nebulous.resource.discovery.monitor.model.DeviceChangeEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class DeviceListSnapshotTest {
+	private final ObjectMapper objectMapper = ResourceDiscoveryConfig.objectMapper();
+	private ResourceDiscoveryProperties properties;
+	private DeviceManagementService deviceManagementService;
+	private SimpleMeterRegistry meterRegistry;
+	private DeviceListSnapshot snapshot;
+
+	@BeforeEach
+	void setUp() {
+		properties = new ResourceDiscoveryProperties();
+		deviceManagementService = mock(DeviceManagementService.class);
+		meterRegistry = new SimpleMeterRegistry();
+		snapshot = new DeviceListSnapshot(properties, deviceManagementService, objectMapper, meterRegistry);
+		snapshot.afterPropertiesSet();
+	}
+
+	@Test
+	void snapshotContainsMoreDevicesThanTheDefaultPageSize() throws Exception {
+		int count = properties.getListDefaultPageSize() * 2 + 1;
+		when(deviceManagementService.streamAll()).thenAnswer(invocation -> IntStream.range(0, count).mapToObj(DeviceListSnapshotTest::device));
+
+		DeviceListSnapshot.Snapshot result = snapshot.getSnapshot();
+
+		assertEquals(count, ids(objectMapper.readTree(result.json())).size());
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(result.gzip()))) {
+			assertEquals(count, ids(objectMapper.readTree(in)).size());
+		}
+		verify(deviceManagementService, never()).find(any(), any());
+	}
+
+	@Test
+	void snapshotIsReusedUntilDevicesChange() {
+		when(deviceManagementService.streamAll()).thenAnswer(invocation -> IntStream.range(0, 3).mapToObj(DeviceListSnapshotTest::device));
+
+		DeviceListSnapshot.Snapshot first = snapshot.getSnapshot();
+		assertSame(first, snapshot.getSnapshot());
+		assertTrue(first.matches(first.etag(true)));
+
+		snapshot.onDeviceChange(new DeviceChangeEvent(DeviceChangeEvent.TYPE.UPDATED, device(0)));
+		DeviceListSnapshot.Snapshot second = snapshot.getSnapshot();
+		assertNotSame(first, second);
+		assertFalse(second.matches(first.etag(false)));
+		verify(deviceManagementService, times(2)).streamAll();
+		assertEquals(2, meterRegistry.get("discovery.device.snapshot.builds").functionCounter().count());
+		assertEquals(3, meterRegistry.get("discovery.device.snapshot.requests").functionCounter().count());
+		assertEquals(second.json().length, meterRegistry.get("discovery.device.snapshot.size").gauge().value());
+	}
+
+	private static Device device(int i) {
+		return Device.builder().id("device-" + i).name("Device " + i).lastUpdateDate(Instant.now()).build();
+	}
+
+	private static Set<String> ids(JsonNode array) {
+		assertTrue(array.isArray());
+		Set<String> ids = new HashSet<>();
+		array.forEach(node -> ids.add(node.get("id").asText()));
+		return ids;
+	}
+}
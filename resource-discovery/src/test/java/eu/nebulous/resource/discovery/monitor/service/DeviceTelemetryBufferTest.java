@@ -0,0 +1,136 @@
+package eu.nebulous.resource.discovery.monitor.service;
+
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.monitor.model.DeviceMetrics;
+import eu.nebulous.resource.discovery.monitor.model.DeviceStatusUpdate;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.*;
+
+class DeviceTelemetryBufferTest {
+	private final static Instant T0 = Instant.parse("2026-01-01T00:00:00Z");
+
+	private ResourceDiscoveryProperties properties;
+	private DeviceManagementService deviceManagementService;
+	private TaskScheduler taskScheduler;
+	private DeviceTelemetryBuffer buffer;
+	private final List<List<DeviceManagementService.TelemetryUpdate>> written = new ArrayList<>();
+
+	@BeforeEach
+	void setUp() {
+		properties = new ResourceDiscoveryProperties();
+		deviceManagementService = mock(DeviceManagementService.class);
+		taskScheduler = mock(TaskScheduler.class);
+		buffer = new DeviceTelemetryBuffer(properties, deviceManagementService, taskScheduler);
+		doAnswer(invocation -> {
+			written.add(new ArrayList<>(invocation.<Collection<DeviceManagementService.TelemetryUpdate>>getArgument(0)));
+			return null;
+		}).when(deviceManagementService).updateTelemetry(anyCollection());
+	}
+
+	@Test
+	void keepsTheNewestStatusAndMetrics() {
+		buffer.bufferStatusUpdate("d1", status("UP", T0.plusSeconds(2)));
+		buffer.bufferStatusUpdate("d1", status("DOWN", T0.plusSeconds(1)));      // late arrival
+		buffer.bufferMetrics("d1", metrics(T0.plusSeconds(5)));
+
+		assertEquals(1, buffer.getPendingCount());
+		assertEquals("UP", buffer.getPendingStatusUpdate("d1").orElseThrow().getState());
+		assertEquals(T0.plusSeconds(5), buffer.getPendingMetrics("d1").orElseThrow().getTimestamp());
+	}
+
+	@Test
+	void entriesStayVisibleUntilWritten() {
+		buffer.bufferStatusUpdate("d1", status("UP", T0));
+		doAnswer(invocation -> {
+			assertTrue(buffer.getPendingStatusUpdate("d1").isPresent(), "Pending status hidden during the write");
+			return null;
+		}).when(deviceManagementService).updateTelemetry(anyCollection());
+
+		buffer.flush();
+
+		verify(deviceManagementService).updateTelemetry(anyCollection());
+		assertEquals(0, buffer.getPendingCount());
+		assertTrue(buffer.getPendingStatusUpdate("d1").isEmpty());
+	}
+
+	@Test
+	void updatesArrivingDuringTheWriteAreKept() {
+		buffer.bufferStatusUpdate("d1", status("UP", T0));
+		doAnswer(invocation -> {
+			buffer.bufferStatusUpdate("d1", status("DOWN", T0.plusSeconds(1)));
+			return null;
+		}).doAnswer(invocation -> {
+			written.add(new ArrayList<>(invocation.<Collection<DeviceManagementService.TelemetryUpdate>>getArgument(0)));
+			return null;
+		}).when(deviceManagementService).updateTelemetry(anyCollection());
+
+		buffer.flush();
+		assertEquals("DOWN", buffer.getPendingStatusUpdate("d1").orElseThrow().getState());
+
+		buffer.flush();
+		assertEquals("DOWN", written.get(0).get(0).statusUpdate().getState());
+		assertEquals(0, buffer.getPendingCount());
+	}
+
+	@Test
+	void failedWritesAreRetriedWithTheNewestTelemetry() {
+		buffer.bufferStatusUpdate("d1", status("UP", T0));
+		buffer.bufferMetrics("d2", metrics(T0));
+		doAnswer(invocation -> {
+			buffer.bufferStatusUpdate("d1", status("DOWN", T0.plusSeconds(1)));
+			throw new IllegalStateException("database down");
+		}).doAnswer(invocation -> {
+			written.add(new ArrayList<>(invocation.<Collection<DeviceManagementService.TelemetryUpdate>>getArgument(0)));
+			return null;
+		}).when(deviceManagementService).updateTelemetry(anyCollection());
+
+		buffer.flush();
+		assertEquals(2, buffer.getPendingCount());
+		assertEquals("DOWN", buffer.getPendingStatusUpdate("d1").orElseThrow().getState());
+		assertTrue(buffer.getPendingMetrics("d2").isPresent());
+
+		buffer.flush();
+		Map<String, DeviceManagementService.TelemetryUpdate> updates = new java.util.HashMap<>();
+		written.get(0).forEach(update -> updates.put(update.deviceId(), update));
+		assertEquals("DOWN", updates.get("d1").statusUpdate().getState());
+		assertNotNull(updates.get("d2").metrics());
+		assertEquals(0, buffer.getPendingCount());
+	}
+
+	@Test
+	void reachingTheThresholdSchedulesAnEarlyFlush() {
+		properties.setTelemetryFlushThreshold(2);
+		buffer.bufferMetrics("d1", metrics(T0));
+		verify(taskScheduler, never()).schedule(any(Runnable.class), any(Instant.class));
+
+		buffer.bufferMetrics("d2", metrics(T0));
+		buffer.bufferMetrics("d3", metrics(T0));
+		verify(taskScheduler, times(1)).schedule(any(Runnable.class), any(Instant.class));
+	}
+
+	private static DeviceStatusUpdate status(String state, Instant timestamp) {
+		DeviceStatusUpdate statusUpdate = new DeviceStatusUpdate();
+		statusUpdate.setState(state);
+		statusUpdate.setStateLastUpdate(timestamp);
+		return statusUpdate;
+	}
+
+	private static DeviceMetrics metrics(Instant timestamp) {
+		DeviceMetrics metrics = new DeviceMetrics();
+		metrics.setTimestamp(timestamp);
+		metrics.setMetrics(Map.of("cpu", 0.5));
+		return metrics;
+	}
+}
@@ -0,0 +1,135 @@
+package eu.nebulous.resource.discovery.registration.service;
+
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.broker_communication.SalPublisherPool;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class NonceAuthenticationServiceTest {
+	private ResourceDiscoveryProperties properties;
+	private SalPublisherPool salPublisherPool;
+	private SimpleMeterRegistry meterRegistry;
+	private NonceAuthenticationService service;
+
+	@BeforeEach
+	void setUp() {
+		properties = new ResourceDiscoveryProperties();
+		salPublisherPool = mock(SalPublisherPool.class);
+		meterRegistry = new SimpleMeterRegistry();
+		service = new NonceAuthenticationService(properties, salPublisherPool, meterRegistry);
+		service.afterPropertiesSet();
+	}
+
+	@Test
+	void usernamesAreCached() {
+		replyWith("alice");
+
+		assertEquals("alice", service.getUsername("nonce-1", "app-1"));
+		assertEquals("alice", service.getUsername("nonce-1", "app-1"));
+		assertNull(service.getUsername("nonce-1", " "));
+
+		verify(salPublisherPool, times(1)).request(anyString(), anyString(), anyString(), any(Duration.class));
+		assertEquals(1, requests("hit"));
+		assertEquals(1, requests("miss"));
+	}
+
+	@Test
+	void concurrentLookupsShareOneRequest() throws Exception {
+		CompletableFuture<Map> reply = new CompletableFuture<>();
+		when(salPublisherPool.request(anyString(), anyString(), anyString(), any(Duration.class))).thenReturn(reply);
+
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < threads; i++)
+				results.add(executor.submit(() -> service.getUsername("nonce-1", "app-1")));
+			long deadline = System.currentTimeMillis() + 5000;
+			while (requests("coalesced") < threads - 1 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+
+			reply.complete(username("alice"));
+			for (Future<String> result : results)
+				assertEquals("alice", result.get());
+		} finally {
+			executor.shutdownNow();
+		}
+		verify(salPublisherPool, times(1)).request(anyString(), anyString(), anyString(), any(Duration.class));
+		assertEquals(threads - 1, requests("coalesced"));
+	}
+
+	@Test
+	void unknownNoncesAreCachedBriefly() throws InterruptedException {
+		properties.setNonceNegativeCacheTtl(50);
+		replyWith(null);
+
+		assertNull(service.getUsername("nonce-1", "app-1"));
+		assertNull(service.getUsername("nonce-1", "app-1"));
+		verify(salPublisherPool, times(1)).request(anyString(), anyString(), anyString(), any(Duration.class));
+		assertEquals(1, requests("negative-hit"));
+
+		Thread.sleep(100);
+		replyWith("alice");
+		assertEquals("alice", service.getUsername("nonce-1", "app-1"));
+		verify(salPublisherPool, times(2)).request(anyString(), anyString(), anyString(), any(Duration.class));
+	}
+
+	@Test
+	void failedLookupsAreNotCached() {
+		when(salPublisherPool.request(anyString(), anyString(), anyString(), any(Duration.class)))
+				.thenReturn(CompletableFuture.failedFuture(new IllegalStateException("broker down")));
+
+		assertNull(service.getUsername("nonce-1", "app-1"));
+		assertEquals(1, requests("error"));
+
+		replyWith("alice");
+		assertEquals("alice", service.getUsername("nonce-1", "app-1"));
+		verify(salPublisherPool, times(2)).request(eq("eu.nebulouscloud.ui.user.get"), anyString(), anyString(), any(Duration.class));
+	}
+
+	@Test
+	void cacheIsBounded() {
+		properties.setNonceCacheMaxSize(2);
+		replyWith("alice");
+
+		service.getUsername("nonce-1", "app-1");
+		service.getUsername("nonce-2", "app-1");
+		service.getUsername("nonce-3", "app-1");
+		assertEquals(2, meterRegistry.get("discovery.nonce.cache.size").gauge().value());
+
+		service.getUsername("nonce-1", "app-1");       // evicted
+		verify(salPublisherPool, times(4)).request(anyString(), anyString(), anyString(), any(Duration.class));
+	}
+
+	private void replyWith(String username) {
+		when(salPublisherPool.request(anyString(), anyString(), anyString(), any(Duration.class)))
+				.thenAnswer(invocation -> CompletableFuture.completedFuture(username(username)));
+	}
+
+	private static Map username(String username) {
+		Map<String, Object> reply = new HashMap<>();
+		reply.put("username", username);
+		return reply;
+	}
+
+	private double requests(String result) {
+		return meterRegistry.get("discovery.nonce.requests").tag("result", result).functionCounter().count();
+	}
+}
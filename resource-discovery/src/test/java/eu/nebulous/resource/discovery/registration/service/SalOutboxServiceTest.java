@@ -0,0 +1,183 @@
+package eu.nebulous.resource.discovery.registration.service;
+
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import eu.nebulous.resource.discovery.ResourceDiscoveryProperties;
+import eu.nebulous.resource.discovery.monitor.model.Device;
+import eu.nebulous.resource.discovery.monitor.service.DeviceManagementService;
+import eu.nebulous.resource.discovery.registration.model.SalOutboxEntry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class SalOutboxServiceTest {
+	private ResourceDiscoveryProperties properties;
+	private DeviceManagementService deviceManagementService;
+	private MongoTemplate mongoTemplate;
+	private SalOutboxService outbox;
+	private final List<Device> handled = new ArrayList<>();
+
+	@BeforeEach
+	void setUp() {
+		properties = new ResourceDiscoveryProperties();
+		deviceManagementService = mock(DeviceManagementService.class);
+		when(deviceManagementService.getById(anyString()))
+				.thenAnswer(invocation -> Optional.of(Device.builder().id(invocation.getArgument(0)).build()));
+		mongoTemplate = mock(MongoTemplate.class);
+		when(mongoTemplate.remove(any(Query.class), eq(SalOutboxEntry.class))).thenReturn(DeleteResult.acknowledged(1));
+		when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(SalOutboxEntry.class)))
+				.thenReturn(UpdateResult.acknowledged(1, 1L, null));
+		outbox = new SalOutboxService(properties, deviceManagementService, mongoTemplate,
+				mock(TaskScheduler.class), new SimpleMeterRegistry());
+	}
+
+	@Test
+	void enqueueReplacesThePendingIntentButKeepsTheLease() {
+		outbox.enqueue(Device.builder().id("d1").provider("p1").sal_id("s1").build(), SalOutboxEntry.ACTION.REGISTER);
+		outbox.enqueue(Device.builder().id("d1").provider("p1").sal_id("s1").build(), SalOutboxEntry.ACTION.DEREGISTER);
+
+		ArgumentCaptor<Query> queries = ArgumentCaptor.forClass(Query.class);
+		ArgumentCaptor<Update> updates = ArgumentCaptor.forClass(Update.class);
+		verify(mongoTemplate, times(2)).upsert(queries.capture(), updates.capture(), eq(SalOutboxEntry.class));
+		assertEquals(new Document("deviceId", "d1"), queries.getValue().getQueryObject());
+
+		Document first = updates.getAllValues().get(0).getUpdateObject();
+		Document second = updates.getAllValues().get(1).getUpdateObject();
+		Document set = second.get("$set", Document.class);
+		assertEquals(SalOutboxEntry.ACTION.DEREGISTER, set.get("action"));
+		assertEquals(0, set.get("attempts"));
+		assertNotEquals(first.get("$set", Document.class).get("leaseToken"), set.get("leaseToken"));
+		assertFalse(set.containsKey("leaseOwner"));
+		assertFalse(set.containsKey("leaseExpiryDate"));
+		assertTrue(second.get("$unset", Document.class).containsKey("lastError"));
+		assertTrue(second.get("$setOnInsert", Document.class).containsKey("creationDate"));
+	}
+
+	@Test
+	void claimLeasesDueEntriesAndRemovesThemOnSuccess() {
+		SalOutboxEntry entry = entry("d1", "token-1", 1);
+		when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(SalOutboxEntry.class)))
+				.thenReturn(entry, (SalOutboxEntry) null);
+		outbox.setHandler(SalOutboxEntry.ACTION.REGISTER, device -> {
+			handled.add(device);
+			return CompletableFuture.completedFuture("sal-id");
+		});
+
+		outbox.poll();
+
+		ArgumentCaptor<Query> claim = ArgumentCaptor.forClass(Query.class);
+		ArgumentCaptor<Update> lease = ArgumentCaptor.forClass(Update.class);
+		verify(mongoTemplate, times(2)).findAndModify(claim.capture(), lease.capture(), any(FindAndModifyOptions.class), eq(SalOutboxEntry.class));
+		String claimQuery = claim.getValue().getQueryObject().toString();
+		assertTrue(claimQuery.contains("attempts=Document{{$lt=" + properties.getSalOutboxMaxAttempts() + "}}"), claimQuery);
+		assertTrue(claimQuery.contains("leaseExpiryDate=null"), claimQuery);
+		assertTrue(claimQuery.contains("leaseExpiryDate=Document{{$lt="), claimQuery);
+		Document leaseUpdate = lease.getValue().getUpdateObject();
+		assertEquals(1, leaseUpdate.get("$inc", Document.class).get("attempts"));
+		assertTrue(leaseUpdate.get("$set", Document.class).keySet().containsAll(List.of("leaseOwner", "leaseToken", "leaseExpiryDate")));
+
+		assertEquals(List.of("d1"), handled.stream().map(Device::getId).toList());
+		ArgumentCaptor<Query> removed = ArgumentCaptor.forClass(Query.class);
+		verify(mongoTemplate).remove(removed.capture(), eq(SalOutboxEntry.class));
+		assertEquals(new Document("deviceId", "d1").append("leaseToken", "token-1"), removed.getValue().getQueryObject());
+		verify(mongoTemplate, never()).updateFirst(any(Query.class), any(Update.class), eq(SalOutboxEntry.class));
+	}
+
+	@Test
+	void entryReplacedWhileInProgressIsReleasedForTheNewIntent() {
+		when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(SalOutboxEntry.class)))
+				.thenReturn(entry("d1", "token-1", 1), (SalOutboxEntry) null);
+		when(mongoTemplate.remove(any(Query.class), eq(SalOutboxEntry.class))).thenReturn(DeleteResult.acknowledged(0));
+		outbox.setHandler(SalOutboxEntry.ACTION.REGISTER, device -> CompletableFuture.completedFuture("sal-id"));
+
+		outbox.poll();
+
+		ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+		ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+		verify(mongoTemplate).updateFirst(query.capture(), update.capture(), eq(SalOutboxEntry.class));
+		assertEquals("d1", query.getValue().getQueryObject().get("deviceId"));
+		assertFalse(query.getValue().getQueryObject().containsKey("leaseToken"));
+		assertTrue(update.getValue().getUpdateObject().get("$unset", Document.class).keySet()
+				.containsAll(List.of("leaseOwner", "leaseExpiryDate")));
+	}
+
+	@Test
+	void failedAttemptsAreRetriedWithBackoff() {
+		when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(SalOutboxEntry.class)))
+				.thenReturn(entry("d1", "token-1", 3), (SalOutboxEntry) null);
+		outbox.setHandler(SalOutboxEntry.ACTION.REGISTER, device -> CompletableFuture.failedFuture(new IllegalStateException("SAL down")));
+
+		long startTm = System.currentTimeMillis();
+		outbox.poll();
+
+		ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+		ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+		verify(mongoTemplate).updateFirst(query.capture(), update.capture(), eq(SalOutboxEntry.class));
+		assertEquals("token-1", query.getValue().getQueryObject().get("leaseToken"));
+		Document set = update.getValue().getUpdateObject().get("$set", Document.class);
+		assertEquals("SAL down", set.get("lastError"));
+		assertFalse(set.containsKey("attempts"));
+		long delay = ((Instant) set.get("nextAttemptDate")).toEpochMilli() - startTm;
+		assertTrue(delay >= properties.getSalOutboxRetryDelay() * 4 && delay < properties.getSalOutboxRetryDelay() * 5, "delay=" + delay);
+		verify(mongoTemplate, never()).remove(any(Query.class), eq(SalOutboxEntry.class));
+	}
+
+	@Test
+	void timedOutRegistrationsAreNotRetried() {
+		when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(SalOutboxEntry.class)))
+				.thenReturn(entry("d1", "token-1", 1), (SalOutboxEntry) null);
+		outbox.setHandler(SalOutboxEntry.ACTION.REGISTER, device -> CompletableFuture.failedFuture(new TimeoutException()));
+
+		outbox.poll();
+
+		ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+		verify(mongoTemplate).updateFirst(any(Query.class), update.capture(), eq(SalOutboxEntry.class));
+		assertEquals(properties.getSalOutboxMaxAttempts(), update.getValue().getUpdateObject().get("$set", Document.class).get("attempts"));
+	}
+
+	@Test
+	void claimsStopAtTheBatchSize() {
+		properties.setSalOutboxBatchSize(2);
+		when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(SalOutboxEntry.class)))
+				.thenAnswer(invocation -> entry("d" + handled.size(), "token", 1));
+		outbox.setHandler(SalOutboxEntry.ACTION.REGISTER, device -> {
+			handled.add(device);
+			return new CompletableFuture<>();        // still in progress
+		});
+
+		outbox.poll();
+		outbox.poll();
+
+		assertEquals(2, handled.size());
+		verify(mongoTemplate, times(2)).findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(SalOutboxEntry.class));
+	}
+
+	private static SalOutboxEntry entry(String deviceId, String leaseToken, int attempts) {
+		return SalOutboxEntry.builder()
+				.deviceId(deviceId)
+				.action(SalOutboxEntry.ACTION.REGISTER)
+				.leaseToken(leaseToken)
+				.attempts(attempts)
+				.build();
+	}
+}